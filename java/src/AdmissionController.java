@@ -0,0 +1,269 @@
+/*
+ * Admission control
+ * =============================
+ *
+ * Gate in front of the write features so a fare sale on a few flight
+ * instances cannot pile FOR UPDATE waiters onto the database and starve
+ * every other operation.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An operation is admitted when
+ *  - the global token bucket has a token (rate limit with a burst allowance),
+ *  - its flight instance, if any, has fewer than perInstance operations in
+ *    flight, and
+ *  - no waiter of a better class (or the same class, queued earlier) could
+ *    run instead.
+ * Otherwise it queues until its deadline. It is rejected at once when the
+ * queue is full or when the token bucket cannot produce a token before the
+ * deadline, so callers fail fast instead of timing out.
+ *
+ * Settings (system properties): airline.admission.rate (tokens/s, 200),
+ * airline.admission.burst (50), airline.admission.perInstance (4),
+ * airline.admission.maxQueue (256), airline.admission.deadlineMillis (2000).
+ *
+ */
+public class AdmissionController {
+
+   // priority classes, best first
+   public static final int MANAGEMENT = 0;
+   public static final int TECHNICIAN = 1;
+   public static final int PILOT = 2;
+   public static final int CUSTOMER = 3;
+   private static final String[] CLASS_NAMES = { "Management", "Technician", "Pilot", "Customer" };
+
+   public static final int NO_INSTANCE = -1;
+
+   /**
+    * An admitted operation; close it when the operation is done.
+    */
+   public final class Permit implements AutoCloseable {
+      private final int flightInstanceID;
+      private boolean closed = false;
+
+      Permit(int flightInstanceID) {
+         this.flightInstanceID = flightInstanceID;
+      }
+
+      public void close() {
+         lock.lock();
+         try {
+            if (closed) return;
+            closed = true;
+            if (flightInstanceID != NO_INSTANCE) {
+               int n = inFlight.get(flightInstanceID) - 1;
+               if (n == 0) inFlight.remove(flightInstanceID); else inFlight.put(flightInstanceID, n);
+            }
+            changed.signalAll();
+         } finally {
+            lock.unlock();
+         }
+      }
+   }//end Permit
+
+   // a queued request
+   private static final class Waiter implements Comparable<Waiter> {
+      final int priority;
+      final long seq;
+      final int flightInstanceID;
+
+      Waiter(int priority, long seq, int flightInstanceID) {
+         this.priority = priority;
+         this.seq = seq;
+         this.flightInstanceID = flightInstanceID;
+      }
+
+      public int compareTo(Waiter o) {
+         return priority != o.priority ? Integer.compare(priority, o.priority) : Long.compare(seq, o.seq);
+      }
+   }//end Waiter
+
+   private final double ratePerSecond;
+   private final double burst;
+   private final int perInstance;
+   private final int maxQueue;
+   private final long defaultDeadlineMillis;
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition changed = lock.newCondition();
+   // guarded by lock
+   private double tokens;
+   private long lastRefill = System.nanoTime();
+   private long nextSeq = 0;
+   private final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>();
+   private final Map<Integer, Integer> inFlight = new HashMap<Integer, Integer>();
+   private int maxDepth = 0;
+
+   private final AtomicLong[] admitted = counters();
+   private final AtomicLong[] rejectedFull = counters();
+   private final AtomicLong[] rejectedDeadline = counters();
+   private final AtomicLong[] waitNanos = counters();
+
+   public AdmissionController() {
+      this(Double.parseDouble(System.getProperty("airline.admission.rate", "200")),
+           Double.parseDouble(System.getProperty("airline.admission.burst", "50")),
+           Integer.getInteger("airline.admission.perInstance", 4),
+           Integer.getInteger("airline.admission.maxQueue", 256),
+           Long.getLong("airline.admission.deadlineMillis", 2000L));
+   }
+
+   public AdmissionController(double ratePerSecond, double burst, int perInstance, int maxQueue, long defaultDeadlineMillis) {
+      this.ratePerSecond = ratePerSecond;
+      this.burst = burst;
+      this.perInstance = perInstance;
+      this.maxQueue = maxQueue;
+      this.defaultDeadlineMillis = defaultDeadlineMillis;
+      this.tokens = burst;
+   }
+
+   /**
+    * Waits for admission with the default deadline.
+    *
+    * @see #acquire(int, int, long)
+    */
+   public Permit acquire(int priority, int flightInstanceID) throws SQLException {
+      return acquire(priority, flightInstanceID, defaultDeadlineMillis);
+   }
+
+   /**
+    * Waits until the operation may run or its deadline passes.
+    *
+    * @param priority one of MANAGEMENT, TECHNICIAN, PILOT, CUSTOMER
+    * @param flightInstanceID the flight instance the operation locks, or NO_INSTANCE
+    * @param deadlineMillis how long the caller is willing to queue
+    * @return the permit to close when done
+    * @throws java.sql.SQLException when the operation is rejected
+    */
+   public Permit acquire(int priority, int flightInstanceID, long deadlineMillis) throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+      lock.lock();
+      try {
+         if (waiting.size() >= maxQueue) {
+            rejectedFull[priority].incrementAndGet();
+            throw new SQLException("System busy, please try again (admission queue full)");
+         }
+         Waiter me = new Waiter(priority, nextSeq++, flightInstanceID);
+         waiting.add(me);
+         maxDepth = Math.max(maxDepth, waiting.size());
+         try {
+            while (true) {
+               refill();
+               if (runnable(me) && firstRunnable() == me) {
+                  tokens -= 1;
+                  if (flightInstanceID != NO_INSTANCE) {
+                     Integer n = inFlight.get(flightInstanceID);
+                     inFlight.put(flightInstanceID, n == null ? 1 : n + 1);
+                  }
+                  admitted[priority].incrementAndGet();
+                  waitNanos[priority].addAndGet(System.nanoTime() - start);
+                  return new Permit(flightInstanceID);
+               }
+               long now = System.nanoTime();
+               long untilToken = tokens >= 1 ? 0 : (long) ((1 - tokens) / ratePerSecond * 1e9);
+               if (now + untilToken > deadline) {
+                  rejectedDeadline[priority].incrementAndGet();
+                  throw new SQLException("System busy, please try again (admission deadline)");
+               }
+               // wake for a release or a better waiter leaving, which signal, or for the next
+               // token when short of one; with tokens to spare only a signal can help
+               changed.awaitNanos(untilToken > 0 ? untilToken : deadline - now);
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for admission");
+         } finally {
+            waiting.remove(me);
+            changed.signalAll();
+         }
+      } finally {
+         lock.unlock();
+      }
+   }//end acquire
+
+   // the best queued waiter that could run right now
+   private Waiter firstRunnable() {
+      Waiter best = null;
+      for (Waiter w : waiting) {
+         if (runnable(w) && (best == null || w.compareTo(best) < 0)) best = w;
+      }
+      return best;
+   }
+
+   private boolean runnable(Waiter w) {
+      if (tokens < 1) return false;
+      if (w.flightInstanceID == NO_INSTANCE) return true;
+      Integer n = inFlight.get(w.flightInstanceID);
+      return n == null || n < perInstance;
+   }
+
+   private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+      lastRefill = now;
+   }
+
+   private static AtomicLong[] counters() {
+      AtomicLong[] c = new AtomicLong[CLASS_NAMES.length];
+      for (int i = 0; i < c.length; i++) c[i] = new AtomicLong();
+      return c;
+   }
+
+   /**
+    * Maps a User_.UserType to its priority class.
+    */
+   public static int classOf(String userType) {
+      for (int i = 0; i < CLASS_NAMES.length; i++) {
+         if (CLASS_NAMES[i].equals(userType)) return i;
+      }
+      return CUSTOMER;
+   }
+
+   public int queueDepth() {
+      lock.lock();
+      try {
+         return waiting.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public long rejectedCount() {
+      long n = 0;
+      for (int i = 0; i < CLASS_NAMES.length; i++) n += rejectedFull[i].get() + rejectedDeadline[i].get();
+      return n;
+   }
+
+   /**
+    * @return queue depth and per class admissions, rejections and average wait
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder();
+      lock.lock();
+      try {
+         refill();
+         sb.append(String.format("queue depth %d (max %d), tokens %.1f/%.0f, %d flight instance(s) busy%n",
+                                 waiting.size(), maxDepth, tokens, burst, inFlight.size()));
+      } finally {
+         lock.unlock();
+      }
+      sb.append("Class\tAdmitted\tRejectedFull\tRejectedDeadline\tAvgWaitMs\t\n");
+      for (int i = 0; i < CLASS_NAMES.length; i++) {
+         long a = admitted[i].get();
+         sb.append(String.format("%s\t%d\t%d\t%d\t%.2f\t%n", CLASS_NAMES[i], a, rejectedFull[i].get(),
+                                 rejectedDeadline[i].get(), a == 0 ? 0.0 : waitNanos[i].get() / 1e6 / a));
+      }
+      return sb.toString();
+   }//end report
+
+}//end AdmissionController
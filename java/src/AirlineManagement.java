@@ -14,6 +14,8 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,6 +25,14 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.Math;
 
 /**
@@ -35,6 +45,85 @@ public class AirlineManagement {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // handle that owns the caches when this one only wraps a worker connection
+   private AirlineManagement _parent = null;
+
+   // server of a worker connection that is not the primary (a shard or replica)
+   private String _server = null;
+
+   // connection settings, kept so helpers can open their own connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // in-memory fare calendar for ticket cost searches, loaded on first use
+   private FareCalendar _fareCalendar = null;
+
+   // background waitlist promotion, started on first use
+   private WaitlistEngine _waitlistEngine = null;
+
+   // write-behind queue for repair and maintenance entries, started on first use
+   private GroupCommitWriter _writer = null;
+
+   // planes ranked by maintenance urgency, loaded on first use
+   private MaintenancePriority _maintenancePriority = null;
+
+   // traveler search by name, phone fragment or zip, loaded on first use
+   private CustomerSearchIndex _customerIndex = null;
+
+   // optional booking journal for feature14, opened when airline.journal is set
+   private BookingJournal _journal = null;
+
+   // off-heap customer records for feature6, loaded on first use
+   private CustomerStore _customerStore = null;
+
+   // per-customer "my trips" lists
+   private final ItineraryCache _itineraries = new ItineraryCache();
+
+   // per flight instance seat bitmaps, rebuilt per instance on first use
+   private final SeatMap _seatMap = new SeatMap();
+
+   // optional read-only replicas for the query features, opened when airline.replicas is set
+   private ReplicaRouter _replicas = null;
+
+   // optional FlightNumber shards for flight data, opened when airline.shards is set
+   private ShardRouter _shards = null;
+
+   // rate limit and per flight instance concurrency limit for the write features
+   private final AdmissionController _admission = new AdmissionController();
+
+   // UserType and Username of whoever is logged in to the menu, null when nobody is
+   private volatile String _userType = null;
+   private volatile String _username = null;
+
+   // optional record of every statement issued, opened when airline.workload is set
+   private QueryLog _workload = null;
+
+   // optional follower of other nodes' writes, opened when airline.changes is set
+   private ChangeListener _changes = null;
+
+   // logins and open sessions, started on first use
+   private SessionManager _sessions = null;
+
+   // optional cache snapshots, written when airline.snapshot is set
+   private SnapshotStore _snapshots = null;
+
+   // connections for queryAsync per server ("" for the primary) and the threads running them
+   private final Map<String, ConnectionPool> _asyncPools = new HashMap<String, ConnectionPool>();
+   private ExecutorService _async = null;
+
+   // application_name of every connection this node opens; ChangeLog records it as Origin
+   private final String _node = "airline-" + java.util.UUID.randomUUID();
+
+   // statement, transaction, pool and cache counters for the operations console
+   private final Metrics _metrics = new Metrics();
+
+   // optional status page, served when airline.ops.port is set
+   private OpsConsole _console = null;
+
+   // optional change data capture, one publisher per database, when airline.cdc is set
+   private final List<ChangePublisher> _publishers = new ArrayList<ChangePublisher>();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -59,6 +148,10 @@ public class AirlineManagement {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         noteBackend(url, this._connection);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -67,22 +160,156 @@ public class AirlineManagement {
       }//end catch
    }//end AirlineManagement
 
+   /**
+    * Wraps an already open connection, e.g. one owned by a background worker.
+    * Caches and engines are shared with the parent handle.
+    *
+    * @param connection the connection to issue statements on
+    * @param parent the handle owning the caches, or null
+    */
+   AirlineManagement(Connection connection, AirlineManagement parent) {
+      this._connection = connection;
+      this._parent = parent;
+   }//end AirlineManagement
+
+   /**
+    * Wraps an already open connection to another server, e.g. a shard.
+    *
+    * @param server the JDBC URL of the connection's server, or null for the primary
+    */
+   AirlineManagement(Connection connection, AirlineManagement parent, String server) {
+      this(connection, parent);
+      this._server = server;
+   }//end AirlineManagement
+
+   /**
+    * Opens an additional physical connection with the same settings, for
+    * workers that must not share the interactive connection.
+    *
+    * @return a new connection in auto-commit mode
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.openConnection();
+      }
+      if (this._url == null) {
+         throw new SQLException("No connection settings available");
+      }
+      return noteBackend(this._url, DriverManager.getConnection(this._url, this._user, this._passwd));
+   }//end openConnection
+
+   /**
+    * Opens a connection to another server, e.g. a replica, with the same
+    * user and password.
+    *
+    * @param url the JDBC URL of the server
+    * @return a new connection in auto-commit mode
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection(String url) throws SQLException {
+      if (this._parent != null) {
+         return this._parent.openConnection(url);
+      }
+      return noteBackend(url, DriverManager.getConnection(url, this._user, this._passwd));
+   }//end openConnection
+
+   /**
+    * Opens a connection that is neither named after this node nor recorded
+    * in the metrics, for a short errand that changes nothing, such as
+    * cancelling a statement.
+    *
+    * @param url the JDBC URL of the server
+    * @return a new connection in auto-commit mode
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openUnnamedConnection(String url) throws SQLException {
+      if (this._parent != null) {
+         return this._parent.openUnnamedConnection(url);
+      }
+      return DriverManager.getConnection(url, this._user, this._passwd);
+   }//end openUnnamedConnection
+
+   // names a new connection after this node, so ChangeListener can tell this node's writes,
+   // and remembers its server process, so the operations console can cancel its statements
+   private Connection noteBackend(String url, Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT pg_backend_pid(), set_config('application_name', '" + this._node + "', false)");
+         if (rs.next()) {
+            this._metrics.backend(connection, url, rs.getInt(1));
+         }
+      } catch (SQLException e) {
+         connection.close();
+         throw e;
+      } finally {
+         stmt.close();
+      }
+      return connection;
+   }//end noteBackend
+
+   /**
+    * @return whether a ChangeLog Origin names one of this node's connections
+    */
+   public boolean ownChange(String origin) {
+      if (this._parent != null) {
+         return this._parent.ownChange(origin);
+      }
+      return this._node.equals(origin);
+   }//end ownChange
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql) throws SQLException {
+      Metrics.Running running = metrics().begin(this._connection, sql);
+      int rowCount;
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the update instruction
+         rowCount = stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(sql, null, running.start);
+      return rowCount;
+   }//end executeUpdate
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Same as executeUpdate, with ? placeholders bound as in
+    * executeQueryAndReturnResult.
+    *
+    * @param sql the statement with ? placeholders
+    * @param params the values of the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      Metrics.Running running = metrics().begin(this._connection, sql);
+      int rowCount;
+      try {
+         PreparedStatement stmt = prepare(this._connection, sql, params);
+         try {
+            rowCount = stmt.executeUpdate();
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(sql, params, running.start);
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -95,12 +322,49 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Metrics.Running running = metrics().begin(this._connection, query);
+      int rowCount;
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         rowCount = printResult(rs);
+         stmt.close();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, null, running.start);
+      return rowCount;
+   }//end executeQuery
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Same as executeQueryAndPrintResult, with ? placeholders bound to the
+    * given values (see bind).
+    *
+    * @param query the input query string
+    * @param params the values of the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      Metrics.Running running = metrics().begin(this._connection, query);
+      int rowCount;
+      try {
+         PreparedStatement stmt = prepare(this._connection, query, params);
+         rowCount = printResult(stmt.executeQuery());
+         stmt.close();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, params, running.start);
+      return rowCount;
+   }//end executeQueryAndPrintResult
 
+   // prints a result set with a header line, returns the number of rows
+   private static int printResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -124,9 +388,8 @@ public class AirlineManagement {
          System.out.println ();
          ++rowCount;
       }//end while
-      stmt.close();
       return rowCount;
-   }//end executeQuery
+   }//end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -138,12 +401,217 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Metrics.Running running = metrics().begin(this._connection, query);
+      List<List<String>> result;
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         result = collectResult(rs);
+         stmt.close ();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, null, running.start);
+      return result;
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult, with ? placeholders bound to the
+    * given values (see bind).
+    *
+    * @param query the input query string
+    * @param params the values of the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      Metrics.Running running = metrics().begin(this._connection, query);
+      List<List<String>> result;
+      try {
+         PreparedStatement stmt = prepare(this._connection, query, params);
+         result = collectResult(stmt.executeQuery());
+         stmt.close();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, params, running.start);
+      return result;
+   }//end executeQueryAndReturnResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Same as executeQueryAndReturnResult, keeping the column names, for
+    * callers that write results somewhere other than standard out.
+    *
+    * @param query the input query string
+    * @param params the values of the placeholders, in order
+    * @return the column names and records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ShardRouter.Result executeQueryAndReturnTable (String query, Object... params) throws SQLException {
+      Metrics.Running running = metrics().begin(this._connection, query);
+      List<String> columns;
+      List<List<String>> rows;
+      try {
+         PreparedStatement stmt = prepare(this._connection, query, params);
+         ResultSet rs = stmt.executeQuery();
+         ResultSetMetaData rsmd = rs.getMetaData();
+         columns = new ArrayList<String>();
+         for (int i = 1; i <= rsmd.getColumnCount(); i++) columns.add(rsmd.getColumnName(i));
+         rows = collectResult(rs);
+         stmt.close();
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, params, running.start);
+      return new ShardRouter.Result(columns, rows);
+   }//end executeQueryAndReturnTable
 
+   /**
+    * Runs a query on a pooled connection to this handle's server and
+    * returns at once, so independent queries of one screen run at the same
+    * time and the screen takes as long as the slowest. The pool holds
+    * airline.async.connections (default 4) connections per server, opened
+    * on first use; a query waits for a free one.
+    *
+    * @param query the input query string
+    * @param params the values of the placeholders, in order
+    * @return the column names and records, once the query is done
+    */
+   public CompletableFuture<ShardRouter.Result> queryAsync (final String query, final Object... params) {
+      final ConnectionPool pool;
+      try {
+         pool = asyncPool(this._server);
+      } catch (SQLException e) {
+         return failed(e);
+      }
+      return CompletableFuture.supplyAsync(() -> {
+         AirlineManagement handle = borrow(pool);
+         SQLException failure = null;
+         try {
+            return handle.executeQueryAndReturnTable(query, params);
+         } catch (SQLException e) {
+            failure = e;
+            throw new CompletionException(e);
+         } finally {
+            pool.release(handle, failure);
+         }
+      }, asyncExecutor());
+   }//end queryAsync
+
+   /**
+    * Asynchronous executeReadQueryAndPrintResult for flight data: on a
+    * sharded database the query runs on every shard and the rows are merged
+    * with shardOrder, otherwise it may be answered by a replica.
+    *
+    * @param query the input query string, which must not join two flights
+    * @param shardOrder sorts rows merged from shards, or null to keep shard order
+    * @param params the values of the placeholders, in order
+    * @return the column names and records, once the query is done
+    */
+   public CompletableFuture<ShardRouter.Result> readQueryAsync (final String query,
+                                                                final Comparator<List<String>> shardOrder,
+                                                                final Object... params) {
+      ShardRouter shards = shards();
+      if (shards != null) {
+         // each shard on its own pool, so the screen's queries overlap on every shard
+         final List<CompletableFuture<ShardRouter.Result>> parts = new ArrayList<CompletableFuture<ShardRouter.Result>>();
+         for (AirlineManagement shard : shards.handles()) parts.add(shard.queryAsync(query, params));
+         return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(done -> {
+            List<ShardRouter.Result> results = new ArrayList<ShardRouter.Result>();
+            for (CompletableFuture<ShardRouter.Result> part : parts) results.add(part.join());
+            return ShardRouter.merge(results, shardOrder);
+         });
+      }
+      final ReplicaRouter replicas = replicas();
+      if (replicas == null) return queryAsync(query, params);
+      final String user = username();
+      final ConnectionPool pool;
+      try {
+         pool = asyncPool(null);
+      } catch (SQLException e) {
+         return failed(e);
+      }
+      return CompletableFuture.supplyAsync(() -> {
+         // the pooled handle answers when no replica may
+         AirlineManagement handle = borrow(pool);
+         SQLException failure = null;
+         try {
+            return replicas.table(handle, user, query, params);
+         } catch (SQLException e) {
+            failure = e;
+            throw new CompletionException(e);
+         } finally {
+            pool.release(handle, failure);
+         }
+      }, asyncExecutor());
+   }//end readQueryAsync
+
+   /**
+    * Waits for an asynchronous query.
+    *
+    * @return the query's result
+    * @throws java.sql.SQLException the query's own exception, when it failed
+    */
+   public static <T> T await (CompletableFuture<T> query) throws SQLException {
+      try {
+         return query.join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException("Query failed: " + e.getCause());
+      }
+   }//end await
+
+   // the queryAsync connections of a server, null for the primary
+   private ConnectionPool asyncPool (String server) throws SQLException {
+      if (this._parent != null) {
+         return this._parent.asyncPool(server);
+      }
+      synchronized (this._asyncPools) {
+         String key = server == null ? "" : server;
+         ConnectionPool pool = this._asyncPools.get(key);
+         if (pool == null) {
+            pool = new ConnectionPool(this, server, Math.max(1, Integer.getInteger("airline.async.connections", 4)));
+            this._asyncPools.put(key, pool);
+         }
+         return pool;
+      }
+   }//end asyncPool
+
+   private synchronized ExecutorService asyncExecutor () {
+      if (this._parent != null) {
+         return this._parent.asyncExecutor();
+      }
+      if (this._async == null) {
+         this._async = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "async-query");
+            t.setDaemon(true);
+            return t;
+         });
+      }
+      return this._async;
+   }//end asyncExecutor
+
+   private static <T> CompletableFuture<T> failed (Throwable e) {
+      CompletableFuture<T> future = new CompletableFuture<T>();
+      future.completeExceptionally(e);
+      return future;
+   }
+
+   private static AirlineManagement borrow (ConnectionPool pool) {
+      try {
+         return pool.borrow();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new CompletionException(new SQLException("Interrupted waiting for a connection"));
+      }
+   }//end borrow
+
+   // reads a result set into a list of records
+   private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -161,35 +629,144 @@ public class AirlineManagement {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end collectResult
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * Prepares a statement and binds its ? placeholders. LocalDate and
+    * LocalTime values are bound as SQL DATE and TIME, so the server never
+    * has to guess a date format and compares like types.
+    *
+    * @param connection the connection to prepare on
+    * @param query the statement with ? placeholders
+    * @param params the values of the placeholders, in order
+    * @return the prepared statement, to be closed by the caller
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static PreparedStatement prepare (Connection connection, String query, Object... params) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement(query);
+      try {
+         for (int i = 0; i < params.length; i++) {
+            bind(stmt, i + 1, params[i]);
+         }
+      } catch (SQLException e) {
+         stmt.close();
+         throw e;
+      }
+      return stmt;
+   }//end prepare
+
+   private static void bind (PreparedStatement stmt, int index, Object value) throws SQLException {
+      if (value == null) {
+         stmt.setNull(index, Types.VARCHAR);
+      } else if (value instanceof java.time.LocalDate) {
+         stmt.setDate(index, java.sql.Date.valueOf((java.time.LocalDate) value));
+      } else if (value instanceof java.time.LocalTime) {
+         stmt.setTime(index, java.sql.Time.valueOf((java.time.LocalTime) value));
+      } else if (value instanceof Integer) {
+         stmt.setInt(index, (Integer) value);
+      } else if (value instanceof Long) {
+         stmt.setLong(index, (Long) value);
+      } else if (value instanceof Double) {
+         stmt.setDouble(index, (Double) value);
+      } else if (value instanceof Boolean) {
+         stmt.setBoolean(index, (Boolean) value);
+      } else if (value instanceof java.math.BigDecimal) {
+         stmt.setBigDecimal(index, (java.math.BigDecimal) value);
+      } else {
+         stmt.setString(index, value.toString());
+      }
+   }//end bind
+
+   /**
+    * Same as executeQueryAndPrintResult, but the query may be answered by a
+    * read-only replica. Use only for queries that tolerate replication lag.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeReadQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ReplicaRouter replicas = replicas();
+      return replicas == null ? executeQueryAndPrintResult(query, params) : replicas.print(username(), query, params);
+   }//end executeReadQueryAndPrintResult
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Same as executeQueryAndReturnResult, but the query may be answered by a
+    * read-only replica. Use only for queries that tolerate replication lag.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ReplicaRouter replicas = replicas();
+      return replicas == null ? executeQueryAndReturnResult(query, params) : replicas.query(username(), query, params);
+   }//end executeReadQueryAndReturnResult
 
-       int rowCount = 0;
+   /**
+    * Same as executeQueryAndReturnResult, but on a sharded database the
+    * query runs on every shard and the rows are concatenated. The query must
+    * not join rows of two different flights.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeShardedQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ShardRouter shards = shards();
+      if (shards == null) return executeQueryAndReturnResult(query, params);
+      Metrics.Running running = metrics().begin(null, query);
+      List<List<String>> rows;
+      try {
+         rows = shards.fanOut(query, null, params).rows;
+      } finally {
+         metrics().end(running);
+      }
+      logStatement(query, params, running.start);
+      return rows;
+   }//end executeShardedQueryAndReturnResult
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+       Metrics.Running running = metrics().begin(this._connection, query);
+       int rowCount;
+       try {
+          // creates a statement object
+          Statement stmt = this._connection.createStatement ();
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+       } finally {
+          metrics().end(running);
+       }
+       logStatement(query, null, running.start);
        return rowCount;
    }
 
+   // counts a statement in the workload log, when there is one
+   private void logStatement (String sql, Object[] params, long start) {
+      QueryLog workload = workload();
+      if (workload != null) {
+         workload.record(sql, params, System.nanoTime() - start);
+      }
+   }//end logStatement
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -202,16 +779,643 @@ public class AirlineManagement {
    public int getCurrSeqVal(String sequence) throws SQLException {
 	Statement stmt = this._connection.createStatement ();
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	if (rs.next())
+		return rs.getInt(1);
+	return -1;
+   }
+
+   /**
+    * Returns the fare calendar, building it from FlightInstance on first use.
+    *
+    * @return the shared fare calendar
+    * @throws java.sql.SQLException when the calendar cannot be loaded
+    */
+   public synchronized FareCalendar fareCalendar() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.fareCalendar();
+      }
+      if (this._fareCalendar == null) {
+         this._metrics.miss("fares");
+         this._fareCalendar = FareCalendar.load(this);
+      } else {
+         this._metrics.hit("fares");
+      }
+      return this._fareCalendar;
+   }//end fareCalendar
+
+   /**
+    * Pushes a committed SeatsSold change into the in-memory caches.
+    *
+    * @param flightInstanceID the flight instance that changed
+    * @param seatsSold the new SeatsSold value
+    */
+   public void seatsSoldChanged(int flightInstanceID, int seatsSold) {
+      if (this._parent != null) {
+         this._parent.seatsSoldChanged(flightInstanceID, seatsSold);
+         return;
+      }
+      if (this._fareCalendar != null) {
+         this._fareCalendar.updateSeatsSold(flightInstanceID, seatsSold);
+      }
+      if (this._journal != null) {
+         this._journal.seatsSoldChanged(flightInstanceID, seatsSold);
+      }
+   }//end seatsSoldChanged
+
+   /**
+    * Pushes a TicketCost change made by another node into the fare calendar.
+    */
+   public void ticketCostChanged(int flightInstanceID, double ticketCost) {
+      if (this._parent != null) {
+         this._parent.ticketCostChanged(flightInstanceID, ticketCost);
+         return;
+      }
+      FareCalendar calendar = this._fareCalendar;
+      if (calendar != null) {
+         calendar.updateTicketCost(flightInstanceID, ticketCost);
+      }
+   }//end ticketCostChanged
+
+   /**
+    * Drops loaded caches so the next use reloads them, after another node
+    * changed rows they cannot be patched with.
+    *
+    * @param fares the fare calendar
+    * @param maintenance the maintenance priority index
+    * @param customers the customer store and search index
+    */
+   public void dropCaches(boolean fares, boolean maintenance, boolean customers) {
+      if (this._parent != null) {
+         this._parent.dropCaches(fares, maintenance, customers);
+         return;
+      }
+      synchronized (this) {
+         if (fares) this._fareCalendar = null;
+         if (maintenance) this._maintenancePriority = null;
+         if (customers) {
+            this._customerIndex = null;
+            this._customerStore = null;
+         }
+      }
+   }//end dropCaches
+
+   /**
+    * Returns the waitlist promotion engine, starting it on first use.
+    *
+    * @return the running engine
+    * @throws java.sql.SQLException when the engine cannot get a connection
+    */
+   public synchronized WaitlistEngine waitlistEngine() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.waitlistEngine();
+      }
+      if (this._waitlistEngine == null) {
+         this._waitlistEngine = new WaitlistEngine(this);
+         this._waitlistEngine.start();
+      }
+      return this._waitlistEngine;
+   }//end waitlistEngine
+
+   /**
+    * Returns the session manager, starting it on first use.
+    *
+    * @return the shared manager
+    */
+   public synchronized SessionManager sessions() {
+      if (this._parent != null) {
+         return this._parent.sessions();
+      }
+      if (this._sessions == null) {
+         this._sessions = new SessionManager();
+      }
+      return this._sessions;
+   }//end sessions
+
+   /**
+    * Returns the group commit writer, starting it on first use.
+    *
+    * @return the running writer
+    * @throws java.sql.SQLException when the writer cannot get a connection
+    */
+   public synchronized GroupCommitWriter writer() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.writer();
+      }
+      if (this._writer == null) {
+         this._writer = new GroupCommitWriter(this);
+         this._writer.start();
+      }
+      return this._writer;
+   }//end writer
+
+   /**
+    * Returns the maintenance priority index, building it on first use.
+    *
+    * @return the shared index
+    * @throws java.sql.SQLException when the index cannot be loaded
+    */
+   public synchronized MaintenancePriority maintenancePriority() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.maintenancePriority();
+      }
+      if (this._maintenancePriority == null) {
+         this._metrics.miss("maintenance");
+         this._maintenancePriority = MaintenancePriority.load(this);
+      } else {
+         this._metrics.hit("maintenance");
+      }
+      return this._maintenancePriority;
+   }//end maintenancePriority
+
+   /**
+    * Pushes a committed Repair (feature17) or MaintenanceRequest (feature18)
+    * row into the in-memory caches.
+    *
+    * @param repair true for a Repair row, false for a MaintenanceRequest row
+    * @param date the RepairDate or RequestDate as it was written
+    * @param personID TechnicianID or PilotID
+    */
+   public void maintenanceWritten(boolean repair, String planeID, String repairCode, String date, String personID) {
+      if (this._parent != null) {
+         this._parent.maintenanceWritten(repair, planeID, repairCode, date, personID);
+         return;
+      }
+      synchronized (this) {
+         if (this._maintenancePriority == null) return;
+         try {
+            java.time.LocalDate day = java.time.LocalDate.parse(date.trim());
+            if (repair) {
+               this._maintenancePriority.repairRecorded(planeID, repairCode, day);
+            } else {
+               this._maintenancePriority.requestFiled(planeID, repairCode, day, personID);
+            }
+         } catch (java.time.format.DateTimeParseException e) {
+            // a date format only Postgres understands: rebuild on next use
+            this._maintenancePriority = null;
+         }
+      }
+   }//end maintenanceWritten
+
+   /**
+    * Returns the customer search index, building it on first use.
+    *
+    * @return the shared index
+    * @throws java.sql.SQLException when the index cannot be loaded
+    */
+   public synchronized CustomerSearchIndex customerIndex() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.customerIndex();
+      }
+      if (this._customerIndex == null) {
+         this._metrics.miss("customer index");
+         this._customerIndex = CustomerSearchIndex.load(this);
+      } else {
+         this._metrics.hit("customer index");
+      }
+      return this._customerIndex;
+   }//end customerIndex
+
+   /**
+    * Handles a Customer row inserted by another node: the search index
+    * picks it up with addNew unless its CustomerID is below ones it holds
+    * already, in which case the index is rebuilt. The customer store is
+    * reloaded either way.
+    */
+   public void customerInserted(int customerID) {
+      if (this._parent != null) {
+         this._parent.customerInserted(customerID);
+         return;
+      }
+      synchronized (this) {
+         this._customerStore = null;
+         if (this._customerIndex != null && !this._customerIndex.reaches(customerID)) {
+            this._customerIndex = null;
+         }
+      }
+   }//end customerInserted
+
+   /**
+    * Returns the off-heap customer store, loading it on first use. The
+    * airline.customerStore system property may name a Customer CSV file or a
+    * saved store image to map; otherwise the store is read from Postgres.
+    *
+    * @return the shared store
+    * @throws java.sql.SQLException when the store cannot be loaded
+    */
+   public synchronized CustomerStore customerStore() throws SQLException {
+      if (this._parent != null) {
+         return this._parent.customerStore();
+      }
+      if (this._customerStore == null) {
+         this._metrics.miss("customer store");
+         String source = System.getProperty("airline.customerStore");
+         try {
+            if (source == null) {
+               this._customerStore = CustomerStore.fromDatabase(this);
+            } else if (source.endsWith(".csv")) {
+               this._customerStore = CustomerStore.fromCsv(source);
+            } else {
+               this._customerStore = CustomerStore.openMapped(new File(source));
+            }
+         } catch (java.io.IOException e) {
+            throw new SQLException("Unable to load customer store from " + source + ": " + e.getMessage());
+         }
+      } else {
+         this._metrics.hit("customer store");
+      }
+      return this._customerStore;
+   }//end customerStore
+
+   /**
+    * Opens the booking journal named by the airline.journal system property,
+    * replays whatever an earlier run left unapplied and starts its applier.
+    *
+    * @throws java.sql.SQLException when the journal cannot be opened
+    */
+   public synchronized void openJournal() throws SQLException {
+      String path = System.getProperty("airline.journal");
+      if (path == null || this._journal != null) return;
+      if (this._shards != null) {
+         // the applier writes to one database
+         System.out.println("airline.journal is ignored when airline.shards is set");
+         return;
+      }
+      try {
+         this._journal = new BookingJournal(this, new File(path), BookingJournal.DEFAULT_SIZE);
+      } catch (java.io.IOException e) {
+         throw new SQLException("Unable to open booking journal " + path + ": " + e.getMessage());
+      }
+      long pending = this._journal.unapplied();
+      if (pending > 0) {
+         System.out.println("Replaying " + pending + " journaled booking(s)");
+      }
+      this._journal.start();
+   }//end openJournal
+
+   /**
+    * Connects to the replicas named by the airline.replicas system property.
+    *
+    * @throws java.sql.SQLException when a replica cannot be reached
+    */
+   public synchronized void openReplicas() throws SQLException {
+      if (this._replicas == null) {
+         this._replicas = ReplicaRouter.fromProperties(this);
+      }
+   }//end openReplicas
+
+   /**
+    * Connects to the shards named by the airline.shards system property.
+    *
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public synchronized void openShards() throws SQLException {
+      if (this._shards == null) {
+         this._shards = ShardRouter.fromProperties(this);
+      }
+   }//end openShards
+
+   /**
+    * Starts following other nodes' writes when airline.changes is set, on
+    * this database and every shard. Call after openShards. With
+    * airline.snapshot set, the caches are first restored from the snapshot
+    * and this returns once the changes made since have been replayed.
+    */
+   public void openChanges() {
+      boolean restored = false;
+      synchronized (this) {
+         File snapshot = SnapshotStore.configured();
+         if (!ChangeListener.enabled()) {
+            if (snapshot != null) System.out.println("airline.snapshot is ignored unless airline.changes is set");
+            return;
+         }
+         if (this._changes != null) return;
+         List<String> urls = new ArrayList<String>();
+         urls.add(this._url);
+         if (this._shards != null) urls.addAll(this._shards.urls());
+         this._changes = new ChangeListener(this, urls);
+         if (snapshot != null) {
+            this._snapshots = new SnapshotStore(this, snapshot);
+            restored = this._snapshots.restore(this._changes);
+         }
+         this._changes.start();
+      }
+      // outside the lock: replaying a change may need it
+      if (restored) this._snapshots.awaitReplay(this._changes);
+      if (this._snapshots != null) this._snapshots.start();
+   }//end openChanges
+
+   /**
+    * @return the caches loaded so far, for a snapshot
+    */
+   public synchronized SnapshotStore.Caches loadedCaches() {
+      SnapshotStore.Caches caches = new SnapshotStore.Caches();
+      caches.fares = this._fareCalendar;
+      caches.maintenance = this._maintenancePriority;
+      caches.customers = this._customerIndex;
+      return caches;
+   }//end loadedCaches
+
+   /**
+    * Installs caches restored from a snapshot in place of loading them.
+    */
+   public synchronized void installCaches(SnapshotStore.Caches caches) {
+      if (caches.fares != null) this._fareCalendar = caches.fares;
+      if (caches.maintenance != null) this._maintenancePriority = caches.maintenance;
+      if (caches.customers != null) this._customerIndex = caches.customers;
+   }//end installCaches
+
+   /**
+    * @return hits and misses of every cache used so far, by name
+    */
+   public Map<String, Metrics.CacheStats> cacheStats() {
+      if (this._parent != null) {
+         return this._parent.cacheStats();
+      }
+      Map<String, Metrics.CacheStats> stats = new java.util.TreeMap<String, Metrics.CacheStats>(this._metrics.caches());
+      stats.put("itineraries", new Metrics.CacheStats(this._itineraries.hitCount(), this._itineraries.missCount()));
+      return stats;
+   }//end cacheStats
+
+   /**
+    * Not synchronized, so a report does not wait for a cache being loaded.
+    *
+    * @return the number of entries of a cache named in cacheStats, or null when it is not loaded
+    */
+   public Integer cacheSize(String cache) {
+      if (this._parent != null) {
+         return this._parent.cacheSize(cache);
+      }
+      FareCalendar fares = this._fareCalendar;
+      MaintenancePriority maintenance = this._maintenancePriority;
+      CustomerSearchIndex customers = this._customerIndex;
+      CustomerStore store = this._customerStore;
+      SessionManager sessions = this._sessions;
+      switch (cache) {
+         case "fares": return fares == null ? null : fares.size();
+         case "maintenance": return maintenance == null ? null : maintenance.size();
+         case "customer index": return customers == null ? null : customers.size();
+         case "customer store": return store == null ? null : store.size();
+         case "itineraries": return this._itineraries.size();
+         case "seat maps": return this._seatMap.size();
+         case "users": return sessions == null ? null : sessions.cachedUsers();
+         default: return null;
+      }
+   }//end cacheSize
+
+   /**
+    * Starts publishing Reservation and FlightInstance changes to the
+    * directory named by airline.cdc. Call after openShards: each shard gets
+    * a publisher writing to a shard<n> subdirectory.
+    *
+    * @throws java.sql.SQLException when the directory cannot be used
+    */
+   public synchronized void openPublisher() throws SQLException {
+      String path = System.getProperty("airline.cdc");
+      if (path == null || !this._publishers.isEmpty()) return;
+      File dir = new File(path);
+      try {
+         this._publishers.add(new ChangePublisher(this, null, dir));
+         if (this._shards != null) {
+            List<String> urls = this._shards.urls();
+            for (int i = 0; i < urls.size(); i++) {
+               this._publishers.add(new ChangePublisher(this, urls.get(i), new File(dir, "shard" + i)));
+            }
+         }
+      } catch (java.io.IOException e) {
+         for (ChangePublisher publisher : this._publishers) publisher.shutdown();
+         this._publishers.clear();
+         throw new SQLException("Unable to open change directory " + path + ": " + e.getMessage());
+      }
+      for (ChangePublisher publisher : this._publishers) publisher.start();
+   }//end openPublisher
+
+   /**
+    * Starts the operations console page when airline.ops.port is set.
+    */
+   public synchronized void openConsole() {
+      if (this._console != null) return;
+      try {
+         this._console = OpsConsole.start(this);
+      } catch (java.io.IOException e) {
+         System.err.println("Unable to start operations console: " + e.getMessage());
+      }
+   }//end openConsole
+
+   /**
+    * @return the change listener, or null when other nodes' writes are not followed
+    */
+   public ChangeListener changes() {
+      return this._parent != null ? this._parent.changes() : this._changes;
+   }//end changes
+
+   /**
+    * @return the shard router, or null when flight data is on this database
+    */
+   public ShardRouter shards() {
+      return this._parent != null ? this._parent.shards() : this._shards;
+   }//end shards
+
+   /**
+    * @return the handle holding a flight's instances, schedules and reservations
+    */
+   public AirlineManagement forFlight(String flightNumber) {
+      ShardRouter shards = shards();
+      return shards == null ? this : shards.forFlight(flightNumber);
+   }//end forFlight
+
+   /**
+    * @return the handle holding a flight instance and its reservations, or
+    *         null when no shard has it
+    * @throws java.sql.SQLException when the shards cannot be queried
+    */
+   public AirlineManagement forInstance(int flightInstanceID) throws SQLException {
+      ShardRouter shards = shards();
+      return shards == null ? this : shards.forInstance(flightInstanceID);
+   }//end forInstance
+
+   /**
+    * Handle for a transaction on a flight instance and its reservations:
+    * this one when flight data is not sharded, otherwise a connection
+    * borrowed from the instance's shard, whose shared handle serves reads
+    * from every thread. Give it back with release.
+    *
+    * @return the handle, or null when no shard has the instance
+    * @throws java.sql.SQLException when the shards cannot be queried
+    */
+   public AirlineManagement borrowForInstance(int flightInstanceID) throws SQLException {
+      ShardRouter shards = shards();
+      return shards == null ? this : shards.borrowForInstance(flightInstanceID);
+   }//end borrowForInstance
+
+   /**
+    * Gives back a handle from borrowForInstance.
+    */
+   public void release(AirlineManagement handle) {
+      ShardRouter shards = shards();
+      if (shards != null && handle != null) shards.release(handle);
+   }//end release
+
+   /**
+    * @return the replica router, or null when every query goes to the primary
+    */
+   public ReplicaRouter replicas() {
+      return this._parent != null ? this._parent.replicas() : this._replicas;
+   }//end replicas
+
+   /**
+    * @return the booking journal, or null when bookings go straight to Postgres
+    */
+   public BookingJournal journal() {
+      return this._parent != null ? this._parent.journal() : this._journal;
+   }//end journal
+
+   /**
+    * @return the itinerary cache shared by every handle on this database
+    */
+   public ItineraryCache itineraries() {
+      return this._parent != null ? this._parent.itineraries() : this._itineraries;
+   }//end itineraries
+
+   /**
+    * @return the seat bitmaps shared by every handle on this database
+    */
+   public SeatMap seatMap() {
+      return this._parent != null ? this._parent.seatMap() : this._seatMap;
+   }//end seatMap
+
+   /**
+    * @return the counters shared by every handle on this database
+    */
+   public Metrics metrics() {
+      return this._parent != null ? this._parent.metrics() : this._metrics;
+   }//end metrics
+
+   /**
+    * @return the admission controller shared by every handle on this database
+    */
+   public AdmissionController admission() {
+      return this._parent != null ? this._parent.admission() : this._admission;
+   }//end admission
+
+   /**
+    * Records who is logged in to the menu, or null on logout.
+    */
+   public void signedIn(SessionManager.Session session) {
+      if (this._parent != null) {
+         this._parent.signedIn(session);
+         return;
+      }
+      this._userType = session == null ? null : session.userType;
+      this._username = session == null ? null : session.username;
+   }//end signedIn
+
+   /**
+    * Keeps the reads of whoever is logged in to the menu on the primary
+    * until the replicas have their write. Only for writes a user asked for:
+    * background writers would keep every read off the replicas.
+    */
+   public void wrote() {
+      if (this._parent != null) {
+         this._parent.wrote();
+         return;
+      }
+      wrote(this._username);
+   }//end wrote
+
+   // the Username of whoever is logged in to the menu, for routing their reads
+   private String username() {
+      return this._parent != null ? this._parent.username() : this._username;
+   }
+
+   /**
+    * Same as wrote(), for a named user, e.g. one just created.
+    */
+   public void wrote(String username) {
+      ReplicaRouter replicas = replicas();
+      if (replicas != null) replicas.noteWrite(username);
+   }//end wrote
+
+   /**
+    * @return the admission priority class of whoever is logged in to the menu
+    */
+   public int admissionClass() {
+      return this._parent != null ? this._parent.admissionClass() : AdmissionController.classOf(this._userType);
+   }//end admissionClass
+
+   /**
+    * Opens the workload log named by the airline.workload system property;
+    * IndexAdvisor proposes indexes from it.
+    *
+    * @throws java.sql.SQLException when an existing log cannot be read
+    */
+   public synchronized void openWorkload() throws SQLException {
+      if (this._workload != null) return;
+      try {
+         this._workload = QueryLog.fromProperties();
+      } catch (java.io.IOException e) {
+         throw new SQLException("Unable to read workload log: " + e.getMessage());
+      }
+   }//end openWorkload
+
+   /**
+    * @return the workload log, or null when statements are not recorded
+    */
+   public QueryLog workload() {
+      return this._parent != null ? this._parent.workload() : this._workload;
+   }//end workload
 
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._console != null) {
+         this._console.stop();
+      }
+      if (this._snapshots != null) {
+         this._snapshots.shutdown();
+      }
+      if (this._changes != null) {
+         this._changes.shutdown();
+         System.out.println(this._changes.report());
+      }
+      if (this._journal != null) {
+         this._journal.shutdown();
+      }
+      for (ChangePublisher publisher : this._publishers) {
+         publisher.shutdown();
+         System.out.println(publisher.report());
+      }
+      if (this._sessions != null) {
+         this._sessions.shutdown();
+         System.out.println(this._sessions.report());
+      }
+      if (this._writer != null) {
+         this._writer.shutdown();
+         System.out.println(this._writer.report());
+      }
+      if (this._waitlistEngine != null) {
+         this._waitlistEngine.shutdown();
+      }
+      if (this._async != null) {
+         this._async.shutdownNow();
+      }
+      synchronized (this._asyncPools) {
+         for (ConnectionPool pool : this._asyncPools.values()) pool.close();
+      }
+      if (this._replicas != null) {
+         this._replicas.close();
+      }
+      if (this._shards != null) {
+         this._shards.close();
+      }
+      if (this._workload != null) {
+         try {
+            this._workload.save();
+         } catch (java.io.IOException e) {
+            System.err.println("Unable to save workload log: " + e.getMessage());
+         }
+      }
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -221,6 +1425,26 @@ public class AirlineManagement {
       }//end try
    }//end cleanup
 
+   /**
+    * @return true when the error says the connection is gone (SQLState
+    *         class 08) rather than that the statement failed
+    */
+   public static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      return state != null && state.startsWith("08");
+   }//end isConnectionFailure
+
+   /**
+    * @return true when this handle's connection is closed or unusable
+    */
+   public boolean isClosed() {
+      try {
+         return this._connection == null || this._connection.isClosed();
+      } catch (SQLException e) {
+         return true;
+      }
+   }//end isClosed
+
    /**
     * The main execution method
     *
@@ -247,6 +1471,14 @@ public class AirlineManagement {
          String dbport = args[1];
          String user = args[2];
          esql = new AirlineManagement (dbname, dbport, user, "");
+         esql.openWorkload();
+         esql.openReplicas();
+         esql.openShards();
+         esql.openChanges();
+         PartitionManager.maintain(esql);
+         esql.openJournal();
+         esql.openPublisher();
+         esql.openConsole();
 
          boolean keepon = true;
          while(keepon) {
@@ -256,18 +1488,17 @@ public class AirlineManagement {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            SessionManager.Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
-               String[] userInfo = authorisedUser.split("\\|");
-               String username = userInfo[0];
-               String userType = userInfo[1];
-               String specificID = userInfo.length > 2 ? userInfo[2] : "";
+            if (session != null) {
+               String userType = session.userType;
+               String specificID = session.specificID;
+               esql.signedIn(session);
 
               boolean usermenu = true;
               while(usermenu) {
@@ -287,6 +1518,12 @@ public class AirlineManagement {
                 System.out.println("8. View all repairs made by a technician");
                 System.out.println("9. List all the dates and the codes for repairs performed");
                 System.out.println("10. View all the statistics a flight");
+                System.out.println("22. View maintenance priority queue");
+                System.out.println("23. Search travelers by name, phone or zip");
+                System.out.println("25. View admission control metrics");
+                System.out.println("26. Export reports to compressed files");
+                System.out.println("27. Import maintenance requests from a file");
+                System.out.println("28. Operations console");
 
                 }
 
@@ -297,6 +1534,9 @@ public class AirlineManagement {
                 System.out.println("12. Search ticket costs");
                 System.out.println("13. Search airplane make and model");
                 System.out.println("14. Make a reservation for a flight");
+                System.out.println("19. Cancel a reservation");
+                System.out.println("21. View seat map");
+                System.out.println("24. View my trips");
 
                 }
 
@@ -306,6 +1546,7 @@ public class AirlineManagement {
                 System.out.println("15. View all the repairs performed for a plane");
                 System.out.println("16. View all the requests made by a pilot");
                 System.out.println("17. Make a repair entry");
+                System.out.println("22. View maintenance priority queue");
 
                 }
                 
@@ -318,7 +1559,14 @@ public class AirlineManagement {
                
 
                 System.out.println("20. Log out");
-                switch (readChoice()){
+                int choice = readChoice();
+                // the idle time ends with the choice, however long the user took to make it
+                if (esql.sessions().touch(session.token) == null) {
+                   System.out.println("\nSession expired after " + esql.sessions().idleMinutes()
+                                      + " idle minutes, please log in again.");
+                   break;
+                }
+                switch (choice){
                   // Management only ----------------
                    // view flights
                    case 1: 
@@ -465,10 +1713,84 @@ public class AirlineManagement {
                         System.out.println("Unauthorized access!");
                      break;
 
-                   case 20: usermenu = false; break;
+                   // Cancel a reservation
+                   case 19: 
+                     if (userType.equals("Customer")) 
+                        feature19(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   case 20: esql.sessions().logout(session); usermenu = false; break;
+
+                   // View seat map
+                   case 21: 
+                     if (userType.equals("Customer")) 
+                        feature21(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // View maintenance priority queue
+                   case 22: 
+                     if (userType.equals("Management") || userType.equals("Technician")) 
+                        feature22(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // View my trips
+                   case 24: 
+                     if (userType.equals("Customer")) 
+                        feature24(esql, specificID); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // Search travelers
+                   case 23: 
+                     if (userType.equals("Management")) 
+                        feature23(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // Admission control metrics
+                   case 25: 
+                     if (userType.equals("Management")) 
+                        System.out.print(esql.admission().report()); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // Export reports
+                   case 26: 
+                     if (userType.equals("Management")) 
+                        feature26(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // Import maintenance requests
+                   case 27: 
+                     if (userType.equals("Management")) 
+                        feature27(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
+                   // Operations console
+                   case 28: 
+                     if (userType.equals("Management")) 
+                        feature28(esql); 
+                     else 
+                        System.out.println("Unauthorized access!");
+                     break;
+
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
+              esql.signedIn(null);
             }
          }//end while
       }catch(Exception e) {
@@ -524,8 +1846,14 @@ public class AirlineManagement {
         System.out.println("\nCreate New User");
         System.out.print("Enter username: ");
         String username = in.readLine().trim();
+        if (esql.sessions().usernameTaken(esql, username)) {
+            System.out.println("Username already taken!");
+            return;
+        }
         System.out.print("Enter password: ");
         String password = in.readLine().trim();
+        // hashing takes a while: let it run while the rest is asked
+        Future<String> hashed = esql.sessions().hashLater(password);
         System.out.print("Enter user type (Management/Customer/Pilot/Technician): ");
         String userType = in.readLine().trim();
         
@@ -554,16 +1882,11 @@ public class AirlineManagement {
             }
         }
 
-        String insertQuery = String.format(
-            "INSERT INTO User_ (Username, Password, UserType, SpecificID) " +
-            "VALUES ('%s', '%s', '%s', '%s')",
-            username.replace("'", "''"),
-            password.replace("'", "''"),
-            userType.replace("'", "''"),
-            specificID.replace("'", "''")
-        );
-        
-        esql.executeUpdate(insertQuery);
+        esql.executeUpdate(
+            "INSERT INTO User_ (Username, Password, UserType, SpecificID) VALUES (?, ?, ?, ?)",
+            username, hashed.get(), userType, specificID);
+        esql.wrote(username);
+        esql.sessions().created(username);
         System.out.println("User created successfully!");
     } catch (Exception e) {
         System.err.println("Error creating user: " + e.getMessage());
@@ -574,9 +1897,9 @@ public class AirlineManagement {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's session or null if the credentials are wrong
     **/
-   public static String LogIn(AirlineManagement esql){
+   public static SessionManager.Session LogIn(AirlineManagement esql){
       
      try {
         System.out.print("\nUsername: ");
@@ -584,21 +1907,11 @@ public class AirlineManagement {
         System.out.print("Password: ");
         String password = in.readLine().trim();
         
-        String query = String.format(
-            "SELECT UserType, SpecificID FROM User_ " +
-            "WHERE Username = '%s' AND Password = '%s'",
-            username.replace("'", "''"),
-            password.replace("'", "''")
-        );
-        
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
-        if (result.isEmpty()) {
+        SessionManager.Session session = esql.sessions().login(esql, username, password);
+        if (session == null) {
             System.out.println("Invalid credentials!");
-            return null;
         }
-        
-        List<String> row = result.get(0);
-        return username + "|" + row.get(0) + "|" + row.get(1);
+        return session;
     } catch (Exception e) {
         System.err.println("Login error: " + e.getMessage());
         return null;
@@ -612,15 +1925,12 @@ public class AirlineManagement {
       try {
         // flight number input
         System.out.print("Enter Flight Number: ");
-        String flightNumber = in.readLine();
-        flightNumber = "'" + flightNumber + "'";
+        String flightNumber = in.readLine().trim();
 
         // find all the flights 
-        String query = "SELECT DayOfWeek, DepartureTime, ArrivalTime " +
-                       "FROM Schedule WHERE FlightNumber = " + flightNumber + ";";
       // output data
       System.out.println("-----------------------------------");
-        esql.executeQueryAndPrintResult(query);
+        esql.executeReadQueryAndPrintResult(FeatureQueries.SCHEDULE_OF_FLIGHT, flightNumber);
       System.out.println("-----------------------------------\n");
       System.out.println("\n");
     } catch (Exception e) {
@@ -635,26 +1945,20 @@ public class AirlineManagement {
         System.out.print("Enter Flight Number: ");
         String flightNumber = in.readLine();
 
-        System.out.print("Enter Flight Date (M/D/YY): ");
-        String flightDate = in.readLine();
-
-         String instanceQuery = String.format(
-            "SELECT FlightInstanceID FROM FlightInstance WHERE FlightNumber = '%s' AND FlightDate = '%s';",
-            flightNumber, flightDate);
+        System.out.print("Enter Flight Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate flightDate = Dates.parse(in.readLine());
 
-        List<List<String>> result = esql.executeQueryAndReturnResult(instanceQuery);
+        AirlineManagement db = esql.forFlight(flightNumber);
+        List<List<String>> result = db.executeQueryAndReturnResult(
+            FeatureQueries.INSTANCE_OF_FLIGHT, flightNumber.trim(), flightDate);
 
         if (result.size() == 0) {
             System.out.println("No flight instance found.");
             return;
         }
-        String flightInstanceID = result.get(0).get(0);
+        int flightInstanceID = Integer.parseInt(result.get(0).get(0));
 
-        String seatsQuery = String.format(
-            "SELECT SeatsTotal, SeatsSold, (SeatsTotal - SeatsSold) AS SeatsAvailable FROM FlightInstance WHERE FlightInstanceID = '%s';",
-            flightInstanceID);
-
-        esql.executeQueryAndPrintResult(seatsQuery);
+        db.executeQueryAndPrintResult(FeatureQueries.SEATS_OF_INSTANCE, flightInstanceID);
 
     } 
     catch (Exception e) {
@@ -668,26 +1972,20 @@ public class AirlineManagement {
       try {
         System.out.print("Enter Flight Number: ");
         String flightNumber = in.readLine();
-        flightNumber = "'" + flightNumber + "'";
-
-        System.out.print("Enter Flight Date (M/D/YY): ");
-        String flightDate = in.readLine();
-        flightDate = "'" + flightDate + "'";
+        AirlineManagement db = esql.forFlight(flightNumber);
 
-        String instanceQuery = "SELECT FlightInstanceID FROM FlightInstance WHERE FlightNumber = "
-                                + flightNumber + " AND FlightDate = " + flightDate + ";";
+        System.out.print("Enter Flight Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate flightDate = Dates.parse(in.readLine());
 
-        List<List<String>> result = esql.executeQueryAndReturnResult(instanceQuery);
+        List<List<String>> result = db.executeQueryAndReturnResult(
+            FeatureQueries.INSTANCE_OF_FLIGHT, flightNumber.trim(), flightDate);
         if (result.size() == 0) {
             System.out.println("No flight instance found.");
             return;
         }
 
-        String flightInstanceID = result.get(0).get(0);
-        String query = "SELECT DepartedOnTime, ArrivedOnTime FROM FlightInstance WHERE FlightInstanceID = " 
-                        + flightInstanceID + ";";
-
-        esql.executeQueryAndPrintResult(query);
+        int flightInstanceID = Integer.parseInt(result.get(0).get(0));
+        db.executeQueryAndPrintResult(FeatureQueries.FLIGHT_STATUS, flightInstanceID, flightDate);
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -696,13 +1994,17 @@ public class AirlineManagement {
    // feature 4 -----------------------------------------------------------------------------------------
    public static void feature4(AirlineManagement esql) {
       try {
-        System.out.print("Enter Flight Date (M/D/YY): ");
-        String flightDate = in.readLine();
-        flightDate = "'" + flightDate + "'";
+        System.out.print("Enter Flight Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate flightDate = Dates.parse(in.readLine());
 
-        String query = "SELECT FlightInstanceID, FlightNumber, FlightDate FROM FlightInstance WHERE FlightDate = " + flightDate + ";";
+        String query = FeatureQueries.FLIGHTS_OF_THE_DAY;
 
-        esql.executeQueryAndPrintResult(query);
+        if (esql.shards() != null) {
+            // every shard has some of the day's flights
+            esql.shards().fanOut(query, ShardRouter.byColumns(1), flightDate).print();
+        } else {
+            esql.executeReadQueryAndPrintResult(query, flightDate);
+        }
     } catch (Exception e) {
         System.err.println(e.getMessage());
     }
@@ -713,45 +2015,42 @@ public class AirlineManagement {
         //FlightNumber user input
         System.out.print("Enter Flight Number: ");
         String flightNumber = in.readLine();
-        flightNumber = "'" + flightNumber + "'";  // surround with single quotes for SQL
+        AirlineManagement db = esql.forFlight(flightNumber);
 
         //FlightDate user input
-        System.out.print("Enter Flight Date (M/D/YY): ");
-        String flightDate = in.readLine();
-        flightDate = "'" + flightDate + "'";
+        System.out.print("Enter Flight Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate flightDate = Dates.parse(in.readLine());
 
         // Get the FlightInstanceID
-        String instanceQuery = "SELECT FlightInstanceID FROM FlightInstance WHERE FlightNumber = "
-                                + flightNumber + " AND FlightDate = " + flightDate + ";";
-
-        List<List<String>> result = esql.executeQueryAndReturnResult(instanceQuery);
+        List<List<String>> result = db.executeQueryAndReturnResult(
+            FeatureQueries.INSTANCE_OF_FLIGHT, flightNumber.trim(), flightDate);
         // No flights found 
         if (result.size() == 0) {
             System.out.println("No flight instance found.");
             return;
         }
 
-        String flightInstanceID = result.get(0).get(0);
+        int flightInstanceID = Integer.parseInt(result.get(0).get(0));
 
-        // output the data for each query 
+        // the three lists are independent: start them together, print in order
+        java.util.concurrent.CompletableFuture<ShardRouter.Result> reserved =
+            db.queryAsync(FeatureQueries.PASSENGERS_BY_STATUS, flightInstanceID, flightDate, "reserved");
+        java.util.concurrent.CompletableFuture<ShardRouter.Result> waitlist =
+            db.queryAsync(FeatureQueries.PASSENGERS_BY_STATUS, flightInstanceID, flightDate, "waitlist");
+        java.util.concurrent.CompletableFuture<ShardRouter.Result> flown =
+            db.queryAsync(FeatureQueries.PASSENGERS_BY_STATUS, flightInstanceID, flightDate, "flown");
 
         // reservations
         System.out.println("\nPassengers with reservations (reserved):");
-        String reservedQuery = "SELECT CustomerID FROM Reservation WHERE FlightInstanceID = " 
-                                + flightInstanceID + " AND Status = 'reserved';";
-        esql.executeQueryAndPrintResult(reservedQuery);
+        await(reserved).print();
 
         // waitlist
         System.out.println("\nPassengers on waitlist:");
-        String waitlistQuery = "SELECT CustomerID FROM Reservation WHERE FlightInstanceID = " 
-                                + flightInstanceID + " AND Status = 'waitlist';";
-        esql.executeQueryAndPrintResult(waitlistQuery);
+        await(waitlist).print();
 
         // people that actually flew
         System.out.println("\nPassengers who actually flew:");
-        String flownQuery = "SELECT CustomerID FROM Reservation WHERE FlightInstanceID = " 
-                                + flightInstanceID + " AND Status = 'flown';";
-        esql.executeQueryAndPrintResult(flownQuery);
+        await(flown).print();
 
     } catch (Exception e) {
         System.err.println(e.getMessage());
@@ -766,10 +2065,8 @@ public class AirlineManagement {
         String reservationID = in.readLine();
 
         // compute the user's reservation
-        String customerIDQuery = String.format(
-            "SELECT CustomerID FROM Reservation WHERE ReservationID = '%s';", reservationID);
-
-        List<List<String>> result = esql.executeQueryAndReturnResult(customerIDQuery);
+        List<List<String>> result = esql.executeShardedQueryAndReturnResult(
+            FeatureQueries.CUSTOMER_OF_RESERVATION, reservationID.trim());
 
         // No reservation found
         if (result.size() == 0) {
@@ -779,12 +2076,21 @@ public class AirlineManagement {
 
         String customerID = result.get(0).get(0);
 
-        // Query to get all the customer's information
-        String customerQuery = String.format(
-            "SELECT FirstName, LastName, Gender, DOB, Address, Phone, Zip FROM Customer WHERE CustomerID = '%s';",
-            customerID);
-         // Output query
-        esql.executeQueryAndPrintResult(customerQuery);
+        // Customer's information comes from the off-heap store, no second query
+        CustomerStore.View customer = esql.customerStore().get(Integer.parseInt(customerID));
+        if (customer == null) {
+            System.out.println("No customer found with ID: " + customerID);
+            return;
+        }
+         // Output the record
+        for (String field : CustomerStore.FIELDS) {
+            System.out.print(field + "\t");
+        }
+        System.out.println();
+        for (int f = 0; f < CustomerStore.FIELDS.length; f++) {
+            System.out.print(customer.get(f) + "\t");
+        }
+        System.out.println();
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -797,16 +2103,7 @@ public static void feature7(AirlineManagement esql) {
         System.out.print("\nEnter Plane ID: ");
         String planeID = in.readLine();
         
-        String query = String.format(
-            "SELECT Make, Model, " +
-            "EXTRACT(YEAR FROM CURRENT_DATE) - Year AS Age, " +
-            "LastRepairDate " +
-            "FROM Plane " +
-            "WHERE PlaneID = '%s'",
-            planeID.replace("'", "''")
-        );
-        
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeReadQueryAndPrintResult(FeatureQueries.PLANE_DETAILS, planeID.trim());
         if (rowCount == 0) {
             System.out.println("No plane found with ID: " + planeID);
         }
@@ -822,15 +2119,7 @@ public static void feature8(AirlineManagement esql) {
         System.out.print("\nEnter Technician ID: ");
         String techID = in.readLine();
         
-        String query = String.format(
-            "SELECT RepairID, PlaneID, RepairCode, RepairDate " +
-            "FROM Repair " +
-            "WHERE TechnicianID = '%s' " +
-            "ORDER BY RepairDate DESC",
-            techID.replace("'", "''")
-        );
-        
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintResult(FeatureQueries.REPAIRS_BY_TECHNICIAN, techID.trim());
         if (rowCount == 0) {
             System.out.println("No repairs found for technician: " + techID);
         }
@@ -845,23 +2134,13 @@ public static void feature9(AirlineManagement esql) {
     try {
         System.out.print("\nEnter Plane ID: ");
         String planeID = in.readLine();
-        System.out.print("Enter Start Date (YYYY-MM-DD): ");
+        System.out.print("Enter Start Date (M/D/YY or YYYY-MM-DD): ");
         String startDate = in.readLine();
-        System.out.print("Enter End Date (YYYY-MM-DD): ");
+        System.out.print("Enter End Date (M/D/YY or YYYY-MM-DD): ");
         String endDate = in.readLine();
         
-        String query = String.format(
-            "SELECT RepairDate, RepairCode " +
-            "FROM Repair " +
-            "WHERE PlaneID = '%s' " +
-            "AND RepairDate BETWEEN '%s' AND '%s' " +
-            "ORDER BY RepairDate DESC",
-            planeID.replace("'", "''"),
-            startDate.replace("'", "''"),
-            endDate.replace("'", "''")
-        );
-        
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintResult(FeatureQueries.REPAIRS_OF_PLANE_DESC,
+            planeID.trim(), Dates.parse(startDate), Dates.parse(endDate));
         if (rowCount == 0) {
             System.out.println("No repairs found for plane " + planeID + 
                                " between " + startDate + " and " + endDate);
@@ -877,25 +2156,13 @@ public static void feature9(AirlineManagement esql) {
     try {
         System.out.print("\nEnter Flight Number: ");
         String flightNum = in.readLine();
-        System.out.print("Enter Start Date (M/D/YY): ");
-        String startDate = in.readLine();
-        System.out.print("Enter End Date (M/D/YY): ");
-        String endDate = in.readLine();
-        
-        String query = String.format(
-            "SELECT " +
-            "  COUNT(*) AS DaysOperated, " +
-            "  SUM(SeatsSold) AS TotalSold, " +
-            "  SUM(SeatsTotal - SeatsSold) AS TotalUnsold " +
-            "FROM FlightInstance " +
-            "WHERE FlightNumber = '%s' " +
-            "  AND FlightDate BETWEEN '%s' AND '%s'",
-            flightNum.replace("'", "''"),
-            startDate.replace("'", "''"),
-            endDate.replace("'", "''")
-        );
+        System.out.print("Enter Start Date (M/D/YY or YYYY-MM-DD): ");
+        String startDate = in.readLine().trim();
+        System.out.print("Enter End Date (M/D/YY or YYYY-MM-DD): ");
+        String endDate = in.readLine().trim();
         
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        List<List<String>> result = esql.forFlight(flightNum).executeQueryAndReturnResult(
+            FeatureQueries.FLIGHT_STATISTICS, flightNum.trim(), Dates.parse(startDate), Dates.parse(endDate));
         if (result.isEmpty()) {
             System.out.println("No data found for flight " + flightNum + 
                                " between " + startDate + " and " + endDate);
@@ -922,45 +2189,30 @@ public static void feature9(AirlineManagement esql) {
         // departure city
         System.out.print("Enter Departure City: ");
         String depCity = in.readLine();
-        depCity = "'" + depCity + "'";
 
         // arrival city
         System.out.print("Enter Arrival City: ");
         String arrCity = in.readLine();
-        arrCity = "'" + arrCity + "'";
 
         //Flight Date
-        System.out.print("Enter Flight Date (YYYY-MM-DD): ");
-        String flightDate = in.readLine();
-        flightDate = "'" + flightDate + "'";
+        System.out.print("Enter Flight Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate flightDate = Dates.parse(in.readLine());
 
         // computing using the user's inputs 
 
-        // All flights on a given date
-        String searchQuery = "SELECT F.FlightNumber, S.DepartureTime, S.ArrivalTime, FI.NumOfStops " +
-                "FROM Flight F, Schedule S, FlightInstance FI " +
-                "WHERE F.FlightNumber = FI.FlightNumber AND F.FlightNumber = S.FlightNumber " +
-                "AND F.DepartureCity = " + depCity + " AND F.ArrivalCity = " + arrCity + " " +
-                "AND FI.FlightDate = " + flightDate + ";";
-
+        // All flights on a given date, and the route's on-time record, at the same time
+        java.util.concurrent.CompletableFuture<ShardRouter.Result> flights = esql.readQueryAsync(
+            FeatureQueries.ROUTE_SEARCH, ShardRouter.byColumns(0, 1), depCity, arrCity, flightDate);
+        // a flight's instances are all on one shard, so per-shard groups are final
+        java.util.concurrent.CompletableFuture<ShardRouter.Result> onTime = esql.readQueryAsync(
+            FeatureQueries.ROUTE_ON_TIME, ShardRouter.byColumns(0), depCity, arrCity);
 
          // output all flights data
-        esql.executeQueryAndPrintResult(searchQuery);
+        await(flights).print();
 
         // on-time record (as percentage)
         System.out.println("\nOn-Time Record (Historical %):");
-
-        String onTimeQuery = "SELECT FI.FlightNumber, " +
-                "ROUND(100.0 * SUM(CASE WHEN DepartedOnTime THEN 1 ELSE 0 END)/COUNT(*), 2) AS DepartedOnTimePercent, " +
-                "ROUND(100.0 * SUM(CASE WHEN ArrivedOnTime THEN 1 ELSE 0 END)/COUNT(*), 2) AS ArrivedOnTimePercent " +
-                "FROM Flight F, FlightInstance FI " +
-                "WHERE F.FlightNumber = FI.FlightNumber " +
-                "AND F.DepartureCity = " + depCity + " AND F.ArrivalCity = " + arrCity + " " +
-                "GROUP BY FI.FlightNumber;";
-
-        // output on-time data
-
-        esql.executeQueryAndPrintResult(onTimeQuery);
+        await(onTime).print();
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -973,15 +2225,38 @@ public static void feature12(AirlineManagement esql) {
     try {
         // Flight number input
         System.out.print("Enter Flight Number: ");
-        String flightNumber = in.readLine();
-        flightNumber = "'" + flightNumber + "'";
-
-        // search flight ticket costs for flights (might have multiple dates)
-        String query = "SELECT FlightInstanceID, FlightDate, TicketCost " +
-                       "FROM FlightInstance WHERE FlightNumber = " + flightNumber + ";";
+        String flightNumber = in.readLine().trim();
+
+        // optional date window
+        System.out.print("Enter Start Date (M/D/YY or YYYY-MM-DD) [leave blank for any]: ");
+        String startDate = in.readLine().trim();
+        System.out.print("Enter End Date (M/D/YY or YYYY-MM-DD) [leave blank for any]: ");
+        String endDate = in.readLine().trim();
+        java.time.LocalDate from = startDate.isEmpty() ? null : Dates.parse(startDate);
+        java.time.LocalDate to = endDate.isEmpty() ? null : Dates.parse(endDate);
+
+        // answer from the fare calendar instead of scanning FlightInstance
+        FareCalendar calendar = esql.fareCalendar();
+        List<FareCalendar.FareDay> days = calendar.calendar(flightNumber, from, to);
+        if (days.isEmpty()) {
+            System.out.println("No flights found for: " + flightNumber);
+            return;
+        }
 
          // output data
-        esql.executeQueryAndPrintResult(query);
+        System.out.println("FlightDate\tFlightInstanceID\tTicketCost\tAvgFare\tSeatsLeft\t");
+        for (FareCalendar.FareDay day : days) {
+            System.out.println(day.date + "\t" + day.cheapestInstanceID + "\t" +
+                               String.format("%.2f", day.minFare) + "\t" +
+                               String.format("%.2f", day.avgFare) + "\t" + day.seatsLeft + "\t");
+        }
+
+        // cheapest dates that still have seats
+        System.out.println("\nCheapest dates:");
+        for (FareCalendar.FareDay day : calendar.cheapestDates(flightNumber, from, to, 3)) {
+            System.out.println(day.date + "\t" + String.format("%.2f", day.minFare) +
+                               "\t(FlightInstanceID " + day.cheapestInstanceID + ")");
+        }
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -995,15 +2270,7 @@ public static void feature13(AirlineManagement esql) {
         System.out.print("\nEnter Flight Number: ");
         String flightNum = in.readLine();
         
-        String query = String.format(
-            "SELECT p.Make, p.Model " +
-            "FROM Flight f " +
-            "JOIN Plane p ON f.PlaneID = p.PlaneID " +
-            "WHERE f.FlightNumber = '%s'",
-            flightNum.replace("'", "''")
-        );
-        
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeReadQueryAndPrintResult(FeatureQueries.PLANE_OF_FLIGHT, flightNum.trim());
         if (rowCount == 0) {
             System.out.println("No airplane found for flight: " + flightNum);
         }
@@ -1021,70 +2288,137 @@ public static void feature14(AirlineManagement esql) {
         String customerID = in.readLine();
         System.out.print("Enter Flight Instance ID: ");
         String flightInstanceID = in.readLine();
+        System.out.print("Enter preferred seat (e.g. 12C) [leave blank for any]: ");
+        String seatChoice = in.readLine().trim();
+        int instanceID = Integer.parseInt(flightInstanceID.trim());
 
-        // Start transaction
-        esql.beginTransaction();
-        
+        // Queue behind other bookings on this flight instance instead of on its row lock
+        AdmissionController.Permit permit = esql.admission().acquire(esql.admissionClass(), instanceID);
         try {
-            // Check flight capacity and lock row
-            String capacityQuery = String.format(
-                "SELECT SeatsTotal, SeatsSold " +
-                "FROM FlightInstance " +
-                "WHERE FlightInstanceID = %s FOR UPDATE",  // FOR UPDATE locks the row
-                flightInstanceID
-            );
-            
-            List<List<String>> capacityResult = esql.executeQueryAndReturnResult(capacityQuery);
-            if (capacityResult.isEmpty()) {
+            // the shard holding the instance, or esql itself
+            AirlineManagement db = esql.borrowForInstance(instanceID);
+            if (db == null) {
                 System.out.println("Invalid Flight Instance ID");
-                esql.rollback();
                 return;
             }
-            
-            int seatsTotal = Integer.parseInt(capacityResult.get(0).get(0));
-            int seatsSold = Integer.parseInt(capacityResult.get(0).get(1));
-            int availableSeats = seatsTotal - seatsSold;
+            try {
+                System.out.println(book(db, customerID, flightInstanceID, instanceID, seatChoice));
+                esql.wrote();
+            } finally {
+                esql.release(db);
+            }
+        } finally {
+            permit.close();
+        }
+    } catch (Exception e) {
+        System.err.println("Error processing reservation: " + e.getMessage());
+    }
+}
+
+// books one seat or waitlist entry once feature14 (or BatchRunner) has been admitted,
+// returns the message for the customer
+static String book(AirlineManagement esql, String customerID, String flightInstanceID,
+                   int instanceID, String seatChoice) throws Exception {
+    // Journal mode: acknowledged once appended, applied to Postgres in the background
+    if (esql.journal() != null) {
+        BookingJournal.Booking booking = esql.journal().book(
+            esql, Integer.parseInt(customerID.trim()), instanceID, seatChoice);
+        if (booking.reserved) {
+            return "Reservation successful! ID: " + booking.reservationID +
+                   (booking.seat < 0 ? "" : " Seat: " + SeatMap.label(booking.seat));
+        }
+        return "Flight is full. You've been added to waitlist. ID: " + booking.reservationID;
+    }
+
+    // Start transaction
+    esql.beginTransaction();
+    
+    try {
+        // Check flight capacity and lock row
+        String capacityQuery = String.format(
+            "SELECT SeatsTotal, SeatsSold, FlightDate " +
+            "FROM FlightInstance " +
+            "WHERE FlightInstanceID = %s FOR UPDATE",  // FOR UPDATE locks the row
+            flightInstanceID
+        );
+        
+        List<List<String>> capacityResult = esql.executeQueryAndReturnResult(capacityQuery);
+        if (capacityResult.isEmpty()) {
+            esql.rollback();
+            return "Invalid Flight Instance ID";
+        }
+        
+        int seatsTotal = Integer.parseInt(capacityResult.get(0).get(0));
+        int seatsSold = Integer.parseInt(capacityResult.get(0).get(1));
+        int availableSeats = seatsTotal - seatsSold;
+        // copied into the reservation, which is partitioned by flight date
+        String flightDate = Dates.sql(capacityResult.get(0).get(2));
+
+        // Generate unique reservation ID
+        // zero padded to a fixed width; waitlist order comes from BookingSeq, not the ID
+        String reservationID = String.format("RES%d%03d", System.currentTimeMillis(), (int)(Math.random() * 1000));
+        
+        if (availableSeats > 0) {
+            // Pick a seat in the bitmap; the hold is given back if the transaction fails
+            SeatMap.Bitmap seats = esql.seatMap().forInstance(esql, instanceID);
+            int seat = -1;
+            String note = "";
+            if (!seatChoice.isEmpty() && seats.hold(SeatMap.parse(seatChoice), SeatMap.DEFAULT_HOLD_MILLIS)) {
+                seat = SeatMap.parse(seatChoice);
+            } else {
+                if (!seatChoice.isEmpty()) {
+                    note = "Seat " + seatChoice + " is not available, assigning another seat.\n";
+                }
+                seat = seats.holdAny(SeatMap.DEFAULT_HOLD_MILLIS);
+            }
 
-            // Generate unique reservation ID
-            String reservationID = "RES" + System.currentTimeMillis() + (int)(Math.random() * 1000);
+            // Make reservation
+            String reservationQuery = String.format(
+                "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status, SeatNumber, FlightDate) " +
+                "VALUES ('%s', %s, %d, 'reserved', %s, %s)",
+                reservationID, customerID, instanceID, seat < 0 ? "NULL" : String.valueOf(seat), flightDate
+            );
             
-            if (availableSeats > 0) {
-                // Make reservation
-                String reservationQuery = String.format(
-                    "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) " +
-                    "VALUES ('%s', %s, %s, 'reserved')",
-                    reservationID, customerID, flightInstanceID
-                );
-                
-                String updateQuery = String.format(
-                    "UPDATE FlightInstance " +
-                    "SET SeatsSold = SeatsSold + 1 " +
-                    "WHERE FlightInstanceID = %s",
-                    flightInstanceID
-                );
-                
+            String updateQuery = String.format(
+                "UPDATE FlightInstance " +
+                "SET SeatsSold = SeatsSold + 1 " +
+                "WHERE FlightInstanceID = %d",
+                instanceID
+            );
+            
+            try {
                 esql.executeUpdate(reservationQuery);
                 esql.executeUpdate(updateQuery);
                 esql.commit();
-                System.out.println("Reservation successful! ID: " + reservationID);
-            } else {
-                // Join waitlist
-                String waitlistQuery = String.format(
-                    "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) " +
-                    "VALUES ('%s', %s, %s, 'waitlist')",
-                    reservationID, customerID, flightInstanceID
-                );
-                
-                esql.executeUpdate(waitlistQuery);
-                esql.commit();
-                System.out.println("Flight is full. You've been added to waitlist. ID: " + reservationID);
+            } catch (Exception e) {
+                if (seat >= 0) seats.release(seat);
+                throw e;
             }
-        } catch (Exception e) {
-            esql.rollback();
-            throw e;
+            if (seat >= 0) seats.confirm(seat);
+            esql.seatsSoldChanged(instanceID, seatsSold + 1);
+            esql.itineraries().invalidate(Integer.parseInt(customerID.trim()));
+            return note + "Reservation successful! ID: " + reservationID +
+                   (seat < 0 ? "" : " Seat: " + SeatMap.label(seat));
+        } else {
+            // Join waitlist
+            String waitlistQuery = String.format(
+                "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status, FlightDate) " +
+                "VALUES ('%s', %s, %s, 'waitlist', %s)",
+                reservationID, customerID, flightInstanceID, flightDate
+            );
+            
+            esql.executeUpdate(waitlistQuery);
+            esql.commit();
+            // promotion runs against a single database
+            if (esql.shards() == null) {
+                esql.waitlistEngine().waitlisted(instanceID, reservationID);
+            }
+            esql.itineraries().invalidate(Integer.parseInt(customerID.trim()));
+            return "Flight is full. You've been added to waitlist. ID: " + reservationID;
         }
     } catch (Exception e) {
-        System.err.println("Error processing reservation: " + e.getMessage());
+        esql.rollback();
+        throw e;
     }
 }
 
@@ -1095,28 +2429,19 @@ public static void feature15(AirlineManagement esql) {
     try {
         // plane ID input
         System.out.print("Enter Plane ID: ");
-        String planeID = in.readLine();
-        planeID = "'" + planeID + "'";
+        String planeID = in.readLine().trim();
 
         // start date
-        System.out.print("Enter Start Date (YYYY-MM-DD): ");
-        String startDate = in.readLine();
-        startDate = "'" + startDate + "'";
+        System.out.print("Enter Start Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate startDate = Dates.parse(in.readLine());
 
         // end date
-        System.out.print("Enter End Date (YYYY-MM-DD): ");
-        String endDate = in.readLine();
-        endDate = "'" + endDate + "'";
+        System.out.print("Enter End Date (M/D/YY or YYYY-MM-DD): ");
+        java.time.LocalDate endDate = Dates.parse(in.readLine());
 
         // list all the dates and the codes for repair for a plane within the range specified
-        String query = "SELECT RepairDate, RepairCode " +
-                       "FROM Repair " +
-                       "WHERE PlaneID = " + planeID + 
-                       " AND RepairDate BETWEEN " + startDate + " AND " + endDate + 
-                       " ORDER BY RepairDate;";
-
          // output data
-        esql.executeQueryAndPrintResult(query);
+        esql.executeQueryAndPrintResult(FeatureQueries.REPAIRS_OF_PLANE, planeID, startDate, endDate);
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -1125,14 +2450,17 @@ public static void feature15(AirlineManagement esql) {
 
 public void beginTransaction() throws SQLException {
     _connection.setAutoCommit(false);
+    metrics().began();
 }
 
 public void commit() throws SQLException {
     _connection.commit();
     _connection.setAutoCommit(true);
+    metrics().committed();
 }
 
 public void rollback() {
+    metrics().rolledBack();
     try {
         _connection.rollback();
         _connection.setAutoCommit(true);
@@ -1148,18 +2476,11 @@ public static void feature16(AirlineManagement esql) {
     try {
         // pilot ID input
         System.out.print("Enter Pilot ID: ");
-        String pilotID = in.readLine();
-        pilotID = "'" + pilotID + "'";
+        String pilotID = in.readLine().trim();
 
          // find all the maintenance requests made by the pilot
-
-        String query = "SELECT RequestID, PlaneID, RepairCode, RequestDate " +
-                       "FROM MaintenanceRequest " +
-                       "WHERE PilotID = " + pilotID + ";";
-
-
          // output data
-        esql.executeQueryAndPrintResult(query);
+        esql.executeQueryAndPrintResult(FeatureQueries.REQUESTS_BY_PILOT, pilotID);
 
     } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
@@ -1179,38 +2500,33 @@ public static void feature17(AirlineManagement esql) {
         String repairCode = in.readLine().trim();
         
         // Default to today's date if not provided
-        System.out.print("Enter Repair Date (YYYY-MM-DD) [leave blank for today]: ");
+        System.out.print("Enter Repair Date (M/D/YY or YYYY-MM-DD) [leave blank for today]: ");
         String repairDateStr = in.readLine().trim();
         if (repairDateStr.isEmpty()) {
             repairDateStr = java.time.LocalDate.now().toString();
+        } else {
+            repairDateStr = Dates.parse(repairDateStr).toString();
         }
         
-        esql.beginTransaction();
-        
-        // Insert repair record
-        String insertRepair = String.format(
-            "INSERT INTO Repair (PlaneID, RepairCode, RepairDate, TechnicianID) " +
-            "VALUES ('%s', '%s', '%s', '%s')",
-            planeID.replace("'", "''"),
-            repairCode.replace("'", "''"),
-            repairDateStr.replace("'", "''"),
-            techID.replace("'", "''")
-        );
-        esql.executeUpdate(insertRepair);
-        
-        // Update last repair date in Plane table
-        String updatePlane = String.format(
-            "UPDATE Plane SET LastRepairDate = '%s' WHERE PlaneID = '%s'",
-            repairDateStr.replace("'", "''"),
-            planeID.replace("'", "''")
-        );
-        esql.executeUpdate(updatePlane);
-        
-        esql.commit();
-        System.out.println("Repair recorded successfully.");
+        // Insert repair record and update last repair date in Plane table,
+        // committed together with whatever else is queued
+        GroupCommitWriter.BatchResult batch;
+        AdmissionController.Permit permit = esql.admission().acquire(esql.admissionClass(), AdmissionController.NO_INSTANCE);
+        try {
+            batch = esql.writer().submitRepair(planeID, repairCode, repairDateStr, techID)
+                .get(GroupCommitWriter.DEFAULT_WAIT_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } finally {
+            permit.close();
+        }
+        esql.wrote();
+        System.out.println("Repair recorded successfully. (batch of " + batch.batchSize +
+                           ", committed in " + batch.commitMillis + " ms)");
+    } catch (java.util.concurrent.ExecutionException e) {
+        System.err.println("Error recording repair: " + e.getCause().getMessage());
+    } catch (java.util.concurrent.TimeoutException e) {
+        System.err.println("Repair not confirmed in time; it may still be recorded, check before entering it again.");
     } catch (Exception e) {
         System.err.println("Error recording repair: " + e.getMessage());
-        esql.rollback();
     }
 }
 
@@ -1230,24 +2546,265 @@ public static void feature18(AirlineManagement esql) {
         // Default to today's date
         String requestDate = java.time.LocalDate.now().toString();
 
-        esql.beginTransaction();
+        // Insert maintenance request through the group commit writer
+        GroupCommitWriter.BatchResult batch;
+        AdmissionController.Permit permit = esql.admission().acquire(esql.admissionClass(), AdmissionController.NO_INSTANCE);
+        try {
+            batch = esql.writer().submitRequest(planeID, repairCode, requestDate, pilotID)
+                .get(GroupCommitWriter.DEFAULT_WAIT_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } finally {
+            permit.close();
+        }
+        esql.wrote();
+        System.out.println("Maintenance request submitted successfully! (batch of " + batch.batchSize +
+                           ", committed in " + batch.commitMillis + " ms)");
+    } catch (java.util.concurrent.ExecutionException e) {
+        System.err.println("Error submitting maintenance request: " + e.getCause().getMessage());
+    } catch (java.util.concurrent.TimeoutException e) {
+        System.err.println("Maintenance request not confirmed in time; it may still be recorded, check before submitting it again.");
+    } catch (Exception e) {
+        System.err.println("Error submitting maintenance request: " + e.getMessage());
+    }
+}
 
-        // Insert maintenance request
-        String insertQuery = String.format(
-            "INSERT INTO MaintenanceRequest (PlaneID, RepairCode, RequestDate, PilotID) " +
-            "VALUES ('%s', '%s', '%s', '%s')",
-            planeID.replace("'", "''"),
-            repairCode.replace("'", "''"),
-            requestDate.replace("'", "''"),
-            pilotID.replace("'", "''")
-        );
-        esql.executeUpdate(insertQuery);
+// feature 19 -----------------------------------------------------------------------------------------
 
-        esql.commit();
-        System.out.println("Maintenance request submitted successfully!");
+public static void feature19(AirlineManagement esql) {
+    try {
+        System.out.print("\nEnter Customer ID: ");
+        String customerID = in.readLine().trim();
+        System.out.print("Enter Reservation ID: ");
+        String reservationID = in.readLine().trim();
+
+        // admitted against the flight instance it frees a seat on, like a booking
+        List<List<String>> found = esql.executeShardedQueryAndReturnResult(
+            FeatureQueries.INSTANCE_OF_RESERVATION, reservationID, Integer.parseInt(customerID));
+        String status = null;
+        if (!found.isEmpty()) {
+            int instanceID = Integer.parseInt(found.get(0).get(0));
+            AdmissionController.Permit permit = esql.admission().acquire(esql.admissionClass(), instanceID);
+            try {
+                AirlineManagement db = esql.borrowForInstance(instanceID);
+                try {
+                    if (db != null) status = WaitlistEngine.cancel(db, reservationID, customerID);
+                    if (status != null) esql.wrote();
+                } finally {
+                    esql.release(db);
+                }
+            } finally {
+                permit.close();
+            }
+        }
+        if (status == null) {
+            System.out.println("No active reservation " + reservationID + " for customer " + customerID);
+        } else {
+            System.out.println("Reservation " + reservationID + " cancelled (was " + status + ").");
+        }
     } catch (Exception e) {
-        System.err.println("Error submitting maintenance request: " + e.getMessage());
-        esql.rollback();
+        System.err.println("Error cancelling reservation: " + e.getMessage());
+    }
+}
+
+// feature 21 -----------------------------------------------------------------------------------------
+
+public static void feature21(AirlineManagement esql) {
+    try {
+        System.out.print("\nEnter Flight Instance ID: ");
+        int flightInstanceID = Integer.parseInt(in.readLine().trim());
+        System.out.print("Enter group size to find adjacent seats [leave blank to skip]: ");
+        String group = in.readLine().trim();
+
+        // the shard holding the instance, or esql itself
+        AirlineManagement db = esql.forInstance(flightInstanceID);
+        SeatMap.Bitmap seats = db == null ? null : esql.seatMap().forInstance(db, flightInstanceID);
+        if (seats == null) {
+            System.out.println("Invalid Flight Instance ID");
+            return;
+        }
+        seats.expireHolds();
+
+        // one line per row, taken seats shown as X
+        for (int rowStart = 0; rowStart < seats.seatsTotal(); rowStart += SeatMap.SEATS_PER_ROW) {
+            StringBuilder line = new StringBuilder(String.format("%3d  ", rowStart / SeatMap.SEATS_PER_ROW + 1));
+            for (int seat = rowStart; seat < Math.min(rowStart + SeatMap.SEATS_PER_ROW, seats.seatsTotal()); seat++) {
+                if (seat - rowStart == SeatMap.SEATS_PER_ROW / 2) line.append("  ");
+                line.append(seats.isTaken(seat) ? 'X' : SeatMap.label(seat).charAt(SeatMap.label(seat).length() - 1));
+            }
+            System.out.println(line);
+        }
+        System.out.println("Free seats: " + seats.freeCount());
+
+        if (!group.isEmpty()) {
+            // only look: holding and releasing could free a seat another booking holds by then
+            int[] block = seats.peekAdjacent(Integer.parseInt(group));
+            if (block == null) {
+                System.out.println("No " + group + " adjacent seats available in one row.");
+            } else {
+                StringBuilder labels = new StringBuilder();
+                for (int seat : block) {
+                    labels.append(SeatMap.label(seat)).append(' ');
+                }
+                System.out.println("Adjacent seats available: " + labels.toString().trim());
+            }
+        }
+    } catch (Exception e) {
+        System.err.println("Error retrieving seat map: " + e.getMessage());
+    }
+}
+
+// feature 22 -----------------------------------------------------------------------------------------
+
+public static void feature22(AirlineManagement esql) {
+    try {
+        System.out.print("\nHow many planes to list [leave blank for 10]: ");
+        String count = in.readLine().trim();
+        int n = count.isEmpty() ? 10 : Integer.parseInt(count);
+
+        MaintenancePriority priority = esql.maintenancePriority();
+        java.time.LocalDate today = java.time.LocalDate.now();
+        System.out.println("Rank\tPlaneID\tScore\tOpenRequests\tDaysSinceRepair\tAge\t");
+        int rank = 1;
+        for (MaintenancePriority.PlaneScore plane : priority.top(n)) {
+            System.out.println(rank++ + "\t" + plane.planeID + "\t" + plane.score(today) + "\t" +
+                               plane.openRequests.size() + "\t" + plane.daysSinceRepair(today) + "\t" +
+                               plane.age(today) + "\t");
+        }
+
+        // open requests of one plane
+        System.out.print("\nEnter Plane ID to list its open requests [leave blank to skip]: ");
+        String planeID = in.readLine().trim();
+        if (planeID.isEmpty()) return;
+        MaintenancePriority.PlaneScore plane = priority.plane(planeID);
+        if (plane == null) {
+            System.out.println("No plane found with ID: " + planeID);
+        } else if (plane.openRequests.isEmpty()) {
+            System.out.println("No open requests for plane " + planeID);
+        } else {
+            System.out.println("RequestID\tRepairCode\tRequestDate\tPilotID\t");
+            for (MaintenancePriority.OpenRequest r : plane.openRequests) {
+                System.out.println((r.requestID == null ? "new" : r.requestID) + "\t" + r.repairCode + "\t" +
+                                   r.requestDate + "\t" + r.pilotID + "\t");
+            }
+        }
+    } catch (Exception e) {
+        System.err.println("Error retrieving maintenance priorities: " + e.getMessage());
+    }
+}
+
+// feature 23 -----------------------------------------------------------------------------------------
+
+public static void feature23(AirlineManagement esql) {
+    try {
+        System.out.print("\nEnter part of a name, phone number or zip: ");
+        String query = in.readLine().trim();
+
+        long start = System.nanoTime();
+        CustomerSearchIndex index = esql.customerIndex();
+        // travelers added since the index was built
+        index.addNew(esql);
+        List<CustomerSearchIndex.Match> matches = index.search(query, 20);
+        long micros = (System.nanoTime() - start) / 1000;
+        if (matches.isEmpty()) {
+            System.out.println("No travelers found for: " + query);
+            return;
+        }
+        System.out.println("CustomerID\tFirstName\tLastName\tPhone\tZip\tScore\t");
+        for (CustomerSearchIndex.Match m : matches) {
+            System.out.println(m.customer.customerID + "\t" + m.customer.firstName + "\t" + m.customer.lastName + "\t" +
+                               m.customer.phone + "\t" + m.customer.zip + "\t" + String.format("%.2f", m.score) + "\t");
+        }
+        System.out.println(matches.size() + " match(es) in " + micros + " us");
+    } catch (Exception e) {
+        System.err.println("Error searching travelers: " + e.getMessage());
+    }
+}
+
+// feature 24 -----------------------------------------------------------------------------------------
+
+public static void feature24(AirlineManagement esql, String customerID) {
+    try {
+        List<ItineraryCache.Trip> trips = esql.itineraries().tripsFor(esql, Integer.parseInt(customerID.trim()));
+        if (trips.isEmpty()) {
+            System.out.println("You have no reservations.");
+            return;
+        }
+        System.out.println("ReservationID\tFlightNumber\tFlightDate\tFrom\tTo\tStatus\tSeat\t");
+        for (ItineraryCache.Trip t : trips) {
+            System.out.println(t.reservationID + "\t" + t.flightNumber + "\t" + t.flightDate + "\t" +
+                               t.departureCity + "\t" + t.arrivalCity + "\t" + t.status + "\t" + t.seat + "\t");
+        }
+    } catch (Exception e) {
+        System.err.println("Error retrieving your trips: " + e.getMessage());
+    }
+}
+
+// feature 26 -----------------------------------------------------------------------------------------
+
+public static void feature26(AirlineManagement esql) {
+    try {
+        System.out.println("\nReports: flights-of-day:Date, manifest:FlightNumber:Date, technician-repairs:TechnicianID,");
+        System.out.println("plane-repairs:PlaneID:Start:End, flight-statistics:FlightNumber:Start:End, table:Name[:Start:End]");
+        System.out.print("Enter one or more reports, separated by spaces: ");
+        List<String> specs = java.util.Arrays.asList(in.readLine().trim().split("\\s+"));
+        System.out.print("Enter output directory [.]: ");
+        String dir = in.readLine().trim();
+        java.io.File outDir = new java.io.File(dir.isEmpty() ? "." : dir);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.out.println("Cannot create " + outDir);
+            return;
+        }
+        for (String line : Exporter.exportAll(esql, specs, outDir, System.getProperty("airline.export.format", "both"),
+                                              Integer.getInteger("airline.export.parallelism", Exporter.DEFAULT_PARALLELISM))) {
+            System.out.println(line);
+        }
+    } catch (Exception e) {
+        System.err.println("Error exporting: " + e.getMessage());
+    }
+}
+
+// feature 27 -----------------------------------------------------------------------------------------
+
+public static void feature27(AirlineManagement esql) {
+    try {
+        System.out.print("\nEnter maintenance request file (CSV with PlaneID, RepairCode, PilotID[, RequestDate]): ");
+        String path = in.readLine().trim();
+        for (String line : MaintenanceIngest.ingest(esql, path).lines()) {
+            System.out.println(line);
+        }
+    } catch (Exception e) {
+        System.err.println("Error importing maintenance requests: " + e.getMessage());
+    }
+}
+
+// feature 28 -----------------------------------------------------------------------------------------
+
+public static void feature28(AirlineManagement esql) {
+    try {
+        while (true) {
+            System.out.println();
+            for (String line : esql.metrics().report(esql)) {
+                System.out.println(line);
+            }
+            System.out.println("(* cannot be cancelled from here)");
+            System.out.print("\nEnter a running statement to cancel, blank to refresh, q to return: ");
+            String choice = in.readLine();
+            if (choice == null || choice.trim().equalsIgnoreCase("q")) return;
+            if (choice.trim().isEmpty()) continue;
+            long id;
+            try {
+                id = Long.parseLong(choice.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid statement number");
+                continue;
+            }
+            if (esql.metrics().cancel(esql, id)) {
+                System.out.println("Cancelled statement " + id);
+            } else {
+                System.out.println("Statement " + id + " is no longer running or cannot be cancelled");
+            }
+        }
+    } catch (Exception e) {
+        System.err.println("Error in operations console: " + e.getMessage());
     }
 }
 
@@ -0,0 +1,659 @@
+/*
+ * Batch runner
+ * =============================
+ *
+ * Headless mode: reads operation records from a file or standard input,
+ * runs them concurrently over pooled connections and writes one JSON
+ * result per operation, followed by a timing summary per operation type.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *    java BatchRunner dbname port user [script|-] [results.jsonl]
+ *
+ * One operation per line: the menu number of a feature, then its inputs,
+ * separated by tabs. Blank lines and lines starting with # are skipped, and
+ * a line "sync" waits for everything above it to finish before anything
+ * below it starts (e.g. after bookings, before the manifests that should
+ * show them).
+ *
+ *    1   FlightNumber                   2   FlightNumber  Date
+ *    3   FlightNumber  Date             4   Date
+ *    5   FlightNumber  Date             6   ReservationID
+ *    7   PlaneID                        8   TechnicianID
+ *    9   PlaneID  Start  End            10  FlightNumber  Start  End
+ *    11  DepartureCity  ArrivalCity  Date
+ *    13  FlightNumber                   14  CustomerID  FlightInstanceID  [Seat]
+ *    15  PlaneID  Start  End            16  PilotID
+ *    17  TechnicianID  PlaneID  RepairCode  [Date]
+ *    18  PilotID  PlaneID  RepairCode   19  CustomerID  ReservationID
+ *    24  CustomerID
+ *
+ * Up to airline.batch.parallelism operations (default 8) run at once, each
+ * on its own pooled connection. Repairs and maintenance requests are handed
+ * to the group commit writer without waiting, so consecutive ones share a
+ * commit while the next reads run. Results are written in script order:
+ *
+ *    {"line":3,"op":"5","args":["F100","5/5/25"],"ok":true,"millis":4.1,
+ *     "columns":["Status","CustomerID"],"rows":[["reserved","113"]]}
+ *
+ * When flight data is sharded each shard has a single connection for
+ * reads, so the batch runs one operation at a time; bookings and
+ * cancellations borrow a connection of their own on the shard. Connection messages also go to
+ * standard out, so give a results file when another program reads them.
+ *
+ * With airline.storage=memory no connection is made (the database arguments
+ * are ignored): the CSV files of airline.data are loaded into MemoryStorage
+ * and the operations run through FeatureService, with the same result
+ * columns. Comparing the two summaries separates database time from the
+ * application's own.
+ *
+ */
+public class BatchRunner {
+
+   public static final int DEFAULT_PARALLELISM = 8;
+
+   /**
+    * One line of the script and, once run, its result.
+    */
+   static final class Operation {
+      final int line;
+      final String op;
+      final String[] args;
+      boolean ok;
+      String error;
+      String message;
+      ShardRouter.Result result;
+      long micros;
+
+      Operation(int line, String op, String[] args) {
+         this.line = line;
+         this.op = op;
+         this.args = args;
+      }
+   }//end Operation
+
+   private final AirlineManagement esql;
+   private final ConnectionPool pool;
+   // set when running on the in-memory engine, instead of esql and pool
+   private final FeatureService service;
+   private final int parallelism;
+   private final ExecutorService workers;
+   // op -> micros of every run, for the summary
+   private final Map<String, List<Long>> timings = new TreeMap<String, List<Long>>();
+   private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+
+   BatchRunner(AirlineManagement esql, int parallelism) throws SQLException {
+      this.esql = esql;
+      this.pool = new ConnectionPool(esql, parallelism);
+      this.service = null;
+      this.parallelism = parallelism;
+      this.workers = Executors.newFixedThreadPool(parallelism);
+   }
+
+   BatchRunner(FeatureService service, int parallelism) {
+      this.esql = null;
+      this.pool = null;
+      this.service = service;
+      this.parallelism = parallelism;
+      this.workers = Executors.newFixedThreadPool(parallelism);
+   }
+
+   /**
+    * Runs a script, writing each result as it becomes the oldest one done.
+    *
+    * @return the number of failed operations
+    */
+   int run(BufferedReader script, PrintWriter results) throws Exception {
+      Deque<CompletableFuture<Operation>> pending = new ArrayDeque<CompletableFuture<Operation>>();
+      int window = 4 * parallelism;
+      int failed = 0;
+      int lineNumber = 0;
+      String line;
+      while ((line = script.readLine()) != null) {
+         lineNumber++;
+         if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+         if (line.trim().equals("sync")) {
+            while (!pending.isEmpty()) failed += write(pending.poll().join(), results);
+            continue;
+         }
+         String[] fields = line.split("\t");
+         String[] args = new String[fields.length - 1];
+         for (int i = 1; i < fields.length; i++) args[i - 1] = fields[i].trim();
+         pending.add(submit(new Operation(lineNumber, fields[0].trim(), args)));
+         while (pending.size() >= window) failed += write(pending.poll().join(), results);
+      }
+      while (!pending.isEmpty()) failed += write(pending.poll().join(), results);
+      results.flush();
+      return failed;
+   }//end run
+
+   // starts an operation on a worker; the future completes when its result is final
+   private CompletableFuture<Operation> submit(final Operation op) {
+      final long start = System.nanoTime();
+      return CompletableFuture.supplyAsync(() -> {
+         if (service != null) return execute(service, op);
+         AirlineManagement db;
+         try {
+            db = pool.borrow();
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+         CompletableFuture<Operation> done = null;
+         try {
+            done = execute(db, op);
+            return done;
+         } finally {
+            // a connection that failed is replaced before the next operation gets it
+            pool.release(db, failure(done));
+         }
+      }, workers).thenCompose(f -> f).handle((done, e) -> {
+         op.micros = (System.nanoTime() - start) / 1000;
+         if (e == null) {
+            op.ok = true;
+         } else {
+            Throwable cause = e;
+            while (cause.getCause() != null) cause = cause.getCause();
+            op.error = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+         }
+         return op;
+      });
+   }//end submit
+
+   // what a finished operation failed with, or null
+   private static Throwable failure(CompletableFuture<Operation> done) {
+      if (done == null || !done.isCompletedExceptionally()) return null;
+      try {
+         done.join();
+         return null;
+      } catch (CompletionException e) {
+         return e.getCause();
+      } catch (CancellationException e) {
+         return e;
+      }
+   }
+
+   /**
+    * Runs one operation on a pooled handle. Reads are done when this
+    * returns; writes queued on the group commit writer finish later.
+    */
+   private CompletableFuture<Operation> execute(AirlineManagement db, Operation op) {
+      try {
+         String[] a = op.args;
+         switch (op.op) {
+            case "1":
+               need(op, 1);
+               op.result = db.forFlight(a[0]).executeQueryAndReturnTable(FeatureQueries.SCHEDULE_OF_FLIGHT, a[0]);
+               break;
+            case "2": {
+               need(op, 2);
+               AirlineManagement flight = db.forFlight(a[0]);
+               Integer instance = instanceOf(flight, a[0], Dates.parse(a[1]));
+               op.result = instance == null ? null
+                  : flight.executeQueryAndReturnTable(FeatureQueries.SEATS_OF_INSTANCE, instance);
+               if (instance == null) op.message = "No flight instance found.";
+               break;
+            }
+            case "3": {
+               need(op, 2);
+               AirlineManagement flight = db.forFlight(a[0]);
+               LocalDate date = Dates.parse(a[1]);
+               Integer instance = instanceOf(flight, a[0], date);
+               op.result = instance == null ? null
+                  : flight.executeQueryAndReturnTable(FeatureQueries.FLIGHT_STATUS, instance, date);
+               if (instance == null) op.message = "No flight instance found.";
+               break;
+            }
+            case "4":
+               need(op, 1);
+               op.result = sharded(db, FeatureQueries.FLIGHTS_OF_THE_DAY, Dates.parse(a[0]));
+               break;
+            case "5": {
+               need(op, 2);
+               AirlineManagement flight = db.forFlight(a[0]);
+               LocalDate date = Dates.parse(a[1]);
+               Integer instance = instanceOf(flight, a[0], date);
+               if (instance == null) {
+                  op.message = "No flight instance found.";
+                  break;
+               }
+               List<List<String>> rows = new ArrayList<List<String>>();
+               for (String status : new String[] { "reserved", "waitlist", "flown" }) {
+                  for (List<String> row : flight.executeQueryAndReturnResult(
+                        FeatureQueries.PASSENGERS_BY_STATUS, instance, date, status)) {
+                     rows.add(Arrays.asList(status, row.get(0)));
+                  }
+               }
+               op.result = new ShardRouter.Result(Arrays.asList("Status", "CustomerID"), rows);
+               break;
+            }
+            case "6": {
+               need(op, 1);
+               List<List<String>> found = db.executeShardedQueryAndReturnResult(FeatureQueries.CUSTOMER_OF_RESERVATION, a[0]);
+               CustomerStore.View customer = found.isEmpty() ? null
+                  : db.customerStore().get(Integer.parseInt(found.get(0).get(0)));
+               if (customer == null) {
+                  op.message = found.isEmpty() ? "No reservation found for that ReservationID." : "No customer found";
+                  break;
+               }
+               List<String> row = new ArrayList<String>();
+               for (int f = 0; f < CustomerStore.FIELDS.length; f++) row.add(customer.get(f));
+               op.result = new ShardRouter.Result(Arrays.asList(CustomerStore.FIELDS),
+                                                  Collections.singletonList(row));
+               break;
+            }
+            case "7":
+               need(op, 1);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.PLANE_DETAILS, a[0]);
+               break;
+            case "8":
+               need(op, 1);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.REPAIRS_BY_TECHNICIAN, a[0]);
+               break;
+            case "9":
+               need(op, 3);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.REPAIRS_OF_PLANE_DESC,
+                                                         a[0], Dates.parse(a[1]), Dates.parse(a[2]));
+               break;
+            case "10":
+               need(op, 3);
+               op.result = db.forFlight(a[0]).executeQueryAndReturnTable(FeatureQueries.FLIGHT_STATISTICS,
+                                                                         a[0], Dates.parse(a[1]), Dates.parse(a[2]));
+               break;
+            case "11":
+               need(op, 3);
+               op.result = sharded(db, FeatureQueries.ROUTE_SEARCH, a[0], a[1], Dates.parse(a[2]));
+               break;
+            case "13":
+               need(op, 1);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.PLANE_OF_FLIGHT, a[0]);
+               break;
+            case "14": {
+               need(op, 2);
+               int instanceID = Integer.parseInt(a[1]);
+               AdmissionController.Permit permit = esql.admission().acquire(AdmissionController.CUSTOMER, instanceID);
+               try {
+                  AirlineManagement target = db.borrowForInstance(instanceID);
+                  if (target == null) {
+                     op.message = "Invalid Flight Instance ID";
+                     break;
+                  }
+                  try {
+                     op.message = AirlineManagement.book(target, a[0], a[1], instanceID, a.length > 2 ? a[2] : "");
+                  } finally {
+                     db.release(target);
+                  }
+               } finally {
+                  permit.close();
+               }
+               break;
+            }
+            case "15":
+               need(op, 3);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.REPAIRS_OF_PLANE,
+                                                         a[0], Dates.parse(a[1]), Dates.parse(a[2]));
+               break;
+            case "16":
+               need(op, 1);
+               op.result = db.executeQueryAndReturnTable(FeatureQueries.REQUESTS_BY_PILOT, a[0]);
+               break;
+            case "17": {
+               need(op, 3);
+               String date = a.length > 3 && !a[3].isEmpty() ? Dates.parse(a[3]).toString() : LocalDate.now().toString();
+               // the permit is held until the commit, as in feature17
+               AdmissionController.Permit permit = esql.admission().acquire(AdmissionController.TECHNICIAN, AdmissionController.NO_INSTANCE);
+               return released(permit, esql.writer().submitRepair(a[1], a[2], date, a[0])).thenApply(batch -> {
+                  op.message = "Repair recorded (batch of " + batch.batchSize + ")";
+                  return op;
+               });
+            }
+            case "18": {
+               need(op, 3);
+               AdmissionController.Permit permit = esql.admission().acquire(AdmissionController.PILOT, AdmissionController.NO_INSTANCE);
+               return released(permit, esql.writer().submitRequest(a[1], a[2], LocalDate.now().toString(), a[0])).thenApply(batch -> {
+                  op.message = "Maintenance request submitted (batch of " + batch.batchSize + ")";
+                  return op;
+               });
+            }
+            case "19": {
+               need(op, 2);
+               // on the shard of the reservation's flight instance, admitted against that instance
+               List<List<String>> found = db.executeShardedQueryAndReturnResult(
+                  FeatureQueries.INSTANCE_OF_RESERVATION, a[1], Integer.parseInt(a[0]));
+               String status = null;
+               if (!found.isEmpty()) {
+                  int instanceID = Integer.parseInt(found.get(0).get(0));
+                  AdmissionController.Permit permit = esql.admission().acquire(AdmissionController.CUSTOMER, instanceID);
+                  try {
+                     AirlineManagement target = db.borrowForInstance(instanceID);
+                     try {
+                        if (target != null) status = WaitlistEngine.cancel(target, a[1], a[0]);
+                     } finally {
+                        db.release(target);
+                     }
+                  } finally {
+                     permit.close();
+                  }
+               }
+               op.message = status == null ? "No active reservation " + a[1] + " for customer " + a[0]
+                                           : "Reservation " + a[1] + " cancelled (was " + status + ").";
+               break;
+            }
+            case "24":
+               need(op, 1);
+               op.result = sharded(db, FeatureQueries.TRIPS_OF_CUSTOMER, Integer.parseInt(a[0]));
+               break;
+            default:
+               throw new SQLException("Unknown operation " + op.op);
+         }
+         return CompletableFuture.completedFuture(op);
+      } catch (Exception e) {
+         CompletableFuture<Operation> failed = new CompletableFuture<Operation>();
+         failed.completeExceptionally(e);
+         return failed;
+      }
+   }//end execute
+
+   /**
+    * Runs one operation on the in-memory engine; done when this returns.
+    */
+   private CompletableFuture<Operation> execute(FeatureService service, Operation op) {
+      try {
+         String[] a = op.args;
+         switch (op.op) {
+            case "1":
+               need(op, 1);
+               op.result = service.schedule(a[0]);
+               break;
+            case "2":
+            case "3":
+            case "5": {
+               need(op, 2);
+               Object[] instance = service.instance(a[0], Dates.parse(a[1]));
+               if (instance == null) {
+                  op.message = "No flight instance found.";
+                  break;
+               }
+               op.result = op.op.equals("2") ? service.seats(instance)
+                         : op.op.equals("3") ? service.status(instance)
+                         : service.passengers(instance);
+               break;
+            }
+            case "4":
+               need(op, 1);
+               op.result = service.flightsOfDay(Dates.parse(a[0]));
+               break;
+            case "6":
+               need(op, 1);
+               op.result = service.customerOfReservation(a[0]);
+               if (op.result == null) op.message = "No reservation or customer found for that ReservationID.";
+               break;
+            case "7":
+               need(op, 1);
+               op.result = service.plane(a[0]);
+               break;
+            case "8":
+               need(op, 1);
+               op.result = service.repairsByTechnician(a[0]);
+               break;
+            case "9":
+            case "15":
+               need(op, 3);
+               op.result = service.repairsOfPlane(a[0], Dates.parse(a[1]), Dates.parse(a[2]), op.op.equals("9"));
+               break;
+            case "10":
+               need(op, 3);
+               op.result = service.statistics(a[0], Dates.parse(a[1]), Dates.parse(a[2]));
+               break;
+            case "11":
+               need(op, 3);
+               op.result = service.routeSearch(a[0], a[1], Dates.parse(a[2]));
+               break;
+            case "13":
+               need(op, 1);
+               op.result = service.planeOfFlight(a[0]);
+               break;
+            case "14":
+               need(op, 2);
+               op.message = service.book(Integer.parseInt(a[0]), Integer.parseInt(a[1]), a.length > 2 ? a[2] : "");
+               break;
+            case "16":
+               need(op, 1);
+               op.result = service.requestsByPilot(a[0]);
+               break;
+            case "17":
+               need(op, 3);
+               service.recordRepair(a[0], a[1], a[2], a.length > 3 && !a[3].isEmpty() ? Dates.parse(a[3]) : LocalDate.now());
+               op.message = "Repair recorded";
+               break;
+            case "18":
+               need(op, 3);
+               service.requestMaintenance(a[0], a[1], a[2], LocalDate.now());
+               op.message = "Maintenance request submitted";
+               break;
+            case "19": {
+               need(op, 2);
+               String status = service.cancel(Integer.parseInt(a[0]), a[1]);
+               op.message = status == null ? "No active reservation " + a[1] + " for customer " + a[0]
+                                           : "Reservation " + a[1] + " cancelled (was " + status + ").";
+               break;
+            }
+            case "24":
+               need(op, 1);
+               op.result = service.trips(Integer.parseInt(a[0]));
+               break;
+            default:
+               throw new SQLException("Unknown operation " + op.op);
+         }
+         return CompletableFuture.completedFuture(op);
+      } catch (Exception e) {
+         CompletableFuture<Operation> failed = new CompletableFuture<Operation>();
+         failed.completeExceptionally(e);
+         return failed;
+      }
+   }//end execute
+
+   // closes the permit once the queued write is committed or has failed
+   private static <T> CompletableFuture<T> released(AdmissionController.Permit permit, CompletableFuture<T> write) {
+      return write.whenComplete((done, e) -> permit.close());
+   }
+
+   private static void need(Operation op, int count) throws SQLException {
+      if (op.args.length < count) {
+         throw new SQLException("Operation " + op.op + " needs " + count + " argument(s)");
+      }
+   }
+
+   private static Integer instanceOf(AirlineManagement db, String flightNumber, LocalDate date) throws SQLException {
+      List<List<String>> rows = db.executeQueryAndReturnResult(FeatureQueries.INSTANCE_OF_FLIGHT, flightNumber, date);
+      return rows.isEmpty() ? null : Integer.valueOf(rows.get(0).get(0));
+   }
+
+   // a query over flight data that may be spread over shards
+   private static ShardRouter.Result sharded(AirlineManagement db, String sql, Object... params) throws SQLException {
+      ShardRouter shards = db.shards();
+      return shards == null ? db.executeQueryAndReturnTable(sql, params) : shards.fanOut(sql, null, params);
+   }
+
+   // writes one result line, returns 1 when the operation failed
+   private int write(Operation op, PrintWriter out) {
+      List<Long> times = timings.get(op.op);
+      if (times == null) {
+         times = new ArrayList<Long>();
+         timings.put(op.op, times);
+      }
+      times.add(op.micros);
+      if (!op.ok) {
+         Integer n = failures.get(op.op);
+         failures.put(op.op, n == null ? 1 : n + 1);
+      }
+
+      StringBuilder json = new StringBuilder();
+      json.append("{\"line\":").append(op.line);
+      json.append(",\"op\":").append(quote(op.op));
+      json.append(",\"args\":").append(array(Arrays.asList(op.args)));
+      json.append(",\"ok\":").append(op.ok);
+      json.append(",\"millis\":").append(String.format("%.1f", op.micros / 1000.0));
+      if (op.error != null) json.append(",\"error\":").append(quote(op.error));
+      if (op.message != null) json.append(",\"message\":").append(quote(op.message));
+      if (op.result != null) {
+         json.append(",\"columns\":").append(array(op.result.columns));
+         json.append(",\"rows\":[");
+         for (int i = 0; i < op.result.rows.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append(array(op.result.rows.get(i)));
+         }
+         json.append(']');
+      }
+      json.append('}');
+      out.println(json);
+      return op.ok ? 0 : 1;
+   }//end write
+
+   private static String array(List<String> values) {
+      StringBuilder out = new StringBuilder("[");
+      for (int i = 0; i < values.size(); i++) {
+         if (i > 0) out.append(',');
+         out.append(quote(values.get(i)));
+      }
+      return out.append(']').toString();
+   }
+
+   static String quote(String s) {
+      if (s == null) return "null";
+      StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+               else out.append(c);
+         }
+      }
+      return out.append('"').toString();
+   }//end quote
+
+   /**
+    * @return per operation type: count, failures and latency percentiles
+    */
+   String summary() {
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-4s %8s %8s %10s %10s %10s %10s%n", "op", "count", "failed", "avg ms", "p50 ms", "p95 ms", "max ms"));
+      for (Map.Entry<String, List<Long>> e : timings.entrySet()) {
+         List<Long> times = e.getValue();
+         Collections.sort(times);
+         long total = 0;
+         for (long t : times) total += t;
+         Integer failed = failures.get(e.getKey());
+         out.append(String.format("%-4s %8d %8d %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), times.size(),
+                                  failed == null ? 0 : failed, total / 1000.0 / times.size(),
+                                  percentile(times, 50), percentile(times, 95), times.get(times.size() - 1) / 1000.0));
+      }
+      return out.toString();
+   }//end summary
+
+   private static double percentile(List<Long> sorted, int p) {
+      int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+      return sorted.get(Math.max(0, index)) / 1000.0;
+   }
+
+   void close() {
+      workers.shutdown();
+      if (pool != null) pool.close();
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java BatchRunner <dbname> <port> <user> [script|-] [results.jsonl]");
+         return;
+      }
+      boolean toFile = args.length > 4;
+      PrintStream report = toFile ? System.out : System.err;
+      if (System.getProperty("airline.storage", "pg").trim().equals("memory")) {
+         System.exit(runInMemory(args, report) > 0 ? 1 : 0);
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      int failed = 0;
+      try {
+         esql.openWorkload();
+         esql.openShards();
+         esql.openChanges();
+         esql.openJournal();
+         int parallelism = esql.shards() != null ? 1 : Integer.getInteger("airline.batch.parallelism", DEFAULT_PARALLELISM);
+         BufferedReader script = new BufferedReader(new InputStreamReader(
+            args.length > 3 && !args[3].equals("-") ? new FileInputStream(args[3]) : System.in, StandardCharsets.UTF_8));
+         PrintWriter results = new PrintWriter(new OutputStreamWriter(
+            toFile ? new FileOutputStream(args[4]) : System.out, StandardCharsets.UTF_8));
+         BatchRunner runner = new BatchRunner(esql, parallelism);
+         long start = System.currentTimeMillis();
+         try {
+            failed = runner.run(script, results);
+         } finally {
+            runner.close();
+            script.close();
+            if (toFile) results.close();
+         }
+         report.println("Ran in " + (System.currentTimeMillis() - start) + " ms with " + parallelism + " connection(s)");
+         report.print(runner.summary());
+      } finally {
+         esql.cleanup();
+      }
+      if (failed > 0) System.exit(1);
+   }//end main
+
+   // main with airline.storage=memory; returns the number of failed operations
+   private static int runInMemory(String[] args, PrintStream report) throws Exception {
+      long loading = System.currentTimeMillis();
+      MemoryStorage storage = (MemoryStorage) Storage.fromProperties(null);
+      report.println("Loaded " + storage.describe() + " in " + (System.currentTimeMillis() - loading) + " ms");
+      int parallelism = Integer.getInteger("airline.batch.parallelism", DEFAULT_PARALLELISM);
+      BufferedReader script = new BufferedReader(new InputStreamReader(
+         args.length > 3 && !args[3].equals("-") ? new FileInputStream(args[3]) : System.in, StandardCharsets.UTF_8));
+      PrintWriter results = new PrintWriter(new OutputStreamWriter(
+         args.length > 4 ? new FileOutputStream(args[4]) : System.out, StandardCharsets.UTF_8));
+      BatchRunner runner = new BatchRunner(new FeatureService(storage), parallelism);
+      long start = System.currentTimeMillis();
+      int failed;
+      try {
+         failed = runner.run(script, results);
+      } finally {
+         runner.close();
+         script.close();
+         if (args.length > 4) results.close();
+      }
+      report.println("Ran in " + (System.currentTimeMillis() - start) + " ms with " + parallelism + " thread(s) in memory");
+      report.print(runner.summary());
+      return failed;
+   }//end runInMemory
+
+}//end BatchRunner
@@ -0,0 +1,645 @@
+/*
+ * Booking journal
+ * =============================
+ *
+ * Optional write-ahead path for feature14. A booking is acknowledged once it
+ * is appended to a memory-mapped, checksummed log; a background applier
+ * moves journaled bookings into Postgres in batches.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * File layout:
+ *
+ *    header (64 bytes): int magic, int version, long appliedSeq, int appliedOffset
+ *    entries:           int payloadLength, int crc32(payload), payload
+ *    payload:           long seq, int flightInstanceID, int customerID, int seat,
+ *                       byte status (0 reserved, 1 waitlist), u16 + UTF-8 ReservationID
+ *
+ * A zero length or a checksum mismatch marks the end of the log, so a torn
+ * write at a crash simply ends the journal there. appliedSeq/appliedOffset
+ * are written after each applied batch commits. Entries past them are
+ * replayed on restart; the insert is guarded by NOT EXISTS so replaying an
+ * entry that did commit is harmless. Once everything is applied the log
+ * rewinds to the start of the file.
+ *
+ * An appended entry survives a process crash as soon as book() returns (the
+ * mapping lives in the page cache). With -Dairline.journal.fsync=true every
+ * append is also forced to disk, which covers an OS crash at some cost.
+ *
+ * Capacity decisions are made from in-memory seat counters: seats left =
+ * SeatsTotal - SeatsSold (as last read or reported) - journaled bookings
+ * not yet applied. The counters can lag behind other nodes, so the applier
+ * checks again under the FlightInstance row lock: a reserved booking that
+ * no longer fits goes in as waitlisted and its seat is given back. Those,
+ * and entries Postgres refuses, are kept in recentProblems() for the
+ * operations console.
+ *
+ */
+public class BookingJournal implements Runnable {
+
+   private static final int MAGIC = 0x4A524E4C; // "JRNL"
+   private static final int VERSION = 1;
+   private static final int HEADER = 64;
+   private static final int ENTRY_HEADER = 8;
+   public static final int DEFAULT_SIZE = 64 << 20;
+   private static final int MAX_BATCH = 500;
+   private static final int RECENT_PROBLEMS = 20;
+   private static final boolean FSYNC = Boolean.getBoolean("airline.journal.fsync");
+
+   /**
+    * One journaled booking.
+    */
+   public static final class Booking {
+      public final long seq;
+      public final String reservationID;
+      public final int customerID;
+      public final int flightInstanceID;
+      public final boolean reserved;
+      // -1 when no seat was assigned
+      public final int seat;
+      // offset of the entry following this one
+      final int end;
+
+      Booking(long seq, String reservationID, int customerID, int flightInstanceID,
+              boolean reserved, int seat, int end) {
+         this.seq = seq;
+         this.reservationID = reservationID;
+         this.customerID = customerID;
+         this.flightInstanceID = flightInstanceID;
+         this.reserved = reserved;
+         this.seat = seat;
+         this.end = end;
+      }
+   }//end Booking
+
+   // seats left per flight instance, guarded by the journal
+   private static final class Seats {
+      final int total;
+      int sold;
+      int pending;
+
+      Seats(int total, int sold) {
+         this.total = total;
+         this.sold = sold;
+      }
+
+      int left() {
+         return total - sold - pending;
+      }
+   }//end Seats
+
+   private final File file;
+   private final RandomAccessFile raf;
+   private final MappedByteBuffer map;
+   private final AirlineManagement owner;
+   private final AirlineManagement db;
+   private final Map<Integer, Seats> seats = new ConcurrentHashMap<Integer, Seats>();
+   // customers seen to exist; customers are never deleted
+   private final Map<Integer, Boolean> customers = new ConcurrentHashMap<Integer, Boolean>();
+
+   // guarded by this
+   private long nextSeq;
+   private int writeOffset;
+   private long appliedSeq;
+   private int appliedOffset;
+
+   private volatile boolean running = false;
+   private Thread worker = null;
+   private final AtomicLong appended = new AtomicLong();
+   private final AtomicLong applied = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong demoted = new AtomicLong();
+   // newest last, guarded by itself
+   private final Deque<String> problems = new LinkedList<String>();
+
+   /**
+    * Opens or creates a journal and recovers its unapplied tail.
+    *
+    * @param esql the interactive database handle
+    * @param file the journal file
+    * @param size file size used when creating a new journal
+    * @throws java.io.IOException when the file cannot be mapped or is not a journal
+    * @throws java.sql.SQLException when the applier cannot get a connection
+    */
+   public BookingJournal(AirlineManagement esql, File file, int size) throws IOException, SQLException {
+      this.file = file;
+      boolean created = !file.exists() || file.length() == 0;
+      this.raf = new RandomAccessFile(file, "rw");
+      if (created) raf.setLength(size);
+      this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      if (created) {
+         map.putInt(0, MAGIC);
+         map.putInt(4, VERSION);
+         writeHeader(0, HEADER);
+         map.force();
+      } else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+         raf.close();
+         throw new IOException(file + " is not a booking journal");
+      }
+      this.owner = esql;
+      this.db = esql == null ? null : new AirlineManagement(esql.openConnection(), esql);
+      recover();
+   }
+
+   // finds the end of the log and the next sequence number
+   private void recover() {
+      appliedSeq = map.getLong(8);
+      appliedOffset = map.getInt(16);
+      nextSeq = appliedSeq + 1;
+      writeOffset = appliedOffset;
+      Booking b;
+      while ((b = read(writeOffset)) != null) {
+         nextSeq = b.seq + 1;
+         writeOffset = b.end;
+      }
+      // clear a torn tail so it can never be mistaken for an entry
+      if (writeOffset + ENTRY_HEADER <= map.capacity()) map.putInt(writeOffset, 0);
+   }//end recover
+
+   /**
+    * @return number of journaled bookings not yet applied to Postgres
+    */
+   public synchronized long unapplied() {
+      return nextSeq - 1 - appliedSeq;
+   }
+
+   public synchronized void start() {
+      if (running || db == null) return;
+      running = true;
+      worker = new Thread(this, "booking-journal-applier");
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   /**
+    * Applies what it can and stops the applier; entries left behind are
+    * replayed on the next start.
+    */
+   public void shutdown() {
+      running = false;
+      synchronized (this) {
+         notifyAll();
+      }
+      try {
+         if (worker != null) worker.join(10000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      map.force();
+      try {
+         raf.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      if (db != null) db.cleanup();
+   }//end shutdown
+
+   /**
+    * Books a seat (or a waitlist place) by appending to the journal.
+    *
+    * @param esql handle used for the first read of a flight instance's seats
+    * @param seatChoice preferred seat label, or empty
+    * @return the journaled booking
+    * @throws java.sql.SQLException when the customer or flight instance is unknown or the journal is full
+    */
+   public Booking book(AirlineManagement esql, int customerID, int flightInstanceID, String seatChoice) throws SQLException {
+      if (!customers.containsKey(customerID)) {
+         if (esql.executeQueryAndReturnResult(String.format(
+               "SELECT 1 FROM Customer WHERE CustomerID = %d", customerID)).isEmpty()) {
+            throw new SQLException("Invalid Customer ID");
+         }
+         customers.put(customerID, Boolean.TRUE);
+      }
+      Seats counters = seats(esql, flightInstanceID);
+      SeatMap.Bitmap bitmap = esql.seatMap().forInstance(esql, flightInstanceID);
+      String reservationID = String.format("RES%d%03d", System.currentTimeMillis(), (int) (Math.random() * 1000));
+      Booking booking;
+      synchronized (this) {
+         boolean reserved = counters.left() > 0;
+         int seat = -1;
+         if (reserved && bitmap != null) {
+            int wanted = seatChoice.isEmpty() ? -1 : SeatMap.parse(seatChoice);
+            seat = wanted >= 0 && bitmap.hold(wanted, SeatMap.DEFAULT_HOLD_MILLIS)
+                   ? wanted : bitmap.holdAny(SeatMap.DEFAULT_HOLD_MILLIS);
+         }
+         try {
+            booking = append(reservationID, customerID, flightInstanceID, reserved, seat);
+            if (FSYNC) map.force();
+         } catch (SQLException e) {
+            if (seat >= 0) bitmap.release(seat);
+            throw e;
+         }
+         if (seat >= 0) bitmap.confirm(seat);
+         if (reserved) counters.pending++;
+         notifyAll();
+      }
+      return booking;
+   }//end book
+
+   // appends one entry; caller holds the lock
+   private Booking append(String reservationID, int customerID, int flightInstanceID,
+                          boolean reserved, int seat) throws SQLException {
+      byte[] id = reservationID.getBytes(StandardCharsets.UTF_8);
+      int payload = 8 + 4 + 4 + 4 + 1 + 2 + id.length;
+      if (writeOffset + ENTRY_HEADER + payload + ENTRY_HEADER > map.capacity()) {
+         // full: wait briefly for the applier to drain and rewind
+         long deadline = System.currentTimeMillis() + 5000;
+         while (writeOffset + ENTRY_HEADER + payload + ENTRY_HEADER > map.capacity()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || !running) throw new SQLException("Booking journal is full, try again shortly");
+            try {
+               wait(wait);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while waiting for journal space");
+            }
+         }
+      }
+      ByteBuffer buf = ByteBuffer.allocate(payload);
+      long seq = nextSeq;
+      buf.putLong(seq).putInt(flightInstanceID).putInt(customerID).putInt(seat)
+         .put((byte) (reserved ? 0 : 1)).putShort((short) id.length).put(id);
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(), 0, payload);
+
+      int at = writeOffset;
+      ByteBuffer out = map.duplicate();
+      out.position(at + ENTRY_HEADER);
+      out.put(buf.array());
+      // end marker first, then the header that makes the entry visible
+      if (at + ENTRY_HEADER + payload + ENTRY_HEADER <= map.capacity()) map.putInt(at + ENTRY_HEADER + payload, 0);
+      map.putInt(at + 4, (int) crc.getValue());
+      map.putInt(at, payload);
+      nextSeq++;
+      writeOffset = at + ENTRY_HEADER + payload;
+      appended.incrementAndGet();
+      return new Booking(seq, reservationID, customerID, flightInstanceID, reserved, seat, writeOffset);
+   }//end append
+
+   // reads and validates the entry at an offset, or returns null at the end of the log
+   private Booking read(int at) {
+      if (at + ENTRY_HEADER > map.capacity()) return null;
+      int payload = map.getInt(at);
+      if (payload <= 0 || at + ENTRY_HEADER + payload > map.capacity()) return null;
+      byte[] bytes = new byte[payload];
+      ByteBuffer in = map.duplicate();
+      in.position(at + ENTRY_HEADER);
+      in.get(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, payload);
+      if ((int) crc.getValue() != map.getInt(at + 4)) return null;
+      ByteBuffer p = ByteBuffer.wrap(bytes);
+      long seq = p.getLong();
+      int flightInstanceID = p.getInt();
+      int customerID = p.getInt();
+      int seat = p.getInt();
+      boolean reserved = p.get() == 0;
+      byte[] id = new byte[p.getShort() & 0xFFFF];
+      p.get(id);
+      return new Booking(seq, new String(id, StandardCharsets.UTF_8), customerID, flightInstanceID,
+                         reserved, seat, at + ENTRY_HEADER + payload);
+   }//end read
+
+   private void writeHeader(long seq, int offset) {
+      map.putLong(8, seq);
+      map.putInt(16, offset);
+   }
+
+   // seat counters of a flight instance, read once from the database
+   private Seats seats(AirlineManagement esql, int flightInstanceID) throws SQLException {
+      Seats counters = seats.get(flightInstanceID);
+      if (counters != null) return counters;
+      List<List<String>> row = esql.executeQueryAndReturnResult(String.format(
+         "SELECT SeatsTotal, SeatsSold FROM FlightInstance WHERE FlightInstanceID = %d", flightInstanceID));
+      if (row.isEmpty()) throw new SQLException("Invalid Flight Instance ID");
+      synchronized (this) {
+         counters = seats.get(flightInstanceID);
+         if (counters == null) {
+            counters = new Seats(Integer.parseInt(row.get(0).get(0)), Integer.parseInt(row.get(0).get(1)));
+            // bookings replayed from an earlier run are not in SeatsSold yet
+            counters.pending = scanPending(flightInstanceID);
+            seats.put(flightInstanceID, counters);
+         }
+      }
+      return counters;
+   }//end seats
+
+   // reserved bookings of a flight instance still in the log; caller holds the lock
+   private int scanPending(int flightInstanceID) {
+      int pending = 0;
+      for (int at = appliedOffset; at < writeOffset; ) {
+         Booking b = read(at);
+         if (b == null) break;
+         if (b.reserved && b.flightInstanceID == flightInstanceID) pending++;
+         at = b.end;
+      }
+      return pending;
+   }//end scanPending
+
+   /**
+    * Seats acknowledged by the journal but not yet in SeatsSold, which
+    * waitlist promotion must leave alone.
+    */
+   public synchronized int pending(int flightInstanceID) {
+      Seats counters = seats.get(flightInstanceID);
+      return counters != null ? counters.pending : scanPending(flightInstanceID);
+   }
+
+   /**
+    * Keeps the seat counters in step with SeatsSold changes made outside
+    * the journal (cancellations, waitlist promotions).
+    */
+   public synchronized void seatsSoldChanged(int flightInstanceID, int seatsSold) {
+      Seats counters = seats.get(flightInstanceID);
+      if (counters != null) counters.sold = seatsSold;
+   }
+
+   public void run() {
+      while (running || unapplied() > 0) {
+         try {
+            synchronized (this) {
+               if (running && unapplied() == 0) wait(50);
+            }
+            if (unapplied() > 0 && applyBatch() == 0 && !running) break;
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         } catch (SQLException e) {
+            System.err.println("Booking journal apply failed, retrying: " + e.getMessage());
+            db.metrics().retried();
+            try {
+               Thread.sleep(1000);
+            } catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }//end run
+
+   /**
+    * Applies the next batch of journaled bookings in one transaction.
+    *
+    * @return the number of entries consumed
+    * @throws java.sql.SQLException when the database is unreachable
+    */
+   public int applyBatch() throws SQLException {
+      List<Booking> batch = new ArrayList<Booking>();
+      synchronized (this) {
+         int at = appliedOffset;
+         while (batch.size() < MAX_BATCH && at < writeOffset) {
+            Booking b = read(at);
+            if (b == null) break;
+            batch.add(b);
+            at = b.end;
+         }
+      }
+      if (batch.isEmpty()) return 0;
+
+      Map<Integer, Integer> sold = new TreeMap<Integer, Integer>();
+      List<Booking> full = new ArrayList<Booking>();
+      List<Booking> refused = new ArrayList<Booking>();
+      try {
+         sold = apply(batch, full);
+      } catch (SQLException batchError) {
+         // apply one by one so a bad entry (e.g. unknown customer) does not stall the log
+         db.metrics().retried();
+         sold.clear();
+         full.clear();
+         for (Booking b : batch) {
+            List<Booking> single = new ArrayList<Booking>(1);
+            single.add(b);
+            try {
+               for (Map.Entry<Integer, Integer> e : apply(single, full).entrySet()) add(sold, e.getKey(), e.getValue());
+            } catch (SQLException e) {
+               // a dead connection is not the entry's fault: retry the batch later
+               db.executeQuery("SELECT 1");
+               rejected.incrementAndGet();
+               refused.add(b);
+               problem("Booking " + b.reservationID + " (journal seq " + b.seq + ", customer " + b.customerID +
+                       ") rejected: " + e.getMessage());
+            }
+         }
+      }
+
+      Booking last = batch.get(batch.size() - 1);
+      synchronized (this) {
+         appliedSeq = last.seq;
+         appliedOffset = last.end;
+         for (Booking b : batch) {
+            Seats counters = seats.get(b.flightInstanceID);
+            if (counters != null && b.reserved) counters.pending--;
+         }
+         for (Map.Entry<Integer, Integer> e : sold.entrySet()) {
+            Seats counters = seats.get(e.getKey());
+            if (counters != null) counters.sold += e.getValue();
+         }
+         if (appliedOffset == writeOffset) {
+            // everything applied: rewind so the file is reused
+            appliedOffset = writeOffset = HEADER;
+            map.putInt(HEADER, 0);
+         }
+         writeHeader(appliedSeq, appliedOffset);
+         map.force();
+         notifyAll();
+      }
+      applied.addAndGet(batch.size());
+      // seats held for bookings that did not go in as reserved are free again
+      for (Booking b : full) {
+         demoted.incrementAndGet();
+         release(b);
+         problem("Booking " + b.reservationID + " (journal seq " + b.seq + ", customer " + b.customerID +
+                 ") waitlisted: flight instance " + b.flightInstanceID + " was full");
+         owner.waitlistEngine().waitlisted(b.flightInstanceID, b.reservationID);
+      }
+      for (Booking b : refused) release(b);
+      for (Booking b : batch) {
+         owner.itineraries().invalidate(b.customerID);
+         if (!b.reserved) owner.waitlistEngine().waitlisted(b.flightInstanceID, b.reservationID);
+      }
+      for (Map.Entry<Integer, Integer> e : sold.entrySet()) {
+         Seats counters = seats.get(e.getKey());
+         if (counters != null) owner.seatsSoldChanged(e.getKey(), counters.sold);
+      }
+      return batch.size();
+   }//end applyBatch
+
+   // inserts the bookings that are not there yet and returns seats sold per instance;
+   // reserved bookings that no longer fit are inserted as waitlisted and added to full
+   private Map<Integer, Integer> apply(List<Booking> batch, List<Booking> full) throws SQLException {
+      Map<Integer, Integer> sold = new TreeMap<Integer, Integer>();
+      Map<Integer, Integer> left = new TreeMap<Integer, Integer>();
+      List<Booking> waitlisted = new ArrayList<Booking>();
+      for (Booking b : batch) {
+         if (b.reserved) left.put(b.flightInstanceID, 0);
+      }
+      db.beginTransaction();
+      try {
+         // TreeMap order: flight instances are always locked in ID order
+         for (Map.Entry<Integer, Integer> e : left.entrySet()) {
+            List<List<String>> row = db.executeQueryAndReturnResult(String.format(
+               "SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightInstanceID = %d FOR UPDATE",
+               e.getKey()));
+            e.setValue(row.isEmpty() ? 0 : Integer.parseInt(row.get(0).get(0)));
+         }
+         for (Booking b : batch) {
+            boolean reserved = b.reserved && left.get(b.flightInstanceID) > 0;
+            int inserted = db.executeUpdate(String.format(
+               "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status, SeatNumber, FlightDate) " +
+               "SELECT '%s', %d, FlightInstanceID, '%s', %s, FlightDate FROM FlightInstance " +
+               "WHERE FlightInstanceID = %d " +
+               "AND NOT EXISTS (SELECT 1 FROM Reservation WHERE ReservationID = '%s')",
+               b.reservationID.replace("'", "''"), b.customerID,
+               reserved ? "reserved" : "waitlist", !reserved || b.seat < 0 ? "NULL" : String.valueOf(b.seat),
+               b.flightInstanceID, b.reservationID.replace("'", "''")));
+            if (inserted == 0) continue;
+            if (reserved) {
+               left.put(b.flightInstanceID, left.get(b.flightInstanceID) - 1);
+               add(sold, b.flightInstanceID, 1);
+            } else if (b.reserved) {
+               waitlisted.add(b);
+            }
+         }
+         for (Map.Entry<Integer, Integer> e : sold.entrySet()) {
+            db.executeUpdate(String.format(
+               "UPDATE FlightInstance SET SeatsSold = SeatsSold + %d WHERE FlightInstanceID = %d",
+               e.getValue(), e.getKey()));
+         }
+         db.commit();
+         full.addAll(waitlisted);
+         return sold;
+      } catch (SQLException e) {
+         db.rollback();
+         throw e;
+      }
+   }//end apply
+
+   // gives back the seat a booking held in the seat map
+   private void release(Booking b) {
+      SeatMap.Bitmap bitmap = owner.seatMap().loaded(b.flightInstanceID);
+      if (bitmap != null && b.seat >= 0) bitmap.release(b.seat);
+   }
+
+   private void problem(String message) {
+      System.err.println(message);
+      synchronized (problems) {
+         problems.addLast(message);
+         if (problems.size() > RECENT_PROBLEMS) problems.removeFirst();
+      }
+   }
+
+   /**
+    * @return the latest bookings that were rejected or waitlisted when applied, oldest first
+    */
+   public List<String> recentProblems() {
+      synchronized (problems) {
+         return new ArrayList<String>(problems);
+      }
+   }
+
+   private static void add(Map<Integer, Integer> counts, int key, int n) {
+      Integer old = counts.get(key);
+      counts.put(key, old == null ? n : old + n);
+   }
+
+   /**
+    * Checks every entry still in the file against the Reservation table.
+    *
+    * @param esql the database handle
+    * @return number of entries that are applied but missing or different in Postgres
+    * @throws java.sql.SQLException when a lookup fails
+    */
+   public int verify(AirlineManagement esql) throws SQLException {
+      int problems = 0;
+      int checked = 0;
+      int at;
+      int end;
+      long appliedUpTo;
+      synchronized (this) {
+         at = HEADER;
+         end = writeOffset;
+         appliedUpTo = appliedSeq;
+      }
+      Booking b;
+      while (at < end && (b = read(at)) != null) {
+         checked++;
+         List<List<String>> row = esql.executeQueryAndReturnResult(String.format(
+            "SELECT CustomerID, FlightInstanceID FROM Reservation WHERE ReservationID = '%s'",
+            b.reservationID.replace("'", "''")));
+         if (b.seq > appliedUpTo) {
+            System.out.println("seq " + b.seq + " " + b.reservationID + ": not applied yet" +
+                               (row.isEmpty() ? "" : " (already present)"));
+         } else if (row.isEmpty()) {
+            problems++;
+            System.out.println("seq " + b.seq + " " + b.reservationID + ": MISSING from Reservation");
+         } else if (Integer.parseInt(row.get(0).get(0)) != b.customerID ||
+                    Integer.parseInt(row.get(0).get(1)) != b.flightInstanceID) {
+            problems++;
+            System.out.println("seq " + b.seq + " " + b.reservationID + ": MISMATCH customer/flight instance");
+         }
+         at = b.end;
+      }
+      System.out.println(checked + " journal entries checked, " + problems + " problem(s), " +
+                         unapplied() + " not applied yet");
+      return problems;
+   }//end verify
+
+   public long appendedCount() { return appended.get(); }
+   public long appliedCount() { return applied.get(); }
+   public long rejectedCount() { return rejected.get(); }
+   public long demotedCount() { return demoted.get(); }
+
+   public File file() {
+      return file;
+   }
+
+   /**
+    * Journal maintenance: "verify" checks the journal against Reservation,
+    * "replay" applies unapplied entries and exits.
+    *
+    * @param args <dbname> <port> <user> <journal file> verify|replay
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 5 || !(args[4].equals("verify") || args[4].equals("replay"))) {
+         System.err.println("Usage: java BookingJournal <dbname> <port> <user> <journal file> verify|replay");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      BookingJournal journal = null;
+      try {
+         journal = new BookingJournal(esql, new File(args[3]), DEFAULT_SIZE);
+         if (args[4].equals("replay")) {
+            long before = journal.unapplied();
+            while (journal.unapplied() > 0 && journal.applyBatch() > 0) { }
+            System.out.println("Replayed " + (before - journal.unapplied()) + " entries, " +
+                               journal.demotedCount() + " waitlisted for lack of seats, " +
+                               journal.rejectedCount() + " rejected");
+         } else {
+            System.exit(journal.verify(esql) == 0 ? 0 : 1);
+         }
+      } finally {
+         if (journal != null) journal.shutdown();
+         esql.cleanup();
+      }
+   }//end main
+
+}//end BookingJournal
@@ -0,0 +1,584 @@
+/*
+ * Change listener
+ * =============================
+ *
+ * Keeps this node's in-memory caches in step with writes made by other
+ * nodes. The triggers of sql/src/create_change_log.sql add a ChangeLog row
+ * per changed row and NOTIFY airline_change; a listener connection per
+ * database reads the new rows and patches or drops what they touch.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Enabled by airline.changes=true. The driver only hands over notifications
+ * when a statement runs, so each listener sends a trivial query every
+ * airline.changes.pollMillis (default 20) and reads ChangeLog when a
+ * notification came in, or once a second regardless.
+ *
+ * Seq values are taken at insert, not at commit, so a row may become
+ * visible after higher ones. A skipped Seq is kept as a hole and asked for
+ * again until it shows up or airline.changes.holeMillis (default 60000)
+ * passes, after which it is taken for a rolled back transaction. After a
+ * lost connection there is no telling what was missed: once reconnected,
+ * every cache is dropped and reloads on next use.
+ *
+ * Rows written by this node's own connections are skipped, since the
+ * writing code already updated the caches. Every connection a node opens
+ * sets application_name to the node's own random name, which ChangeLog
+ * records as Origin. Reservation changes are merged into loaded seat maps
+ * rather than dropping them, so seats held by bookings in progress here
+ * stay held. Listeners also delete rows
+ * older than airline.changes.retention minutes (default 10).
+ *
+ */
+public class ChangeListener {
+
+   public static final String CHANNEL = "airline_change";
+   public static final long DEFAULT_POLL_MILLIS = 20;
+   public static final long DEFAULT_HOLE_MILLIS = 60000;
+   public static final int DEFAULT_RETENTION_MINUTES = 10;
+   // more open holes than this and the listener resyncs instead of asking for them
+   public static final int MAX_HOLES = 1000;
+
+   private static final long FETCH_MILLIS = 1000;
+   private static final long PRUNE_MILLIS = 60000;
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+
+   /**
+    * One ChangeLog row.
+    */
+   public static final class Change {
+      public final long seq;
+      public final String table;
+      public final char op;
+      public final String key;
+      // Detail split on |, empty strings as null
+      public final String[] detail;
+      public final String origin;
+
+      Change(long seq, String table, char op, String key, String detail, String origin) {
+         this.seq = seq;
+         this.table = table;
+         this.op = op;
+         this.key = key;
+         this.origin = origin;
+         String[] fields = detail == null ? new String[0] : detail.split("\\|", -1);
+         for (int i = 0; i < fields.length; i++) {
+            if (fields[i].isEmpty()) fields[i] = null;
+         }
+         this.detail = fields;
+      }
+
+      String field(int i) {
+         return i < detail.length ? detail[i] : null;
+      }
+   }//end Change
+
+   private final AirlineManagement esql;
+   private final long pollMillis = Long.getLong("airline.changes.pollMillis", DEFAULT_POLL_MILLIS);
+   private final long holeMillis = Long.getLong("airline.changes.holeMillis", DEFAULT_HOLE_MILLIS);
+   private final int retention = Integer.getInteger("airline.changes.retention", DEFAULT_RETENTION_MINUTES);
+   private final List<Feed> feeds = new ArrayList<Feed>();
+   private volatile boolean running = true;
+   // held while a change is applied, so SnapshotStore copies caches between changes
+   private final Object applying = new Object();
+   // counted down by each feed once it has read up to where its database was at connect
+   private final CountDownLatch caughtUp;
+
+   private final AtomicLong received = new AtomicLong();
+   private final AtomicLong applied = new AtomicLong();
+   private final AtomicLong own = new AtomicLong();
+   private final AtomicLong late = new AtomicLong();
+   private final AtomicLong abandoned = new AtomicLong();
+   private final AtomicLong resyncs = new AtomicLong();
+   // "plane|date" of the last Repair applied, whose Plane update needs no reload
+   private volatile String lastRepair = null;
+
+   /**
+    * @param esql the handle owning the caches
+    * @param urls the databases to follow: the primary and any shards
+    */
+   public ChangeListener(AirlineManagement esql, List<String> urls) {
+      this.esql = esql;
+      for (String url : urls) feeds.add(new Feed(url));
+      this.caughtUp = new CountDownLatch(feeds.size());
+   }
+
+   /**
+    * @return whether airline.changes is set, so connections record their backend
+    */
+   public static boolean enabled() {
+      return Boolean.getBoolean("airline.changes");
+   }
+
+   /**
+    * Starts a listener per database, each connecting in the background.
+    */
+   public void start() {
+      for (Feed feed : feeds) {
+         Thread t = new Thread(feed, "change-listener");
+         t.setDaemon(true);
+         t.start();
+      }
+   }
+
+   /**
+    * @return the databases followed
+    */
+   public Set<String> urls() {
+      Set<String> urls = new java.util.LinkedHashSet<String>();
+      for (Feed feed : feeds) urls.add(feed.url);
+      return urls;
+   }
+
+   /**
+    * Makes each feed start after the given Seq instead of at the end of its
+    * change log, asking again for the given holes. Call before start.
+    *
+    * @param positions url -> { last applied Seq, holes... }
+    */
+   public void resumeFrom(Map<String, long[]> positions) {
+      for (Feed feed : feeds) feed.resume = positions.get(feed.url);
+   }
+
+   /**
+    * Runs a task while no change is being applied.
+    *
+    * @return url -> { last applied Seq, holes... } as of the task, or null
+    *         when a feed is not connected and its position means nothing
+    */
+   public Map<String, long[]> paused(Runnable task) {
+      synchronized (applying) {
+         Map<String, long[]> positions = new LinkedHashMap<String, long[]>();
+         for (Feed feed : feeds) {
+            if (feed.connection == null) return null;
+            long[] p = new long[1 + feed.holes.size()];
+            p[0] = feed.maxSeen;
+            int i = 1;
+            for (Long hole : feed.holes.keySet()) p[i++] = hole;
+            positions.put(feed.url, p);
+         }
+         task.run();
+         return positions;
+      }
+   }//end paused
+
+   /**
+    * Waits until every feed has applied what its database held when it
+    * connected.
+    *
+    * @return false when that took longer than millis
+    */
+   public boolean awaitCaughtUp(long millis) throws InterruptedException {
+      return caughtUp.await(millis, TimeUnit.MILLISECONDS);
+   }
+
+   public void shutdown() {
+      running = false;
+      for (Feed feed : feeds) feed.close();
+   }
+
+   /**
+    * @return counters since start, for the shutdown report
+    */
+   public String report() {
+      return String.format("Changes: %d received, %d applied, %d own, %d late, %d holes abandoned, %d resyncs",
+                           received.get(), applied.get(), own.get(), late.get(), abandoned.get(), resyncs.get());
+   }
+
+   public long appliedCount() {
+      return applied.get();
+   }
+
+   public long abandonedCount() {
+      return abandoned.get();
+   }
+
+   /**
+    * Patches or drops the caches a change touches.
+    */
+   void apply(Change c) {
+      switch (c.table) {
+         case "FlightInstance": {
+            int id = Integer.parseInt(c.key);
+            if (c.op == 'U' && c.field(0) != null) {
+               esql.seatsSoldChanged(id, Integer.parseInt(c.field(0)));
+               if (c.field(1) != null) esql.ticketCostChanged(id, Double.parseDouble(c.field(1)));
+            } else {
+               esql.dropCaches(true, false, false);
+            }
+            // seats come from Reservation changes; only a new SeatsTotal needs a rebuild
+            SeatMap.Bitmap bitmap = esql.seatMap().loaded(id);
+            if (bitmap != null && (c.op != 'U' || c.field(2) == null || Integer.parseInt(c.field(2)) != bitmap.seatsTotal())) {
+               esql.seatMap().invalidate(id);
+            }
+            break;
+         }
+         case "Reservation":
+            if (c.field(0) != null) esql.itineraries().invalidate(Integer.parseInt(c.field(0)));
+            if (c.field(1) != null) {
+               SeatMap.Bitmap bitmap = esql.seatMap().loaded(Integer.parseInt(c.field(1)));
+               if (bitmap != null) merge(bitmap, c);
+            }
+            break;
+         case "Repair":
+         case "MaintenanceRequest": {
+            boolean repair = c.table.equals("Repair");
+            if (c.op == 'I' && c.field(2) != null) {
+               esql.maintenanceWritten(repair, c.field(0), c.field(1), c.field(2), c.field(3));
+               if (repair) lastRepair = c.field(0) + "|" + c.field(2);
+            } else {
+               esql.dropCaches(false, true, false);
+            }
+            break;
+         }
+         case "Plane":
+            // the LastRepairDate set together with a repair is already applied
+            if (!(c.op == 'U' && (c.key + "|" + c.field(0)).equals(lastRepair))) {
+               esql.dropCaches(false, true, false);
+            }
+            break;
+         case "Customer":
+            if (c.op == 'I') {
+               esql.customerInserted(Integer.parseInt(c.key));
+            } else {
+               esql.dropCaches(false, false, true);
+            }
+            esql.itineraries().invalidate(Integer.parseInt(c.key));
+            break;
+         case "Flight":
+            esql.dropCaches(true, false, false);
+            esql.itineraries().clear();
+            break;
+         case "User_":
+            esql.sessions().forget(c.key);
+            break;
+         default:
+            break;
+      }
+   }//end apply
+
+   // moves a reservation's seat in a seat map from its old state to its new one
+   private static void merge(SeatMap.Bitmap bitmap, Change c) {
+      boolean deleted = c.op == 'D';
+      // an update carries the old Status and SeatNumber after the new ones
+      String oldStatus = deleted ? c.field(2) : c.op == 'U' ? c.field(4) : null;
+      String oldSeat = deleted ? c.field(3) : c.op == 'U' ? c.field(5) : null;
+      String newStatus = deleted ? null : c.field(2);
+      String newSeat = deleted ? null : c.field(3);
+      if (occupies(oldStatus)) {
+         if (oldSeat == null) bitmap.releaseUnnumbered(); else bitmap.release(Integer.parseInt(oldSeat));
+      }
+      if (occupies(newStatus)) {
+         if (newSeat == null) bitmap.markUnnumbered(); else bitmap.markSold(Integer.parseInt(newSeat));
+      }
+   }//end merge
+
+   private static boolean occupies(String status) {
+      return "reserved".equals(status) || "flown".equals(status);
+   }
+
+   /**
+    * Drops every cache, for when changes may have been missed.
+    */
+   void resync() {
+      resyncs.incrementAndGet();
+      esql.dropCaches(true, true, true);
+      esql.itineraries().clear();
+      esql.seatMap().clear();
+      esql.sessions().clear();
+   }
+
+   /**
+    * Follows one database.
+    */
+   private final class Feed implements Runnable {
+      private final String url;
+      private volatile Connection connection;
+      private long maxSeen;
+      // where a restored snapshot left off, until the first connect
+      private long[] resume;
+      // MAX(Seq) at the first connect, -1 before it and Long.MAX_VALUE once reached
+      private long target = -1;
+      // Seq -> when it was first missed
+      private final Map<Long, Long> holes = new LinkedHashMap<Long, Long>();
+      private long lastFetch;
+      private long lastPrune;
+
+      Feed(String url) {
+         this.url = url;
+      }
+
+      public void run() {
+         // false once a connection failed: what happened meanwhile is unknown
+         boolean clean = true;
+         long backoff = 500;
+         while (running) {
+            try {
+               if (connection == null) {
+                  connect();
+                  if (!clean) resync();
+                  clean = true;
+                  backoff = 500;
+               }
+               poll();
+               Thread.sleep(pollMillis);
+            } catch (SQLException e) {
+               if (!running) break;
+               System.err.println("Change listener lost " + url + ": " + e.getMessage());
+               close();
+               clean = false;
+               try {
+                  Thread.sleep(backoff);
+               } catch (InterruptedException ie) {
+                  break;
+               }
+               backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+               break;
+            }
+         }
+         close();
+      }//end run
+
+      private void connect() throws SQLException {
+         Connection c = esql.openConnection(url);
+         long max;
+         try {
+            Statement stmt = c.createStatement();
+            try {
+               stmt.execute("LISTEN " + CHANNEL);
+               ResultSet rs = stmt.executeQuery(
+                  "SELECT COALESCE(MAX(Seq), 0), MIN(Seq), (SELECT last_value FROM changelog_seq_seq) FROM ChangeLog");
+               rs.next();
+               max = rs.getLong(1);
+               long min = rs.getLong(2);
+               boolean empty = rs.wasNull();
+               long last = rs.getLong(3);
+               // connection is only set once maxSeen is right, for paused
+               synchronized (applying) {
+                  holes.clear();
+                  maxSeen = max;
+                  if (resume != null) {
+                     // the log must still hold every row after the watermark
+                     if ((!empty && min <= resume[0] + 1) || last <= resume[0]) {
+                        maxSeen = resume[0];
+                        long now = System.currentTimeMillis();
+                        for (int i = 1; i < resume.length; i++) holes.put(resume[i], now);
+                     } else {
+                        System.out.println("Change log of " + url + " no longer reaches back to the snapshot");
+                        resync();
+                     }
+                     resume = null;
+                  }
+                  connection = c;
+               }
+            } finally {
+               stmt.close();
+            }
+         } catch (SQLException e) {
+            if (connection != c) c.close();
+            throw e;
+         }
+         if (target < 0) target = max;
+         reached();
+      }
+
+      // counts down caughtUp the first time maxSeen gets to target
+      private void reached() {
+         if (target >= 0 && maxSeen >= target) {
+            target = Long.MAX_VALUE;
+            caughtUp.countDown();
+         }
+      }
+
+      private void poll() throws SQLException {
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }
+         PGNotification[] notes = ((PGConnection) connection).getNotifications();
+         long now = System.currentTimeMillis();
+         if ((notes != null && notes.length > 0) || !holes.isEmpty() || now - lastFetch >= FETCH_MILLIS) {
+            fetch(now);
+         }
+         if (now - lastPrune >= PRUNE_MILLIS) {
+            lastPrune = now;
+            PreparedStatement prune = AirlineManagement.prepare(connection,
+               "DELETE FROM ChangeLog WHERE ChangedAt < now() - ? * INTERVAL '1 minute'", retention);
+            try {
+               prune.executeUpdate();
+            } finally {
+               prune.close();
+            }
+         }
+      }//end poll
+
+      private void fetch(long now) throws SQLException {
+         lastFetch = now;
+         StringBuilder sql = new StringBuilder(
+            "SELECT Seq, TableName, Op, RowKey, Detail, Origin FROM ChangeLog WHERE Seq > ?");
+         if (!holes.isEmpty()) {
+            sql.append(" OR Seq IN (");
+            int n = 0;
+            for (Long hole : holes.keySet()) sql.append(n++ == 0 ? "" : ",").append(hole);
+            sql.append(')');
+         }
+         List<Change> changes = new ArrayList<Change>();
+         PreparedStatement stmt = AirlineManagement.prepare(connection, sql.append(" ORDER BY Seq").toString(), maxSeen);
+         try {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+               String op = rs.getString(3);
+               changes.add(new Change(rs.getLong(1), rs.getString(2), op == null || op.isEmpty() ? '?' : op.charAt(0),
+                                      rs.getString(4), rs.getString(5), rs.getString(6)));
+            }
+         } finally {
+            stmt.close();
+         }
+
+         synchronized (applying) {
+            applyAll(changes, now);
+         }
+         reached();
+      }//end fetch
+
+      private void applyAll(List<Change> changes, long now) {
+         for (Change c : changes) {
+            if (c.seq > maxSeen) {
+               for (long s = maxSeen + 1; s < c.seq; s++) holes.put(s, now);
+               maxSeen = c.seq;
+            } else if (holes.remove(c.seq) != null) {
+               late.incrementAndGet();
+            } else {
+               continue;
+            }
+            received.incrementAndGet();
+            if (esql.ownChange(c.origin)) {
+               own.incrementAndGet();
+               continue;
+            }
+            try {
+               apply(c);
+               applied.incrementAndGet();
+            } catch (RuntimeException e) {
+               // a row the caches cannot parse: reload rather than guess
+               System.err.println("Change " + c.seq + " of " + c.table + " not applied: " + e);
+               resync();
+            }
+         }
+
+         for (Iterator<Long> it = holes.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= holeMillis) {
+               it.remove();
+               abandoned.incrementAndGet();
+            }
+         }
+         if (holes.size() > MAX_HOLES) {
+            holes.clear();
+            resync();
+         }
+      }//end applyAll
+
+      void close() {
+         Connection c = connection;
+         connection = null;
+         if (c != null) {
+            try {
+               c.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+   }//end Feed
+
+   /**
+    * Checks the listener against a live database with the triggers
+    * installed: a second node updates a flight instance and the time until
+    * this node applies it is measured; a rolled back update leaves a hole
+    * that must be abandoned. Changes SeatsSold only to its current value.
+    *
+    *    java -Dairline.changes=true [-Dairline.changes.holeMillis=2000] ChangeListener dbname port user [rounds]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java -Dairline.changes=true ChangeListener <dbname> <port> <user> [rounds]");
+         return;
+      }
+      if (!enabled()) {
+         System.err.println("Set -Dairline.changes=true");
+         return;
+      }
+      int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement node = new AirlineManagement(args[0], args[1], args[2], "");
+      AirlineManagement other = new AirlineManagement(args[0], args[1], args[2], "");
+      boolean ok = true;
+      try {
+         node.openChanges();
+         ChangeListener listener = node.changes();
+         String instance = other.executeQueryAndReturnResult("SELECT MIN(FlightInstanceID) FROM FlightInstance").get(0).get(0);
+         String touch = "UPDATE FlightInstance SET SeatsSold = SeatsSold WHERE FlightInstanceID = " + instance;
+         Thread.sleep(500);
+
+         long[] micros = new long[rounds];
+         for (int i = 0; i < rounds; i++) {
+            long before = listener.appliedCount();
+            long start = System.nanoTime();
+            other.executeUpdate(touch);
+            while (listener.appliedCount() == before) {
+               if (System.nanoTime() - start > 5000000000L) throw new SQLException("Change not applied within 5 s");
+               Thread.sleep(1);
+            }
+            micros[i] = (System.nanoTime() - start) / 1000;
+         }
+         Arrays.sort(micros);
+         System.out.println(String.format("%d changes applied, p50 %.1f ms, max %.1f ms",
+                                          rounds, micros[rounds / 2] / 1000.0, micros[rounds - 1] / 1000.0));
+
+         // a rolled back change burns a Seq that never becomes visible
+         other.beginTransaction();
+         other.executeUpdate(touch);
+         other.rollback();
+         long before = listener.appliedCount();
+         other.executeUpdate(touch);
+         long start = System.currentTimeMillis();
+         while (listener.appliedCount() == before || listener.abandonedCount() == 0) {
+            if (System.currentTimeMillis() - start > listener.holeMillis + 5000) {
+               System.out.println("The hole of the rolled back change was not abandoned");
+               ok = false;
+               break;
+            }
+            Thread.sleep(10);
+         }
+         System.out.println(listener.report());
+      } finally {
+         other.cleanup();
+         node.cleanup();
+      }
+      if (!ok) System.exit(1);
+   }//end main
+
+}//end ChangeListener
@@ -0,0 +1,547 @@
+/*
+ * Change publisher
+ * =============================
+ *
+ * Change data capture for downstream systems (revenue accounting, the
+ * loyalty program): every committed change of a Reservation or
+ * FlightInstance row becomes one event in local files, so they no longer
+ * poll those tables. The triggers of sql/src/create_change_outbox.sql
+ * fill ChangeOutbox; the publisher moves its rows to the files in batches.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Enabled by airline.cdc=<directory>, or run on its own:
+ *
+ *    java ChangePublisher dbname port user directory
+ *    java ChangePublisher tail directory consumer
+ *
+ * Events are JSON lines in segment files changes-<first offset>.log, a new
+ * one started once the current one passes airline.cdc.segmentMB (default
+ * 64):
+ *
+ *    {"offset":1,"seq":7,"tx":5012,"table":"Reservation","op":"U","key":"R1001",
+ *     "at":"2026-10-18 09:12:01.5","row":{"reservationid":"R1001",...}}
+ *
+ * offset counts events from 1 with no gaps and is what consumers resume
+ * from: the segment to open is the last one starting at or before it.
+ * Events of one row are in the order they were committed; events of one
+ * batch are in Seq order.
+ *
+ * Each batch of up to airline.cdc.batch (default 1000) outbox rows is
+ * appended and forced to disk. Then one transaction deletes the rows from
+ * ChangeOutbox and advances the directory's row of ChangeOffset past
+ * them. The directory is named by the id in its publisher.id. The offsets
+ * live in the database, so they go on from the highest ChangeOffset row
+ * when a publisher on another node, with a directory of its own, takes
+ * over. A gap in a directory's offsets starts a new segment. On
+ * connecting, a publisher drops the events of its directory past its
+ * ChangeOffset row. Their batch never committed, so its rows are still in
+ * the outbox and are written again, possibly with other rows under the
+ * same offsets. Consumers therefore only read events before the offset
+ * in publisher.committed, which the publisher writes after each commit
+ * and after settling with the database: events before it are never
+ * dropped or rewritten. Every change is published exactly once;
+ * consumers that fail over follow the new node's directory from their
+ * offset. Only one publisher may drain a database, which a Postgres
+ * advisory lock enforces; a second one waits until the first is gone.
+ * Segments are never deleted here: remove the ones every consumer is
+ * past.
+ *
+ * The driver only hands over notifications when a statement runs, so the
+ * publisher sends a trivial query every airline.cdc.pollMillis (default
+ * 50) and reads the outbox when NOTIFY airline_outbox came in, or once a
+ * second regardless. Neither touches Reservation or FlightInstance.
+ *
+ */
+public class ChangePublisher implements Runnable {
+
+   public static final String CHANNEL = "airline_outbox";
+   public static final int DEFAULT_BATCH = 1000;
+   public static final long DEFAULT_POLL_MILLIS = 50;
+   public static final int DEFAULT_SEGMENT_MB = 64;
+   // the advisory lock held by the publisher draining a database
+   public static final long LOCK_KEY = 166050;
+
+   static final String ID_FILE = "publisher.id";
+   static final String COMMITTED_FILE = "publisher.committed";
+   private static final long FETCH_MILLIS = 1000;
+   private static final long STANDBY_MILLIS = 5000;
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+   private static final long TAIL_MILLIS = 200;
+
+   private final AirlineManagement esql;
+   private final String url;
+   private final File dir;
+   private final int batchSize = Math.max(1, Integer.getInteger("airline.cdc.batch", DEFAULT_BATCH));
+   private final long pollMillis = Long.getLong("airline.cdc.pollMillis", DEFAULT_POLL_MILLIS);
+   private final long segmentBytes = Math.max(1, Integer.getInteger("airline.cdc.segmentMB", DEFAULT_SEGMENT_MB)) * 1024L * 1024L;
+
+   private Thread thread;
+   private volatile boolean running = true;
+   private Connection connection;
+   private AirlineManagement db;
+   private long lastFetch;
+
+   // this directory's row of ChangeOffset
+   private final String id;
+   private long nextOffset = 1;
+   // the offset after the last event of the current segment
+   private long segmentNext = 0;
+   private FileChannel segment;
+   private final FileChannel committed;
+
+   private final AtomicLong published = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong discarded = new AtomicLong();
+
+   /**
+    * Opens the directory; where its events stop is settled with the
+    * database once connected.
+    *
+    * @param esql the handle whose settings connections are opened with
+    * @param url the database to drain, or null for the primary
+    * @param dir the directory of the segment files
+    * @throws java.io.IOException when the directory cannot be used
+    */
+   public ChangePublisher(AirlineManagement esql, String url, File dir) throws IOException {
+      this.esql = esql;
+      this.url = url;
+      this.dir = dir;
+      if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+      File idFile = new File(dir, ID_FILE);
+      if (!idFile.exists()) {
+         Files.write(idFile.toPath(), UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+      }
+      this.id = new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8).trim();
+      this.committed = new RandomAccessFile(new File(dir, COMMITTED_FILE), "rw").getChannel();
+   }
+
+   // reads where the stream and this directory stand, and drops the events of this directory
+   // past its ChangeOffset row: their batch never committed
+   private void recover() throws SQLException, IOException {
+      long stream = 1;
+      long mine = -1;
+      for (List<String> row : db.executeQueryAndReturnResult("SELECT Publisher, NextOffset FROM ChangeOffset")) {
+         long next = Long.parseLong(row.get(1));
+         stream = Math.max(stream, next);
+         if (row.get(0).equals(id)) mine = next;
+      }
+      List<File> all = segments(dir);
+      if (mine < 0 && !all.isEmpty()) {
+         throw new IOException(dir + " holds events ChangeOffset has no row for: move them away");
+      }
+      if (segment != null) {
+         segment.close();
+         segment = null;
+      }
+      segmentNext = 0;
+      File last = null;
+      for (File f : all) {
+         if (start(f) < mine) {
+            last = f;
+         } else {
+            discarded.addAndGet(prefix(f, 0)[2]);
+            if (!f.delete()) throw new IOException("Cannot delete " + f);
+         }
+      }
+      if (last != null) {
+         long[] kept = prefix(last, mine);
+         segment = new RandomAccessFile(last, "rw").getChannel();
+         segment.truncate(kept[0]);
+         segment.position(kept[0]);
+         segmentNext = kept[1];
+         discarded.addAndGet(kept[2]);
+      }
+      if (mine > 0) markCommitted(mine);
+      nextOffset = stream;
+   }//end recover
+
+   // lets consumers read the events before next
+   private void markCommitted(long next) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.putLong(0, next);
+      committed.write(buffer, 0);
+      committed.force(false);
+   }
+
+   /**
+    * @return the offset consumers of a directory may read up to, exclusive
+    */
+   static long committed(File dir) throws IOException {
+      File f = new File(dir, COMMITTED_FILE);
+      byte[] bytes = f.exists() ? Files.readAllBytes(f.toPath()) : new byte[0];
+      return bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : 1;
+   }
+
+   // the bytes of a segment's complete events before offset limit, the offset after the last of
+   // them, and the number of complete events from limit on
+   private static long[] prefix(File f, long limit) throws IOException {
+      long[] result = {0, 0, 0};
+      InputStream in = new BufferedInputStream(new FileInputStream(f));
+      try {
+         ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+         int b;
+         while ((b = in.read()) >= 0) {
+            if (b != '\n') {
+               line.write(b);
+               continue;
+            }
+            long offset = number(new String(line.toByteArray(), StandardCharsets.UTF_8), "{\"offset\":");
+            if (offset < limit && result[2] == 0) {
+               result[0] += line.size() + 1;
+               result[1] = offset + 1;
+            } else {
+               result[2]++;
+            }
+            line.reset();
+         }
+      } finally {
+         in.close();
+      }
+      return result;
+   }//end prefix
+
+   /**
+    * Starts draining in the background.
+    */
+   public void start() {
+      thread = new Thread(this, "change-publisher");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Stops after the batch in progress. The thread is not interrupted: that
+    * would close the segment in the middle of a write.
+    */
+   public void shutdown() {
+      running = false;
+      if (thread != null) {
+         try {
+            thread.join(10000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         if (segment != null) segment.close();
+         committed.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+   }//end shutdown
+
+   public String report() {
+      return String.format("Change publisher: %d event(s) in %d batch(es), next offset %d, %d unacknowledged dropped",
+                           published.get(), batches.get(), nextOffset, discarded.get());
+   }
+
+   public void run() {
+      long backoff = 500;
+      while (running) {
+         try {
+            if (connection == null) {
+               if (!connect()) {
+                  Thread.sleep(STANDBY_MILLIS);
+                  continue;
+               }
+               backoff = 500;
+            }
+            poll();
+            Thread.sleep(pollMillis);
+         } catch (SQLException | IOException e) {
+            if (!running) break;
+            System.err.println("Change publisher failed, retrying: " + e.getMessage());
+            close();
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+               break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      close();
+   }//end run
+
+   // false when another publisher holds the lock
+   private boolean connect() throws SQLException, IOException {
+      Connection c = url == null ? esql.openConnection() : esql.openConnection(url);
+      Statement stmt = c.createStatement();
+      try {
+         java.sql.ResultSet rs = stmt.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")");
+         if (!rs.next() || !rs.getBoolean(1)) {
+            c.close();
+            return false;
+         }
+         stmt.execute("LISTEN " + CHANNEL);
+      } catch (SQLException e) {
+         c.close();
+         throw e;
+      } finally {
+         stmt.close();
+      }
+      connection = c;
+      db = new AirlineManagement(c, esql, url);
+      lastFetch = 0;
+      recover();
+      return true;
+   }//end connect
+
+   private void poll() throws SQLException, IOException {
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeQuery("SELECT 1").close();
+      } finally {
+         stmt.close();
+      }
+      PGNotification[] notes = ((PGConnection) connection).getNotifications();
+      long now = System.currentTimeMillis();
+      if ((notes != null && notes.length > 0) || now - lastFetch >= FETCH_MILLIS) {
+         lastFetch = now;
+         while (running && drain() == batchSize) {
+            // a full batch: there is probably more
+         }
+      }
+   }//end poll
+
+   /**
+    * Publishes one batch.
+    *
+    * @return the number of events written
+    */
+   int drain() throws SQLException, IOException {
+      List<List<String>> rows = db.executeQueryAndReturnResult(
+         "SELECT Seq, TxID, TableName, Op, RowKey, ChangedAt, Data FROM ChangeOutbox ORDER BY Seq LIMIT ?", batchSize);
+      if (rows.isEmpty()) return 0;
+      if (segment == null || segment.size() >= segmentBytes || segmentNext != nextOffset) rotate();
+
+      StringBuilder lines = new StringBuilder(rows.size() * 256);
+      long offset = nextOffset;
+      for (List<String> row : rows) {
+         lines.append("{\"offset\":").append(offset++)
+              .append(",\"seq\":").append(row.get(0))
+              .append(",\"tx\":").append(row.get(1))
+              .append(",\"table\":").append(BatchRunner.quote(row.get(2)))
+              .append(",\"op\":").append(BatchRunner.quote(row.get(3)))
+              .append(",\"key\":").append(BatchRunner.quote(row.get(4)))
+              .append(",\"at\":").append(BatchRunner.quote(row.get(5)))
+              .append(",\"row\":").append(row.get(6))
+              .append("}\n");
+      }
+      ByteBuffer bytes = StandardCharsets.UTF_8.encode(lines.toString());
+      while (bytes.hasRemaining()) segment.write(bytes);
+      segment.force(false);
+      segmentNext = offset;
+
+      acknowledge(rows, offset);
+      nextOffset = offset;
+      published.addAndGet(rows.size());
+      batches.incrementAndGet();
+      return rows.size();
+   }//end drain
+
+   // deletes the written rows from the outbox and advances this directory's offset, together,
+   // then shows the events to consumers; a failure leaves the events in the file, unseen, until
+   // recover settles them on reconnecting
+   private void acknowledge(List<List<String>> rows, long next) throws SQLException, IOException {
+      StringBuilder sql = new StringBuilder("DELETE FROM ChangeOutbox WHERE Seq IN (");
+      for (int i = 0; i < rows.size(); i++) {
+         sql.append(i == 0 ? "" : ",").append(Long.parseLong(rows.get(i).get(0)));
+      }
+      db.beginTransaction();
+      try {
+         db.executeUpdate(sql.append(")").toString());
+         if (db.executeUpdate("UPDATE ChangeOffset SET NextOffset = ? WHERE Publisher = ?", next, id) == 0) {
+            db.executeUpdate("INSERT INTO ChangeOffset (Publisher, NextOffset) VALUES (?, ?)", id, next);
+         }
+         db.commit();
+      } catch (SQLException e) {
+         db.rollback();
+         throw e;
+      }
+      markCommitted(next);
+   }//end acknowledge
+
+   private void rotate() throws IOException {
+      if (segment != null) segment.close();
+      File f = new File(dir, String.format("changes-%020d.log", nextOffset));
+      segment = new RandomAccessFile(f, "rw").getChannel();
+      segment.position(segment.size());
+      segmentNext = nextOffset;
+   }
+
+   private void close() {
+      if (connection != null) {
+         try {
+            // releases the advisory lock too
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         connection = null;
+         db = null;
+      }
+   }
+
+   /**
+    * @return the segment files of a directory, oldest first
+    */
+   static List<File> segments(File dir) {
+      File[] files = dir.listFiles();
+      List<File> list = new ArrayList<File>();
+      if (files == null) return list;
+      Arrays.sort(files);
+      for (File f : files) {
+         if (f.getName().startsWith("changes-") && f.getName().endsWith(".log")) list.add(f);
+      }
+      return list;
+   }
+
+   // the first offset of a segment, from its name
+   static long start(File segment) {
+      String name = segment.getName();
+      return Long.parseLong(name.substring("changes-".length(), name.length() - ".log".length()));
+   }
+
+   // the number after a prefix, e.g. the offset of an event line
+   static long number(String line, String prefix) throws IOException {
+      int at = line.indexOf(prefix);
+      if (at < 0) throw new IOException("Not an event: " + line);
+      int from = at + prefix.length();
+      int to = from;
+      while (to < line.length() && Character.isDigit(line.charAt(to))) to++;
+      return Long.parseLong(line.substring(from, to));
+   }
+
+   /**
+    * Prints the events of a directory to standard out as they arrive,
+    * resuming after the last one a named consumer was given; its offset is
+    * kept in <directory>/<consumer>.offset. Only committed events are
+    * printed. A reference consumer, and a way to pipe the stream into
+    * another program.
+    */
+   static void tail(File dir, String consumer) throws IOException, InterruptedException {
+      File offsetFile = new File(dir, consumer + ".offset");
+      FileChannel saved = new RandomAccessFile(offsetFile, "rw").getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      long next = saved.read(buffer, 0) == 8 ? buffer.getLong(0) : 1;
+      File current = null;
+      RandomAccessFile in = null;
+      // just past the last event printed from current; what follows is read again from there,
+      // once committed
+      long position = 0;
+      byte[] chunk = new byte[64 * 1024];
+      while (true) {
+         // events from limit on may still be dropped and rewritten by the publisher
+         long limit = committed(dir);
+         // the segment holding next, or a newer one once it is complete; only segments with
+         // committed events, which are never deleted
+         List<File> all = segments(dir);
+         File want = null;
+         for (File f : all) {
+            if (start(f) <= next && start(f) < limit) want = f;
+         }
+         if (want == null && !all.isEmpty() && start(all.get(0)) < limit) want = all.get(0);
+         if (want != null && !want.equals(current)) {
+            if (in != null) in.close();
+            current = want;
+            in = new RandomAccessFile(current, "r");
+            position = 0;
+         }
+         int n = -1;
+         if (in != null) {
+            in.seek(position);
+            n = in.read(chunk);
+         }
+         int end = n;
+         while (end > 0 && chunk[end - 1] != '\n') end--;
+         if (end <= 0) {
+            // one event longer than the buffer
+            if (n == chunk.length) chunk = Arrays.copyOf(chunk, chunk.length * 2);
+            System.out.flush();
+            Thread.sleep(TAIL_MILLIS);
+            continue;
+         }
+         int from = 0;
+         boolean moved = false;
+         while (from < end) {
+            int nl = from;
+            while (chunk[nl] != '\n') nl++;
+            String line = new String(chunk, from, nl - from, StandardCharsets.UTF_8);
+            long offset;
+            try {
+               offset = number(line, "{\"offset\":");
+            } catch (IOException | NumberFormatException e) {
+               break;
+            }
+            if (offset >= limit) break;
+            from = nl + 1;
+            if (offset < next) continue;
+            System.out.println(line);
+            next = offset + 1;
+            moved = true;
+         }
+         position += from;
+         if (from == 0) Thread.sleep(TAIL_MILLIS);
+         if (moved) {
+            System.out.flush();
+            buffer.clear();
+            buffer.putLong(0, next);
+            saved.write(buffer, 0);
+            saved.force(false);
+         }
+      }
+   }//end tail
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 3 && args[0].equals("tail")) {
+         tail(new File(args[1]), args[2]);
+         return;
+      }
+      if (args.length < 4) {
+         System.err.println("Usage: java ChangePublisher <dbname> <port> <user> <directory>");
+         System.err.println("       java ChangePublisher tail <directory> <consumer>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      final AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      final ChangePublisher publisher = new ChangePublisher(esql, null, new File(args[3]));
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            publisher.shutdown();
+            System.err.println(publisher.report());
+            esql.cleanup();
+         }
+      });
+      publisher.start();
+      publisher.thread.join();
+   }//end main
+
+}//end ChangePublisher
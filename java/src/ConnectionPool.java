@@ -0,0 +1,191 @@
+/*
+ * Connection pool
+ * =============================
+ *
+ * A fixed set of extra connections to the primary, handed out one thread
+ * at a time, for callers that run features concurrently (BatchRunner).
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every pooled handle wraps its own connection and shares caches, engines
+ * and routers with the handle the pool was opened from. Open pools show in
+ * the operations console with how long borrowers waited.
+ *
+ * A handle given back with a closed connection, or after a connection
+ * error (SQLState class 08), is replaced by a freshly opened one, so one
+ * dropped connection does not fail every later borrower.
+ *
+ */
+public class ConnectionPool implements AutoCloseable {
+
+   private static final AtomicInteger serial = new AtomicInteger();
+
+   // the connection of every handle, borrowed or not; guarded by itself
+   private final Map<AirlineManagement, Connection> connections = new IdentityHashMap<AirlineManagement, Connection>();
+   private final BlockingQueue<AirlineManagement> idle;
+   private final AirlineManagement esql;
+   private final String url;
+   private final int size;
+   private final Metrics metrics;
+   private final String name;
+   private volatile boolean closed = false;
+   private final AtomicInteger waiting = new AtomicInteger();
+   private final AtomicLong borrows = new AtomicLong();
+   private final AtomicLong waitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+   private final AtomicLong reopened = new AtomicLong();
+
+   /**
+    * Opens size connections with the settings of esql.
+    *
+    * @throws java.sql.SQLException when a connection cannot be opened
+    */
+   public ConnectionPool(AirlineManagement esql, int size) throws SQLException {
+      this(esql, null, size);
+   }
+
+   /**
+    * Opens size connections to another server, e.g. a shard, with the
+    * user and password of esql.
+    *
+    * @param url the server's JDBC URL, or null for the primary
+    * @throws java.sql.SQLException when a connection cannot be opened
+    */
+   public ConnectionPool(AirlineManagement esql, String url, int size) throws SQLException {
+      this.idle = new ArrayBlockingQueue<AirlineManagement>(size);
+      this.esql = esql;
+      this.url = url;
+      this.size = size;
+      this.metrics = esql.metrics();
+      this.name = (url == null ? "primary" : url) + "/" + serial.incrementAndGet();
+      try {
+         for (int i = 0; i < size; i++) idle.add(open());
+      } catch (SQLException e) {
+         close();
+         throw e;
+      }
+      metrics.register(this);
+   }
+
+   /**
+    * @return a handle for the calling thread, waiting for one to be free
+    */
+   public AirlineManagement borrow() throws InterruptedException {
+      AirlineManagement handle = idle.poll();
+      if (handle == null) {
+         long start = System.nanoTime();
+         waiting.incrementAndGet();
+         try {
+            handle = idle.take();
+         } finally {
+            waiting.decrementAndGet();
+         }
+         long waited = System.nanoTime() - start;
+         waitNanos.addAndGet(waited);
+         maxWaitNanos.accumulateAndGet(waited, Math::max);
+      }
+      borrows.incrementAndGet();
+      return handle;
+   }
+
+   /**
+    * Gives a handle back. Its connection must be in auto-commit mode again.
+    */
+   public void release(AirlineManagement handle) {
+      release(handle, null);
+   }
+
+   /**
+    * Gives a handle back after an operation that may have failed.
+    *
+    * @param failure what the operation threw, or null
+    */
+   public void release(AirlineManagement handle, Throwable failure) {
+      if (!closed && (handle.isClosed() || connectionFailed(failure))) {
+         try {
+            handle = reopen(handle);
+         } catch (SQLException e) {
+            // put back as it is: the next borrower gets the error and gives it back to retry
+            System.err.println("Unable to reopen a connection of pool " + name + ": " + e.getMessage());
+         }
+      }
+      idle.add(handle);
+   }//end release
+
+   private static boolean connectionFailed(Throwable failure) {
+      for (Throwable t = failure; t != null; t = t.getCause()) {
+         if (t instanceof SQLException && AirlineManagement.isConnectionFailure((SQLException) t)) return true;
+      }
+      return false;
+   }
+
+   // opens a connection and its handle
+   private AirlineManagement open() throws SQLException {
+      Connection connection = url == null ? esql.openConnection() : esql.openConnection(url);
+      AirlineManagement handle = new AirlineManagement(connection, esql, url);
+      synchronized (connections) {
+         connections.put(handle, connection);
+      }
+      return handle;
+   }
+
+   // replaces a handle whose connection is gone
+   private AirlineManagement reopen(AirlineManagement broken) throws SQLException {
+      AirlineManagement handle = open();
+      Connection old;
+      synchronized (connections) {
+         old = connections.remove(broken);
+      }
+      reopened.incrementAndGet();
+      try {
+         if (old != null) old.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      return handle;
+   }//end reopen
+
+   public int size() {
+      return size;
+   }
+
+   public String name() { return name; }
+   public int inUse() { return size - idle.size(); }
+   public int waiting() { return waiting.get(); }
+   public long borrowCount() { return borrows.get(); }
+   public long waitMicros() { return waitNanos.get() / 1000; }
+   public long maxWaitMicros() { return maxWaitNanos.get() / 1000; }
+   public long reopenedCount() { return reopened.get(); }
+
+   /**
+    * Closes every connection, borrowed or not.
+    */
+   public void close() {
+      closed = true;
+      metrics.unregister(this);
+      List<Connection> open;
+      synchronized (connections) {
+         open = new ArrayList<Connection>(connections.values());
+      }
+      for (Connection connection : open) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end close
+
+}//end ConnectionPool
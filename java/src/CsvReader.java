@@ -0,0 +1,109 @@
+/*
+ * CSV reader
+ * =============================
+ *
+ * Streams the files under data/ one record at a time. Handles quoted
+ * fields with commas, doubled quotes and line breaks, which plain
+ * String.split does not (Customer addresses are quoted).
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal RFC 4180 reader. Empty unquoted fields are returned as null so
+ * they line up with SQL NULLs loaded by \copy.
+ *
+ */
+public class CsvReader implements Closeable {
+
+   private final BufferedReader in;
+   private long line = 0;
+
+   public CsvReader(Reader reader) {
+      this.in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 1 << 16);
+   }
+
+   /**
+    * Opens a UTF-8 file.
+    */
+   public static CsvReader open(String path) throws IOException {
+      return new CsvReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @return the next record, or null at end of input
+    * @throws java.io.IOException when reading fails or a quote is never closed
+    */
+   public List<String> next() throws IOException {
+      String text = in.readLine();
+      if (text == null) return null;
+      line++;
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean wasQuoted = false;
+      int i = 0;
+      while (true) {
+         if (i == text.length()) {
+            if (!quoted) break;
+            // quoted field spanning lines
+            String more = in.readLine();
+            if (more == null) throw new IOException("Unterminated quote at line " + line);
+            line++;
+            field.append('\n');
+            text = more;
+            i = 0;
+            continue;
+         }
+         char ch = text.charAt(i++);
+         if (quoted) {
+            if (ch == '"') {
+               if (i < text.length() && text.charAt(i) == '"') {
+                  field.append('"');
+                  i++;
+               } else {
+                  quoted = false;
+               }
+            } else {
+               field.append(ch);
+            }
+         } else if (ch == '"') {
+            quoted = true;
+            wasQuoted = true;
+         } else if (ch == ',') {
+            fields.add(value(field, wasQuoted));
+            field.setLength(0);
+            wasQuoted = false;
+         } else if (ch != '\r') {
+            field.append(ch);
+         }
+      }
+      fields.add(value(field, wasQuoted));
+      return fields;
+   }//end next
+
+   /**
+    * @return number of physical lines read so far
+    */
+   public long lineNumber() {
+      return line;
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+   private static String value(StringBuilder field, boolean wasQuoted) {
+      return field.length() == 0 && !wasQuoted ? null : field.toString();
+   }
+
+}//end CsvReader
@@ -0,0 +1,393 @@
+/*
+ * Customer search index
+ * =============================
+ *
+ * In-memory lookup of travelers by partial or misspelled name, phone
+ * fragment or zip code, for agents who do not have a ReservationID.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Three indexes over Customer:
+ *  - name trigrams (first and last name, padded) for fuzzy matches, plus a
+ *    sorted last name map for prefix matches,
+ *  - trigrams of the phone number reduced to its digits, so "969-65" finds
+ *    "884.969.6532",
+ *  - a sorted zip map for exact and prefix matches.
+ * Postings are int arrays of internal row numbers; results are ranked by
+ * match quality. Customers inserted after the build are picked up by
+ * addNew, which feature23 calls before every search.
+ *
+ */
+public class CustomerSearchIndex {
+
+   /**
+    * A customer as shown in search results.
+    */
+   public static final class Customer {
+      public final int customerID;
+      public final String firstName;
+      public final String lastName;
+      public final String phone;
+      public final String zip;
+
+      public Customer(int customerID, String firstName, String lastName, String phone, String zip) {
+         this.customerID = customerID;
+         this.firstName = firstName == null ? "" : firstName;
+         this.lastName = lastName == null ? "" : lastName;
+         this.phone = phone == null ? "" : phone;
+         this.zip = zip == null ? "" : zip;
+      }
+   }//end Customer
+
+   /**
+    * A ranked search hit.
+    */
+   public static final class Match {
+      public final Customer customer;
+      public final double score;
+
+      Match(Customer customer, double score) {
+         this.customer = customer;
+         this.score = score;
+      }
+   }//end Match
+
+   // growable posting list of row numbers
+   private static final class IntList {
+      int[] items = new int[4];
+      int size = 0;
+
+      void add(int v) {
+         if (size == items.length) items = Arrays.copyOf(items, size * 2);
+         items[size++] = v;
+      }
+   }//end IntList
+
+   private static final double MIN_NAME_SIMILARITY = 0.3;
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final List<Customer> rows = new ArrayList<Customer>();
+   private final List<String> phoneDigits = new ArrayList<String>();
+   // trigram count of the longer name of each row, for similarity scores
+   private final IntList nameSizes = new IntList();
+   private final Map<String, IntList> nameGrams = new HashMap<String, IntList>();
+   private final Map<String, IntList> phoneGrams = new HashMap<String, IntList>();
+   private final TreeMap<String, IntList> lastNames = new TreeMap<String, IntList>();
+   private final TreeMap<String, IntList> zips = new TreeMap<String, IntList>();
+   // CustomerIDs in the index, and the highest one
+   private final BitSet present = new BitSet();
+   private int maxID = 0;
+
+   /**
+    * Builds the index with one scan of Customer.
+    *
+    * @param esql the database handle
+    * @return the loaded index
+    * @throws java.sql.SQLException when the scan fails
+    */
+   public static CustomerSearchIndex load(AirlineManagement esql) throws SQLException {
+      CustomerSearchIndex index = new CustomerSearchIndex();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT CustomerID, FirstName, LastName, Phone, Zip FROM Customer")) {
+         index.add(new Customer(Integer.parseInt(row.get(0)), row.get(1), row.get(2), row.get(3), row.get(4)));
+      }
+      return index;
+   }//end load
+
+   /**
+    * Adds a customer; searches see it as soon as this returns.
+    *
+    * @return false when the customer is in the index already
+    */
+   public boolean add(Customer c) {
+      lock.writeLock().lock();
+      try {
+         if (c.customerID >= 0) {
+            if (present.get(c.customerID)) return false;
+            present.set(c.customerID);
+         }
+         maxID = Math.max(maxID, c.customerID);
+         int row = rows.size();
+         rows.add(c);
+         String digits = digits(c.phone);
+         phoneDigits.add(digits);
+         List<String> last = nameTrigrams(c.lastName);
+         List<String> first = nameTrigrams(c.firstName);
+         nameSizes.add(Math.max(last.size(), first.size()));
+         for (String g : last) post(nameGrams, g, row);
+         for (String g : first) post(nameGrams, g, row);
+         for (String g : trigrams(digits)) post(phoneGrams, g, row);
+         post(lastNames, c.lastName.toLowerCase(), row);
+         post(zips, c.zip, row);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end add
+
+   /**
+    * Adds the customers inserted since the index was built, the ones with
+    * a CustomerID above the highest it holds: one range read of the primary
+    * key, usually empty.
+    *
+    * @return the number of customers added
+    * @throws java.sql.SQLException when the read fails
+    */
+   public int addNew(AirlineManagement esql) throws SQLException {
+      int after;
+      lock.readLock().lock();
+      try {
+         after = maxID;
+      } finally {
+         lock.readLock().unlock();
+      }
+      int added = 0;
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT CustomerID, FirstName, LastName, Phone, Zip FROM Customer WHERE CustomerID > ?", after)) {
+         if (add(new Customer(Integer.parseInt(row.get(0)), row.get(1), row.get(2), row.get(3), row.get(4)))) added++;
+      }
+      return added;
+   }//end addNew
+
+   /**
+    * @return whether addNew would find a customer inserted with this ID
+    */
+   public boolean reaches(int customerID) {
+      lock.readLock().lock();
+      try {
+         return customerID > maxID || present.get(customerID);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public int size() {
+      lock.readLock().lock();
+      try {
+         return rows.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Writes the customers for SnapshotStore; the postings are rebuilt on restore.
+    */
+   public void snapshot(SnapshotStore.Writer out) {
+      lock.readLock().lock();
+      try {
+         out.writeInt(rows.size());
+         for (Customer c : rows) {
+            out.writeInt(c.customerID);
+            out.writeString(c.firstName);
+            out.writeString(c.lastName);
+            out.writeString(c.phone);
+            out.writeString(c.zip);
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end snapshot
+
+   /**
+    * Rebuilds an index from what snapshot wrote.
+    */
+   public static CustomerSearchIndex restore(SnapshotStore.Reader in) {
+      CustomerSearchIndex index = new CustomerSearchIndex();
+      for (int n = in.readInt(); n > 0; n--) {
+         index.add(new Customer(in.readInt(), in.readString(), in.readString(), in.readString(), in.readString()));
+      }
+      return index;
+   }//end restore
+
+   /**
+    * Searches by whatever the agent typed: a name (or name prefix, possibly
+    * misspelled), a phone fragment of at least three digits, or a zip code.
+    *
+    * @param query the search text
+    * @param limit maximum number of results
+    * @return matches, best first
+    */
+   public List<Match> search(String query, int limit) {
+      String q = query.trim();
+      if (q.isEmpty()) return Collections.emptyList();
+      Map<Integer, Double> scores = new HashMap<Integer, Double>();
+      lock.readLock().lock();
+      try {
+         String digits = digits(q);
+         if (digits.length() == q.replaceAll("[\\s().+-]", "").length()) {
+            // a number: zip or phone fragment
+            if (digits.length() <= 5) searchZip(digits, scores);
+            if (digits.length() >= 3) searchPhone(digits, scores);
+         } else {
+            searchName(q.toLowerCase(), scores);
+         }
+         List<Match> matches = new ArrayList<Match>(scores.size());
+         for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+            matches.add(new Match(rows.get(e.getKey()), e.getValue()));
+         }
+         Collections.sort(matches, new Comparator<Match>() {
+            public int compare(Match a, Match b) {
+               int c = Double.compare(b.score, a.score);
+               return c != 0 ? c : Integer.compare(a.customer.customerID, b.customer.customerID);
+            }
+         });
+         return matches.size() > limit ? new ArrayList<Match>(matches.subList(0, limit)) : matches;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end search
+
+   // prefix hits on the last name rank above fuzzy hits on either name
+   private void searchName(String q, Map<Integer, Double> scores) {
+      // "smith john" style queries are matched word by word
+      String[] words = q.split("\\s+");
+      for (String word : words) {
+         for (Map.Entry<String, IntList> e : lastNames.subMap(word, word + Character.MAX_VALUE).entrySet()) {
+            double bonus = e.getKey().equals(word) ? 2.0 : 1.0;
+            IntList ids = e.getValue();
+            for (int i = 0; i < ids.size; i++) add(scores, ids.items[i], bonus);
+         }
+         List<String> grams = nameTrigrams(word);
+         Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+         for (String g : grams) {
+            IntList ids = nameGrams.get(g);
+            if (ids == null) continue;
+            for (int i = 0; i < ids.size; i++) {
+               Integer n = shared.get(ids.items[i]);
+               shared.put(ids.items[i], n == null ? 1 : n + 1);
+            }
+         }
+         for (Map.Entry<Integer, Integer> e : shared.entrySet()) {
+            int best = nameSizes.items[e.getKey()];
+            // Jaccard estimate against the longer of the two names
+            double similarity = e.getValue() / (double) (grams.size() + best - e.getValue());
+            if (similarity >= MIN_NAME_SIMILARITY) add(scores, e.getKey(), similarity);
+         }
+      }
+   }//end searchName
+
+   private void searchPhone(String digits, Map<Integer, Double> scores) {
+      List<String> grams = trigrams(digits);
+      IntList smallest = null;
+      for (String g : grams) {
+         IntList ids = phoneGrams.get(g);
+         if (ids == null) return;
+         if (smallest == null || ids.size < smallest.size) smallest = ids;
+      }
+      if (smallest == null) return;
+      // verify candidates from the rarest trigram against the full fragment
+      for (int i = 0; i < smallest.size; i++) {
+         int row = smallest.items[i];
+         String phone = phoneDigits.get(row);
+         int at = phone.indexOf(digits);
+         if (at < 0) continue;
+         // longer fragments and fragments at the end (local number) rank higher
+         double score = 1.0 + digits.length() / (double) phone.length()
+                        + (at + digits.length() == phone.length() ? 0.5 : 0.0);
+         add(scores, row, score);
+      }
+   }//end searchPhone
+
+   private void searchZip(String digits, Map<Integer, Double> scores) {
+      for (Map.Entry<String, IntList> e : zips.subMap(digits, digits + Character.MAX_VALUE).entrySet()) {
+         double score = e.getKey().equals(digits) ? 3.0 : 1.5;
+         IntList ids = e.getValue();
+         for (int i = 0; i < ids.size; i++) add(scores, ids.items[i], score);
+      }
+   }
+
+   private static void add(Map<Integer, Double> scores, int row, double score) {
+      Double old = scores.get(row);
+      scores.put(row, old == null ? score : old + score);
+   }
+
+   private static void post(Map<String, IntList> index, String key, int row) {
+      IntList ids = index.get(key);
+      if (ids == null) {
+         ids = new IntList();
+         index.put(key, ids);
+      }
+      // a name can repeat a trigram; keep one posting per row
+      if (ids.size == 0 || ids.items[ids.size - 1] != row) ids.add(row);
+   }
+
+   static String digits(String s) {
+      StringBuilder sb = new StringBuilder(s.length());
+      for (int i = 0; i < s.length(); i++) {
+         char ch = s.charAt(i);
+         if (ch >= '0' && ch <= '9') sb.append(ch);
+      }
+      return sb.toString();
+   }
+
+   private static List<String> nameTrigrams(String name) {
+      return trigrams("$$" + name.toLowerCase() + "$");
+   }
+
+   private static List<String> trigrams(String s) {
+      List<String> grams = new ArrayList<String>(Math.max(0, s.length() - 2));
+      for (int i = 0; i + 3 <= s.length(); i++) {
+         String g = s.substring(i, i + 3);
+         if (!grams.contains(g)) grams.add(g);
+      }
+      return grams;
+   }
+
+   /**
+    * Compares index lookups against the equivalent LIKE queries in Postgres.
+    *
+    * @param args <dbname> <port> <user> <query> [<query> ...]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java CustomerSearchIndex <dbname> <port> <user> <query> [<query> ...]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         long start = System.nanoTime();
+         CustomerSearchIndex index = load(esql);
+         System.out.printf("Index build: %d customers in %.1f ms%n", index.size(), (System.nanoTime() - start) / 1e6);
+         int rounds = 50;
+         for (int a = 3; a < args.length; a++) {
+            String q = args[a];
+            int hits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) hits = index.search(q, 20).size();
+            double indexMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+            String like = q.toLowerCase().replace("'", "''");
+            String digits = digits(q);
+            String sql = digits.isEmpty()
+               ? "SELECT CustomerID FROM Customer WHERE LOWER(LastName) LIKE '" + like + "%' " +
+                 "OR LOWER(FirstName) LIKE '%" + like + "%' OR LOWER(LastName) LIKE '%" + like + "%' LIMIT 20"
+               : "SELECT CustomerID FROM Customer WHERE Zip LIKE '" + digits + "%' " +
+                 "OR regexp_replace(Phone, '[^0-9]', '', 'g') LIKE '%" + digits + "%' LIMIT 20";
+            int dbHits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) dbHits = esql.executeQuery(sql);
+            double likeMs = (System.nanoTime() - start) / 1e6 / rounds;
+            System.out.printf("%-20s index %7.3f ms (%d hits)   LIKE %7.3f ms (%d hits)%n",
+                              "'" + q + "'", indexMs, hits, likeMs, dbHits);
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end CustomerSearchIndex
@@ -0,0 +1,391 @@
+/*
+ * Off-heap customer store
+ * =============================
+ *
+ * Customer records kept outside the Java heap in direct or memory-mapped
+ * ByteBuffers, so feature6 can show a traveler without a database round
+ * trip and without millions of String objects for the collector to trace.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Record layout (big endian):
+ *
+ *    int CustomerID
+ *    7 x u16 field length in bytes, 0xFFFF for NULL
+ *    UTF-8 bytes of FirstName, LastName, Gender, DOB, Address, Phone, Zip
+ *
+ * The index is an open addressing table in its own direct buffer; each slot
+ * is [int CustomerID][int record offset + 1], 0 marking an empty slot.
+ * Fields are only decoded when a View asks for them.
+ *
+ * A store can be saved as an image file and later mapped read-only, which
+ * turns a restart into a single mmap instead of a reload.
+ *
+ */
+public class CustomerStore {
+
+   public static final String[] FIELDS = { "FirstName", "LastName", "Gender", "DOB", "Address", "Phone", "Zip" };
+   public static final int FIRST_NAME = 0, LAST_NAME = 1, GENDER = 2, DOB = 3, ADDRESS = 4, PHONE = 5, ZIP = 6;
+
+   private static final int MAGIC = 0x43555354; // "CUST"
+   private static final int VERSION = 1;
+   private static final int IMAGE_HEADER = 5 * 4;
+   private static final int RECORD_HEADER = 4 + 2 * FIELDS.length;
+   private static final int NULL_LENGTH = 0xFFFF;
+   private static final int SLOT = 8;
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final boolean readOnly;
+   private ByteBuffer data;
+   private int dataEnd;
+   private ByteBuffer index;
+   private int slots;
+   private int count;
+
+   /**
+    * Lazily decoded view of one stored customer.
+    */
+   public final class View {
+      private final int offset;
+      public final int customerID;
+
+      View(int offset, int customerID) {
+         this.offset = offset;
+         this.customerID = customerID;
+      }
+
+      /**
+       * Decodes one field.
+       *
+       * @param field one of FIRST_NAME .. ZIP
+       * @return the value, or null for SQL NULL
+       */
+      public String get(int field) {
+         lock.readLock().lock();
+         try {
+            int pos = offset + RECORD_HEADER;
+            for (int f = 0; f < field; f++) {
+               int len = data.getShort(offset + 4 + 2 * f) & 0xFFFF;
+               if (len != NULL_LENGTH) pos += len;
+            }
+            int len = data.getShort(offset + 4 + 2 * field) & 0xFFFF;
+            if (len == NULL_LENGTH) return null;
+            byte[] bytes = new byte[len];
+            ByteBuffer src = data.duplicate();
+            src.position(pos);
+            src.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      public String firstName() { return get(FIRST_NAME); }
+      public String lastName() { return get(LAST_NAME); }
+      public String gender() { return get(GENDER); }
+      public String dob() { return get(DOB); }
+      public String address() { return get(ADDRESS); }
+      public String phone() { return get(PHONE); }
+      public String zip() { return get(ZIP); }
+   }//end View
+
+   /**
+    * Creates an empty, writable store.
+    *
+    * @param expectedCustomers sizing hint
+    */
+   public CustomerStore(int expectedCustomers) {
+      this.readOnly = false;
+      this.data = ByteBuffer.allocateDirect(Math.max(4096, expectedCustomers * 128));
+      this.dataEnd = 0;
+      this.slots = Integer.highestOneBit(Math.max(16, expectedCustomers * 2) - 1) << 1;
+      this.index = ByteBuffer.allocateDirect(slots * SLOT);
+   }
+
+   private CustomerStore(ByteBuffer index, int slots, int count, ByteBuffer data, int dataEnd) {
+      this.readOnly = true;
+      this.index = index;
+      this.slots = slots;
+      this.count = count;
+      this.data = data;
+      this.dataEnd = dataEnd;
+   }
+
+   /**
+    * Loads every customer from a CSV file shaped like data/Customer.csv.
+    *
+    * @param path the CSV file, with a header line
+    * @return the loaded store
+    * @throws java.io.IOException when the file cannot be read or parsed
+    */
+   public static CustomerStore fromCsv(String path) throws IOException {
+      CustomerStore store = new CustomerStore(1024);
+      CsvReader csv = CsvReader.open(path);
+      try {
+         csv.next(); // header
+         List<String> row;
+         while ((row = csv.next()) != null) {
+            if (row.size() < 1 + FIELDS.length) {
+               throw new IOException("Expected " + (1 + FIELDS.length) + " fields at line " + csv.lineNumber());
+            }
+            store.put(Integer.parseInt(row.get(0).trim()), row.subList(1, 1 + FIELDS.length));
+         }
+      } finally {
+         csv.close();
+      }
+      return store;
+   }//end fromCsv
+
+   /**
+    * Loads every customer from Postgres through a cursor on a connection of
+    * its own, Exporter.FETCH_ROWS at a time, so no more than that many
+    * records are ever on the heap.
+    *
+    * @param esql the database handle
+    * @return the loaded store
+    * @throws java.sql.SQLException when the scan fails
+    */
+   public static CustomerStore fromDatabase(AirlineManagement esql) throws SQLException {
+      Connection connection = esql.openConnection();
+      try {
+         Statement stmt = connection.createStatement();
+         // the planner's row estimate sizes the store without a count(*) scan
+         ResultSet rs = stmt.executeQuery("SELECT reltuples::BIGINT FROM pg_class WHERE relname = 'customer'");
+         long estimate = rs.next() ? rs.getLong(1) : 0;
+         rs.close();
+         CustomerStore store = new CustomerStore((int) Math.min(Math.max(estimate, 1024), 1 << 24));
+
+         // cursors only live inside a transaction
+         connection.setAutoCommit(false);
+         stmt.execute("DECLARE airline_customers NO SCROLL CURSOR FOR " +
+                      "SELECT CustomerID, FirstName, LastName, Gender, DOB, Address, Phone, Zip FROM Customer");
+         List<String> fields = new ArrayList<String>(FIELDS.length);
+         while (true) {
+            rs = stmt.executeQuery("FETCH FORWARD " + Exporter.FETCH_ROWS + " FROM airline_customers");
+            int fetched = 0;
+            while (rs.next()) {
+               fields.clear();
+               for (int i = 0; i < FIELDS.length; i++) fields.add(rs.getString(i + 2));
+               store.put(rs.getInt(1), fields);
+               fetched++;
+            }
+            rs.close();
+            if (fetched < Exporter.FETCH_ROWS) break;
+         }
+         stmt.close();
+         connection.rollback();
+         return store;
+      } finally {
+         connection.close();
+      }
+   }//end fromDatabase
+
+   /**
+    * Maps a store image written by saveTo. The mapping is read-only.
+    *
+    * @param file the image file
+    * @return the mapped store
+    * @throws java.io.IOException when the file is missing or not a store image
+    */
+   public static CustomerStore openMapped(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+         if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a customer store image");
+         }
+         int slots = map.getInt(8);
+         int count = map.getInt(12);
+         int dataEnd = map.getInt(16);
+         if (IMAGE_HEADER + (long) slots * SLOT + dataEnd != raf.length()) {
+            throw new IOException(file + " is truncated");
+         }
+         ByteBuffer index = slice(map, IMAGE_HEADER, slots * SLOT);
+         ByteBuffer data = slice(map, IMAGE_HEADER + slots * SLOT, dataEnd);
+         return new CustomerStore(index, slots, count, data, dataEnd);
+      } finally {
+         // the mapping stays valid after the channel is closed
+         raf.close();
+      }
+   }//end openMapped
+
+   /**
+    * Writes the store as an image that openMapped can map.
+    *
+    * @param file the image file, replaced if it exists
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public void saveTo(File file) throws IOException {
+      lock.readLock().lock();
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(count).putInt(dataEnd).flip();
+            write(channel, header);
+            write(channel, slice(index, 0, slots * SLOT));
+            write(channel, slice(data, 0, dataEnd));
+            channel.force(true);
+         } finally {
+            raf.close();
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end saveTo
+
+   /**
+    * Adds or replaces a customer. A replaced record's bytes are not reclaimed.
+    *
+    * @param customerID the key
+    * @param fields FirstName, LastName, Gender, DOB, Address, Phone, Zip
+    */
+   public void put(int customerID, List<String> fields) {
+      if (readOnly) throw new UnsupportedOperationException("Mapped customer store is read-only");
+      byte[][] encoded = new byte[FIELDS.length][];
+      int size = RECORD_HEADER;
+      for (int f = 0; f < FIELDS.length; f++) {
+         String value = fields.get(f);
+         if (value != null) {
+            encoded[f] = value.getBytes(StandardCharsets.UTF_8);
+            if (encoded[f].length >= NULL_LENGTH) {
+               throw new IllegalArgumentException(FIELDS[f] + " of customer " + customerID + " is too long");
+            }
+            size += encoded[f].length;
+         }
+      }
+      lock.writeLock().lock();
+      try {
+         ensureData(size);
+         int offset = dataEnd;
+         data.putInt(offset, customerID);
+         int pos = offset + RECORD_HEADER;
+         for (int f = 0; f < FIELDS.length; f++) {
+            data.putShort(offset + 4 + 2 * f, (short) (encoded[f] == null ? NULL_LENGTH : encoded[f].length));
+            if (encoded[f] != null) {
+               ByteBuffer dst = data.duplicate();
+               dst.position(pos);
+               dst.put(encoded[f]);
+               pos += encoded[f].length;
+            }
+         }
+         dataEnd = pos;
+         if ((count + 1) * 2 > slots) rehash(slots * 2);
+         if (insert(index, slots, customerID, offset)) count++;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * @return a lazy view of the customer, or null if it is not stored
+    */
+   public View get(int customerID) {
+      lock.readLock().lock();
+      try {
+         int mask = slots - 1;
+         for (int slot = hash(customerID) & mask; ; slot = (slot + 1) & mask) {
+            int stored = index.getInt(slot * SLOT + 4);
+            if (stored == 0) return null;
+            if (index.getInt(slot * SLOT) == customerID) return new View(stored - 1, customerID);
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end get
+
+   public int size() {
+      return count;
+   }
+
+   /**
+    * @return bytes held outside the heap
+    */
+   public long offHeapBytes() {
+      return (long) data.capacity() + index.capacity();
+   }
+
+   /**
+    * Builds a store image from a Customer CSV file, for airline.customerStore.
+    *
+    * @param args <Customer.csv> <image file>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2) {
+         System.err.println("Usage: java CustomerStore <Customer.csv> <image file>");
+         return;
+      }
+      long start = System.nanoTime();
+      CustomerStore store = fromCsv(args[0]);
+      store.saveTo(new File(args[1]));
+      System.out.printf("Stored %d customers (%d bytes off-heap) in %.1f ms%n",
+                        store.size(), store.offHeapBytes(), (System.nanoTime() - start) / 1e6);
+   }//end main
+
+   private void ensureData(int size) {
+      if (dataEnd + size <= data.capacity()) return;
+      int capacity = data.capacity();
+      while (capacity < dataEnd + size) capacity *= 2;
+      ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+      bigger.put(slice(data, 0, dataEnd));
+      data = bigger;
+   }
+
+   private void rehash(int newSlots) {
+      ByteBuffer bigger = ByteBuffer.allocateDirect(newSlots * SLOT);
+      for (int slot = 0; slot < slots; slot++) {
+         int stored = index.getInt(slot * SLOT + 4);
+         if (stored != 0) insert(bigger, newSlots, index.getInt(slot * SLOT), stored - 1);
+      }
+      index = bigger;
+      slots = newSlots;
+   }
+
+   // returns true when the key was new
+   private static boolean insert(ByteBuffer table, int slots, int key, int offset) {
+      int mask = slots - 1;
+      for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+         int stored = table.getInt(slot * SLOT + 4);
+         if (stored == 0 || table.getInt(slot * SLOT) == key) {
+            table.putInt(slot * SLOT, key);
+            table.putInt(slot * SLOT + 4, offset + 1);
+            return stored == 0;
+         }
+      }
+   }
+
+   private static int hash(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+      ByteBuffer view = buffer.duplicate();
+      view.position(from);
+      view.limit(from + length);
+      return view.slice();
+   }
+
+   private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) channel.write(buffer);
+   }
+
+}//end CustomerStore
@@ -0,0 +1,70 @@
+/*
+ * Dates
+ * =============================
+ *
+ * One place that turns the dates users type (M/D/YY as in the data files,
+ * or ISO YYYY-MM-DD) into LocalDate, and LocalDate into SQL.
+ *
+ */
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+
+/**
+ * Queries built from these literals compare a DATE column with a typed
+ * constant, which lets the planner prune range partitions at plan time.
+ * A quoted free-form string would be cast with the session DateStyle and
+ * mean different days on differently configured servers.
+ *
+ */
+public final class Dates {
+
+   // M/D/YY with two digit years read as 2000-2099, or M/D/YYYY
+   private static final DateTimeFormatter SLASHED = new DateTimeFormatterBuilder()
+      .appendPattern("M/d/")
+      .appendValueReduced(ChronoField.YEAR, 2, 2, 2000)
+      .toFormatter().withResolverStyle(ResolverStyle.STRICT);
+   private static final DateTimeFormatter SLASHED_FULL =
+      DateTimeFormatter.ofPattern("M/d/uuuu").withResolverStyle(ResolverStyle.STRICT);
+
+   private Dates() {
+   }
+
+   /**
+    * Parses YYYY-MM-DD, M/D/YY or M/D/YYYY.
+    *
+    * @throws java.time.format.DateTimeParseException when the text is no date
+    */
+   public static LocalDate parse(String text) {
+      String t = text.trim();
+      if (t.indexOf('/') < 0) return LocalDate.parse(t);
+      try {
+         String year = t.substring(t.lastIndexOf('/') + 1);
+         return LocalDate.parse(t, year.length() > 2 ? SLASHED_FULL : SLASHED);
+      } catch (DateTimeException e) {
+         throw new DateTimeParseException("Invalid date '" + t + "', expected M/D/YY or YYYY-MM-DD", t, 0);
+      }
+   }//end parse
+
+   /**
+    * @return the date as a typed SQL literal, e.g. DATE '2025-05-05'
+    */
+   public static String sql(LocalDate date) {
+      return "DATE '" + date + "'";
+   }
+
+   /**
+    * Parses user input straight into a typed SQL literal.
+    *
+    * @see #parse(String)
+    */
+   public static String sql(String text) {
+      return sql(parse(text));
+   }
+
+}//end Dates
@@ -0,0 +1,143 @@
+/*
+ * EXPLAIN check
+ * =============================
+ *
+ * Runs EXPLAIN on every date-filtered feature query, with dates bound the
+ * way the features bind them, and fails when the date-filtered table is
+ * read with a sequential scan instead of an index range scan.
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *    java ExplainCheck dbname port user
+ *
+ * Sample values (a flight instance, a repair, a route) are taken from the
+ * database. The sample data is small enough that the planner would rightly
+ * prefer sequential scans, so they are disabled for the session: a query
+ * passes when an index can serve its predicate at all, which is exactly
+ * what an implicit cast or a mistyped literal breaks. Pass
+ * -Dexplain.seqscan=on to check the plans the planner would really pick.
+ * Exits with status 1 when any query fails.
+ *
+ */
+public class ExplainCheck {
+
+   /**
+    * One feature query with the table its date predicate filters.
+    */
+   static final class Probe {
+      final String feature;
+      final String table;
+      final String sql;
+      final Object[] params;
+
+      Probe(String feature, String table, String sql, Object... params) {
+         this.feature = feature;
+         this.table = table;
+         this.sql = sql;
+         this.params = params;
+      }
+   }//end Probe
+
+   /**
+    * @return the date-filtered feature queries with sample parameters
+    * @throws java.sql.SQLException when the samples cannot be read
+    */
+   static List<Probe> probes(AirlineManagement esql) throws SQLException {
+      List<List<String>> instance = esql.executeQueryAndReturnResult(
+         "SELECT FlightInstanceID, FlightNumber, FlightDate FROM FlightInstance ORDER BY FlightInstanceID LIMIT 1");
+      List<List<String>> repair = esql.executeQueryAndReturnResult(
+         "SELECT PlaneID, RepairDate FROM Repair WHERE RepairDate IS NOT NULL ORDER BY RepairID LIMIT 1");
+      List<List<String>> route = esql.executeQueryAndReturnResult(
+         "SELECT DepartureCity, ArrivalCity FROM Flight ORDER BY FlightNumber LIMIT 1");
+      if (instance.isEmpty() || repair.isEmpty() || route.isEmpty()) {
+         throw new SQLException("FlightInstance, Repair and Flight need at least one row");
+      }
+      int instanceID = Integer.parseInt(instance.get(0).get(0));
+      String flightNumber = instance.get(0).get(1);
+      LocalDate flightDate = Dates.parse(instance.get(0).get(2));
+      String planeID = repair.get(0).get(0);
+      LocalDate repairDate = Dates.parse(repair.get(0).get(1));
+
+      List<Probe> probes = new ArrayList<Probe>();
+      probes.add(new Probe("feature2/3/5", "flightinstance", FeatureQueries.INSTANCE_OF_FLIGHT,
+                           flightNumber, flightDate));
+      probes.add(new Probe("feature3", "flightinstance", FeatureQueries.FLIGHT_STATUS,
+                           instanceID, flightDate));
+      probes.add(new Probe("feature4", "flightinstance", FeatureQueries.FLIGHTS_OF_THE_DAY,
+                           flightDate));
+      probes.add(new Probe("feature5", "reservation", FeatureQueries.PASSENGERS_BY_STATUS,
+                           instanceID, flightDate, "reserved"));
+      probes.add(new Probe("feature9", "repair", FeatureQueries.REPAIRS_OF_PLANE_DESC,
+                           planeID, repairDate.minusMonths(1), repairDate.plusMonths(1)));
+      probes.add(new Probe("feature10", "flightinstance", FeatureQueries.FLIGHT_STATISTICS,
+                           flightNumber, flightDate.minusDays(7), flightDate.plusDays(7)));
+      probes.add(new Probe("feature11", "flightinstance", FeatureQueries.ROUTE_SEARCH,
+                           route.get(0).get(0), route.get(0).get(1), flightDate));
+      probes.add(new Probe("feature15", "repair", FeatureQueries.REPAIRS_OF_PLANE,
+                           planeID, repairDate.minusMonths(1), repairDate.plusMonths(1)));
+      return probes;
+   }//end probes
+
+   /**
+    * @return the plan of a query, one line per row of EXPLAIN output
+    */
+   static List<String> explain(AirlineManagement esql, String sql, Object... params) throws SQLException {
+      List<String> plan = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult("EXPLAIN " + sql, params)) {
+         plan.add(row.get(0));
+      }
+      return plan;
+   }
+
+   /**
+    * @return null when the table is read through an index, else the reason
+    */
+   static String verdict(List<String> plan, String table) {
+      boolean indexed = false;
+      for (String line : plan) {
+         String l = line.toLowerCase();
+         // partitions are named <table>_yYYYYmMM
+         if (l.matches(".*seq scan on " + table + "(\\s.*|_.*|$)")) {
+            return "sequential scan on " + table;
+         }
+         if (l.contains("index") && l.contains(" on " + table)) indexed = true;
+      }
+      return indexed ? null : "no index scan on " + table;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println("Usage: java ExplainCheck <dbname> <port> <user>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      int failed = 0;
+      try {
+         if (!"on".equals(System.getProperty("explain.seqscan"))) {
+            esql.executeUpdate("SET enable_seqscan = off");
+         }
+         for (Probe probe : probes(esql)) {
+            List<String> plan = explain(esql, probe.sql, probe.params);
+            String problem = verdict(plan, probe.table);
+            System.out.println((problem == null ? "PASS " : "FAIL ") + probe.feature +
+                               (problem == null ? "" : ": " + problem));
+            if (problem != null) {
+               failed++;
+               for (String line : plan) System.out.println("      " + line);
+            }
+         }
+      } finally {
+         esql.cleanup();
+      }
+      System.out.println(failed == 0 ? "All date-filtered queries use an index" : failed + " query(s) failed");
+      if (failed > 0) System.exit(1);
+   }//end main
+
+}//end ExplainCheck
@@ -0,0 +1,572 @@
+/*
+ * Report exporter
+ * =============================
+ *
+ * Streams a management report or a whole table from a server-side cursor
+ * into gzip compressed CSV and/or a typed columnar file, in constant
+ * memory, several exports at a time.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *    java Exporter dbname port user outDir spec [spec ...]
+ *    java Exporter dump file.col.gz
+ *
+ * A spec is a report name and its arguments separated by colons:
+ *
+ *    flights-of-day:Date                          (feature4)
+ *    manifest:FlightNumber:Date                   (feature5)
+ *    technician-repairs:TechnicianID              (feature8)
+ *    plane-repairs:PlaneID:Start:End              (feature9)
+ *    flight-statistics:FlightNumber:Start:End     (feature10)
+ *    table:Name[:Start:End]                       (a table, optionally one date range)
+ *
+ * airline.export.format is csv, col or both (default both) and
+ * airline.export.parallelism the number of exports run at once (default 4).
+ * Each export has its own connection and its own cursor, fetched
+ * FETCH_ROWS rows at a time, so memory does not grow with the result.
+ *
+ * The columnar file (.col.gz) is a gzip stream of:
+ *
+ *    "ACOL" version:u16 columns:i32 { name:utf type:u8 scale:u8 }*
+ *    { rows:i32 { nulls:bitmap(rows) values }* }*   rows == 0 ends the file
+ *
+ * Values of one column in a row group are stored together, nulls skipped:
+ * INT32 and DATE (days since 1970-01-01) as i32, INT64 and DECIMAL
+ * (unscaled, with the column's scale) as i64, FLOAT64 as a double, BOOL as
+ * one byte and STRING as modified UTF-8 (DataOutput.writeUTF), all big
+ * endian.
+ *
+ */
+public class Exporter {
+
+   public static final int FETCH_ROWS = 10000;
+   public static final int BUFFER_BYTES = 1 << 20;
+   public static final int DEFAULT_PARALLELISM = 4;
+
+   // column types of the columnar format
+   static final byte INT32 = 1, INT64 = 2, FLOAT64 = 3, DECIMAL = 4, BOOL = 5, DATE = 6, STRING = 7;
+
+   static final String MANIFEST =
+      "SELECT R.Status, R.CustomerID, R.ReservationID, R.SeatNumber " +
+      "FROM Reservation R JOIN FlightInstance FI ON FI.FlightInstanceID = R.FlightInstanceID " +
+      "WHERE FI.FlightNumber = ? AND FI.FlightDate = ? AND R.FlightDate = ? " +
+      "ORDER BY R.Status, R.CustomerID";
+
+   // tables that may be exported whole, with the column a date range applies to
+   private static final String[][] TABLES = {
+      { "FlightInstance", "FlightDate" }, { "Reservation", "FlightDate" }, { "Schedule", null },
+      { "Flight", null }, { "Plane", "LastRepairDate" }, { "Customer", null }, { "Pilot", null },
+      { "Technician", null }, { "Repair", "RepairDate" }, { "MaintenanceRequest", "RequestDate" } };
+
+   /**
+    * A query to export and the databases to read it from.
+    */
+   static final class Export {
+      final String name;
+      final String sql;
+      final Object[] params;
+      // JDBC URLs read one after the other; null stands for the primary
+      final List<String> sources;
+
+      Export(String name, String sql, List<String> sources, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.sources = sources;
+         this.params = params;
+      }
+   }//end Export
+
+   /**
+    * Receives the rows of an export.
+    */
+   interface Sink extends AutoCloseable {
+      void header(ResultSetMetaData md) throws SQLException, IOException;
+      void row(ResultSet rs) throws SQLException, IOException;
+      void close() throws IOException;
+   }//end Sink
+
+   /**
+    * @return the export described by a spec
+    * @throws java.sql.SQLException when the spec is not understood
+    */
+   static Export parse(AirlineManagement esql, String spec) throws SQLException {
+      String[] a = spec.split(":");
+      String name = spec.replaceAll("[^A-Za-z0-9._-]+", "_");
+      ShardRouter shards = esql.shards();
+      List<String> primary = Collections.singletonList((String) null);
+      List<String> everyShard = shards == null ? primary : shards.urls();
+      switch (a[0]) {
+         case "flights-of-day":
+            need(a, 2);
+            return new Export(name, FeatureQueries.FLIGHTS_OF_THE_DAY, everyShard, Dates.parse(a[1]));
+         case "manifest": {
+            need(a, 3);
+            LocalDate date = Dates.parse(a[2]);
+            return new Export(name, MANIFEST, ofFlight(shards, a[1]), a[1], date, date);
+         }
+         case "technician-repairs":
+            need(a, 2);
+            return new Export(name, FeatureQueries.REPAIRS_BY_TECHNICIAN, primary, a[1]);
+         case "plane-repairs":
+            need(a, 4);
+            return new Export(name, FeatureQueries.REPAIRS_OF_PLANE_DESC, primary,
+                              a[1], Dates.parse(a[2]), Dates.parse(a[3]));
+         case "flight-statistics":
+            need(a, 4);
+            return new Export(name, FeatureQueries.FLIGHT_STATISTICS, ofFlight(shards, a[1]),
+                              a[1], Dates.parse(a[2]), Dates.parse(a[3]));
+         case "table":
+            need(a, 2);
+            for (String[] table : TABLES) {
+               if (!table[0].equalsIgnoreCase(a[1])) continue;
+               List<String> sources = Arrays.asList(ShardRouter.SHARDED).contains(table[0]) ? everyShard : primary;
+               if (a.length < 4) {
+                  return new Export(name, "SELECT * FROM " + table[0], sources);
+               }
+               if (table[1] == null) throw new SQLException(table[0] + " has no date column");
+               return new Export(name, "SELECT * FROM " + table[0] + " WHERE " + table[1] + " BETWEEN ? AND ?",
+                                 sources, Dates.parse(a[2]), Dates.parse(a[3]));
+            }
+            throw new SQLException("Unknown table " + a[1]);
+         default:
+            throw new SQLException("Unknown report " + a[0]);
+      }
+   }//end parse
+
+   private static void need(String[] a, int count) throws SQLException {
+      if (a.length < count) throw new SQLException(a[0] + " needs " + (count - 1) + " argument(s)");
+   }
+
+   private static List<String> ofFlight(ShardRouter shards, String flightNumber) {
+      return Collections.singletonList(shards == null ? null : shards.urlOf(flightNumber));
+   }
+
+   /**
+    * Streams an export into the sinks.
+    *
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the query fails
+    * @throws java.io.IOException when a file cannot be written
+    */
+   static long run(AirlineManagement esql, Export export, List<Sink> sinks) throws SQLException, IOException {
+      long rows = 0;
+      boolean first = true;
+      for (String url : export.sources) {
+         Connection connection = url == null ? esql.openConnection() : esql.openConnection(url);
+         try {
+            // cursors only live inside a transaction
+            connection.setAutoCommit(false);
+            PreparedStatement declare = AirlineManagement.prepare(connection,
+               "DECLARE airline_export NO SCROLL CURSOR FOR " + export.sql, export.params);
+            declare.execute();
+            declare.close();
+            Statement fetch = connection.createStatement();
+            while (true) {
+               ResultSet rs = fetch.executeQuery("FETCH FORWARD " + FETCH_ROWS + " FROM airline_export");
+               if (first) {
+                  for (Sink sink : sinks) sink.header(rs.getMetaData());
+                  first = false;
+               }
+               int fetched = 0;
+               while (rs.next()) {
+                  for (Sink sink : sinks) sink.row(rs);
+                  fetched++;
+               }
+               rs.close();
+               rows += fetched;
+               if (fetched < FETCH_ROWS) break;
+            }
+            fetch.close();
+            connection.rollback();
+         } finally {
+            connection.close();
+         }
+      }
+      return rows;
+   }//end run
+
+   /**
+    * Runs exports in parallel into outDir.
+    *
+    * @return one line per export: its files, rows and time, or its error
+    */
+   static List<String> exportAll(final AirlineManagement esql, List<String> specs, final File outDir,
+                                 final String format, int parallelism) throws InterruptedException {
+      ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+      List<Future<String>> done = new ArrayList<Future<String>>();
+      for (final String spec : specs) {
+         done.add(pool.submit(() -> {
+            long start = System.currentTimeMillis();
+            List<Sink> sinks = new ArrayList<Sink>();
+            List<String> files = new ArrayList<String>();
+            try {
+               Export export = parse(esql, spec);
+               if (!format.equals("col")) {
+                  File f = new File(outDir, export.name + ".csv.gz");
+                  sinks.add(new CsvSink(f));
+                  files.add(f.getPath());
+               }
+               if (!format.equals("csv")) {
+                  File f = new File(outDir, export.name + ".col.gz");
+                  sinks.add(new ColumnarSink(f));
+                  files.add(f.getPath());
+               }
+               long rows = run(esql, export, sinks);
+               for (Sink sink : sinks) sink.close();
+               return spec + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms -> " + files;
+            } catch (Exception e) {
+               for (Sink sink : sinks) {
+                  try {
+                     sink.close();
+                  } catch (IOException ignored) {
+                     // reporting the first error
+                  }
+               }
+               // no half written files
+               for (String f : files) new File(f).delete();
+               return spec + ": failed: " + e.getMessage();
+            }
+         }));
+      }
+      List<String> report = new ArrayList<String>();
+      for (Future<String> f : done) {
+         try {
+            report.add(f.get());
+         } catch (java.util.concurrent.ExecutionException e) {
+            report.add("failed: " + e.getCause());
+         }
+      }
+      pool.shutdown();
+      return report;
+   }//end exportAll
+
+   /**
+    * OutputStream over a file channel with one large direct buffer.
+    */
+   static final class ChannelOutput extends OutputStream {
+      private final WritableByteChannel channel;
+      private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+      ChannelOutput(File file) throws IOException {
+         this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      }
+
+      public void write(int b) throws IOException {
+         if (!buffer.hasRemaining()) drain();
+         buffer.put((byte) b);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+         while (len > 0) {
+            if (!buffer.hasRemaining()) drain();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+         }
+      }
+
+      private void drain() throws IOException {
+         buffer.flip();
+         while (buffer.hasRemaining()) channel.write(buffer);
+         buffer.clear();
+      }
+
+      public void flush() throws IOException {
+         drain();
+      }
+
+      public void close() throws IOException {
+         if (!channel.isOpen()) return;
+         try {
+            drain();
+         } finally {
+            channel.close();
+         }
+      }
+   }//end ChannelOutput
+
+   /**
+    * RFC 4180 CSV with a header line; NULL is an empty unquoted field and
+    * an empty string is "", as CsvReader reads them.
+    */
+   static final class CsvSink implements Sink {
+      private final OutputStream out;
+      private int columns;
+
+      CsvSink(File file) throws IOException {
+         this.out = new GZIPOutputStream(new ChannelOutput(file), 1 << 16);
+      }
+
+      public void header(ResultSetMetaData md) throws SQLException, IOException {
+         columns = md.getColumnCount();
+         StringBuilder line = new StringBuilder();
+         for (int i = 1; i <= columns; i++) {
+            if (i > 1) line.append(',');
+            line.append(field(md.getColumnName(i)));
+         }
+         out.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      public void row(ResultSet rs) throws SQLException, IOException {
+         StringBuilder line = new StringBuilder();
+         for (int i = 1; i <= columns; i++) {
+            if (i > 1) line.append(',');
+            String value = rs.getString(i);
+            if (value != null) line.append(field(value));
+         }
+         out.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      static String field(String value) {
+         if (!value.isEmpty() && value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+             value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+         }
+         return "\"" + value.replace("\"", "\"\"") + "\"";
+      }
+
+      public void close() throws IOException {
+         out.close();
+      }
+   }//end CsvSink
+
+   /**
+    * Writes the typed columnar format, one row group per FETCH_ROWS rows.
+    */
+   static final class ColumnarSink implements Sink {
+      private final DataOutputStream out;
+      private byte[] types;
+      private int[] scales;
+      // per column: the values of the current row group and its null bitmap
+      private ByteArrayOutputStream[] chunks;
+      private DataOutputStream[] values;
+      private byte[][] nulls;
+      private int rows;
+
+      ColumnarSink(File file) throws IOException {
+         this.out = new DataOutputStream(new GZIPOutputStream(new ChannelOutput(file), 1 << 16));
+      }
+
+      public void header(ResultSetMetaData md) throws SQLException, IOException {
+         int n = md.getColumnCount();
+         types = new byte[n];
+         scales = new int[n];
+         chunks = new ByteArrayOutputStream[n];
+         values = new DataOutputStream[n];
+         nulls = new byte[n][(FETCH_ROWS + 7) / 8];
+         out.writeBytes("ACOL");
+         out.writeShort(1);
+         out.writeInt(n);
+         for (int i = 0; i < n; i++) {
+            types[i] = typeOf(md, i + 1);
+            scales[i] = types[i] == DECIMAL ? md.getScale(i + 1) : 0;
+            out.writeUTF(md.getColumnName(i + 1));
+            out.writeByte(types[i]);
+            out.writeByte(scales[i]);
+            chunks[i] = new ByteArrayOutputStream(1 << 14);
+            values[i] = new DataOutputStream(chunks[i]);
+         }
+      }
+
+      static byte typeOf(ResultSetMetaData md, int column) throws SQLException {
+         switch (md.getColumnType(column)) {
+            case Types.SMALLINT:
+            case Types.INTEGER:
+               return INT32;
+            case Types.BIGINT:
+               return INT64;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+               return FLOAT64;
+            case Types.NUMERIC:
+            case Types.DECIMAL: {
+               // unconstrained numeric has no fixed scale, keep its text
+               int precision = md.getPrecision(column);
+               int scale = md.getScale(column);
+               return precision > 0 && precision <= 18 && scale >= 0 && scale <= precision ? DECIMAL : STRING;
+            }
+            case Types.BIT:
+            case Types.BOOLEAN:
+               return BOOL;
+            case Types.DATE:
+               return DATE;
+            default:
+               return STRING;
+         }
+      }
+
+      public void row(ResultSet rs) throws SQLException, IOException {
+         for (int i = 0; i < types.length; i++) {
+            String text = rs.getString(i + 1);
+            if (text == null) {
+               nulls[i][rows >> 3] |= (byte) (1 << (rows & 7));
+               continue;
+            }
+            DataOutputStream v = values[i];
+            switch (types[i]) {
+               case INT32: v.writeInt(Integer.parseInt(text)); break;
+               case INT64: v.writeLong(Long.parseLong(text)); break;
+               case FLOAT64: v.writeDouble(Double.parseDouble(text)); break;
+               case DECIMAL: v.writeLong(new BigDecimal(text).setScale(scales[i]).unscaledValue().longValue()); break;
+               case BOOL: v.writeBoolean(text.equals("t") || text.equals("true") || text.equals("1")); break;
+               case DATE: v.writeInt((int) Dates.parse(text).toEpochDay()); break;
+               default: v.writeUTF(text); break;
+            }
+         }
+         if (++rows == FETCH_ROWS) flushGroup();
+      }
+
+      private void flushGroup() throws IOException {
+         if (rows == 0) return;
+         out.writeInt(rows);
+         for (int i = 0; i < types.length; i++) {
+            out.write(nulls[i], 0, (rows + 7) / 8);
+            chunks[i].writeTo(out);
+            chunks[i].reset();
+            Arrays.fill(nulls[i], (byte) 0);
+         }
+         rows = 0;
+      }
+
+      public void close() throws IOException {
+         try {
+            if (types != null) {
+               flushGroup();
+               out.writeInt(0);
+            }
+         } finally {
+            out.close();
+         }
+      }
+   }//end ColumnarSink
+
+   /**
+    * Prints a columnar file as CSV, for checking an export.
+    *
+    * @throws java.io.IOException when the file is not a columnar export
+    */
+   static void dump(File file) throws IOException {
+      DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16));
+      try {
+         byte[] magic = new byte[4];
+         in.readFully(magic);
+         if (!new String(magic, StandardCharsets.US_ASCII).equals("ACOL") || in.readShort() != 1) {
+            throw new IOException(file + " is not a columnar export");
+         }
+         int n = in.readInt();
+         byte[] types = new byte[n];
+         int[] scales = new int[n];
+         StringBuilder header = new StringBuilder();
+         for (int i = 0; i < n; i++) {
+            if (i > 0) header.append(',');
+            header.append(CsvSink.field(in.readUTF()));
+            types[i] = in.readByte();
+            scales[i] = in.readByte();
+         }
+         System.out.println(header);
+         int rows;
+         while ((rows = in.readInt()) > 0) {
+            String[][] group = new String[n][rows];
+            for (int i = 0; i < n; i++) {
+               byte[] nulls = new byte[(rows + 7) / 8];
+               in.readFully(nulls);
+               for (int r = 0; r < rows; r++) {
+                  if ((nulls[r >> 3] & (1 << (r & 7))) != 0) continue;
+                  switch (types[i]) {
+                     case INT32: group[i][r] = String.valueOf(in.readInt()); break;
+                     case INT64: group[i][r] = String.valueOf(in.readLong()); break;
+                     case FLOAT64: group[i][r] = String.valueOf(in.readDouble()); break;
+                     case DECIMAL: group[i][r] = BigDecimal.valueOf(in.readLong(), scales[i]).toPlainString(); break;
+                     case BOOL: group[i][r] = in.readBoolean() ? "t" : "f"; break;
+                     case DATE: group[i][r] = LocalDate.ofEpochDay(in.readInt()).toString(); break;
+                     default: group[i][r] = in.readUTF(); break;
+                  }
+               }
+            }
+            for (int r = 0; r < rows; r++) {
+               StringBuilder line = new StringBuilder();
+               for (int i = 0; i < n; i++) {
+                  if (i > 0) line.append(',');
+                  if (group[i][r] != null) line.append(CsvSink.field(group[i][r]));
+               }
+               System.out.println(line);
+            }
+         }
+      } catch (EOFException e) {
+         throw new IOException(file + " is truncated");
+      } finally {
+         in.close();
+      }
+   }//end dump
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 2 && args[0].equals("dump")) {
+         dump(new File(args[1]));
+         return;
+      }
+      if (args.length < 5) {
+         System.err.println("Usage: java Exporter <dbname> <port> <user> <outDir> <spec> [spec ...]");
+         System.err.println("       java Exporter dump <file.col.gz>");
+         return;
+      }
+      String format = System.getProperty("airline.export.format", "both");
+      if (!format.equals("csv") && !format.equals("col") && !format.equals("both")) {
+         System.err.println("airline.export.format must be csv, col or both");
+         return;
+      }
+      File outDir = new File(args[3]);
+      if (!outDir.isDirectory() && !outDir.mkdirs()) {
+         System.err.println("Cannot create " + outDir);
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         esql.openShards();
+         List<String> specs = Arrays.asList(args).subList(4, args.length);
+         int parallelism = Integer.getInteger("airline.export.parallelism", DEFAULT_PARALLELISM);
+         for (String line : exportAll(esql, specs, outDir, format, parallelism)) {
+            System.out.println(line);
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end Exporter
@@ -0,0 +1,326 @@
+/*
+ * Fare calendar
+ * =============================
+ *
+ * In-memory date -> fare index built from FlightInstance so ticket cost
+ * searches (feature12) never touch the FlightInstance table.
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps, per FlightNumber and per route (DepartureCity -> ArrivalCity), a
+ * compact calendar of LocalDate -> FareDay. A FareDay is immutable, so
+ * readers never lock; writers rebuild the affected day and swap it in.
+ *
+ */
+public class FareCalendar {
+
+   /**
+    * Aggregated fares for one day of one flight number or route.
+    */
+   public static final class FareDay {
+      public final LocalDate date;
+      public final double minFare;
+      public final double avgFare;
+      public final int seatsLeft;
+      public final int instances;
+      // flight instance carrying the minimum fare, so it can be booked directly; both count only
+      // instances with seats left, unless the whole day is sold out
+      public final int cheapestInstanceID;
+
+      FareDay(LocalDate date, double minFare, double avgFare, int seatsLeft, int instances, int cheapestInstanceID) {
+         this.date = date;
+         this.minFare = minFare;
+         this.avgFare = avgFare;
+         this.seatsLeft = seatsLeft;
+         this.instances = instances;
+         this.cheapestInstanceID = cheapestInstanceID;
+      }
+   }//end FareDay
+
+   // one FlightInstance row as far as the calendar cares
+   private static final class Instance {
+      final int id;
+      final String flightNumber;
+      final String route;
+      final LocalDate date;
+      double ticketCost;
+      int seatsTotal;
+      int seatsSold;
+
+      Instance(int id, String flightNumber, String route, LocalDate date,
+               double ticketCost, int seatsTotal, int seatsSold) {
+         this.id = id;
+         this.flightNumber = flightNumber;
+         this.route = route;
+         this.date = date;
+         this.ticketCost = ticketCost;
+         this.seatsTotal = seatsTotal;
+         this.seatsSold = seatsSold;
+      }
+   }//end Instance
+
+   static final Comparator<FareDay> BY_FARE = new Comparator<FareDay>() {
+      public int compare(FareDay a, FareDay b) {
+         int c = Double.compare(a.minFare, b.minFare);
+         return c != 0 ? c : a.date.compareTo(b.date);
+      }
+   };
+
+   private final Map<Integer, Instance> instances = new HashMap<Integer, Instance>();
+   // instances of each (flight, date) and (route, date), guarded by this
+   private final Map<String, List<Instance>> members = new HashMap<String, List<Instance>>();
+   private final Map<String, ConcurrentSkipListMap<LocalDate, FareDay>> byFlight =
+      new ConcurrentHashMap<String, ConcurrentSkipListMap<LocalDate, FareDay>>();
+   private final Map<String, ConcurrentSkipListMap<LocalDate, FareDay>> byRoute =
+      new ConcurrentHashMap<String, ConcurrentSkipListMap<LocalDate, FareDay>>();
+
+   /**
+    * Builds the calendar with a single scan of FlightInstance joined to Flight.
+    *
+    * @param esql the database handle
+    * @return a fully populated calendar
+    * @throws java.sql.SQLException when the scan fails
+    */
+   public static FareCalendar load(AirlineManagement esql) throws SQLException {
+      FareCalendar calendar = new FareCalendar();
+      List<List<String>> rows = esql.executeShardedQueryAndReturnResult(
+         "SELECT FI.FlightInstanceID, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, " +
+         "FI.FlightDate, FI.TicketCost, FI.SeatsTotal, FI.SeatsSold " +
+         "FROM FlightInstance FI JOIN Flight F ON F.FlightNumber = FI.FlightNumber");
+      for (List<String> row : rows) {
+         calendar.put(Integer.parseInt(row.get(0)), row.get(1), row.get(2), row.get(3),
+                      LocalDate.parse(row.get(4)), parseDouble(row.get(5)),
+                      parseInt(row.get(6)), parseInt(row.get(7)));
+      }
+      return calendar;
+   }//end load
+
+   /**
+    * Adds or replaces a flight instance.
+    */
+   public synchronized void put(int instanceID, String flightNumber, String departureCity,
+                                String arrivalCity, LocalDate date, double ticketCost,
+                                int seatsTotal, int seatsSold) {
+      put(new Instance(instanceID, flightNumber, routeKey(departureCity, arrivalCity),
+                       date, ticketCost, seatsTotal, seatsSold));
+   }//end put
+
+   private void put(Instance inst) {
+      Instance old = instances.put(inst.id, inst);
+      if (old != null) {
+         members(old.flightNumber, old.date).remove(old);
+         members(old.route, old.date).remove(old);
+         refresh(old);
+      }
+      members(inst.flightNumber, inst.date).add(inst);
+      members(inst.route, inst.date).add(inst);
+      refresh(inst);
+   }
+
+   /**
+    * Records a new SeatsSold value for a flight instance (feature14 bookings,
+    * cancellations and waitlist promotions).
+    */
+   public synchronized void updateSeatsSold(int instanceID, int seatsSold) {
+      Instance inst = instances.get(instanceID);
+      if (inst == null || inst.seatsSold == seatsSold) return;
+      inst.seatsSold = seatsSold;
+      refresh(inst);
+   }
+
+   /**
+    * Records a new TicketCost for a flight instance.
+    */
+   public synchronized void updateTicketCost(int instanceID, double ticketCost) {
+      Instance inst = instances.get(instanceID);
+      if (inst == null || inst.ticketCost == ticketCost) return;
+      inst.ticketCost = ticketCost;
+      refresh(inst);
+   }
+
+   /**
+    * @return the fare for a flight on a date, or null when it does not operate
+    */
+   public FareDay fareFor(String flightNumber, LocalDate date) {
+      NavigableMap<LocalDate, FareDay> days = byFlight.get(flightNumber);
+      return days == null ? null : days.get(date);
+   }
+
+   /**
+    * @return the route fare (cheapest flight between two cities) on a date
+    */
+   public FareDay routeFareFor(String departureCity, String arrivalCity, LocalDate date) {
+      NavigableMap<LocalDate, FareDay> days = byRoute.get(routeKey(departureCity, arrivalCity));
+      return days == null ? null : days.get(date);
+   }
+
+   /**
+    * Returns every day of a flight inside [from, to], in date order. Either
+    * bound may be null for an open window.
+    */
+   public List<FareDay> calendar(String flightNumber, LocalDate from, LocalDate to) {
+      return window(byFlight.get(flightNumber), from, to);
+   }
+
+   /**
+    * Returns the cheapest days of a flight with seats left inside [from, to].
+    *
+    * @param limit maximum number of days to return
+    */
+   public List<FareDay> cheapestDates(String flightNumber, LocalDate from, LocalDate to, int limit) {
+      return cheapest(window(byFlight.get(flightNumber), from, to), limit);
+   }
+
+   /**
+    * Returns the cheapest days between two cities with seats left inside [from, to].
+    */
+   public List<FareDay> cheapestRouteDates(String departureCity, String arrivalCity,
+                                           LocalDate from, LocalDate to, int limit) {
+      return cheapest(window(byRoute.get(routeKey(departureCity, arrivalCity)), from, to), limit);
+   }
+
+   public int size() {
+      return instances.size();
+   }
+
+   /**
+    * Writes every instance for SnapshotStore.
+    */
+   public synchronized void snapshot(SnapshotStore.Writer out) {
+      out.writeInt(instances.size());
+      for (Instance i : instances.values()) {
+         out.writeInt(i.id);
+         out.writeString(i.flightNumber);
+         out.writeString(i.route);
+         out.writeDate(i.date);
+         out.writeDouble(i.ticketCost);
+         out.writeInt(i.seatsTotal);
+         out.writeInt(i.seatsSold);
+      }
+   }//end snapshot
+
+   /**
+    * Rebuilds a calendar from what snapshot wrote.
+    */
+   public static FareCalendar restore(SnapshotStore.Reader in) {
+      FareCalendar calendar = new FareCalendar();
+      synchronized (calendar) {
+         // every day is built once at the end rather than once per instance
+         for (int n = in.readInt(); n > 0; n--) {
+            Instance inst = new Instance(in.readInt(), in.readString(), in.readString(), in.readDate(),
+                                         in.readDouble(), in.readInt(), in.readInt());
+            calendar.instances.put(inst.id, inst);
+            calendar.members(inst.flightNumber, inst.date).add(inst);
+            calendar.members(inst.route, inst.date).add(inst);
+         }
+         Set<String> built = new HashSet<String>();
+         for (Instance inst : calendar.instances.values()) {
+            if (built.add(inst.flightNumber + "@" + inst.date)) calendar.rebuild(calendar.byFlight, inst.flightNumber, inst.date);
+            if (built.add(inst.route + "@" + inst.date)) calendar.rebuild(calendar.byRoute, inst.route, inst.date);
+         }
+      }
+      return calendar;
+   }//end restore
+
+   // rebuilds the flight and route days an instance belongs to
+   private void refresh(Instance inst) {
+      rebuild(byFlight, inst.flightNumber, inst.date);
+      rebuild(byRoute, inst.route, inst.date);
+   }
+
+   private List<Instance> members(String key, LocalDate date) {
+      String k = key + "@" + date;
+      List<Instance> list = members.get(k);
+      if (list == null) {
+         list = new ArrayList<Instance>(2);
+         members.put(k, list);
+      }
+      return list;
+   }
+
+   private void rebuild(Map<String, ConcurrentSkipListMap<LocalDate, FareDay>> index,
+                        String key, LocalDate date) {
+      double min = Double.MAX_VALUE;
+      double sum = 0;
+      int count = 0;
+      int seatsLeft = 0;
+      int cheapest = -1;
+      // the same over sold out instances, for a day that has nothing else
+      double soldOutMin = Double.MAX_VALUE;
+      int soldOutCheapest = -1;
+      for (Instance i : members(key, date)) {
+         sum += i.ticketCost;
+         count++;
+         seatsLeft += Math.max(0, i.seatsTotal - i.seatsSold);
+         if (i.seatsTotal > i.seatsSold) {
+            if (i.ticketCost < min) {
+               min = i.ticketCost;
+               cheapest = i.id;
+            }
+         } else if (i.ticketCost < soldOutMin) {
+            soldOutMin = i.ticketCost;
+            soldOutCheapest = i.id;
+         }
+      }
+      if (cheapest < 0) {
+         min = soldOutMin;
+         cheapest = soldOutCheapest;
+      }
+      ConcurrentSkipListMap<LocalDate, FareDay> days = index.get(key);
+      if (days == null) {
+         days = new ConcurrentSkipListMap<LocalDate, FareDay>();
+         index.put(key, days);
+      }
+      if (count == 0) {
+         days.remove(date);
+      } else {
+         days.put(date, new FareDay(date, min, sum / count, seatsLeft, count, cheapest));
+      }
+   }//end rebuild
+
+   private static List<FareDay> window(ConcurrentSkipListMap<LocalDate, FareDay> days,
+                                       LocalDate from, LocalDate to) {
+      if (days == null) return Collections.emptyList();
+      NavigableMap<LocalDate, FareDay> view = days;
+      if (from != null) view = view.tailMap(from, true);
+      if (to != null) view = view.headMap(to, true);
+      return new ArrayList<FareDay>(view.values());
+   }
+
+   private static List<FareDay> cheapest(List<FareDay> days, int limit) {
+      List<FareDay> open = new ArrayList<FareDay>();
+      for (FareDay d : days) {
+         if (d.seatsLeft > 0) open.add(d);
+      }
+      Collections.sort(open, BY_FARE);
+      return open.size() > limit ? open.subList(0, limit) : open;
+   }
+
+   static String routeKey(String departureCity, String arrivalCity) {
+      return departureCity + "->" + arrivalCity;
+   }
+
+   private static double parseDouble(String s) {
+      return s == null ? 0 : Double.parseDouble(s);
+   }
+
+   private static int parseInt(String s) {
+      return s == null ? 0 : Integer.parseInt(s);
+   }
+
+}//end FareCalendar
@@ -0,0 +1,114 @@
+/*
+ * Feature queries
+ * =============================
+ *
+ * The feature queries, written once with ? placeholders so the features,
+ * ExplainCheck and IndexSuite run exactly the same SQL.
+ *
+ */
+
+/**
+ * Dates and times are bound as LocalDate / LocalTime (SQL DATE / TIME),
+ * never spliced in as text.
+ *
+ */
+public final class FeatureQueries {
+
+   private FeatureQueries() {
+   }
+
+   // feature1: FlightNumber
+   public static final String SCHEDULE_OF_FLIGHT =
+      "SELECT DayOfWeek, DepartureTime, ArrivalTime FROM Schedule WHERE FlightNumber = ?";
+
+   // feature2, feature3, feature5: FlightNumber, FlightDate
+   public static final String INSTANCE_OF_FLIGHT =
+      "SELECT FlightInstanceID FROM FlightInstance WHERE FlightNumber = ? AND FlightDate = ?";
+
+   // feature2: FlightInstanceID
+   public static final String SEATS_OF_INSTANCE =
+      "SELECT SeatsTotal, SeatsSold, (SeatsTotal - SeatsSold) AS SeatsAvailable " +
+      "FROM FlightInstance WHERE FlightInstanceID = ?";
+
+   // feature3: FlightInstanceID, FlightDate
+   public static final String FLIGHT_STATUS =
+      "SELECT DepartedOnTime, ArrivedOnTime FROM FlightInstance WHERE FlightInstanceID = ? AND FlightDate = ?";
+
+   // feature4: FlightDate
+   public static final String FLIGHTS_OF_THE_DAY =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate FROM FlightInstance WHERE FlightDate = ?";
+
+   // feature5: FlightInstanceID, FlightDate, Status
+   public static final String PASSENGERS_BY_STATUS =
+      "SELECT CustomerID FROM Reservation WHERE FlightInstanceID = ? AND FlightDate = ? AND Status = ?";
+
+   // feature6: ReservationID
+   public static final String CUSTOMER_OF_RESERVATION =
+      "SELECT CustomerID FROM Reservation WHERE ReservationID = ?";
+
+   // feature7: PlaneID
+   public static final String PLANE_DETAILS =
+      "SELECT Make, Model, EXTRACT(YEAR FROM CURRENT_DATE) - Year AS Age, LastRepairDate " +
+      "FROM Plane WHERE PlaneID = ?";
+
+   // feature8: TechnicianID
+   public static final String REPAIRS_BY_TECHNICIAN =
+      "SELECT RepairID, PlaneID, RepairCode, RepairDate FROM Repair " +
+      "WHERE TechnicianID = ? ORDER BY RepairDate DESC";
+
+   // feature9: PlaneID, start, end
+   public static final String REPAIRS_OF_PLANE_DESC =
+      "SELECT RepairDate, RepairCode FROM Repair " +
+      "WHERE PlaneID = ? AND RepairDate BETWEEN ? AND ? ORDER BY RepairDate DESC";
+
+   // feature15: PlaneID, start, end
+   public static final String REPAIRS_OF_PLANE =
+      "SELECT RepairDate, RepairCode FROM Repair " +
+      "WHERE PlaneID = ? AND RepairDate BETWEEN ? AND ? ORDER BY RepairDate";
+
+   // feature10: FlightNumber, start, end
+   public static final String FLIGHT_STATISTICS =
+      "SELECT COUNT(*) AS DaysOperated, SUM(SeatsSold) AS TotalSold, " +
+      "SUM(SeatsTotal - SeatsSold) AS TotalUnsold " +
+      "FROM FlightInstance WHERE FlightNumber = ? AND FlightDate BETWEEN ? AND ?";
+
+   // feature11: DepartureCity, ArrivalCity, FlightDate
+   public static final String ROUTE_SEARCH =
+      "SELECT F.FlightNumber, S.DepartureTime, S.ArrivalTime, FI.NumOfStops " +
+      "FROM Flight F, Schedule S, FlightInstance FI " +
+      "WHERE F.FlightNumber = FI.FlightNumber AND F.FlightNumber = S.FlightNumber " +
+      "AND F.DepartureCity = ? AND F.ArrivalCity = ? AND FI.FlightDate = ?";
+
+   // feature11: DepartureCity, ArrivalCity
+   public static final String ROUTE_ON_TIME =
+      "SELECT FI.FlightNumber, " +
+      "ROUND(100.0 * SUM(CASE WHEN DepartedOnTime THEN 1 ELSE 0 END)/COUNT(*), 2) AS DepartedOnTimePercent, " +
+      "ROUND(100.0 * SUM(CASE WHEN ArrivedOnTime THEN 1 ELSE 0 END)/COUNT(*), 2) AS ArrivedOnTimePercent " +
+      "FROM Flight F, FlightInstance FI " +
+      "WHERE F.FlightNumber = FI.FlightNumber " +
+      "AND F.DepartureCity = ? AND F.ArrivalCity = ? " +
+      "GROUP BY FI.FlightNumber";
+
+   // feature13: FlightNumber
+   public static final String PLANE_OF_FLIGHT =
+      "SELECT p.Make, p.Model FROM Flight f JOIN Plane p ON f.PlaneID = p.PlaneID WHERE f.FlightNumber = ?";
+
+   // feature16: PilotID
+   public static final String REQUESTS_BY_PILOT =
+      "SELECT RequestID, PlaneID, RepairCode, RequestDate FROM MaintenanceRequest WHERE PilotID = ?";
+
+   // feature19: ReservationID, CustomerID
+   public static final String INSTANCE_OF_RESERVATION =
+      "SELECT FlightInstanceID FROM Reservation WHERE ReservationID = ? AND CustomerID = ?";
+
+   // feature24: CustomerID
+   public static final String TRIPS_OF_CUSTOMER =
+      "SELECT R.ReservationID, R.Status, R.SeatNumber, FI.FlightNumber, FI.FlightDate, " +
+      "F.DepartureCity, F.ArrivalCity " +
+      "FROM Reservation R " +
+      "JOIN FlightInstance FI ON FI.FlightInstanceID = R.FlightInstanceID " +
+      "JOIN Flight F ON F.FlightNumber = FI.FlightNumber " +
+      "WHERE R.CustomerID = ? " +
+      "ORDER BY FI.FlightDate, R.ReservationID";
+
+}//end FeatureQueries
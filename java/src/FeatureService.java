@@ -0,0 +1,414 @@
+/*
+ * Feature service
+ * =============================
+ *
+ * The features of the batch runner written against Storage instead of
+ * SQL, so they run unchanged on Postgres and on the in-memory engine.
+ *
+ */
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Results have the columns and text of the matching FeatureQueries query
+ * as Postgres returns them (lower case names, dates as YYYY-MM-DD, times
+ * as HH:MM:SS, booleans as t / f), so the two engines' results compare
+ * line for line.
+ *
+ * On Postgres, bookings and cancellations go through feature14's and
+ * feature19's own transactions (AirlineManagement.book, WaitlistEngine.cancel)
+ * with their seat maps, journal and waitlist engine. The in-memory engine has
+ * no transactions: there they hold a lock per flight instance for their
+ * read-modify-write, assign the lowest free seat and promote the oldest
+ * waitlisted reservation directly.
+ *
+ */
+public class FeatureService {
+
+   private static final DateTimeFormatter CLOCK = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+   private final Storage storage;
+   // flight instance -> the lock of its bookings
+   private final ConcurrentHashMap<Integer, Object> instanceLocks = new ConcurrentHashMap<Integer, Object>();
+
+   public FeatureService(Storage storage) {
+      this.storage = storage;
+   }
+
+   public Storage storage() {
+      return storage;
+   }
+
+   // feature1
+   public ShardRouter.Result schedule(String flightNumber) throws SQLException {
+      Table out = new Table("dayofweek", "departuretime", "arrivaltime");
+      for (Object[] s : storage.schedules().ofFlight(flightNumber)) {
+         out.add(v(s, Schema.SCHEDULE, "DayOfWeek"), v(s, Schema.SCHEDULE, "DepartureTime"),
+                 v(s, Schema.SCHEDULE, "ArrivalTime"));
+      }
+      return out.result();
+   }
+
+   /**
+    * @return the instance of a flight on a date, or null
+    */
+   public Object[] instance(String flightNumber, LocalDate date) throws SQLException {
+      return storage.flightInstances().instance(flightNumber, date);
+   }
+
+   // feature2
+   public ShardRouter.Result seats(Object[] instance) {
+      int total = (Integer) Schema.FLIGHT_INSTANCE.value(instance, "SeatsTotal");
+      int sold = (Integer) Schema.FLIGHT_INSTANCE.value(instance, "SeatsSold");
+      return new Table("seatstotal", "seatssold", "seatsavailable")
+         .add(text(total), text(sold), text(total - sold)).result();
+   }
+
+   // feature3
+   public ShardRouter.Result status(Object[] instance) {
+      return new Table("departedontime", "arrivedontime")
+         .add(v(instance, Schema.FLIGHT_INSTANCE, "DepartedOnTime"),
+              v(instance, Schema.FLIGHT_INSTANCE, "ArrivedOnTime")).result();
+   }
+
+   // feature4
+   public ShardRouter.Result flightsOfDay(LocalDate date) throws SQLException {
+      Table out = new Table("flightinstanceid", "flightnumber", "flightdate");
+      for (Object[] fi : storage.flightInstances().onDate(date)) {
+         out.add(v(fi, Schema.FLIGHT_INSTANCE, "FlightInstanceID"), v(fi, Schema.FLIGHT_INSTANCE, "FlightNumber"),
+                 v(fi, Schema.FLIGHT_INSTANCE, "FlightDate"));
+      }
+      return out.result();
+   }
+
+   // feature5
+   public ShardRouter.Result passengers(Object[] instance) throws SQLException {
+      int id = (Integer) Schema.FLIGHT_INSTANCE.value(instance, "FlightInstanceID");
+      Table out = new Table("Status", "CustomerID");
+      for (String status : new String[] { "reserved", "waitlist", "flown" }) {
+         for (Object[] r : storage.reservations().passengers(id, status)) {
+            out.add(status, v(r, Schema.RESERVATION, "CustomerID"));
+         }
+      }
+      return out.result();
+   }
+
+   /**
+    * feature6
+    *
+    * @return the customer's fields, or null when there is no such reservation or customer
+    */
+   public ShardRouter.Result customerOfReservation(String reservationID) throws SQLException {
+      Object[] r = storage.reservations().reservation(reservationID);
+      Object[] c = r == null ? null : storage.customers().customer((Integer) Schema.RESERVATION.value(r, "CustomerID"));
+      if (c == null) return null;
+      Table out = new Table(CustomerStore.FIELDS);
+      List<String> row = new ArrayList<String>();
+      for (String field : CustomerStore.FIELDS) row.add(v(c, Schema.CUSTOMER, field));
+      out.rows.add(row);
+      return out.result();
+   }
+
+   // feature7
+   public ShardRouter.Result plane(String planeID) throws SQLException {
+      Table out = new Table("make", "model", "age", "lastrepairdate");
+      Object[] p = storage.planes().plane(planeID);
+      if (p != null) {
+         Integer year = (Integer) Schema.PLANE.value(p, "Year");
+         out.add(v(p, Schema.PLANE, "Make"), v(p, Schema.PLANE, "Model"),
+                 year == null ? null : text(LocalDate.now().getYear() - year), v(p, Schema.PLANE, "LastRepairDate"));
+      }
+      return out.result();
+   }
+
+   // feature8
+   public ShardRouter.Result repairsByTechnician(String technicianID) throws SQLException {
+      List<Object[]> repairs = storage.repairs().byTechnician(technicianID);
+      repairs.sort(byColumn(Schema.REPAIR, "RepairDate").reversed());
+      Table out = new Table("repairid", "planeid", "repaircode", "repairdate");
+      for (Object[] r : repairs) {
+         out.add(v(r, Schema.REPAIR, "RepairID"), v(r, Schema.REPAIR, "PlaneID"), v(r, Schema.REPAIR, "RepairCode"),
+                 v(r, Schema.REPAIR, "RepairDate"));
+      }
+      return out.result();
+   }
+
+   // feature9 (newest first) and feature15 (oldest first)
+   public ShardRouter.Result repairsOfPlane(String planeID, LocalDate start, LocalDate end, boolean newestFirst)
+         throws SQLException {
+      List<Object[]> repairs = storage.repairs().ofPlane(planeID, start, end);
+      if (newestFirst) Collections.reverse(repairs);
+      Table out = new Table("repairdate", "repaircode");
+      for (Object[] r : repairs) out.add(v(r, Schema.REPAIR, "RepairDate"), v(r, Schema.REPAIR, "RepairCode"));
+      return out.result();
+   }
+
+   // feature10
+   public ShardRouter.Result statistics(String flightNumber, LocalDate start, LocalDate end) throws SQLException {
+      List<Object[]> instances = storage.flightInstances().ofFlight(flightNumber, start, end);
+      long sold = 0, unsold = 0;
+      for (Object[] fi : instances) {
+         int s = (Integer) Schema.FLIGHT_INSTANCE.value(fi, "SeatsSold");
+         sold += s;
+         unsold += (Integer) Schema.FLIGHT_INSTANCE.value(fi, "SeatsTotal") - s;
+      }
+      // SUM over no rows is NULL
+      boolean none = instances.isEmpty();
+      return new Table("daysoperated", "totalsold", "totalunsold")
+         .add(text(instances.size()), none ? null : text(sold), none ? null : text(unsold)).result();
+   }
+
+   // feature11
+   public ShardRouter.Result routeSearch(String departureCity, String arrivalCity, LocalDate date) throws SQLException {
+      Table out = new Table("flightnumber", "departuretime", "arrivaltime", "numofstops");
+      for (Object[] f : storage.flights().route(departureCity, arrivalCity)) {
+         String flightNumber = (String) Schema.FLIGHT.value(f, "FlightNumber");
+         List<Object[]> instances = storage.flightInstances().find("FlightNumber", flightNumber, "FlightDate", date);
+         if (instances.isEmpty()) continue;
+         List<Object[]> schedules = storage.schedules().ofFlight(flightNumber);
+         for (Object[] fi : instances) {
+            for (Object[] s : schedules) {
+               out.add(flightNumber, v(s, Schema.SCHEDULE, "DepartureTime"), v(s, Schema.SCHEDULE, "ArrivalTime"),
+                       v(fi, Schema.FLIGHT_INSTANCE, "NumOfStops"));
+            }
+         }
+      }
+      return out.result();
+   }//end routeSearch
+
+   // feature13
+   public ShardRouter.Result planeOfFlight(String flightNumber) throws SQLException {
+      Table out = new Table("make", "model");
+      Object[] f = storage.flights().flight(flightNumber);
+      Object[] p = f == null ? null : storage.planes().plane((String) Schema.FLIGHT.value(f, "PlaneID"));
+      if (p != null) out.add(v(p, Schema.PLANE, "Make"), v(p, Schema.PLANE, "Model"));
+      return out.result();
+   }
+
+   /**
+    * feature14: reserves the chosen seat, or the lowest free one, or joins
+    * the waitlist when the instance is full.
+    *
+    * @return the message feature14 would print
+    */
+   public String book(int customerID, int instanceID, String seatChoice) throws SQLException {
+      AirlineManagement esql = storage.database();
+      if (esql != null) {
+         AirlineManagement db = esql.borrowForInstance(instanceID);
+         if (db == null) return "Invalid Flight Instance ID";
+         try {
+            return AirlineManagement.book(db, String.valueOf(customerID), String.valueOf(instanceID), instanceID, seatChoice);
+         } catch (SQLException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new SQLException(e.getMessage());
+         } finally {
+            esql.release(db);
+         }
+      }
+      synchronized (lockOf(instanceID)) {
+         Object[] fi = storage.flightInstances().instance(instanceID);
+         if (fi == null) return "Invalid Flight Instance ID";
+         int total = (Integer) Schema.FLIGHT_INSTANCE.value(fi, "SeatsTotal");
+         int sold = (Integer) Schema.FLIGHT_INSTANCE.value(fi, "SeatsSold");
+         Object date = Schema.FLIGHT_INSTANCE.value(fi, "FlightDate");
+         String reservationID = String.format("RES%d%03d", System.currentTimeMillis(), (int) (Math.random() * 1000));
+         if (sold >= total) {
+            storage.reservations().insert(new Object[] { reservationID, customerID, instanceID, "waitlist", null, date });
+            return "Flight is full. You've been added to waitlist. ID: " + reservationID;
+         }
+         BitSet taken = takenSeats(instanceID);
+         int seat = -1;
+         String note = "";
+         if (!seatChoice.isEmpty()) {
+            int chosen = SeatMap.parse(seatChoice);
+            if (chosen >= 0 && chosen < total && !taken.get(chosen)) {
+               seat = chosen;
+            } else {
+               note = "Seat " + seatChoice + " is not available, assigning another seat.\n";
+            }
+         }
+         if (seat < 0) {
+            seat = taken.nextClearBit(0);
+            if (seat >= total) seat = -1;
+         }
+         storage.reservations().insert(new Object[] { reservationID, customerID, instanceID, "reserved",
+                                                      seat < 0 ? null : seat, date });
+         storage.flightInstances().update(instanceID, "SeatsSold", sold + 1);
+         return note + "Reservation successful! ID: " + reservationID +
+                (seat < 0 ? "" : " Seat: " + SeatMap.label(seat));
+      }
+   }//end book
+
+   // feature16
+   public ShardRouter.Result requestsByPilot(String pilotID) throws SQLException {
+      Table out = new Table("requestid", "planeid", "repaircode", "requestdate");
+      for (Object[] m : storage.maintenanceRequests().byPilot(pilotID)) {
+         out.add(v(m, Schema.MAINTENANCE_REQUEST, "RequestID"), v(m, Schema.MAINTENANCE_REQUEST, "PlaneID"),
+                 v(m, Schema.MAINTENANCE_REQUEST, "RepairCode"), v(m, Schema.MAINTENANCE_REQUEST, "RequestDate"));
+      }
+      return out.result();
+   }
+
+   /**
+    * feature17: records a repair and the plane's last repair date.
+    *
+    * @return the new RepairID
+    */
+   public Object recordRepair(String technicianID, String planeID, String repairCode, LocalDate date) throws SQLException {
+      Object id = storage.repairs().insert(new Object[] { null, planeID, repairCode, date, technicianID });
+      storage.planes().update(planeID, "LastRepairDate", date);
+      return id;
+   }
+
+   /**
+    * feature18
+    *
+    * @return the new RequestID
+    */
+   public Object requestMaintenance(String pilotID, String planeID, String repairCode, LocalDate date) throws SQLException {
+      return storage.maintenanceRequests().insert(new Object[] { null, planeID, repairCode, date, pilotID });
+   }
+
+   /**
+    * feature19: cancels a reserved or waitlisted reservation of the
+    * customer; a freed seat goes to the oldest waitlisted reservation.
+    *
+    * @return the status before cancelling, or null when there is nothing to cancel
+    */
+   public String cancel(int customerID, String reservationID) throws SQLException {
+      AirlineManagement esql = storage.database();
+      if (esql != null) {
+         List<List<String>> found = esql.executeShardedQueryAndReturnResult(
+            FeatureQueries.INSTANCE_OF_RESERVATION, reservationID, customerID);
+         if (found.isEmpty()) return null;
+         AirlineManagement db = esql.borrowForInstance(Integer.parseInt(found.get(0).get(0)));
+         if (db == null) return null;
+         try {
+            return WaitlistEngine.cancel(db, reservationID, String.valueOf(customerID));
+         } finally {
+            esql.release(db);
+         }
+      }
+      Object[] r = storage.reservations().reservation(reservationID);
+      if (r == null || !Integer.valueOf(customerID).equals(Schema.RESERVATION.value(r, "CustomerID"))) return null;
+      int instanceID = (Integer) Schema.RESERVATION.value(r, "FlightInstanceID");
+      synchronized (lockOf(instanceID)) {
+         r = storage.reservations().reservation(reservationID);
+         String status = (String) Schema.RESERVATION.value(r, "Status");
+         if (!"reserved".equals(status) && !"waitlist".equals(status)) return null;
+         Object seat = Schema.RESERVATION.value(r, "SeatNumber");
+         storage.reservations().update(reservationID, "Status", "cancelled");
+         storage.reservations().update(reservationID, "SeatNumber", null);
+         if (status.equals("reserved")) {
+            List<Object[]> waiting = storage.reservations().waitlist(instanceID);
+            if (waiting.isEmpty()) {
+               Object[] fi = storage.flightInstances().instance(instanceID);
+               int sold = (Integer) Schema.FLIGHT_INSTANCE.value(fi, "SeatsSold");
+               storage.flightInstances().update(instanceID, "SeatsSold", sold - 1);
+            } else {
+               // the seat passes straight to the first booked waitlisted reservation, as in
+               // WaitlistEngine; SeatsSold stays
+               Object promoted = Schema.RESERVATION.value(waiting.get(0), "ReservationID");
+               storage.reservations().update(promoted, "Status", "reserved");
+               storage.reservations().update(promoted, "SeatNumber", seat);
+            }
+         }
+         return status;
+      }
+   }//end cancel
+
+   // feature24
+   public ShardRouter.Result trips(int customerID) throws SQLException {
+      List<Object[]> joined = new ArrayList<Object[]>();
+      for (Object[] r : storage.reservations().ofCustomer(customerID)) {
+         Object[] fi = storage.flightInstances().instance((Integer) Schema.RESERVATION.value(r, "FlightInstanceID"));
+         if (fi == null) continue;
+         Object[] f = storage.flights().flight((String) Schema.FLIGHT_INSTANCE.value(fi, "FlightNumber"));
+         if (f == null) continue;
+         joined.add(new Object[] { r, fi, f });
+      }
+      joined.sort(Comparator.comparing((Object[] j) -> (LocalDate) Schema.FLIGHT_INSTANCE.value((Object[]) j[1], "FlightDate"))
+                            .thenComparing(j -> (String) Schema.RESERVATION.value((Object[]) j[0], "ReservationID")));
+      Table out = new Table("reservationid", "status", "seatnumber", "flightnumber", "flightdate",
+                            "departurecity", "arrivalcity");
+      for (Object[] j : joined) {
+         Object[] r = (Object[]) j[0], fi = (Object[]) j[1], f = (Object[]) j[2];
+         out.add(v(r, Schema.RESERVATION, "ReservationID"), v(r, Schema.RESERVATION, "Status"),
+                 v(r, Schema.RESERVATION, "SeatNumber"), v(fi, Schema.FLIGHT_INSTANCE, "FlightNumber"),
+                 v(fi, Schema.FLIGHT_INSTANCE, "FlightDate"), v(f, Schema.FLIGHT, "DepartureCity"),
+                 v(f, Schema.FLIGHT, "ArrivalCity"));
+      }
+      return out.result();
+   }//end trips
+
+   // seats held by reserved reservations of an instance
+   private BitSet takenSeats(int instanceID) throws SQLException {
+      BitSet taken = new BitSet();
+      for (Object[] r : storage.reservations().passengers(instanceID, "reserved")) {
+         Integer seat = (Integer) Schema.RESERVATION.value(r, "SeatNumber");
+         if (seat != null) taken.set(seat);
+      }
+      return taken;
+   }
+
+   private Object lockOf(int instanceID) {
+      return instanceLocks.computeIfAbsent(instanceID, id -> new Object());
+   }
+
+   private static Comparator<Object[]> byColumn(Schema.Table table, String column) {
+      final int c = table.column(column);
+      return Comparator.comparing((Object[] row) -> row[c], Comparator.nullsFirst(FeatureService::compare));
+   }
+
+   @SuppressWarnings("unchecked")
+   private static int compare(Object a, Object b) {
+      return ((Comparable<Object>) a).compareTo(b);
+   }
+
+   private static String v(Object[] row, Schema.Table table, String column) {
+      return text(table.value(row, column));
+   }
+
+   /**
+    * @return a value as Postgres' getString would spell it
+    */
+   static String text(Object value) {
+      if (value == null) return null;
+      if (value instanceof Boolean) return (Boolean) value ? "t" : "f";
+      if (value instanceof LocalTime) return ((LocalTime) value).format(CLOCK);
+      if (value instanceof BigDecimal) return ((BigDecimal) value).toPlainString();
+      return value.toString();
+   }
+
+   // a result being built
+   private static final class Table {
+      final List<String> columns;
+      final List<List<String>> rows = new ArrayList<List<String>>();
+
+      Table(String... columns) {
+         this.columns = Arrays.asList(columns);
+      }
+
+      Table add(String... values) {
+         rows.add(Arrays.asList(values));
+         return this;
+      }
+
+      ShardRouter.Result result() {
+         return new ShardRouter.Result(columns, rows);
+      }
+   }//end Table
+
+}//end FeatureService
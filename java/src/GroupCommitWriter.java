@@ -0,0 +1,299 @@
+/*
+ * Group commit writer
+ * =============================
+ *
+ * Write-behind pipeline for repair entries (feature17) and maintenance
+ * requests (feature18). Submissions wait in a bounded queue; one writer
+ * drains them into multi-row inserts and commits each batch once.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submitters get a future that completes only after the batch holding their
+ * entry has committed, so an acknowledgement always means the row is durable.
+ * When the queue is full, submit blocks for up to the configured timeout and
+ * then fails fast instead of letting the backlog grow without bound.
+ * Entries still queued when the writer stops fail rather than wait forever;
+ * interactive callers bound their wait with DEFAULT_WAIT_MILLIS all the same.
+ *
+ */
+public class GroupCommitWriter implements Runnable {
+
+   public static final int DEFAULT_CAPACITY = 1024;
+   public static final int DEFAULT_MAX_BATCH = 256;
+   public static final long DEFAULT_OFFER_MILLIS = 5000;
+   // how long the menu waits for its entry's batch to commit
+   public static final long DEFAULT_WAIT_MILLIS = 30000;
+
+   /**
+    * What a submitter learns about the batch its entry was committed in.
+    */
+   public static final class BatchResult {
+      public final int batchSize;
+      public final long commitMillis;
+
+      BatchResult(int batchSize, long commitMillis) {
+         this.batchSize = batchSize;
+         this.commitMillis = commitMillis;
+      }
+   }//end BatchResult
+
+   // one queued Repair or MaintenanceRequest row
+   static final class Entry {
+      final boolean repair;
+      final String planeID;
+      final String repairCode;
+      final String date;
+      // TechnicianID for repairs, PilotID for maintenance requests
+      final String personID;
+      final CompletableFuture<BatchResult> done = new CompletableFuture<BatchResult>();
+
+      Entry(boolean repair, String planeID, String repairCode, String date, String personID) {
+         this.repair = repair;
+         this.planeID = planeID;
+         this.repairCode = repairCode;
+         this.date = date;
+         this.personID = personID;
+      }
+   }//end Entry
+
+   // owner of the caches that must see committed rows
+   private final AirlineManagement owner;
+   private final AirlineManagement db;
+   private final BlockingQueue<Entry> queue;
+   private final int maxBatch;
+   private final long offerMillis;
+   private volatile boolean running = false;
+   private Thread worker = null;
+
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong entries = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong commitNanos = new AtomicLong();
+   private volatile int maxBatchSeen = 0;
+   private volatile long maxCommitNanos = 0;
+
+   /**
+    * Creates a writer with its own connection to the owner's database.
+    *
+    * @param esql the interactive database handle
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public GroupCommitWriter(AirlineManagement esql) throws SQLException {
+      this(esql, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_OFFER_MILLIS);
+   }
+
+   public GroupCommitWriter(AirlineManagement esql, int capacity, int maxBatch, long offerMillis) throws SQLException {
+      this.owner = esql;
+      this.db = new AirlineManagement(esql.openConnection(), esql);
+      this.queue = new ArrayBlockingQueue<Entry>(capacity);
+      this.maxBatch = maxBatch;
+      this.offerMillis = offerMillis;
+   }
+
+   public synchronized void start() {
+      if (running) return;
+      running = true;
+      worker = new Thread(this, "group-commit-writer");
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   /**
+    * Writes everything still queued and closes the writer's connection;
+    * whatever the worker leaves behind fails.
+    */
+   public void shutdown() {
+      running = false;
+      try {
+         if (worker != null) worker.join(10000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      failQueued();
+      db.cleanup();
+   }//end shutdown
+
+   // fails the entries nobody will write
+   private void failQueued() {
+      List<Entry> left = new ArrayList<Entry>();
+      queue.drainTo(left);
+      for (Entry entry : left) {
+         entry.done.completeExceptionally(new SQLException("Write queue is shut down"));
+      }
+   }
+
+   /**
+    * Queues a Repair row; the plane's LastRepairDate is updated in the same batch.
+    *
+    * @return completes once the row is committed
+    * @throws java.sql.SQLException when the queue stays full past the timeout
+    */
+   public CompletableFuture<BatchResult> submitRepair(String planeID, String repairCode,
+                                                      String repairDate, String technicianID) throws SQLException {
+      return submit(new Entry(true, planeID, repairCode, repairDate, technicianID));
+   }
+
+   /**
+    * Queues a MaintenanceRequest row.
+    *
+    * @return completes once the row is committed
+    * @throws java.sql.SQLException when the queue stays full past the timeout
+    */
+   public CompletableFuture<BatchResult> submitRequest(String planeID, String repairCode,
+                                                       String requestDate, String pilotID) throws SQLException {
+      return submit(new Entry(false, planeID, repairCode, requestDate, pilotID));
+   }
+
+   private CompletableFuture<BatchResult> submit(Entry entry) throws SQLException {
+      if (!running) throw new SQLException("Write queue is shut down");
+      try {
+         if (!queue.offer(entry, offerMillis, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            throw new SQLException("Write queue is full, try again shortly");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while queueing write");
+      }
+      // shut down meanwhile: the worker may be gone already. If the entry is no longer
+      // queued, the worker or shutdown took it and completes it.
+      if (!running && queue.remove(entry)) throw new SQLException("Write queue is shut down");
+      return entry.done;
+   }
+
+   public void run() {
+      List<Entry> batch = new ArrayList<Entry>(maxBatch);
+      while (running || !queue.isEmpty()) {
+         try {
+            Entry first = queue.poll(200, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            queue.drainTo(batch, maxBatch - 1);
+            write(batch);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         } catch (RuntimeException e) {
+            // fails this batch, not the writer
+            System.err.println("Group commit writer failed: " + e);
+            for (Entry entry : batch) entry.done.completeExceptionally(e);
+         } finally {
+            batch.clear();
+         }
+      }
+      failQueued();
+   }//end run
+
+   // commits a batch at once, or entry by entry if the batch fails
+   private void write(List<Entry> batch) {
+      long start = System.nanoTime();
+      try {
+         commit(batch);
+      } catch (SQLException batchError) {
+         // isolate the bad rows so one typo does not fail a whole shift change
+         for (Entry entry : batch) {
+            List<Entry> single = new ArrayList<Entry>(1);
+            single.add(entry);
+            long singleStart = System.nanoTime();
+            try {
+               commit(single);
+               finish(single, singleStart);
+            } catch (SQLException e) {
+               entry.done.completeExceptionally(e);
+            }
+         }
+         return;
+      }
+      finish(batch, start);
+   }//end write
+
+   private void finish(List<Entry> batch, long start) {
+      long nanos = System.nanoTime() - start;
+      batches.incrementAndGet();
+      entries.addAndGet(batch.size());
+      commitNanos.addAndGet(nanos);
+      if (batch.size() > maxBatchSeen) maxBatchSeen = batch.size();
+      if (nanos > maxCommitNanos) maxCommitNanos = nanos;
+      BatchResult result = new BatchResult(batch.size(), TimeUnit.NANOSECONDS.toMillis(nanos));
+      for (Entry entry : batch) {
+         try {
+            owner.maintenanceWritten(entry.repair, entry.planeID, entry.repairCode, entry.date, entry.personID);
+         } catch (RuntimeException e) {
+            // the row is committed whatever a cache makes of it
+            System.err.println("Group commit writer could not update caches: " + e);
+         }
+         entry.done.complete(result);
+      }
+   }
+
+   private void commit(List<Entry> batch) throws SQLException {
+      StringBuilder repairs = new StringBuilder();
+      StringBuilder requests = new StringBuilder();
+      // latest repair date per plane, in submission order like one-by-one updates
+      Map<String, String> lastRepair = new LinkedHashMap<String, String>();
+      for (Entry e : batch) {
+         StringBuilder values = e.repair ? repairs : requests;
+         values.append(values.length() == 0 ? "" : ", ")
+               .append(String.format("('%s', '%s', '%s', '%s')",
+                       quote(e.planeID), quote(e.repairCode), quote(e.date), quote(e.personID)));
+         if (e.repair) {
+            lastRepair.remove(e.planeID);
+            lastRepair.put(e.planeID, e.date);
+         }
+      }
+
+      db.beginTransaction();
+      try {
+         if (repairs.length() > 0) {
+            db.executeUpdate("INSERT INTO Repair (PlaneID, RepairCode, RepairDate, TechnicianID) VALUES " + repairs);
+         }
+         for (Map.Entry<String, String> plane : lastRepair.entrySet()) {
+            db.executeUpdate(String.format(
+               "UPDATE Plane SET LastRepairDate = '%s' WHERE PlaneID = '%s'",
+               quote(plane.getValue()), quote(plane.getKey())));
+         }
+         if (requests.length() > 0) {
+            db.executeUpdate("INSERT INTO MaintenanceRequest (PlaneID, RepairCode, RequestDate, PilotID) VALUES " + requests);
+         }
+         db.commit();
+      } catch (SQLException e) {
+         db.rollback();
+         throw e;
+      }
+   }//end commit
+
+   private static String quote(String s) {
+      return s.replace("'", "''");
+   }
+
+   public int queueDepth() { return queue.size(); }
+   public long batchCount() { return batches.get(); }
+   public long entryCount() { return entries.get(); }
+   public long rejectedCount() { return rejected.get(); }
+
+   /**
+    * @return one line summary of batch sizes and commit latency
+    */
+   public String report() {
+      long b = batches.get();
+      return String.format(
+         "group commit: %d entries in %d batches (avg %.1f, max %d per batch), " +
+         "commit avg %.1f ms, max %.1f ms, %d rejected, %d queued",
+         entries.get(), b, b == 0 ? 0.0 : (double) entries.get() / b, maxBatchSeen,
+         b == 0 ? 0.0 : commitNanos.get() / 1e6 / b, maxCommitNanos / 1e6,
+         rejected.get(), queue.size());
+   }
+
+}//end GroupCommitWriter
@@ -0,0 +1,419 @@
+/*
+ * Index advisor
+ * =============================
+ *
+ * Reads a workload log written with -Dairline.workload (see QueryLog) and
+ * proposes the indexes that would have made it cheaper, each with the
+ * planner's estimate of what it saves over the recorded calls.
+ *
+ */
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *    java IndexAdvisor dbname port user workload.tsv [top]
+ *
+ * For every recorded statement the advisor takes the columns a table is
+ * filtered on by equality, then the first range column (or, without one,
+ * the ORDER BY columns), and proposes a B-tree index on them unless an
+ * existing index already starts with those columns. The benefit is
+ * measured, not guessed: each sample statement is EXPLAINed before and
+ * after the index exists, and the cost difference is multiplied by the
+ * number of calls. With the hypopg extension the index is hypothetical;
+ * without it the index is really built inside a transaction that is rolled
+ * back, which holds a SHARE lock on the table while it runs, so point the
+ * advisor at a copy or run it in a quiet hour.
+ *
+ */
+public class IndexAdvisor {
+
+   /**
+    * A proposed index and the recorded statements it serves.
+    */
+   static final class Candidate {
+      final String table;
+      final List<String> columns;
+      // how many leading columns come from equality predicates
+      final int equal;
+      final List<QueryLog.Entry> entries = new ArrayList<QueryLog.Entry>();
+      long calls;
+      double before;
+      double after;
+
+      Candidate(String table, List<String> columns, int equal) {
+         this.table = table;
+         this.columns = columns;
+         this.equal = equal;
+      }
+
+      String name() {
+         StringBuilder name = new StringBuilder(table.toLowerCase(Locale.ROOT));
+         for (String column : columns) name.append('_').append(column.toLowerCase(Locale.ROOT));
+         return name.toString();
+      }
+
+      String ddl() {
+         StringBuilder cols = new StringBuilder();
+         for (String column : columns) {
+            if (cols.length() > 0) cols.append(", ");
+            cols.append(column);
+         }
+         return "CREATE INDEX " + name() + " ON " + table + " (" + cols + ")";
+      }
+
+      double benefit() {
+         return before - after;
+      }
+   }//end Candidate
+
+   private static final String LITERAL =
+      "(?:'(?:[^']|'')*'|-?\\d+(?:\\.\\d+)?|(?:DATE|TIME|TIMESTAMP)\\s+'[^']*'|TRUE|FALSE)";
+   private static final Pattern PREDICATE = Pattern.compile(
+      "(?i)(?:\\b(\\w+)\\.)?\\b(\\w+)\\s*(<=|>=|<>|=|<|>|\\bBETWEEN\\b|\\bIN\\b|\\bLIKE\\b)\\s*\\(?\\s*(" + LITERAL + ")");
+   private static final Pattern FROM = Pattern.compile(
+      "(?i)\\bFROM\\s+(.*?)(?=\\bWHERE\\b|\\bGROUP\\s+BY\\b|\\bORDER\\s+BY\\b|\\bLIMIT\\b|\\bFOR\\s+UPDATE\\b|$)");
+   private static final Pattern UPDATE = Pattern.compile("(?i)^UPDATE\\s+(\\w+)(?:\\s+(?:AS\\s+)?(\\w+))?\\s+SET\\b");
+   private static final Pattern WHERE = Pattern.compile(
+      "(?i)\\bWHERE\\s+(.*?)(?=\\bGROUP\\s+BY\\b|\\bORDER\\s+BY\\b|\\bLIMIT\\b|\\bFOR\\s+UPDATE\\b|\\bRETURNING\\b|$)");
+   private static final Pattern ORDER = Pattern.compile("(?i)\\bORDER\\s+BY\\s+(.*?)(?=\\bLIMIT\\b|\\bFOR\\s+UPDATE\\b|$)");
+   private static final Pattern JOIN = Pattern.compile("(?i),|\\b(?:LEFT|RIGHT|FULL|INNER|CROSS)?\\s*(?:OUTER\\s+)?JOIN\\b");
+   private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+      "on", "using", "where", "join", "left", "right", "full", "inner", "cross", "outer", "natural", "group", "order", "limit"));
+
+   private final AirlineManagement esql;
+   // table (lower case) -> its columns (lower case)
+   private final Map<String, Set<String>> columns;
+   // table (lower case) -> column lists of its plain indexes
+   private final Map<String, List<List<String>>> indexes;
+   private final boolean hypothetical;
+
+   IndexAdvisor(AirlineManagement esql, Map<String, Set<String>> columns,
+                Map<String, List<List<String>>> indexes, boolean hypothetical) {
+      this.esql = esql;
+      this.columns = columns;
+      this.indexes = indexes;
+      this.hypothetical = hypothetical;
+   }
+
+   /**
+    * @return an advisor for the tables and indexes of a database
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   static IndexAdvisor open(AirlineManagement esql) throws SQLException {
+      Map<String, Set<String>> columns = new HashMap<String, Set<String>>();
+      Map<String, List<List<String>>> indexes = new HashMap<String, List<List<String>>>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT lower(table_name), lower(column_name) FROM information_schema.columns WHERE table_schema = 'public'")) {
+         Set<String> cols = columns.get(row.get(0));
+         if (cols == null) {
+            cols = new HashSet<String>();
+            columns.put(row.get(0), cols);
+         }
+         cols.add(row.get(1));
+      }
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT lower(tablename), indexdef FROM pg_indexes WHERE schemaname = 'public'")) {
+         List<String> cols = indexColumns(row.get(1));
+         if (cols == null) continue;
+         List<List<String>> list = indexes.get(row.get(0));
+         if (list == null) {
+            list = new ArrayList<List<String>>();
+            indexes.put(row.get(0), list);
+         }
+         list.add(cols);
+      }
+      boolean hypothetical = esql.executeQuery("SELECT 1 FROM pg_extension WHERE extname = 'hypopg'") > 0;
+      return new IndexAdvisor(esql, columns, indexes, hypothetical);
+   }//end open
+
+   /**
+    * @return the key columns of a plain B-tree index definition, or null
+    *         for partial, expression and non B-tree indexes
+    */
+   static List<String> indexColumns(String indexdef) {
+      Matcher m = Pattern.compile("(?i)USING btree \\(([^()]*)\\)(.*)$").matcher(indexdef);
+      if (!m.find() || m.group(2).toUpperCase(Locale.ROOT).contains(" WHERE ")) return null;
+      List<String> cols = new ArrayList<String>();
+      for (String col : m.group(1).split(",")) {
+         String c = col.trim().split("\\s+")[0].replace("\"", "").toLowerCase(Locale.ROOT);
+         if (!c.matches("\\w+")) return null;
+         cols.add(c);
+      }
+      return cols;
+   }
+
+   /**
+    * @return the index a statement would want on each table it reads
+    */
+   List<Candidate> wanted(String sql) {
+      List<Candidate> wanted = new ArrayList<Candidate>();
+      String verb = sql.trim().split("\\s+")[0].toUpperCase(Locale.ROOT);
+      if (!verb.equals("SELECT") && !verb.equals("UPDATE") && !verb.equals("DELETE")) return wanted;
+
+      // alias (lower case) -> table as written; tables map to themselves
+      Map<String, String> aliases = new LinkedHashMap<String, String>();
+      Matcher m = UPDATE.matcher(sql.trim());
+      if (m.find()) addTable(aliases, m.group(1), m.group(2));
+      m = FROM.matcher(sql);
+      while (m.find()) {
+         for (String piece : JOIN.split(m.group(1))) {
+            String ref = piece.replaceAll("(?i)\\s+(ON|USING)\\b.*$", "").trim();
+            if (ref.isEmpty() || ref.startsWith("(")) continue;
+            String[] words = ref.split("\\s+");
+            String alias = words.length > 2 && words[1].equalsIgnoreCase("AS") ? words[2]
+                         : words.length > 1 ? words[1] : null;
+            addTable(aliases, words[0], alias);
+         }
+      }
+      if (aliases.isEmpty()) return wanted;
+
+      // table (lower case) -> equality columns, range columns, order columns
+      Map<String, Set<String>> equal = new LinkedHashMap<String, Set<String>>();
+      Map<String, Set<String>> range = new LinkedHashMap<String, Set<String>>();
+      m = WHERE.matcher(sql);
+      while (m.find()) {
+         Matcher p = PREDICATE.matcher(m.group(1));
+         while (p.find()) {
+            String table = resolve(aliases, p.group(1), p.group(2));
+            if (table == null) continue;
+            String op = p.group(3).toUpperCase(Locale.ROOT);
+            if (op.equals("<>")) continue;
+            if (op.equals("LIKE") && !p.group(4).matches("'[^%_].*")) continue;
+            Map<String, Set<String>> into = op.equals("=") || op.equals("IN") ? equal : range;
+            column(into, table).add(p.group(2));
+         }
+      }
+      Map<String, List<String>> order = new LinkedHashMap<String, List<String>>();
+      m = ORDER.matcher(sql);
+      if (m.find()) {
+         for (String item : m.group(1).split(",")) {
+            Matcher c = Pattern.compile("^\\s*(?:(\\w+)\\.)?(\\w+)\\s*(ASC|DESC)?\\s*$", Pattern.CASE_INSENSITIVE).matcher(item);
+            String table = c.find() ? resolve(aliases, c.group(1), c.group(2)) : null;
+            if (table == null) {
+               order.clear();
+               break;
+            }
+            List<String> cols = order.get(table);
+            if (cols == null) {
+               cols = new ArrayList<String>();
+               order.put(table, cols);
+            }
+            cols.add(c.group(2));
+         }
+      }
+
+      Set<String> tables = new LinkedHashSet<String>(equal.keySet());
+      tables.addAll(range.keySet());
+      if (order.size() == 1) tables.addAll(order.keySet());
+      for (String table : tables) {
+         List<String> cols = new ArrayList<String>();
+         if (equal.containsKey(table)) cols.addAll(equal.get(table));
+         int equalCount = cols.size();
+         if (range.containsKey(table)) {
+            for (String c : range.get(table)) {
+               if (!contains(cols, c)) {
+                  cols.add(c);
+                  break;
+               }
+            }
+         } else if (order.size() == 1 && order.containsKey(table)) {
+            for (String c : order.get(table)) {
+               if (!contains(cols, c)) cols.add(c);
+            }
+         }
+         if (!cols.isEmpty()) wanted.add(new Candidate(display(aliases, table), cols, equalCount));
+      }
+      return wanted;
+   }//end wanted
+
+   private void addTable(Map<String, String> aliases, String table, String alias) {
+      if (!columns.containsKey(table.toLowerCase(Locale.ROOT))) return;
+      aliases.put(table.toLowerCase(Locale.ROOT), table);
+      if (alias != null && !KEYWORDS.contains(alias.toLowerCase(Locale.ROOT))) {
+         aliases.put(alias.toLowerCase(Locale.ROOT), table);
+      }
+   }
+
+   // the table (lower case) a possibly qualified column belongs to, or null
+   private String resolve(Map<String, String> aliases, String qualifier, String column) {
+      String col = column.toLowerCase(Locale.ROOT);
+      if (qualifier != null) {
+         String table = aliases.get(qualifier.toLowerCase(Locale.ROOT));
+         if (table == null) return null;
+         table = table.toLowerCase(Locale.ROOT);
+         return columns.get(table).contains(col) ? table : null;
+      }
+      String found = null;
+      for (String table : new HashSet<String>(aliases.values())) {
+         String t = table.toLowerCase(Locale.ROOT);
+         if (columns.get(t).contains(col)) {
+            if (found != null && !found.equals(t)) return null;
+            found = t;
+         }
+      }
+      return found;
+   }
+
+   private static String display(Map<String, String> aliases, String table) {
+      return aliases.get(table);
+   }
+
+   private static Set<String> column(Map<String, Set<String>> map, String table) {
+      Set<String> cols = map.get(table);
+      if (cols == null) {
+         cols = new LinkedHashSet<String>();
+         map.put(table, cols);
+      }
+      return cols;
+   }
+
+   private static boolean contains(List<String> cols, String column) {
+      for (String c : cols) {
+         if (c.equalsIgnoreCase(column)) return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return whether an existing index starts with the candidate's equality
+    *         columns, in any order, followed by the rest in order
+    */
+   boolean covered(Candidate candidate) {
+      int equalCount = candidate.equal;
+      List<List<String>> existing = indexes.get(candidate.table.toLowerCase(Locale.ROOT));
+      if (existing == null) return false;
+      List<String> want = new ArrayList<String>();
+      for (String c : candidate.columns) want.add(c.toLowerCase(Locale.ROOT));
+      for (List<String> index : existing) {
+         if (index.size() < want.size()) continue;
+         if (!new HashSet<String>(index.subList(0, equalCount)).equals(new HashSet<String>(want.subList(0, equalCount)))) continue;
+         if (index.subList(equalCount, want.size()).equals(want.subList(equalCount, want.size()))) return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return the uncovered candidates of a workload, grouped by index
+    */
+   List<Candidate> candidates(List<QueryLog.Entry> workload) {
+      Map<String, Candidate> byName = new LinkedHashMap<String, Candidate>();
+      for (QueryLog.Entry entry : workload) {
+         // no sample to explain, see QueryLog
+         if (entry.sample.isEmpty()) continue;
+         for (Candidate c : wanted(entry.sample)) {
+            if (covered(c)) continue;
+            Candidate known = byName.get(c.name());
+            if (known == null) {
+               known = c;
+               byName.put(c.name(), c);
+            }
+            known.entries.add(entry);
+            known.calls += entry.count;
+         }
+      }
+      return new ArrayList<Candidate>(byName.values());
+   }
+
+   /**
+    * Fills in the cost of each candidate's statements without and with the
+    * index, weighted by their call counts.
+    *
+    * @throws java.sql.SQLException when a statement cannot be explained
+    */
+   void measure(Candidate candidate) throws SQLException {
+      for (QueryLog.Entry e : candidate.entries) candidate.before += e.count * cost(esql, e.sample);
+      if (hypothetical) {
+         esql.executeQueryAndReturnResult("SELECT * FROM hypopg_create_index(?)", candidate.ddl());
+         try {
+            for (QueryLog.Entry e : candidate.entries) candidate.after += e.count * cost(esql, e.sample);
+         } finally {
+            esql.executeQueryAndReturnResult("SELECT hypopg_reset()");
+         }
+         return;
+      }
+      Connection connection = esql.openConnection();
+      try {
+         connection.setAutoCommit(false);
+         AirlineManagement tx = new AirlineManagement(connection, esql);
+         tx.executeUpdate(candidate.ddl());
+         for (QueryLog.Entry e : candidate.entries) candidate.after += e.count * cost(tx, e.sample);
+         connection.rollback();
+      } finally {
+         connection.close();
+      }
+   }//end measure
+
+   // the planner's total cost estimate of a statement
+   private static double cost(AirlineManagement db, String sql) throws SQLException {
+      List<List<String>> plan = db.executeQueryAndReturnResult("EXPLAIN " + sql);
+      Matcher m = COST.matcher(plan.isEmpty() ? "" : plan.get(0).get(0));
+      if (!m.find()) throw new SQLException("No cost in plan of " + sql);
+      return Double.parseDouble(m.group(1));
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java IndexAdvisor <dbname> <port> <user> <workload.tsv> [top]");
+         return;
+      }
+      List<QueryLog.Entry> workload = QueryLog.read(new File(args[3]));
+      int top = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         IndexAdvisor advisor = open(esql);
+         long calls = 0;
+         for (QueryLog.Entry e : workload) calls += e.count;
+         System.out.println("Workload: " + workload.size() + " statement shape(s), " + calls + " call(s)");
+         System.out.println(advisor.hypothetical ? "Measuring with hypothetical indexes (hypopg)"
+                                                 : "Measuring by building each index in a rolled back transaction");
+         List<Candidate> proposals = new ArrayList<Candidate>();
+         for (Candidate c : advisor.candidates(workload)) {
+            try {
+               advisor.measure(c);
+            } catch (SQLException e) {
+               System.err.println("Skipping " + c.name() + ": " + e.getMessage());
+               continue;
+            }
+            if (c.benefit() > 0) proposals.add(c);
+         }
+         Collections.sort(proposals, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+               return Double.compare(b.benefit(), a.benefit());
+            }
+         });
+         if (proposals.isEmpty()) {
+            System.out.println("No index would make the recorded workload cheaper");
+         }
+         for (Candidate c : proposals.subList(0, Math.min(top, proposals.size()))) {
+            System.out.println();
+            System.out.println(c.ddl() + ";");
+            System.out.println(String.format("   saves %.0f of %.0f cost units (%.0f%%) over %d call(s)",
+                                             c.benefit(), c.before, 100 * c.benefit() / c.before, c.calls));
+            for (QueryLog.Entry e : c.entries) {
+               System.out.println("   " + e.count + "x  " + e.shape);
+            }
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end IndexAdvisor
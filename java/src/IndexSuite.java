@@ -0,0 +1,211 @@
+/*
+ * Index regression suite
+ * =============================
+ *
+ * Fills the database with a large synthetic data set and runs EXPLAIN on
+ * every feature query against it; a query whose table is read with a
+ * sequential scan fails the suite.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *    java IndexSuite dbname port user generate [scale]
+ *    java IndexSuite dbname port user check
+ *    java IndexSuite dbname port user drop
+ *
+ * generate adds scale flight instances and customers (default 200000),
+ * four reservations per instance and proportional planes, flights,
+ * schedules, repairs and maintenance requests, then ANALYZEs. Generated
+ * rows have text keys starting with G and integer keys from 1000000, so
+ * drop removes exactly them. Run it on an unsharded database.
+ *
+ * check runs with the planner's real choices (ExplainCheck disables
+ * sequential scans because the sample data is tiny; at this size the
+ * planner only picks one when an index is missing). Exits with status 1
+ * when any query fails.
+ *
+ * Features 12 (fare calendar load) and 14 (booking) are not probed: the
+ * first reads FlightInstance whole by design and the second is a write.
+ *
+ */
+public class IndexSuite {
+
+   public static final int DEFAULT_SCALE = 200000;
+
+   // integer keys of generated rows start here
+   private static final int BASE = 1000000;
+
+   private static final String CITIES =
+      "ARRAY['New York','Miami','San Francisco','Los Angeles','Chicago','Seattle','Boston'," +
+      "'Denver','Dallas','Houston','Atlanta','Phoenix','Portland','Las Vegas','Orlando'," +
+      "'Detroit','Minneapolis','Philadelphia','Charlotte','Salt Lake City']";
+
+   /**
+    * Inserts the synthetic data set.
+    *
+    * @throws java.sql.SQLException when a table cannot be filled
+    */
+   static void generate(AirlineManagement esql, int scale) throws SQLException {
+      int planes = Math.max(10, scale / 100);
+      int people = Math.max(10, scale / 100);
+      int flights = Math.max(10, scale / 10);
+      String first = "DATE '2025-01-01'";
+      if (PartitionManager.isPartitioned(esql)) {
+         esql.executeQueryAndReturnResult("SELECT airline_ensure_partitions(DATE '2025-01-01', DATE '2025-12-01')");
+      }
+      step(esql, "Plane", String.format(
+         "INSERT INTO Plane SELECT 'GPL' || g, (ARRAY['Boeing','Airbus','Embraer'])[1 + g %% 3], " +
+         "'M' || (g %% 20), 1990 + g %% 35, %s + g %% 365 FROM generate_series(1, %d) g", first, planes));
+      step(esql, "Pilot", String.format(
+         "INSERT INTO Pilot SELECT 'GP' || g, 'Pilot ' || g FROM generate_series(1, %d) g", people));
+      step(esql, "Technician", String.format(
+         "INSERT INTO Technician SELECT 'GT' || g, 'Technician ' || g FROM generate_series(1, %d) g", people));
+      step(esql, "Flight", String.format(
+         "INSERT INTO Flight SELECT 'GF' || g, 'GPL' || (1 + g %% %d), " +
+         "(%s)[1 + g %% 20], (%s)[1 + (g * 7 + 3) %% 20] FROM generate_series(1, %d) g",
+         planes, CITIES, CITIES, flights));
+      step(esql, "Schedule", String.format(
+         "INSERT INTO Schedule SELECT %d + g, 'GF' || (1 + g %% %d), " +
+         "(ARRAY['Monday','Tuesday','Wednesday','Thursday','Friday','Saturday','Sunday'])[1 + g %% 7], " +
+         "TIME '06:00' + (g %% 12) * INTERVAL '1 hour', TIME '08:00' + (g %% 12) * INTERVAL '1 hour' " +
+         "FROM generate_series(1, %d) g", BASE, flights, 7 * flights));
+      step(esql, "FlightInstance", String.format(
+         "INSERT INTO FlightInstance SELECT %d + g, 'GF' || (1 + g %% %d), %s + g %% 365, " +
+         "g %% 5 <> 0, g %% 4 <> 0, 180, g %% 181, g %% 3, 100 + g %% 400 " +
+         "FROM generate_series(1, %d) g", BASE, flights, first, scale));
+      step(esql, "Customer", String.format(
+         "INSERT INTO Customer SELECT %d + g, 'First' || g, 'Last' || g, " +
+         "(ARRAY['M','F'])[1 + g %% 2], DATE '1950-01-01' + g %% 20000, g || ' Main St', " +
+         "'555-' || lpad((g %% 10000)::TEXT, 4, '0'), lpad((g %% 100000)::TEXT, 5, '0') " +
+         "FROM generate_series(1, %d) g", BASE, scale));
+      // reservation g belongs to instance 1 + g % scale, whose date is first + (1 + g % scale) % 365
+      step(esql, "Reservation", String.format(
+         "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status, SeatNumber, FlightDate) " +
+         "SELECT 'GR' || g, %d + 1 + (g * 7) %% %d, %d + 1 + g %% %d, " +
+         "(ARRAY['reserved','waitlist','flown','cancelled'])[1 + g %% 4], NULL, %s + (1 + g %% %d) %% 365 " +
+         "FROM generate_series(1, %d) g", BASE, scale, BASE, scale, first, scale, 4 * scale));
+      step(esql, "Repair", String.format(
+         "INSERT INTO Repair (PlaneID, RepairCode, RepairDate, TechnicianID) " +
+         "SELECT 'GPL' || (1 + g %% %d), 'RC00' || (1 + g %% 9), %s + g %% 365, 'GT' || (1 + g %% %d) " +
+         "FROM generate_series(1, %d) g", planes, first, people, scale));
+      step(esql, "MaintenanceRequest", String.format(
+         "INSERT INTO MaintenanceRequest (PlaneID, RepairCode, RequestDate, PilotID) " +
+         "SELECT 'GPL' || (1 + g %% %d), 'RC00' || (1 + g %% 9), %s + g %% 365, 'GP' || (1 + g %% %d) " +
+         "FROM generate_series(1, %d) g", planes, first, people, scale));
+      esql.executeUpdate("ANALYZE");
+   }//end generate
+
+   private static void step(AirlineManagement esql, String table, String sql) throws SQLException {
+      long start = System.currentTimeMillis();
+      int rows = esql.executeUpdate(sql);
+      System.out.println(table + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms");
+   }
+
+   /**
+    * Deletes the generated rows, children first.
+    *
+    * @throws java.sql.SQLException when a table cannot be cleaned
+    */
+   static void drop(AirlineManagement esql) throws SQLException {
+      step(esql, "MaintenanceRequest", "DELETE FROM MaintenanceRequest WHERE PlaneID LIKE 'GPL%'");
+      step(esql, "Repair", "DELETE FROM Repair WHERE PlaneID LIKE 'GPL%'");
+      step(esql, "Reservation", "DELETE FROM Reservation WHERE ReservationID LIKE 'GR%'");
+      step(esql, "Customer", "DELETE FROM Customer WHERE CustomerID > " + BASE);
+      step(esql, "FlightInstance", "DELETE FROM FlightInstance WHERE FlightInstanceID > " + BASE);
+      step(esql, "Schedule", "DELETE FROM Schedule WHERE ScheduleID > " + BASE);
+      step(esql, "Flight", "DELETE FROM Flight WHERE FlightNumber LIKE 'GF%'");
+      step(esql, "Technician", "DELETE FROM Technician WHERE TechnicianID LIKE 'GT%'");
+      step(esql, "Pilot", "DELETE FROM Pilot WHERE PilotID LIKE 'GP%'");
+      step(esql, "Plane", "DELETE FROM Plane WHERE PlaneID LIKE 'GPL%'");
+      esql.executeUpdate("ANALYZE");
+   }//end drop
+
+   /**
+    * @return every feature query with sample parameters, the date-filtered
+    *         ones included
+    * @throws java.sql.SQLException when the samples cannot be read
+    */
+   static List<ExplainCheck.Probe> probes(AirlineManagement esql) throws SQLException {
+      List<ExplainCheck.Probe> probes = new ArrayList<ExplainCheck.Probe>(ExplainCheck.probes(esql));
+      List<List<String>> instance = esql.executeQueryAndReturnResult(
+         "SELECT FI.FlightInstanceID, FI.FlightNumber, F.PlaneID, F.DepartureCity, F.ArrivalCity " +
+         "FROM FlightInstance FI JOIN Flight F ON F.FlightNumber = FI.FlightNumber " +
+         "ORDER BY FI.FlightInstanceID DESC LIMIT 1");
+      List<List<String>> reservation = esql.executeQueryAndReturnResult(
+         "SELECT ReservationID, CustomerID FROM Reservation ORDER BY ReservationID DESC LIMIT 1");
+      List<List<String>> repair = esql.executeQueryAndReturnResult(
+         "SELECT TechnicianID FROM Repair WHERE TechnicianID IS NOT NULL ORDER BY RepairID DESC LIMIT 1");
+      List<List<String>> request = esql.executeQueryAndReturnResult(
+         "SELECT PilotID FROM MaintenanceRequest WHERE PilotID IS NOT NULL ORDER BY RequestID DESC LIMIT 1");
+      if (instance.isEmpty() || reservation.isEmpty() || repair.isEmpty() || request.isEmpty()) {
+         throw new SQLException("FlightInstance, Reservation, Repair and MaintenanceRequest need at least one row");
+      }
+      int instanceID = Integer.parseInt(instance.get(0).get(0));
+      String flightNumber = instance.get(0).get(1);
+      String planeID = instance.get(0).get(2);
+      String from = instance.get(0).get(3);
+      String to = instance.get(0).get(4);
+
+      probes.add(new ExplainCheck.Probe("feature1", "schedule", FeatureQueries.SCHEDULE_OF_FLIGHT,
+                                        flightNumber));
+      probes.add(new ExplainCheck.Probe("feature2", "flightinstance", FeatureQueries.SEATS_OF_INSTANCE,
+                                        instanceID));
+      probes.add(new ExplainCheck.Probe("feature6", "reservation", FeatureQueries.CUSTOMER_OF_RESERVATION,
+                                        reservation.get(0).get(0)));
+      probes.add(new ExplainCheck.Probe("feature7", "plane", FeatureQueries.PLANE_DETAILS,
+                                        planeID));
+      probes.add(new ExplainCheck.Probe("feature8", "repair", FeatureQueries.REPAIRS_BY_TECHNICIAN,
+                                        repair.get(0).get(0)));
+      probes.add(new ExplainCheck.Probe("feature11/on-time", "flight", FeatureQueries.ROUTE_ON_TIME,
+                                        from, to));
+      probes.add(new ExplainCheck.Probe("feature13", "flight", FeatureQueries.PLANE_OF_FLIGHT,
+                                        flightNumber));
+      probes.add(new ExplainCheck.Probe("feature16", "maintenancerequest", FeatureQueries.REQUESTS_BY_PILOT,
+                                        request.get(0).get(0)));
+      probes.add(new ExplainCheck.Probe("feature24", "reservation", FeatureQueries.TRIPS_OF_CUSTOMER,
+                                        Integer.parseInt(reservation.get(0).get(1))));
+      return probes;
+   }//end probes
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java IndexSuite <dbname> <port> <user> generate [scale] | check | drop");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      int failed = 0;
+      try {
+         if (args[3].equals("generate")) {
+            generate(esql, args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SCALE);
+         } else if (args[3].equals("drop")) {
+            drop(esql);
+         } else if (args[3].equals("check")) {
+            if ("off".equals(System.getProperty("explain.seqscan"))) {
+               esql.executeUpdate("SET enable_seqscan = off");
+            }
+            for (ExplainCheck.Probe probe : probes(esql)) {
+               List<String> plan = ExplainCheck.explain(esql, probe.sql, probe.params);
+               String problem = ExplainCheck.verdict(plan, probe.table);
+               System.out.println((problem == null ? "PASS " : "FAIL ") + probe.feature +
+                                  (problem == null ? "" : ": " + problem));
+               if (problem != null) {
+                  failed++;
+                  for (String line : plan) System.out.println("      " + line);
+               }
+            }
+            System.out.println(failed == 0 ? "All feature queries use an index" : failed + " query(s) failed");
+         } else {
+            System.err.println("Unknown command " + args[3]);
+         }
+      } finally {
+         esql.cleanup();
+      }
+      if (failed > 0) System.exit(1);
+   }//end main
+
+}//end IndexSuite
@@ -0,0 +1,126 @@
+/*
+ * Itinerary cache
+ * =============================
+ *
+ * Per-customer "my trips" lists. A list is read once through the
+ * reservation_customer index and then served from memory until a booking,
+ * cancellation or waitlist promotion of that customer invalidates it.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU map of CustomerID -> immutable trip list, bounded so a long running
+ * node does not keep every customer it has ever served.
+ *
+ */
+public class ItineraryCache {
+
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   /**
+    * One reservation with its flight, as shown to the customer.
+    */
+   public static final class Trip {
+      public final String reservationID;
+      public final String status;
+      public final String seat;
+      public final String flightNumber;
+      public final String flightDate;
+      public final String departureCity;
+      public final String arrivalCity;
+
+      Trip(String reservationID, String status, String seat, String flightNumber,
+           String flightDate, String departureCity, String arrivalCity) {
+         this.reservationID = reservationID;
+         this.status = status;
+         this.seat = seat;
+         this.flightNumber = flightNumber;
+         this.flightDate = flightDate;
+         this.departureCity = departureCity;
+         this.arrivalCity = arrivalCity;
+      }
+   }//end Trip
+
+   private final Map<Integer, List<Trip>> trips;
+   // bumped by every invalidation, so a read that raced one is not cached
+   private long generation = 0;
+   private long hits = 0;
+   private long misses = 0;
+
+   public ItineraryCache() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   public ItineraryCache(final int capacity) {
+      this.trips = new LinkedHashMap<Integer, List<Trip>>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, List<Trip>> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   /**
+    * Returns a customer's trips, reading them from the database only when
+    * they are not cached.
+    *
+    * @param esql the database handle
+    * @param customerID the customer of the session
+    * @return trips ordered by flight date
+    * @throws java.sql.SQLException when the read fails
+    */
+   public List<Trip> tripsFor(AirlineManagement esql, int customerID) throws SQLException {
+      long readGeneration;
+      synchronized (this) {
+         List<Trip> cached = trips.get(customerID);
+         if (cached != null) {
+            hits++;
+            return cached;
+         }
+         misses++;
+         readGeneration = generation;
+      }
+      List<Trip> loaded = new ArrayList<Trip>();
+      for (List<String> row : esql.executeShardedQueryAndReturnResult(FeatureQueries.TRIPS_OF_CUSTOMER, customerID)) {
+         String seat = row.get(2) == null ? "" : SeatMap.label(Integer.parseInt(row.get(2)));
+         loaded.add(new Trip(row.get(0), row.get(1), seat, row.get(3), row.get(4), row.get(5), row.get(6)));
+      }
+      // rows of several shards arrive one shard after another
+      if (esql.shards() != null) {
+         loaded.sort((a, b) -> a.flightDate.equals(b.flightDate)
+                               ? a.reservationID.compareTo(b.reservationID) : a.flightDate.compareTo(b.flightDate));
+      }
+      loaded = Collections.unmodifiableList(loaded);
+      synchronized (this) {
+         if (generation == readGeneration) trips.put(customerID, loaded);
+      }
+      return loaded;
+   }//end tripsFor
+
+   /**
+    * Drops a customer's cached trips after one of their reservations changed.
+    */
+   public synchronized void invalidate(int customerID) {
+      generation++;
+      trips.remove(customerID);
+   }
+
+   /**
+    * Forgets every customer, e.g. after changes may have been missed.
+    */
+   public synchronized void clear() {
+      trips.clear();
+      generation++;
+   }
+
+   public synchronized int size() { return trips.size(); }
+   public synchronized long hitCount() { return hits; }
+   public synchronized long missCount() { return misses; }
+
+}//end ItineraryCache
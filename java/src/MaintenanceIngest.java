@@ -0,0 +1,287 @@
+/*
+ * Maintenance request ingestion
+ * =============================
+ *
+ * Loads maintenance request files exported by the aircraft health
+ * monitoring systems: thousands of rows checked and written in batches,
+ * where feature18 files one request per prompt and commit.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The file is CSV with a header naming at least PlaneID, RepairCode and
+ * PilotID, in any order; RequestDate (M/D/YY or YYYY-MM-DD) defaults to
+ * today and any other column, RequestID included, is ignored.
+ *
+ * A row is rejected when a field is missing, the date does not parse, the
+ * pilot or plane does not exist, or its plane already has an open request
+ * with the same RepairCode, in the database or earlier in the file. Planes
+ * and open requests come from the maintenance priority index, pilots from
+ * one read of Pilot. Rejected rows go to <file>.rejected with the reason
+ * as an extra column.
+ *
+ * Accepted rows are inserted airline.ingest.batch (default 500) at a time,
+ * one multi-row INSERT and commit per batch, on a connection of their own.
+ * The 7.3 driver has no COPY support, so this is the fastest path it
+ * offers. A failed batch is rolled back and its rows are rejected; the
+ * batches before it stay committed.
+ *
+ *    java MaintenanceIngest dbname port user file
+ *
+ */
+public class MaintenanceIngest {
+
+   public static final int DEFAULT_BATCH = 500;
+
+   static final String MISSING = "missing field";
+   static final String BAD_DATE = "bad RequestDate";
+   static final String UNKNOWN_PILOT = "unknown PilotID";
+   static final String UNKNOWN_PLANE = "unknown PlaneID";
+   static final String OPEN = "already open";
+   static final String FAILED = "batch failed";
+
+   /**
+    * Counts of one ingestion.
+    */
+   public static final class Report {
+      public long accepted = 0;
+      public long batches = 0;
+      public final Map<String, Long> rejected = new LinkedHashMap<String, Long>();
+      public long millis = 0;
+      public File rejectFile = null;
+
+      public long rejectedCount() {
+         long n = 0;
+         for (long c : rejected.values()) n += c;
+         return n;
+      }
+
+      public List<String> lines() {
+         List<String> lines = new ArrayList<String>();
+         long total = accepted + rejectedCount();
+         lines.add(String.format("%d row(s) read, %d accepted in %d batch(es), %d rejected, %.1f s, %.0f rows/s",
+                                 total, accepted, batches, rejectedCount(), millis / 1000.0,
+                                 millis == 0 ? 0.0 : total * 1000.0 / millis));
+         for (Map.Entry<String, Long> e : rejected.entrySet()) {
+            lines.add(String.format("  %-16s %d", e.getKey(), e.getValue()));
+         }
+         if (rejectFile != null) lines.add("Rejected rows written to " + rejectFile);
+         return lines;
+      }
+   }//end Report
+
+   // one accepted row waiting for its batch
+   private static final class Row {
+      final List<String> source;
+      final String planeID;
+      final String repairCode;
+      final LocalDate requestDate;
+      final String pilotID;
+
+      Row(List<String> source, String planeID, String repairCode, LocalDate requestDate, String pilotID) {
+         this.source = source;
+         this.planeID = planeID;
+         this.repairCode = repairCode;
+         this.requestDate = requestDate;
+         this.pilotID = pilotID;
+      }
+   }//end Row
+
+   private final AirlineManagement esql;
+   private final int batchSize;
+   private final Report report = new Report();
+   private final Set<String> pilots = new HashSet<String>();
+   // "PlaneID|RepairCode" of every open request, including the ones accepted so far
+   private final Set<String> open = new HashSet<String>();
+   private MaintenancePriority planes;
+   private File rejectFile;
+   private Writer rejects;
+   private List<String> header;
+
+   private MaintenanceIngest(AirlineManagement esql, int batchSize) {
+      this.esql = esql;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Checks and loads a maintenance request file.
+    *
+    * @param esql the database handle
+    * @param path the CSV file
+    * @return accepted and rejected counts
+    * @throws java.io.IOException when the file cannot be read or has no usable header
+    * @throws java.sql.SQLException when the reference data cannot be read
+    */
+   public static Report ingest(AirlineManagement esql, String path) throws IOException, SQLException {
+      MaintenanceIngest ingest = new MaintenanceIngest(esql, Math.max(1, Integer.getInteger("airline.ingest.batch", DEFAULT_BATCH)));
+      ingest.run(path);
+      return ingest.report;
+   }
+
+   private void run(String path) throws IOException, SQLException {
+      long start = System.nanoTime();
+      planes = esql.maintenancePriority();
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT PilotID FROM Pilot")) {
+         pilots.add(row.get(0));
+      }
+      for (MaintenancePriority.PlaneScore plane : planes.top(Integer.MAX_VALUE)) {
+         for (MaintenancePriority.OpenRequest r : plane.openRequests) open.add(plane.planeID + "|" + r.repairCode);
+      }
+
+      rejectFile = new File(path + ".rejected");
+      // left by an earlier run of the same file
+      if (rejectFile.exists() && !rejectFile.delete()) throw new IOException("Cannot replace " + rejectFile);
+      AirlineManagement db = new AirlineManagement(esql.openConnection(), esql);
+      CsvReader in = CsvReader.open(path);
+      try {
+         header = in.next();
+         if (header == null) throw new IOException(path + " is empty");
+         int planeCol = column("PlaneID");
+         int codeCol = column("RepairCode");
+         int pilotCol = column("PilotID");
+         int dateCol = column("RequestDate");
+         if (planeCol < 0 || codeCol < 0 || pilotCol < 0) {
+            throw new IOException(path + " needs PlaneID, RepairCode and PilotID columns");
+         }
+
+         List<Row> batch = new ArrayList<Row>(batchSize);
+         LocalDate today = LocalDate.now();
+         List<String> source;
+         while ((source = in.next()) != null) {
+            String planeID = get(source, planeCol);
+            String repairCode = get(source, codeCol);
+            String pilotID = get(source, pilotCol);
+            String date = dateCol < 0 ? null : get(source, dateCol);
+            if (planeID == null || repairCode == null || pilotID == null) {
+               reject(source, MISSING);
+               continue;
+            }
+            LocalDate requestDate;
+            try {
+               requestDate = date == null ? today : Dates.parse(date);
+            } catch (DateTimeParseException e) {
+               reject(source, BAD_DATE);
+               continue;
+            }
+            if (!pilots.contains(pilotID)) {
+               reject(source, UNKNOWN_PILOT);
+            } else if (planes.plane(planeID) == null) {
+               reject(source, UNKNOWN_PLANE);
+            } else if (!open.add(planeID + "|" + repairCode)) {
+               reject(source, OPEN);
+            } else {
+               batch.add(new Row(source, planeID, repairCode, requestDate, pilotID));
+               if (batch.size() == batchSize) flush(db, batch);
+            }
+         }
+         flush(db, batch);
+      } finally {
+         in.close();
+         db.cleanup();
+         if (rejects != null) rejects.close();
+         report.millis = (System.nanoTime() - start) / 1000000;
+      }
+   }//end run
+
+   // inserts and commits one batch, then tells the caches
+   private void flush(AirlineManagement db, List<Row> batch) throws IOException {
+      if (batch.isEmpty()) return;
+      StringBuilder sql = new StringBuilder("INSERT INTO MaintenanceRequest (PlaneID, RepairCode, RequestDate, PilotID) VALUES ");
+      Object[] params = new Object[batch.size() * 4];
+      int p = 0;
+      for (Row r : batch) {
+         sql.append(p == 0 ? "" : ", ").append("(?, ?, ?, ?)");
+         params[p++] = r.planeID;
+         params[p++] = r.repairCode;
+         params[p++] = r.requestDate;
+         params[p++] = r.pilotID;
+      }
+      try {
+         db.beginTransaction();
+         try {
+            db.executeUpdate(sql.toString(), params);
+            db.commit();
+         } catch (SQLException e) {
+            db.rollback();
+            throw e;
+         }
+         report.accepted += batch.size();
+         report.batches++;
+         for (Row r : batch) {
+            esql.maintenanceWritten(false, r.planeID, r.repairCode, r.requestDate.toString(), r.pilotID);
+         }
+      } catch (SQLException e) {
+         System.err.println("Batch of " + batch.size() + " rejected: " + e.getMessage());
+         for (Row r : batch) {
+            open.remove(r.planeID + "|" + r.repairCode);
+            reject(r.source, FAILED);
+         }
+      }
+      batch.clear();
+   }//end flush
+
+   private void reject(List<String> source, String reason) throws IOException {
+      Long n = report.rejected.get(reason);
+      report.rejected.put(reason, n == null ? 1 : n + 1);
+      if (rejects == null) {
+         rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile), StandardCharsets.UTF_8));
+         List<String> head = new ArrayList<String>(header);
+         head.add("Reason");
+         write(head);
+         report.rejectFile = rejectFile;
+      }
+      List<String> line = new ArrayList<String>(source);
+      line.add(reason);
+      write(line);
+   }
+
+   private void write(List<String> fields) throws IOException {
+      for (int i = 0; i < fields.size(); i++) {
+         if (i > 0) rejects.write(',');
+         if (fields.get(i) != null) rejects.write(Exporter.CsvSink.field(fields.get(i)));
+      }
+      rejects.write('\n');
+   }
+
+   private int column(String name) {
+      return header.indexOf(name);
+   }
+
+   private static String get(List<String> row, int column) {
+      if (column >= row.size() || row.get(column) == null) return null;
+      String value = row.get(column).trim();
+      return value.isEmpty() ? null : value;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java [-Dairline.ingest.batch=500] MaintenanceIngest <dbname> <port> <user> <file>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         for (String line : ingest(esql, args[3]).lines()) System.out.println(line);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end MaintenanceIngest
@@ -0,0 +1,268 @@
+/*
+ * Maintenance priority index
+ * =============================
+ *
+ * Ranks planes by how urgently they need work, combining open maintenance
+ * requests, time since the last repair and plane age.
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * score = 10 * open requests + 1 * days since LastRepairDate + 2 * age in years
+ *
+ * A request is open while no Repair on the same plane with the same
+ * RepairCode is dated on or after the request. Every date and code column
+ * is nullable: a request without a RequestDate is closed by any repair of
+ * its code, and a request or repair without a RepairCode, or a repair
+ * without a RepairDate, matches nothing. Since "today" shifts every
+ * plane's score by the same amount, planes are ordered by a date-free rank
+ * key and the ranking only changes when feature17 or feature18 writes.
+ * After each write the ranking is republished as an immutable array, so
+ * top-N and per-plane reads never lock.
+ *
+ */
+public class MaintenancePriority {
+
+   public static final int OPEN_REQUEST_WEIGHT = 10;
+   public static final int DAY_WEIGHT = 1;
+   public static final int AGE_WEIGHT = 2;
+
+   /**
+    * A maintenance request that no repair has matched yet.
+    */
+   public static final class OpenRequest {
+      // null for requests filed since the index was loaded
+      public final String requestID;
+      // either may be null
+      public final String repairCode;
+      public final LocalDate requestDate;
+      public final String pilotID;
+
+      OpenRequest(String requestID, String repairCode, LocalDate requestDate, String pilotID) {
+         this.requestID = requestID;
+         this.repairCode = repairCode;
+         this.requestDate = requestDate;
+         this.pilotID = pilotID;
+      }
+   }//end OpenRequest
+
+   /**
+    * Immutable priority entry of one plane.
+    */
+   public static final class PlaneScore {
+      public final String planeID;
+      public final int year;
+      public final LocalDate lastRepairDate;
+      public final List<OpenRequest> openRequests;
+      final long rankKey;
+
+      PlaneScore(String planeID, int year, LocalDate lastRepairDate, List<OpenRequest> openRequests) {
+         this.planeID = planeID;
+         this.year = year;
+         this.lastRepairDate = lastRepairDate;
+         this.openRequests = Collections.unmodifiableList(openRequests);
+         // score(today) minus the part every plane shares
+         long lastDay = lastRepairDate == null ? 0 : lastRepairDate.toEpochDay();
+         this.rankKey = (long) OPEN_REQUEST_WEIGHT * openRequests.size()
+                        - (long) DAY_WEIGHT * lastDay - (long) AGE_WEIGHT * year;
+      }
+
+      public long daysSinceRepair(LocalDate today) {
+         return lastRepairDate == null ? today.toEpochDay() : today.toEpochDay() - lastRepairDate.toEpochDay();
+      }
+
+      public int age(LocalDate today) {
+         return today.getYear() - year;
+      }
+
+      public long score(LocalDate today) {
+         return (long) OPEN_REQUEST_WEIGHT * openRequests.size()
+                + DAY_WEIGHT * daysSinceRepair(today) + (long) AGE_WEIGHT * age(today);
+      }
+   }//end PlaneScore
+
+   private static final Comparator<PlaneScore> MOST_URGENT = new Comparator<PlaneScore>() {
+      public int compare(PlaneScore a, PlaneScore b) {
+         int c = Long.compare(b.rankKey, a.rankKey);
+         return c != 0 ? c : a.planeID.compareTo(b.planeID);
+      }
+   };
+
+   // guarded by this
+   private final Map<String, PlaneScore> planes = new HashMap<String, PlaneScore>();
+   private final TreeSet<PlaneScore> queue = new TreeSet<PlaneScore>(MOST_URGENT);
+
+   // published on every change
+   private volatile PlaneScore[] ranking = new PlaneScore[0];
+   private volatile Map<String, PlaneScore> byPlane = new HashMap<String, PlaneScore>();
+
+   /**
+    * Builds the index from Plane, MaintenanceRequest and Repair.
+    *
+    * @param esql the database handle
+    * @return the loaded index
+    * @throws java.sql.SQLException when one of the scans fails
+    */
+   public static MaintenancePriority load(AirlineManagement esql) throws SQLException {
+      MaintenancePriority index = new MaintenancePriority();
+      Map<String, List<OpenRequest>> open = new HashMap<String, List<OpenRequest>>();
+      Map<String, List<String[]>> repairs = new HashMap<String, List<String[]>>();
+
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT PlaneID, RepairCode, RepairDate FROM Repair")) {
+         // closes no request
+         if (row.get(1) == null || row.get(2) == null) continue;
+         list(repairs, row.get(0)).add(new String[] { row.get(1), row.get(2) });
+      }
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT RequestID, PlaneID, RepairCode, RequestDate, PilotID FROM MaintenanceRequest ORDER BY RequestDate, RequestID")) {
+         LocalDate requested = row.get(3) == null ? null : LocalDate.parse(row.get(3));
+         if (!repaired(repairs.get(row.get(1)), row.get(2), requested)) {
+            list(open, row.get(1)).add(new OpenRequest(row.get(0), row.get(2), requested, row.get(4)));
+         }
+      }
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT PlaneID, Year, LastRepairDate FROM Plane")) {
+         List<OpenRequest> requests = open.get(row.get(0));
+         index.replace(new PlaneScore(row.get(0), row.get(1) == null ? 0 : Integer.parseInt(row.get(1)),
+                                      row.get(2) == null ? null : LocalDate.parse(row.get(2)),
+                                      requests == null ? new ArrayList<OpenRequest>() : requests));
+      }
+      index.publish();
+      return index;
+   }//end load
+
+   /**
+    * Applies a committed feature18 request.
+    */
+   public synchronized void requestFiled(String planeID, String repairCode, LocalDate requestDate, String pilotID) {
+      PlaneScore old = planes.get(planeID);
+      if (old == null) return;
+      List<OpenRequest> requests = new ArrayList<OpenRequest>(old.openRequests);
+      requests.add(new OpenRequest(null, repairCode, requestDate, pilotID));
+      replace(new PlaneScore(planeID, old.year, old.lastRepairDate, requests));
+      publish();
+   }
+
+   /**
+    * Applies a committed feature17 repair: it closes matching open requests
+    * and becomes the plane's LastRepairDate.
+    */
+   public synchronized void repairRecorded(String planeID, String repairCode, LocalDate repairDate) {
+      PlaneScore old = planes.get(planeID);
+      if (old == null) return;
+      List<OpenRequest> requests = new ArrayList<OpenRequest>();
+      for (OpenRequest r : old.openRequests) {
+         if (!closes(repairCode, repairDate, r.repairCode, r.requestDate)) {
+            requests.add(r);
+         }
+      }
+      replace(new PlaneScore(planeID, old.year, repairDate, requests));
+      publish();
+   }
+
+   /**
+    * @return the n most urgent planes, most urgent first
+    */
+   public List<PlaneScore> top(int n) {
+      PlaneScore[] current = ranking;
+      return Arrays.asList(current).subList(0, Math.min(n, current.length));
+   }
+
+   /**
+    * @return the priority entry of a plane, or null if it is unknown
+    */
+   public PlaneScore plane(String planeID) {
+      return byPlane.get(planeID);
+   }
+
+   public int size() {
+      return byPlane.size();
+   }
+
+   /**
+    * Writes every plane with its open requests for SnapshotStore.
+    */
+   public synchronized void snapshot(SnapshotStore.Writer out) {
+      out.writeInt(planes.size());
+      for (PlaneScore p : planes.values()) {
+         out.writeString(p.planeID);
+         out.writeInt(p.year);
+         out.writeDate(p.lastRepairDate);
+         out.writeInt(p.openRequests.size());
+         for (OpenRequest r : p.openRequests) {
+            out.writeString(r.requestID);
+            out.writeString(r.repairCode);
+            out.writeDate(r.requestDate);
+            out.writeString(r.pilotID);
+         }
+      }
+   }//end snapshot
+
+   /**
+    * Rebuilds an index from what snapshot wrote.
+    */
+   public static MaintenancePriority restore(SnapshotStore.Reader in) {
+      MaintenancePriority index = new MaintenancePriority();
+      synchronized (index) {
+         for (int n = in.readInt(); n > 0; n--) {
+            String planeID = in.readString();
+            int year = in.readInt();
+            LocalDate lastRepairDate = in.readDate();
+            List<OpenRequest> requests = new ArrayList<OpenRequest>();
+            for (int r = in.readInt(); r > 0; r--) {
+               requests.add(new OpenRequest(in.readString(), in.readString(), in.readDate(), in.readString()));
+            }
+            index.replace(new PlaneScore(planeID, year, lastRepairDate, requests));
+         }
+         index.publish();
+      }
+      return index;
+   }//end restore
+
+   private void replace(PlaneScore score) {
+      PlaneScore old = planes.put(score.planeID, score);
+      if (old != null) queue.remove(old);
+      queue.add(score);
+   }
+
+   private void publish() {
+      ranking = queue.toArray(new PlaneScore[queue.size()]);
+      byPlane = new HashMap<String, PlaneScore>(planes);
+   }
+
+   private static boolean repaired(List<String[]> repairs, String repairCode, LocalDate requested) {
+      if (repairs == null) return false;
+      for (String[] r : repairs) {
+         if (closes(r[0], LocalDate.parse(r[1]), repairCode, requested)) return true;
+      }
+      return false;
+   }
+
+   // whether a repair closes a request of the same plane
+   private static boolean closes(String repairCode, LocalDate repairDate, String requestCode, LocalDate requested) {
+      if (repairCode == null || repairDate == null || !repairCode.equals(requestCode)) return false;
+      return requested == null || !requested.isAfter(repairDate);
+   }
+
+   private static <T> List<T> list(Map<String, List<T>> map, String key) {
+      List<T> list = map.get(key);
+      if (list == null) {
+         list = new ArrayList<T>();
+         map.put(key, list);
+      }
+      return list;
+   }
+
+}//end MaintenancePriority
@@ -0,0 +1,419 @@
+/*
+ * Memory storage
+ * =============================
+ *
+ * An in-memory engine for the repositories, loaded from the CSV files
+ * under data/, so the features and the batch runner can run without a
+ * database: for load tests that should measure the application alone,
+ * and as a baseline to tell database cost from application cost.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Each table keeps its rows in a hash map by key, a hash index for every
+ * column in Schema.Table.hashed and an ordered index for every column in
+ * Schema.Table.ordered. Reads share a table's lock and writes take it
+ * alone, so a reader never sees a row in one index and not another.
+ *
+ * Stored rows are never changed: an update stores a new array, so callers
+ * may keep the rows they were given but must not modify them. Keys are
+ * unique and SERIAL keys are filled in; foreign keys and CHECK constraints
+ * are not enforced, and NULLs are not indexed (column = NULL finds nothing,
+ * as in SQL). Nothing is written back to the CSV files.
+ *
+ */
+public class MemoryStorage implements Storage {
+
+   private final Map<Schema.Table, MemoryTable> tables = new HashMap<Schema.Table, MemoryTable>();
+
+   /**
+    * Creates an engine with every table of Schema, empty.
+    */
+   public MemoryStorage() {
+      for (Schema.Table table : Schema.TABLES) {
+         tables.put(table, new MemoryTable(table));
+      }
+   }
+
+   /**
+    * Loads <Table>.csv for every table found in dir, by header names;
+    * columns missing from a file stay null. Reservation dates are copied
+    * from their flight instances, as load_data.sql does.
+    *
+    * @throws java.io.IOException when a file cannot be read or a row does not parse
+    */
+   public static MemoryStorage load(File dir) throws IOException {
+      MemoryStorage storage = new MemoryStorage();
+      for (Schema.Table table : Schema.TABLES) {
+         File file = new File(dir, table.name + ".csv");
+         if (file.isFile()) storage.tables.get(table).load(file);
+      }
+      try {
+         MemoryTable reservations = storage.tables.get(Schema.RESERVATION);
+         MemoryTable instances = storage.tables.get(Schema.FLIGHT_INSTANCE);
+         int date = Schema.RESERVATION.column("FlightDate");
+         for (Object[] reservation : reservations.all()) {
+            if (reservation[date] != null) continue;
+            Object[] instance = instances.get(Schema.RESERVATION.value(reservation, "FlightInstanceID"));
+            if (instance != null) {
+               reservations.update(reservation[Schema.RESERVATION.key], "FlightDate",
+                                   Schema.FLIGHT_INSTANCE.value(instance, "FlightDate"));
+            }
+         }
+      } catch (SQLException e) {
+         throw new IOException(e.getMessage());
+      }
+      return storage;
+   }//end load
+
+   public String name() {
+      return "memory";
+   }
+
+   public Repository repository(Schema.Table table) {
+      return tables.get(table);
+   }
+
+   public void close() {
+   }
+
+   /**
+    * @return rows per table, for a line after loading
+    */
+   public String describe() {
+      StringBuilder out = new StringBuilder();
+      for (Schema.Table table : Schema.TABLES) {
+         if (out.length() > 0) out.append(", ");
+         out.append(table.name).append(' ').append(tables.get(table).count());
+      }
+      return out.toString();
+   }
+
+   /**
+    * Loads a data directory and reports the time and row counts. Given a
+    * database as well, compares every table with Postgres row by row, as
+    * a check that the engine holds what load_data.sql loads.
+    *
+    *    java MemoryStorage [datadir] [dbname port user]
+    */
+   public static void main(String[] args) throws Exception {
+      File dir = new File(args.length > 0 ? args[0] : "data");
+      long start = System.currentTimeMillis();
+      MemoryStorage memory = load(dir);
+      System.out.println("Loaded " + memory.describe() + " in " + (System.currentTimeMillis() - start) + " ms");
+      if (args.length < 4) return;
+
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[1], args[2], args[3], "");
+      int differences = 0;
+      try {
+         esql.openShards();
+         PgStorage pg = new PgStorage(esql);
+         for (Schema.Table table : Schema.TABLES) {
+            int missing = 0, extra = 0, changed = 0;
+            List<Object[]> stored = pg.repository(table).all();
+            Map<Object, Object[]> inMemory = new HashMap<Object, Object[]>();
+            for (Object[] row : memory.repository(table).all()) inMemory.put(row[table.key], row);
+            for (Object[] row : stored) {
+               Object[] mine = inMemory.remove(row[table.key]);
+               if (mine == null) missing++;
+               else if (!same(mine, row)) changed++;
+            }
+            extra = inMemory.size();
+            differences += missing + extra + changed;
+            System.out.println(String.format("%-20s %8d rows  %6d missing  %6d extra  %6d different",
+                                             table.name, stored.size(), missing, extra, changed));
+         }
+      } finally {
+         esql.cleanup();
+      }
+      if (differences > 0) System.exit(1);
+   }//end main
+
+   // equal as Postgres would print them
+   private static boolean same(Object[] a, Object[] b) {
+      for (int i = 0; i < a.length; i++) {
+         String x = FeatureService.text(a[i]), y = FeatureService.text(b[i]);
+         if (x == null ? y != null : !x.equals(y)) return false;
+      }
+      return true;
+   }
+
+   /**
+    * One table and its indexes.
+    */
+   static final class MemoryTable implements Repository {
+      private final Schema.Table table;
+      private final ConcurrentHashMap<Object, Object[]> rows = new ConcurrentHashMap<Object, Object[]>();
+      // column -> value -> keys of the rows holding it
+      private final Map<Integer, ConcurrentHashMap<Object, Set<Object>>> hashed =
+         new HashMap<Integer, ConcurrentHashMap<Object, Set<Object>>>();
+      private final Map<Integer, ConcurrentSkipListMap<Object, Set<Object>>> ordered =
+         new HashMap<Integer, ConcurrentSkipListMap<Object, Set<Object>>>();
+      private final ReadWriteLock lock = new ReentrantReadWriteLock();
+      // highest SERIAL key handed out or loaded
+      private final AtomicInteger serial = new AtomicInteger();
+      // key -> when the row was inserted; loading inserts in file order, as COPY does
+      private final ConcurrentHashMap<Object, Long> inserted = new ConcurrentHashMap<Object, Long>();
+      private final AtomicLong inserts = new AtomicLong();
+
+      MemoryTable(Schema.Table table) {
+         this.table = table;
+         for (String column : table.hashed) {
+            hashed.put(table.column(column), new ConcurrentHashMap<Object, Set<Object>>());
+         }
+         for (String column : table.ordered) {
+            ordered.put(table.column(column), new ConcurrentSkipListMap<Object, Set<Object>>());
+         }
+      }
+
+      void load(File file) throws IOException {
+         try (CsvReader csv = CsvReader.open(file.getPath())) {
+            List<String> header = csv.next();
+            if (header == null) return;
+            int[] columns = new int[header.size()];
+            for (int i = 0; i < columns.length; i++) {
+               try {
+                  columns[i] = table.column(header.get(i).trim());
+               } catch (IllegalArgumentException e) {
+                  columns[i] = -1;
+               }
+            }
+            List<String> fields;
+            while ((fields = csv.next()) != null) {
+               Object[] row = new Object[table.columns.size()];
+               try {
+                  for (int i = 0; i < columns.length && i < fields.size(); i++) {
+                     if (columns[i] >= 0) row[columns[i]] = table.types.get(columns[i]).parse(fields.get(i));
+                  }
+                  insert(row);
+               } catch (RuntimeException | SQLException e) {
+                  throw new IOException(file.getName() + " line " + csv.lineNumber() + ": " + e.getMessage());
+               }
+            }
+         }
+      }//end load
+
+      public Schema.Table table() {
+         return table;
+      }
+
+      public Object[] get(Object key) {
+         return key == null ? null : rows.get(key);
+      }
+
+      public List<Object[]> find(String column, Object value) {
+         int c = table.column(column);
+         if (value == null) return Collections.emptyList();
+         if (c == table.key) {
+            Object[] row = rows.get(value);
+            return row == null ? Collections.<Object[]>emptyList() : Collections.singletonList(row);
+         }
+         lock.readLock().lock();
+         try {
+            Set<Object> keys = keys(c, value);
+            if (keys != null) return rowsOf(keys);
+            List<Object[]> found = new ArrayList<Object[]>();
+            for (Object[] row : rows.values()) {
+               if (value.equals(row[c])) found.add(row);
+            }
+            return found;
+         } finally {
+            lock.readLock().unlock();
+         }
+      }//end find
+
+      public List<Object[]> find(String column, Object value, String column2, Object value2) {
+         int c = table.column(column), c2 = table.column(column2);
+         if (value == null || value2 == null) return Collections.emptyList();
+         lock.readLock().lock();
+         try {
+            // walk the smaller of the two index entries and check the other column
+            Set<Object> keys = keys(c, value), keys2 = keys(c2, value2);
+            if (keys == null || (keys2 != null && keys2.size() < keys.size())) {
+               Set<Object> swap = keys; keys = keys2; keys2 = swap;
+               int t = c; c = c2; c2 = t;
+               Object v = value; value = value2; value2 = v;
+            }
+            Collection<Object[]> candidates = keys != null ? rowsOf(keys) : rows.values();
+            List<Object[]> found = new ArrayList<Object[]>();
+            for (Object[] row : candidates) {
+               if (value.equals(row[c]) && value2.equals(row[c2])) found.add(row);
+            }
+            return found;
+         } finally {
+            lock.readLock().unlock();
+         }
+      }//end find
+
+      public List<Object[]> range(String column, Comparable<?> from, Comparable<?> to) {
+         final int c = table.column(column);
+         lock.readLock().lock();
+         try {
+            ConcurrentSkipListMap<Object, Set<Object>> index = ordered.get(c);
+            List<Object[]> found = new ArrayList<Object[]>();
+            if (index != null) {
+               ConcurrentNavigableMap<Object, Set<Object>> slice = index.subMap(from, true, to, true);
+               for (Set<Object> keys : slice.values()) found.addAll(rowsOf(keys));
+               return found;
+            }
+            for (Object[] row : rows.values()) {
+               Object v = row[c];
+               if (v != null && compare(v, from) >= 0 && compare(v, to) <= 0) found.add(row);
+            }
+            found.sort((a, b) -> compare(a[c], b[c]));
+            return found;
+         } finally {
+            lock.readLock().unlock();
+         }
+      }//end range
+
+      public List<Object[]> all() {
+         return new ArrayList<Object[]>(rows.values());
+      }
+
+      public Object insert(Object[] row) throws SQLException {
+         if (row.length != table.columns.size()) {
+            throw new SQLException(table.name + " has " + table.columns.size() + " columns, not " + row.length);
+         }
+         Object[] stored = row.clone();
+         lock.writeLock().lock();
+         try {
+            if (stored[table.key] == null) {
+               if (!table.serial) throw new SQLException("null value in " + table.name + "." + table.keyColumn());
+               stored[table.key] = serial.incrementAndGet();
+            } else if (table.serial) {
+               final int key = (Integer) stored[table.key];
+               serial.accumulateAndGet(key, Math::max);
+            }
+            if (rows.putIfAbsent(stored[table.key], stored) != null) {
+               throw new SQLException("duplicate key " + stored[table.key] + " in " + table.name);
+            }
+            inserted.put(stored[table.key], inserts.incrementAndGet());
+            index(stored);
+            return stored[table.key];
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }//end insert
+
+      public boolean update(Object key, String column, Object value) throws SQLException {
+         int c = table.column(column);
+         if (c == table.key) throw new SQLException("cannot change the key of " + table.name);
+         lock.writeLock().lock();
+         try {
+            Object[] old = key == null ? null : rows.get(key);
+            if (old == null) return false;
+            Object[] changed = old.clone();
+            changed[c] = value;
+            unindex(old);
+            rows.put(key, changed);
+            index(changed);
+            return true;
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }//end update
+
+      public boolean delete(Object key) {
+         lock.writeLock().lock();
+         try {
+            Object[] old = key == null ? null : rows.remove(key);
+            if (old == null) return false;
+            inserted.remove(key);
+            unindex(old);
+            return true;
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }//end delete
+
+      public long count() {
+         return rows.size();
+      }
+
+      public long insertOrder(Object key) throws SQLException {
+         Long order = key == null ? null : inserted.get(key);
+         if (order == null) throw new SQLException("no row " + key + " in " + table.name);
+         return order;
+      }
+
+      // keys of the rows whose column holds value, or null when the column has no index
+      private Set<Object> keys(int column, Object value) {
+         ConcurrentHashMap<Object, Set<Object>> index = hashed.get(column);
+         if (index != null) {
+            Set<Object> keys = index.get(value);
+            return keys != null ? keys : Collections.emptySet();
+         }
+         ConcurrentSkipListMap<Object, Set<Object>> sorted = ordered.get(column);
+         if (sorted != null) {
+            Set<Object> keys = sorted.get(value);
+            return keys != null ? keys : Collections.emptySet();
+         }
+         return null;
+      }
+
+      private List<Object[]> rowsOf(Set<Object> keys) {
+         List<Object[]> found = new ArrayList<Object[]>(keys.size());
+         for (Object key : keys) {
+            Object[] row = rows.get(key);
+            if (row != null) found.add(row);
+         }
+         return found;
+      }
+
+      private void index(Object[] row) {
+         Object key = row[table.key];
+         for (Map.Entry<Integer, ConcurrentHashMap<Object, Set<Object>>> e : hashed.entrySet()) {
+            Object value = row[e.getKey()];
+            if (value != null) e.getValue().computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+         }
+         for (Map.Entry<Integer, ConcurrentSkipListMap<Object, Set<Object>>> e : ordered.entrySet()) {
+            Object value = row[e.getKey()];
+            if (value != null) e.getValue().computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+         }
+      }//end index
+
+      private void unindex(Object[] row) {
+         Object key = row[table.key];
+         for (Map.Entry<Integer, ConcurrentHashMap<Object, Set<Object>>> e : hashed.entrySet()) {
+            remove(e.getValue(), row[e.getKey()], key);
+         }
+         for (Map.Entry<Integer, ConcurrentSkipListMap<Object, Set<Object>>> e : ordered.entrySet()) {
+            remove(e.getValue(), row[e.getKey()], key);
+         }
+      }//end unindex
+
+      private static void remove(Map<Object, Set<Object>> index, Object value, Object key) {
+         if (value == null) return;
+         Set<Object> keys = index.get(value);
+         if (keys == null) return;
+         keys.remove(key);
+         if (keys.isEmpty()) index.remove(value);
+      }
+
+      @SuppressWarnings("unchecked")
+      private static int compare(Object a, Object b) {
+         return ((Comparable<Object>) a).compareTo(b);
+      }
+   }//end MemoryTable
+
+}//end MemoryStorage
@@ -0,0 +1,348 @@
+/*
+ * Runtime metrics
+ * =============================
+ *
+ * In-process counters behind the operations console: statements running
+ * now, the slowest ones seen, transaction outcomes, connection pool waits
+ * and cache hit rates.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recording costs a map put and remove per statement and an increment per
+ * transaction step or cache lookup; the slowest list is only locked for a
+ * statement slower than the fastest one on it. Everything is read when a
+ * report is asked for, never pushed anywhere.
+ *
+ * A running statement can be cancelled with pg_cancel_backend, from a
+ * connection of its own: the 7.3 driver does not implement
+ * Statement.cancel. The server process of every connection is recorded
+ * when it is opened. A cancel and the end of the statement it targets take
+ * the same lock, so a statement that already ended is never cancelled, and
+ * neither is whatever its connection runs next.
+ *
+ * Parameters are never kept: they can hold password hashes and customer
+ * data, and the report is served without a login.
+ *
+ */
+public class Metrics {
+
+   public static final int SLOWEST = 10;
+
+   /**
+    * A statement being executed.
+    */
+   public static final class Running {
+      public final long id;
+      public final String sql;
+      public final String thread;
+      final long start;
+      final Backend backend;
+      // set by end while holding this, which cancel holds too
+      boolean ended;
+
+      Running(long id, String sql, Backend backend) {
+         this.id = id;
+         this.sql = sql;
+         this.backend = backend;
+         this.thread = Thread.currentThread().getName();
+         this.start = System.nanoTime();
+      }
+
+      public long elapsedMillis() {
+         return (System.nanoTime() - start) / 1000000;
+      }
+
+      public boolean cancellable() {
+         return backend != null;
+      }
+   }//end Running
+
+   /**
+    * One of the slowest statements.
+    */
+   public static final class Slow {
+      public final String sql;
+      public final long micros;
+      public final long at;
+
+      Slow(String sql, long micros) {
+         this.sql = sql;
+         this.micros = micros;
+         this.at = System.currentTimeMillis();
+      }
+   }//end Slow
+
+   // the server process behind a connection
+   static final class Backend {
+      final String url;
+      final int pid;
+
+      Backend(String url, int pid) {
+         this.url = url;
+         this.pid = pid;
+      }
+   }//end Backend
+
+   /**
+    * Hit and miss counts of one cache.
+    */
+   public static final class CacheStats {
+      final AtomicLong hits = new AtomicLong();
+      final AtomicLong misses = new AtomicLong();
+
+      CacheStats() {
+      }
+
+      // for caches that keep their own counts
+      CacheStats(long hits, long misses) {
+         this.hits.set(hits);
+         this.misses.set(misses);
+      }
+
+      public long hits() { return hits.get(); }
+      public long misses() { return misses.get(); }
+   }//end CacheStats
+
+   private final AtomicLong ids = new AtomicLong();
+   private final AtomicLong statements = new AtomicLong();
+   private final AtomicLong statementMicros = new AtomicLong();
+   private final Map<Long, Running> running = new ConcurrentHashMap<Long, Running>();
+   // fastest first, so the head is the one to drop; guarded by itself
+   private final PriorityQueue<Slow> slowest = new PriorityQueue<Slow>(SLOWEST + 1, new Comparator<Slow>() {
+      public int compare(Slow a, Slow b) {
+         return Long.compare(a.micros, b.micros);
+      }
+   });
+   private volatile long slowFloor = 0;
+   private final Map<Connection, Backend> backends = Collections.synchronizedMap(new WeakHashMap<Connection, Backend>());
+   private final Set<ConnectionPool> pools = ConcurrentHashMap.newKeySet();
+   private final Map<String, CacheStats> caches = new ConcurrentSkipListMap<String, CacheStats>();
+
+   private final AtomicLong begins = new AtomicLong();
+   private final AtomicLong commits = new AtomicLong();
+   private final AtomicLong rollbacks = new AtomicLong();
+   private final AtomicLong retries = new AtomicLong();
+
+   /**
+    * Records the server process of a newly opened connection, and forgets
+    * those of connections closed since.
+    */
+   public void backend(Connection connection, String url, int pid) {
+      synchronized (backends) {
+         Iterator<Connection> it = backends.keySet().iterator();
+         while (it.hasNext()) {
+            Connection c = it.next();
+            try {
+               if (c == null || c.isClosed()) it.remove();
+            } catch (SQLException e) {
+               it.remove();
+            }
+         }
+         backends.put(connection, new Backend(url, pid));
+      }
+   }//end backend
+
+   /**
+    * Records the start of a statement.
+    *
+    * @param connection the connection it runs on, or null when it cannot be cancelled
+    * @return the entry to hand to end
+    */
+   public Running begin(Connection connection, String sql) {
+      Running r = new Running(ids.incrementAndGet(), sql, connection == null ? null : backends.get(connection));
+      running.put(r.id, r);
+      return r;
+   }
+
+   /**
+    * Records the end of a statement, successful or not.
+    */
+   public void end(Running r) {
+      synchronized (r) {
+         r.ended = true;
+      }
+      running.remove(r.id);
+      long micros = (System.nanoTime() - r.start) / 1000;
+      statements.incrementAndGet();
+      statementMicros.addAndGet(micros);
+      if (micros <= slowFloor) return;
+      synchronized (slowest) {
+         slowest.add(new Slow(r.sql, micros));
+         if (slowest.size() > SLOWEST) slowest.poll();
+         if (slowest.size() == SLOWEST) slowFloor = slowest.peek().micros;
+      }
+   }//end end
+
+   public void began() { begins.incrementAndGet(); }
+   public void committed() { commits.incrementAndGet(); }
+   public void rolledBack() { rollbacks.incrementAndGet(); }
+   public void retried() { retries.incrementAndGet(); }
+
+   public void hit(String cache) {
+      stats(cache).hits.incrementAndGet();
+   }
+
+   public void miss(String cache) {
+      stats(cache).misses.incrementAndGet();
+   }
+
+   private CacheStats stats(String cache) {
+      CacheStats stats = caches.get(cache);
+      if (stats == null) {
+         caches.putIfAbsent(cache, new CacheStats());
+         stats = caches.get(cache);
+      }
+      return stats;
+   }
+
+   void register(ConnectionPool pool) {
+      pools.add(pool);
+   }
+
+   void unregister(ConnectionPool pool) {
+      pools.remove(pool);
+   }
+
+   /**
+    * @return the statements running now, longest running first
+    */
+   public List<Running> running() {
+      List<Running> list = new ArrayList<Running>(running.values());
+      list.sort(new Comparator<Running>() {
+         public int compare(Running a, Running b) {
+            return Long.compare(a.start, b.start);
+         }
+      });
+      return list;
+   }
+
+   /**
+    * @return the slowest statements since start, slowest first
+    */
+   public List<Slow> slowest() {
+      List<Slow> list;
+      synchronized (slowest) {
+         list = new ArrayList<Slow>(slowest);
+      }
+      list.sort(new Comparator<Slow>() {
+         public int compare(Slow a, Slow b) {
+            return Long.compare(b.micros, a.micros);
+         }
+      });
+      return list;
+   }
+
+   /**
+    * Asks the server to cancel a running statement. It then fails in the
+    * thread that issued it with a "canceling statement" error.
+    *
+    * @param esql any handle, used to open the cancelling connection
+    * @return false when the statement is done or cannot be cancelled
+    * @throws java.sql.SQLException when the server cannot be reached
+    */
+   public boolean cancel(AirlineManagement esql, long id) throws SQLException {
+      Running r = running.get(id);
+      if (r == null || r.backend == null) return false;
+      Connection connection = esql.openUnnamedConnection(r.backend.url);
+      try {
+         PreparedStatement stmt = connection.prepareStatement("SELECT pg_cancel_backend(?)");
+         try {
+            stmt.setInt(1, r.backend.pid);
+            // the statement cannot end, and its connection cannot start another, meanwhile
+            synchronized (r) {
+               if (r.ended) return false;
+               ResultSet rs = stmt.executeQuery();
+               return rs.next() && rs.getBoolean(1);
+            }
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         connection.close();
+      }
+   }//end cancel
+
+   /**
+    * @return the console report, one line each
+    */
+   public List<String> report(AirlineManagement esql) {
+      List<String> lines = new ArrayList<String>();
+      long n = statements.get();
+      lines.add(String.format("Statements: %d done, avg %.2f ms, %d running", n,
+                              n == 0 ? 0.0 : statementMicros.get() / 1000.0 / n, running.size()));
+      long b = begins.get();
+      lines.add(String.format("Transactions: %d begun, %d committed, %d rolled back (%.1f%%), %d retries",
+                              b, commits.get(), rollbacks.get(), b == 0 ? 0.0 : 100.0 * rollbacks.get() / b, retries.get()));
+      BookingJournal journal = esql.journal();
+      if (journal != null) {
+         lines.add(String.format("Journal: %d appended, %d applied, %d waitlisted when applied, %d rejected, %d unapplied",
+                                 journal.appendedCount(), journal.appliedCount(), journal.demotedCount(),
+                                 journal.rejectedCount(), journal.unapplied()));
+         lines.addAll(journal.recentProblems());
+      }
+
+      lines.add("");
+      lines.add("Pool\tSize\tIn use\tWaiting\tBorrows\tAvg wait ms\tMax wait ms\tReopened");
+      for (ConnectionPool pool : pools) {
+         long borrows = pool.borrowCount();
+         lines.add(String.format("%s\t%d\t%d\t%d\t%d\t%.2f\t%.2f\t%d", pool.name(), pool.size(), pool.inUse(), pool.waiting(),
+                                 borrows, borrows == 0 ? 0.0 : pool.waitMicros() / 1000.0 / borrows, pool.maxWaitMicros() / 1000.0,
+                                 pool.reopenedCount()));
+      }
+
+      lines.add("");
+      lines.add("Cache\tSize\tHits\tMisses\tHit rate");
+      for (Map.Entry<String, CacheStats> e : esql.cacheStats().entrySet()) {
+         long hits = e.getValue().hits();
+         long total = hits + e.getValue().misses();
+         Integer size = esql.cacheSize(e.getKey());
+         lines.add(String.format("%s\t%s\t%d\t%d\t%s", e.getKey(), size == null ? "-" : size.toString(), hits,
+                                 e.getValue().misses(), total == 0 ? "-" : String.format("%.1f%%", 100.0 * hits / total)));
+      }
+
+      lines.add("");
+      lines.add("Running\tMs\tThread\tStatement");
+      for (Running r : running()) {
+         lines.add(r.id + (r.cancellable() ? "" : "*") + "\t" + r.elapsedMillis() + "\t" + r.thread + "\t" + oneLine(r.sql));
+      }
+
+      lines.add("");
+      lines.add("Slowest\tMs\tStatement");
+      int rank = 1;
+      for (Slow s : slowest()) {
+         lines.add(String.format("%d\t%.1f\t%s", rank++, s.micros / 1000.0, oneLine(s.sql)));
+      }
+      return lines;
+   }//end report
+
+   /**
+    * @return the named cache counters, for AirlineManagement.cacheStats
+    */
+   Map<String, CacheStats> caches() {
+      return caches;
+   }
+
+   static String oneLine(String sql) {
+      String s = sql.replaceAll("\\s+", " ").trim();
+      return s.length() > 160 ? s.substring(0, 157) + "..." : s;
+   }
+
+}//end Metrics
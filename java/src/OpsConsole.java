@@ -0,0 +1,178 @@
+/*
+ * Operations console
+ * =============================
+ *
+ * A status page for whoever runs the node: connection pools, caches,
+ * statements running now and the slowest ones, transaction outcomes.
+ * Management users see the same report from menu option 28.
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Served on localhost:airline.ops.port only, when that is set; the page
+ * refreshes itself every airline.ops.refreshSeconds (default 5). A running
+ * statement is cancelled with a POST to /cancel carrying the page's token,
+ * so another site open in the same browser cannot cancel anything.
+ *
+ */
+public class OpsConsole {
+
+   public static final int DEFAULT_REFRESH_SECONDS = 5;
+
+   private final AirlineManagement esql;
+   private final HttpServer server;
+   private final String token;
+   private final int refreshSeconds;
+
+   private OpsConsole(AirlineManagement esql, int port) throws IOException {
+      this.esql = esql;
+      this.refreshSeconds = Math.max(1, Integer.getInteger("airline.ops.refreshSeconds", DEFAULT_REFRESH_SECONDS));
+      byte[] bytes = new byte[16];
+      new SecureRandom().nextBytes(bytes);
+      StringBuilder hex = new StringBuilder(32);
+      for (byte b : bytes) hex.append(String.format("%02x", b));
+      this.token = hex.toString();
+
+      this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            page(exchange);
+         }
+      });
+      server.createContext("/cancel", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            cancel(exchange);
+         }
+      });
+   }
+
+   /**
+    * Starts the page when airline.ops.port is set.
+    *
+    * @param esql the root database handle
+    * @return the running console, or null when it is not configured
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public static OpsConsole start(AirlineManagement esql) throws IOException {
+      Integer port = Integer.getInteger("airline.ops.port");
+      if (port == null) return null;
+      OpsConsole console = new OpsConsole(esql, port);
+      console.server.start();
+      System.out.println("Operations console on http://localhost:" + console.port() + "/");
+      return console;
+   }
+
+   public int port() {
+      return server.getAddress().getPort();
+   }
+
+   public void stop() {
+      server.stop(0);
+   }
+
+   private void page(HttpExchange exchange) throws IOException {
+      if (!"/".equals(exchange.getRequestURI().getPath())) {
+         send(exchange, 404, "text/plain", "Not found");
+         return;
+      }
+      String message = query(exchange.getRequestURI().getRawQuery()).get("m");
+      StringBuilder html = new StringBuilder();
+      html.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\">")
+          .append("<meta http-equiv=\"refresh\" content=\"").append(refreshSeconds).append("; url=/\">")
+          .append("<title>Airline operations</title></head><body>");
+      if (message != null) html.append("<p><b>").append(escape(message)).append("</b></p>");
+      html.append("<pre>");
+      for (String line : esql.metrics().report(esql)) html.append(escape(line)).append('\n');
+      html.append("</pre>");
+      for (Metrics.Running r : esql.metrics().running()) {
+         if (!r.cancellable()) continue;
+         html.append("<form method=\"post\" action=\"/cancel\">")
+             .append("<input type=\"hidden\" name=\"token\" value=\"").append(token).append("\">")
+             .append("<input type=\"hidden\" name=\"id\" value=\"").append(r.id).append("\">")
+             .append("<input type=\"submit\" value=\"Cancel ").append(r.id).append("\"> ")
+             .append(r.elapsedMillis()).append(" ms ").append(escape(Metrics.oneLine(r.sql)))
+             .append("</form>");
+      }
+      html.append("</body></html>");
+      send(exchange, 200, "text/html; charset=utf-8", html.toString());
+   }//end page
+
+   private void cancel(HttpExchange exchange) throws IOException {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+         send(exchange, 405, "text/plain", "POST only");
+         return;
+      }
+      Map<String, String> form = query(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+      if (!token.equals(form.get("token"))) {
+         send(exchange, 403, "text/plain", "Bad token");
+         return;
+      }
+      String message;
+      try {
+         long id = Long.parseLong(form.get("id"));
+         message = esql.metrics().cancel(esql, id) ? "Cancelled statement " + id
+                                                   : "Statement " + id + " is no longer running";
+      } catch (NumberFormatException e) {
+         message = "Bad statement id";
+      } catch (SQLException e) {
+         message = "Cancel failed: " + e.getMessage();
+      }
+      exchange.getResponseHeaders().set("Location", "/?m=" + java.net.URLEncoder.encode(message, "UTF-8"));
+      exchange.sendResponseHeaders(303, -1);
+      exchange.close();
+   }//end cancel
+
+   private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", type);
+      exchange.getResponseHeaders().set("Cache-Control", "no-store");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int n;
+      // a cancel form is a few dozen bytes
+      while ((n = in.read(buffer)) > 0 && bytes.size() < 4096) bytes.write(buffer, 0, n);
+      return bytes.toByteArray();
+   }
+
+   private static Map<String, String> query(String raw) throws IOException {
+      Map<String, String> values = new HashMap<String, String>();
+      if (raw == null) return values;
+      for (String pair : raw.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq <= 0) continue;
+         values.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+      return values;
+   }
+
+   static String escape(String s) {
+      return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+   }
+
+}//end OpsConsole
@@ -0,0 +1,117 @@
+/*
+ * Partition maintenance
+ * =============================
+ *
+ * Keeps the monthly partitions of FlightInstance, Reservation and Repair
+ * (sql/src/create_partitions.sql) ahead of the calendar and moves old
+ * months to the archive schema.
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * The partition DDL lives in the database functions
+ * airline_ensure_partitions and airline_archive_partitions; this class only
+ * decides which months to pass. On a database created without
+ * create_partitions.sql every method is a no-op.
+ *
+ */
+public class PartitionManager {
+
+   public static final int DEFAULT_MONTHS_AHEAD = 3;
+
+   /**
+    * @return whether FlightInstance is a partitioned table
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public static boolean isPartitioned(AirlineManagement esql) throws SQLException {
+      return esql.executeQuery(
+         "SELECT 1 FROM pg_partitioned_table pt JOIN pg_class c ON c.oid = pt.partrelid " +
+         "WHERE c.relname = 'flightinstance'") > 0;
+   }
+
+   /**
+    * Creates the partitions from this month up to monthsAhead months out.
+    *
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when the partitions cannot be created
+    */
+   public static int ensureAhead(AirlineManagement esql, int monthsAhead) throws SQLException {
+      if (!isPartitioned(esql)) return 0;
+      LocalDate month = LocalDate.now().withDayOfMonth(1);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT airline_ensure_partitions(%s, %s)",
+         Dates.sql(month), Dates.sql(month.plusMonths(monthsAhead))));
+      return Integer.parseInt(rows.get(0).get(0));
+   }//end ensureAhead
+
+   /**
+    * Detaches every month that ended more than monthsToKeep months ago and
+    * moves it to the archive schema.
+    *
+    * @return the number of partitions archived
+    * @throws java.sql.SQLException when a partition cannot be detached
+    */
+   public static int archiveOlderThan(AirlineManagement esql, int monthsToKeep) throws SQLException {
+      if (!isPartitioned(esql)) return 0;
+      LocalDate cutoff = LocalDate.now().withDayOfMonth(1).minusMonths(monthsToKeep);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT airline_archive_partitions(%s)", Dates.sql(cutoff)));
+      return Integer.parseInt(rows.get(0).get(0));
+   }//end archiveOlderThan
+
+   /**
+    * Startup check: makes sure bookings for the coming months have
+    * partitions to go to. The horizon is airline.partitions.monthsAhead.
+    */
+   public static void maintain(AirlineManagement esql) {
+      try {
+         int created = ensureAhead(esql, Integer.getInteger("airline.partitions.monthsAhead", DEFAULT_MONTHS_AHEAD));
+         if (created > 0) {
+            System.out.println("Created " + created + " partition(s)");
+         }
+      } catch (SQLException e) {
+         System.err.println("Partition maintenance failed: " + e.getMessage());
+      }
+   }//end maintain
+
+   /**
+    * For cron:
+    *    java PartitionManager dbname port user ensure [monthsAhead]
+    *    java PartitionManager dbname port user archive monthsToKeep
+    *    java PartitionManager dbname port user list
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java PartitionManager <dbname> <port> <user> ensure [monthsAhead] | archive <monthsToKeep> | list");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         if (!isPartitioned(esql)) {
+            System.out.println("Database is not partitioned (see sql/src/create_partitions.sql)");
+         } else if (args[3].equals("ensure")) {
+            int ahead = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MONTHS_AHEAD;
+            System.out.println("Created " + ensureAhead(esql, ahead) + " partition(s)");
+         } else if (args[3].equals("archive") && args.length > 4) {
+            System.out.println("Archived " + archiveOlderThan(esql, Integer.parseInt(args[4])) + " partition(s)");
+         } else if (args[3].equals("list")) {
+            esql.executeQueryAndPrintResult(
+               "SELECT p.relname AS parent, c.relname AS partition, " +
+               "pg_get_expr(c.relpartbound, c.oid) AS bounds, c.reltuples::BIGINT AS estimated_rows " +
+               "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent " +
+               "WHERE p.relname IN ('flightinstance', 'reservation', 'repair') " +
+               "ORDER BY p.relname, c.relname");
+         } else {
+            System.err.println("Unknown command " + args[3]);
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end PartitionManager
@@ -0,0 +1,174 @@
+/*
+ * Postgres storage
+ * =============================
+ *
+ * The repositories over the database, through an AirlineManagement handle
+ * so statements are logged, routed to shards and noted for replicas like
+ * the features' own.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads of sharded tables run on every shard; writes go to the shard of
+ * the row's flight. Tables copied to every shard are read-only here when
+ * sharded, since a write would reach the primary alone. Users, repairs and
+ * maintenance requests are always on the primary.
+ *
+ */
+public class PgStorage implements Storage {
+
+   private final AirlineManagement esql;
+   private final Map<Schema.Table, PgRepository> repositories = new HashMap<Schema.Table, PgRepository>();
+
+   public PgStorage(AirlineManagement esql) {
+      this.esql = esql;
+      for (Schema.Table table : Schema.TABLES) {
+         repositories.put(table, new PgRepository(table));
+      }
+   }
+
+   public String name() {
+      return "pg";
+   }
+
+   public Repository repository(Schema.Table table) {
+      return repositories.get(table);
+   }
+
+   /**
+    * The connection belongs to the handle; nothing to release.
+    */
+   public void close() {
+   }
+
+   public AirlineManagement database() {
+      return esql;
+   }
+
+   /**
+    * One table in Postgres.
+    */
+   private final class PgRepository implements Repository {
+      private final Schema.Table table;
+      private final boolean sharded;
+      // SELECT <every column> FROM <table>
+      private final String select;
+
+      PgRepository(Schema.Table table) {
+         this.table = table;
+         this.sharded = Arrays.asList(ShardRouter.SHARDED).contains(table.name);
+         this.select = "SELECT " + String.join(", ", table.columns) + " FROM " + table.name;
+      }
+
+      public Schema.Table table() {
+         return table;
+      }
+
+      public Object[] get(Object key) throws SQLException {
+         List<Object[]> rows = query(select + " WHERE " + table.keyColumn() + " = ?", key);
+         return rows.isEmpty() ? null : rows.get(0);
+      }
+
+      public List<Object[]> find(String column, Object value) throws SQLException {
+         return query(select + " WHERE " + name(column) + " = ?", value);
+      }
+
+      public List<Object[]> find(String column, Object value, String column2, Object value2) throws SQLException {
+         return query(select + " WHERE " + name(column) + " = ? AND " + name(column2) + " = ?", value, value2);
+      }
+
+      public List<Object[]> range(String column, Comparable<?> from, Comparable<?> to) throws SQLException {
+         final int c = table.column(column);
+         List<Object[]> rows = query(select + " WHERE " + name(column) + " BETWEEN ? AND ?", from, to);
+         // shards return their rows one after another
+         rows.sort(Comparator.comparing((Object[] row) -> row[c], Comparator.nullsLast(PgStorage::compare)));
+         return rows;
+      }
+
+      public List<Object[]> all() throws SQLException {
+         return query(select);
+      }
+
+      public Object insert(Object[] row) throws SQLException {
+         List<String> columns = new ArrayList<String>();
+         List<Object> values = new ArrayList<Object>();
+         for (int i = 0; i < row.length; i++) {
+            if (i == table.key && row[i] == null && table.serial) continue;
+            columns.add(table.columns.get(i));
+            values.add(row[i]);
+         }
+         StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.name)
+            .append(" (").append(String.join(", ", columns)).append(") VALUES (");
+         for (int i = 0; i < values.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+         AirlineManagement target = writer(row);
+         target.executeUpdate(sql.append(')').toString(), values.toArray());
+         if (row[table.key] != null || !table.serial) return row[table.key];
+         return target.getCurrSeqVal((table.name + "_" + table.keyColumn() + "_seq").toLowerCase());
+      }//end insert
+
+      public boolean update(Object key, String column, Object value) throws SQLException {
+         Object[] row = sharded ? get(key) : null;
+         if (sharded && row == null) return false;
+         return writer(row).executeUpdate("UPDATE " + table.name + " SET " + name(column) + " = ? WHERE "
+                                          + table.keyColumn() + " = ?", value, key) > 0;
+      }
+
+      public boolean delete(Object key) throws SQLException {
+         Object[] row = sharded ? get(key) : null;
+         if (sharded && row == null) return false;
+         return writer(row).executeUpdate("DELETE FROM " + table.name + " WHERE " + table.keyColumn() + " = ?", key) > 0;
+      }
+
+      public long count() throws SQLException {
+         String sql = "SELECT COUNT(*) FROM " + table.name;
+         long count = 0;
+         for (List<String> row : sharded ? esql.executeShardedQueryAndReturnResult(sql)
+                                         : esql.executeQueryAndReturnResult(sql)) {
+            count += Long.parseLong(row.get(0));
+         }
+         return count;
+      }
+
+      // the checked spelling of a column, so no caller text reaches the SQL
+      private String name(String column) {
+         return table.columns.get(table.column(column));
+      }
+
+      private List<Object[]> query(String sql, Object... params) throws SQLException {
+         List<List<String>> found = sharded ? esql.executeShardedQueryAndReturnResult(sql, params)
+                                            : esql.executeQueryAndReturnResult(sql, params);
+         List<Object[]> rows = new ArrayList<Object[]>(found.size());
+         for (List<String> fields : found) rows.add(table.parse(fields));
+         return rows;
+      }
+
+      // the handle that holds a row: its flight's shard, or the primary
+      private AirlineManagement writer(Object[] row) throws SQLException {
+         if (esql.shards() == null) return esql;
+         if (!sharded) {
+            if (!Arrays.asList(ShardRouter.REPLICATED).contains(table.name)) return esql;
+            throw new SQLException(table.name + " is copied to every shard; change it with ShardRouter");
+         }
+         if (table == Schema.RESERVATION) {
+            AirlineManagement target = esql.forInstance((Integer) table.value(row, "FlightInstanceID"));
+            if (target == null) throw new SQLException("No flight instance " + table.value(row, "FlightInstanceID"));
+            return target;
+         }
+         return esql.forFlight((String) table.value(row, "FlightNumber"));
+      }
+   }//end PgRepository
+
+   @SuppressWarnings("unchecked")
+   private static int compare(Object a, Object b) {
+      return ((Comparable<Object>) a).compareTo(b);
+   }
+
+}//end PgStorage
@@ -0,0 +1,215 @@
+/*
+ * Query workload log
+ * =============================
+ *
+ * Records every statement the application issues, grouped by shape
+ * (the statement with its literals replaced by ?), with a call count,
+ * the total time spent and one runnable sample. IndexAdvisor reads it.
+ * Statements on User_ keep no sample: their values are usernames and
+ * password hashes, and the log is a plain file.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Enabled with -Dairline.workload=path. The file is tab separated,
+ * one shape per line:
+ *
+ *    count  totalMicros  shape  sample
+ *
+ * sample is empty for statements on User_.
+ * It is read back when the log is opened, so counts accumulate over runs,
+ * and rewritten by save() at cleanup.
+ *
+ */
+public class QueryLog {
+
+   /**
+    * One statement shape.
+    */
+   static final class Entry {
+      final String shape;
+      long count;
+      long micros;
+      String sample;
+
+      Entry(String shape) {
+         this.shape = shape;
+      }
+   }//end Entry
+
+   private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern TYPED = Pattern.compile("(?i)\\b(DATE|TIME|TIMESTAMP)\\s+\\?");
+   private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(\\.\\d+)?\\b");
+   private static final Pattern SPACE = Pattern.compile("\\s+");
+   // tables whose values stay out of the file
+   private static final Pattern PRIVATE = Pattern.compile("(?i)\\bUser_\\b");
+
+   private final File file;
+   private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+   public QueryLog(File file) throws IOException {
+      this.file = file;
+      if (file.exists()) {
+         for (Entry e : read(file)) entries.put(e.shape, e);
+      }
+   }
+
+   /**
+    * @return the log named by airline.workload, or null when it is not set
+    * @throws java.io.IOException when an existing log cannot be read
+    */
+   public static QueryLog fromProperties() throws IOException {
+      String path = System.getProperty("airline.workload");
+      return path == null || path.trim().isEmpty() ? null : new QueryLog(new File(path.trim()));
+   }
+
+   /**
+    * Counts one execution.
+    *
+    * @param sql the statement, with ? placeholders or literals
+    * @param params the values of its placeholders, may be empty
+    * @param nanos how long it took
+    */
+   public void record(String sql, Object[] params, long nanos) {
+      String sample = inline(sql, params);
+      String shape = shape(sample);
+      if (PRIVATE.matcher(shape).find()) sample = "";
+      synchronized (entries) {
+         Entry e = entries.get(shape);
+         if (e == null) {
+            e = new Entry(shape);
+            entries.put(shape, e);
+         }
+         e.count++;
+         e.micros += nanos / 1000;
+         e.sample = sample;
+      }
+   }//end record
+
+   /**
+    * @return the statement with its literals replaced by ?, on one line
+    */
+   static String shape(String sql) {
+      String s = STRING.matcher(oneLine(sql)).replaceAll("?");
+      s = TYPED.matcher(s).replaceAll("?");
+      s = NUMBER.matcher(s).replaceAll("?");
+      return s;
+   }
+
+   /**
+    * @return the statement with its placeholders replaced by SQL literals
+    */
+   static String inline(String sql, Object[] params) {
+      sql = oneLine(sql);
+      if (params == null || params.length == 0) return sql;
+      StringBuilder out = new StringBuilder(sql.length() + 16 * params.length);
+      int next = 0;
+      boolean quoted = false;
+      for (int i = 0; i < sql.length(); i++) {
+         char c = sql.charAt(i);
+         if (c == '\'') quoted = !quoted;
+         if (c == '?' && !quoted && next < params.length) {
+            out.append(literal(params[next++]));
+         } else {
+            out.append(c);
+         }
+      }
+      return out.toString();
+   }//end inline
+
+   private static String literal(Object value) {
+      if (value == null) return "NULL";
+      if (value instanceof LocalDate) return Dates.sql((LocalDate) value);
+      if (value instanceof java.time.LocalTime) return "TIME '" + value + "'";
+      if (value instanceof Number || value instanceof Boolean) return value.toString();
+      return "'" + value.toString().replace("'", "''") + "'";
+   }
+
+   private static String oneLine(String sql) {
+      String s = SPACE.matcher(sql).replaceAll(" ").trim();
+      return s.endsWith(";") ? s.substring(0, s.length() - 1).trim() : s;
+   }
+
+   /**
+    * @return the shapes, most total time first
+    */
+   public List<Entry> entries() {
+      List<Entry> list;
+      synchronized (entries) {
+         list = new ArrayList<Entry>(entries.values());
+      }
+      Collections.sort(list, BY_TIME);
+      return list;
+   }
+
+   static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         return Long.compare(b.micros, a.micros);
+      }
+   };
+
+   /**
+    * Rewrites the log file with the counts so far.
+    *
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public void save() throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+      try {
+         for (Entry e : entries()) {
+            out.println(e.count + "\t" + e.micros + "\t" + e.shape + "\t" + e.sample);
+         }
+      } finally {
+         out.close();
+      }
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+         throw new IOException("Unable to replace " + file);
+      }
+   }//end save
+
+   /**
+    * @return the entries of a log file, most total time first
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<Entry> read(File file) throws IOException {
+      List<Entry> list = new ArrayList<Entry>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] f = line.split("\t", 4);
+            if (f.length < 4) continue;
+            Entry e = new Entry(f[2]);
+            e.count = Long.parseLong(f[0]);
+            e.micros = Long.parseLong(f[1]);
+            // older logs kept User_ samples too
+            e.sample = PRIVATE.matcher(e.shape).find() ? "" : f[3];
+            list.add(e);
+         }
+      } finally {
+         in.close();
+      }
+      Collections.sort(list, BY_TIME);
+      return list;
+   }//end read
+
+}//end QueryLog
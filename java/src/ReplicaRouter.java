@@ -0,0 +1,295 @@
+/*
+ * Replica routing
+ * =============================
+ *
+ * Sends read-only feature queries to streaming replicas so the primary
+ * connection is left to bookings, repairs and maintenance requests.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read goes to the next replica (round robin) that is up and whose replay
+ * lag is within maxLagMillis. It goes to the primary instead when
+ *  - no replica qualifies,
+ *  - the replica's connection fails (the replica is then skipped for a
+ *    while; other errors are the query's and are thrown as they are), or
+ *  - the user it is for made a write within the last rywMillis, so a user
+ *    who just booked or filed a request reads their own write. Only writes
+ *    a user asked for count (AirlineManagement.wrote), not background ones
+ *    such as the change publisher or the group commit writer.
+ *
+ * Replicas are listed in the airline.replicas system property as comma
+ * separated JDBC URLs (or host:port/dbname) and use the primary's user.
+ * airline.replica.maxLagMillis (5000) and airline.replica.rywMillis (10000)
+ * tune the checks.
+ *
+ */
+public class ReplicaRouter {
+
+   // how often a replica's lag is measured, and how long a failed one is skipped
+   static final long LAG_CHECK_MILLIS = 1000;
+   static final long DOWN_MILLIS = 30000;
+
+   // zero when the replica has replayed everything it received
+   static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+      "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+   /**
+    * One replica connection and its health.
+    */
+   static final class Replica {
+      final String url;
+      final AirlineManagement handle;
+      // guarded by this
+      long lagMillis = 0;
+      long checkedAt = 0;
+      long downUntil = 0;
+      long reads = 0;
+      long failures = 0;
+
+      Replica(String url, AirlineManagement handle) {
+         this.url = url;
+         this.handle = handle;
+      }
+   }//end Replica
+
+   private final AirlineManagement primary;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final long maxLagMillis;
+   private final long rywMillis;
+   private final AtomicInteger next = new AtomicInteger();
+   // when each user last wrote, by username; "" for nobody logged in
+   private final Map<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+   private final AtomicLong primaryReads = new AtomicLong();
+
+   public ReplicaRouter(AirlineManagement primary, List<String> urls, long maxLagMillis, long rywMillis)
+         throws SQLException {
+      this.primary = primary;
+      this.maxLagMillis = maxLagMillis;
+      this.rywMillis = rywMillis;
+      for (String url : urls) {
+         Connection connection = primary.openConnection(url);
+         connection.setReadOnly(true);
+         this.replicas.add(new Replica(url, new AirlineManagement(connection, primary, url)));
+      }
+   }
+
+   /**
+    * Builds the router named by the airline.replicas system property.
+    *
+    * @return the router, or null when no replicas are configured
+    * @throws java.sql.SQLException when a replica cannot be reached
+    */
+   public static ReplicaRouter fromProperties(AirlineManagement primary) throws SQLException {
+      String list = System.getProperty("airline.replicas");
+      if (list == null || list.trim().isEmpty()) return null;
+      List<String> urls = new ArrayList<String>();
+      for (String url : list.split(",")) {
+         url = url.trim();
+         if (url.isEmpty()) continue;
+         urls.add(url.startsWith("jdbc:") ? url : "jdbc:postgresql://" + url);
+      }
+      return new ReplicaRouter(primary, urls,
+                               Long.getLong("airline.replica.maxLagMillis", 5000L),
+                               Long.getLong("airline.replica.rywMillis", 10000L));
+   }
+
+   /**
+    * Records a user's write on the primary; that user's reads stay there
+    * for rywMillis.
+    *
+    * @param username the user, or null for nobody logged in
+    */
+   public void noteWrite(String username) {
+      lastWrites.put(username == null ? "" : username, System.currentTimeMillis());
+   }
+
+   // whether a user wrote within rywMillis; forgets writes older than that
+   private boolean wroteRecently(String username, long now) {
+      String key = username == null ? "" : username;
+      Long at = lastWrites.get(key);
+      if (at == null) return false;
+      if (now - at < rywMillis) return true;
+      lastWrites.remove(key, at);
+      return false;
+   }
+
+   /**
+    * Runs a read-only query on a replica, or on the primary when none is usable.
+    *
+    * @param username the user the rows are for, null for nobody logged in
+    * @see AirlineManagement#executeQueryAndReturnResult(String, Object...)
+    */
+   public List<List<String>> query(String username, String sql, Object... params) throws SQLException {
+      Replica replica;
+      while ((replica = pick(username)) != null) {
+         synchronized (replica) {
+            try {
+               List<List<String>> result = replica.handle.executeQueryAndReturnResult(sql, params);
+               replica.reads++;
+               return result;
+            } catch (SQLException e) {
+               if (!markDown(replica, e)) throw e;
+            }
+         }
+      }
+      primaryReads.incrementAndGet();
+      return primary.executeQueryAndReturnResult(sql, params);
+   }//end query
+
+   /**
+    * Like query, but prints the rows the way executeQueryAndPrintResult does.
+    *
+    * @return the number of rows printed
+    */
+   public int print(String username, String sql, Object... params) throws SQLException {
+      Replica replica;
+      while ((replica = pick(username)) != null) {
+         ShardRouter.Result result;
+         synchronized (replica) {
+            try {
+               // fetched in full before printing, so a retry on the primary never prints rows twice
+               result = replica.handle.executeQueryAndReturnTable(sql, params);
+               replica.reads++;
+            } catch (SQLException e) {
+               if (!markDown(replica, e)) throw e;
+               continue;
+            }
+         }
+         return result.print();
+      }
+      primaryReads.incrementAndGet();
+      return primary.executeQueryAndPrintResult(sql, params);
+   }//end print
+
+   /**
+    * Like query, keeping the column names. Falls back to the given handle
+    * rather than the primary's own connection, so it may run off the
+    * interactive thread.
+    *
+    * @param fallback a handle on the primary
+    */
+   public ShardRouter.Result table(AirlineManagement fallback, String username, String sql, Object... params) throws SQLException {
+      Replica replica;
+      while ((replica = pick(username)) != null) {
+         synchronized (replica) {
+            try {
+               ShardRouter.Result result = replica.handle.executeQueryAndReturnTable(sql, params);
+               replica.reads++;
+               return result;
+            } catch (SQLException e) {
+               if (!markDown(replica, e)) throw e;
+            }
+         }
+      }
+      primaryReads.incrementAndGet();
+      return fallback.executeQueryAndReturnTable(sql, params);
+   }//end table
+
+   // the next replica that may serve a user's read, or null for the primary
+   private Replica pick(String username) {
+      long now = System.currentTimeMillis();
+      if (wroteRecently(username, now)) return null;
+      int n = replicas.size();
+      int start = Math.floorMod(next.getAndIncrement(), Math.max(n, 1));
+      for (int i = 0; i < n; i++) {
+         Replica replica = replicas.get((start + i) % n);
+         synchronized (replica) {
+            if (replica.downUntil > now) continue;
+            if (now - replica.checkedAt >= LAG_CHECK_MILLIS) {
+               try {
+                  List<List<String>> lag = replica.handle.executeQueryAndReturnResult(LAG_QUERY);
+                  replica.lagMillis = (long) Double.parseDouble(lag.get(0).get(0));
+                  replica.checkedAt = now;
+               } catch (SQLException e) {
+                  // a replica that cannot run the lag query is not usable either way
+                  down(replica, e);
+                  continue;
+               }
+            }
+            if (replica.lagMillis <= maxLagMillis) return replica;
+         }
+      }
+      return null;
+   }//end pick
+
+   // skips a replica whose connection failed; returns false for an error of the query itself
+   private boolean markDown(Replica replica, SQLException e) {
+      if (!AirlineManagement.isConnectionFailure(e) && !replica.handle.isClosed()) return false;
+      down(replica, e);
+      return true;
+   }
+
+   private void down(Replica replica, SQLException e) {
+      replica.failures++;
+      replica.downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+      System.err.println("Replica " + replica.url + " unavailable, reading from primary: " + e.getMessage());
+   }
+
+   /**
+    * @return one line per replica with lag, state and read counts
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder();
+      long now = System.currentTimeMillis();
+      sb.append("Replica\tLagMs\tState\tReads\tFailures\t\n");
+      for (Replica replica : replicas) {
+         synchronized (replica) {
+            String state = replica.downUntil > now ? "down"
+                         : replica.lagMillis > maxLagMillis ? "lagging" : "up";
+            sb.append(replica.url).append('\t').append(replica.lagMillis).append('\t').append(state)
+              .append('\t').append(replica.reads).append('\t').append(replica.failures).append("\t\n");
+         }
+      }
+      sb.append("primary\t0\tup\t").append(primaryReads.get()).append("\t0\t\n");
+      return sb.toString();
+   }//end report
+
+   public void close() {
+      for (Replica replica : replicas) {
+         replica.handle.cleanup();
+      }
+   }
+
+   /**
+    * Checks a replica setup from the command line:
+    *    java ReplicaRouter dbname port user replica[,replica...] [query]
+    * Runs the query (default: count FlightInstance) through the router once
+    * per replica and once more, then again inside the read-your-writes window,
+    * and prints where each read went.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java ReplicaRouter <dbname> <port> <user> <host:port/db,...> [query]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      System.setProperty("airline.replicas", args[3]);
+      String sql = args.length > 4 ? args[4] : "SELECT COUNT(*) FROM FlightInstance";
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      ReplicaRouter router = fromProperties(esql);
+      try {
+         for (int i = 0; i < 2 * router.replicas.size() + 1; i++) {
+            router.print(null, sql);
+         }
+         router.noteWrite(null);
+         router.print(null, sql);
+         System.out.print(router.report());
+      } finally {
+         router.close();
+         esql.cleanup();
+      }
+   }//end main
+
+}//end ReplicaRouter
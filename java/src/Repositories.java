@@ -0,0 +1,243 @@
+/*
+ * Repositories
+ * =============================
+ *
+ * One repository interface per entity, with the lookups the features
+ * need, written once on top of Repository so every storage engine gets
+ * them.
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Storage returns these; an engine only implements Repository and may
+ * override the two column find when it can do better than a filter.
+ *
+ */
+public final class Repositories {
+
+   private Repositories() {
+   }
+
+   public interface Planes extends Repository {
+      default Object[] plane(String planeID) throws SQLException {
+         return get(planeID);
+      }
+   }//end Planes
+
+   public interface Flights extends Repository {
+      default Object[] flight(String flightNumber) throws SQLException {
+         return get(flightNumber);
+      }
+
+      default List<Object[]> route(String departureCity, String arrivalCity) throws SQLException {
+         return find("DepartureCity", departureCity, "ArrivalCity", arrivalCity);
+      }
+   }//end Flights
+
+   public interface Schedules extends Repository {
+      default List<Object[]> ofFlight(String flightNumber) throws SQLException {
+         return find("FlightNumber", flightNumber);
+      }
+   }//end Schedules
+
+   public interface FlightInstances extends Repository {
+      default Object[] instance(int flightInstanceID) throws SQLException {
+         return get(flightInstanceID);
+      }
+
+      /**
+       * @return the instance of a flight on a date, or null
+       */
+      default Object[] instance(String flightNumber, LocalDate date) throws SQLException {
+         List<Object[]> rows = find("FlightNumber", flightNumber, "FlightDate", date);
+         return rows.isEmpty() ? null : rows.get(0);
+      }
+
+      default List<Object[]> onDate(LocalDate date) throws SQLException {
+         return range("FlightDate", date, date);
+      }
+
+      /**
+       * @return the instances of a flight between two dates, by date
+       */
+      default List<Object[]> ofFlight(String flightNumber, LocalDate start, LocalDate end) throws SQLException {
+         return between(find("FlightNumber", flightNumber), table().column("FlightDate"), start, end);
+      }
+   }//end FlightInstances
+
+   public interface Customers extends Repository {
+      default Object[] customer(int customerID) throws SQLException {
+         return get(customerID);
+      }
+   }//end Customers
+
+   public interface Reservations extends Repository {
+      default Object[] reservation(String reservationID) throws SQLException {
+         return get(reservationID);
+      }
+
+      default List<Object[]> ofInstance(int flightInstanceID) throws SQLException {
+         return find("FlightInstanceID", flightInstanceID);
+      }
+
+      default List<Object[]> ofCustomer(int customerID) throws SQLException {
+         return find("CustomerID", customerID);
+      }
+
+      default List<Object[]> passengers(int flightInstanceID, String status) throws SQLException {
+         return find("FlightInstanceID", flightInstanceID, "Status", status);
+      }
+
+      /**
+       * @return the waitlisted reservations of an instance, first booked first
+       */
+      default List<Object[]> waitlist(int flightInstanceID) throws SQLException {
+         TreeMap<Long, Object[]> byOrder = new TreeMap<Long, Object[]>();
+         for (Object[] row : passengers(flightInstanceID, "waitlist")) {
+            byOrder.put(insertOrder(row[table().key]), row);
+         }
+         return new ArrayList<Object[]>(byOrder.values());
+      }
+   }//end Reservations
+
+   public interface Technicians extends Repository {
+      default Object[] technician(String technicianID) throws SQLException {
+         return get(technicianID);
+      }
+   }//end Technicians
+
+   public interface Repairs extends Repository {
+      default List<Object[]> byTechnician(String technicianID) throws SQLException {
+         return find("TechnicianID", technicianID);
+      }
+
+      /**
+       * @return the repairs of a plane between two dates, by date
+       */
+      default List<Object[]> ofPlane(String planeID, LocalDate start, LocalDate end) throws SQLException {
+         return between(find("PlaneID", planeID), table().column("RepairDate"), start, end);
+      }
+   }//end Repairs
+
+   public interface Pilots extends Repository {
+      default Object[] pilot(String pilotID) throws SQLException {
+         return get(pilotID);
+      }
+   }//end Pilots
+
+   public interface MaintenanceRequests extends Repository {
+      default List<Object[]> byPilot(String pilotID) throws SQLException {
+         return find("PilotID", pilotID);
+      }
+
+      default List<Object[]> ofPlane(String planeID) throws SQLException {
+         return find("PlaneID", planeID);
+      }
+   }//end MaintenanceRequests
+
+   public interface Users extends Repository {
+      /**
+       * @return the user with this login name, or null
+       */
+      default Object[] byUsername(String username) throws SQLException {
+         List<Object[]> rows = find("Username", username);
+         return rows.isEmpty() ? null : rows.get(0);
+      }
+   }//end Users
+
+   /**
+    * @return the rows whose date column lies between start and end, by date
+    */
+   static List<Object[]> between(List<Object[]> rows, final int column, LocalDate start, LocalDate end) {
+      List<Object[]> kept = new ArrayList<Object[]>();
+      for (Object[] row : rows) {
+         LocalDate date = (LocalDate) row[column];
+         if (date != null && !date.isBefore(start) && !date.isAfter(end)) kept.add(row);
+      }
+      kept.sort(Comparator.comparing((Object[] row) -> (LocalDate) row[column]));
+      return kept;
+   }//end between
+
+   /**
+    * Passes every call on to the engine's repository of the table.
+    */
+   private abstract static class Delegate implements Repository {
+      private final Repository target;
+
+      Delegate(Repository target) {
+         this.target = target;
+      }
+
+      public Schema.Table table() { return target.table(); }
+      public Object[] get(Object key) throws SQLException { return target.get(key); }
+      public List<Object[]> find(String column, Object value) throws SQLException { return target.find(column, value); }
+      public List<Object[]> find(String column, Object value, String column2, Object value2) throws SQLException {
+         return target.find(column, value, column2, value2);
+      }
+      public List<Object[]> range(String column, Comparable<?> from, Comparable<?> to) throws SQLException {
+         return target.range(column, from, to);
+      }
+      public List<Object[]> all() throws SQLException { return target.all(); }
+      public Object insert(Object[] row) throws SQLException { return target.insert(row); }
+      public boolean update(Object key, String column, Object value) throws SQLException {
+         return target.update(key, column, value);
+      }
+      public boolean delete(Object key) throws SQLException { return target.delete(key); }
+      public long count() throws SQLException { return target.count(); }
+      public long insertOrder(Object key) throws SQLException { return target.insertOrder(key); }
+   }//end Delegate
+
+   private static final class PlaneRepository extends Delegate implements Planes {
+      PlaneRepository(Repository target) { super(target); }
+   }
+   private static final class FlightRepository extends Delegate implements Flights {
+      FlightRepository(Repository target) { super(target); }
+   }
+   private static final class ScheduleRepository extends Delegate implements Schedules {
+      ScheduleRepository(Repository target) { super(target); }
+   }
+   private static final class FlightInstanceRepository extends Delegate implements FlightInstances {
+      FlightInstanceRepository(Repository target) { super(target); }
+   }
+   private static final class CustomerRepository extends Delegate implements Customers {
+      CustomerRepository(Repository target) { super(target); }
+   }
+   private static final class ReservationRepository extends Delegate implements Reservations {
+      ReservationRepository(Repository target) { super(target); }
+   }
+   private static final class TechnicianRepository extends Delegate implements Technicians {
+      TechnicianRepository(Repository target) { super(target); }
+   }
+   private static final class RepairRepository extends Delegate implements Repairs {
+      RepairRepository(Repository target) { super(target); }
+   }
+   private static final class PilotRepository extends Delegate implements Pilots {
+      PilotRepository(Repository target) { super(target); }
+   }
+   private static final class MaintenanceRequestRepository extends Delegate implements MaintenanceRequests {
+      MaintenanceRequestRepository(Repository target) { super(target); }
+   }
+   private static final class UserRepository extends Delegate implements Users {
+      UserRepository(Repository target) { super(target); }
+   }
+
+   static Planes planes(Repository r) { return new PlaneRepository(r); }
+   static Flights flights(Repository r) { return new FlightRepository(r); }
+   static Schedules schedules(Repository r) { return new ScheduleRepository(r); }
+   static FlightInstances flightInstances(Repository r) { return new FlightInstanceRepository(r); }
+   static Customers customers(Repository r) { return new CustomerRepository(r); }
+   static Reservations reservations(Repository r) { return new ReservationRepository(r); }
+   static Technicians technicians(Repository r) { return new TechnicianRepository(r); }
+   static Repairs repairs(Repository r) { return new RepairRepository(r); }
+   static Pilots pilots(Repository r) { return new PilotRepository(r); }
+   static MaintenanceRequests maintenanceRequests(Repository r) { return new MaintenanceRequestRepository(r); }
+   static Users users(Repository r) { return new UserRepository(r); }
+
+}//end Repositories
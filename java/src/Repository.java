@@ -0,0 +1,96 @@
+/*
+ * Repository
+ * =============================
+ *
+ * Storage of one table, independent of where the rows live: Postgres
+ * (PgStorage) or the in-memory engine (MemoryStorage).
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Rows are Object[] in the column order of table(), typed as described in
+ * Schema. Every method may throw SQLException, also for the in-memory
+ * engine, so callers handle a rejected write the same way for both.
+ *
+ */
+public interface Repository {
+
+   /**
+    * @return the table this repository stores
+    */
+   Schema.Table table();
+
+   /**
+    * @return the row with this key, or null
+    */
+   Object[] get(Object key) throws SQLException;
+
+   /**
+    * @return the rows whose column equals value, in no particular order
+    */
+   List<Object[]> find(String column, Object value) throws SQLException;
+
+   /**
+    * Looks up rows by two columns. The default looks up the first and
+    * checks the second; implementations may do better.
+    *
+    * @return the rows whose column equals value and column2 equals value2
+    */
+   default List<Object[]> find(String column, Object value, String column2, Object value2) throws SQLException {
+      int second = table().column(column2);
+      List<Object[]> rows = new ArrayList<Object[]>();
+      for (Object[] row : find(column, value)) {
+         if (Objects.equals(row[second], value2)) rows.add(row);
+      }
+      return rows;
+   }
+
+   /**
+    * @return the rows whose column lies between from and to, both
+    *         inclusive, ordered by that column
+    */
+   List<Object[]> range(String column, Comparable<?> from, Comparable<?> to) throws SQLException;
+
+   /**
+    * @return every row, in no particular order
+    */
+   List<Object[]> all() throws SQLException;
+
+   /**
+    * Adds a row. A null key of a SERIAL table is filled in.
+    *
+    * @return the key of the new row
+    * @throws java.sql.SQLException when the key is taken
+    */
+   Object insert(Object[] row) throws SQLException;
+
+   /**
+    * Sets one column of the row with this key.
+    *
+    * @return false when there is no such row
+    */
+   boolean update(Object key, String column, Object value) throws SQLException;
+
+   /**
+    * @return false when there is no such row
+    */
+   boolean delete(Object key) throws SQLException;
+
+   long count() throws SQLException;
+
+   /**
+    * @return a number that grows with every insert, to serve rows in the
+    *         order they were made, as Reservation.BookingSeq does in Postgres
+    * @throws java.sql.SQLException when this engine keeps no such order, or
+    *         there is no such row
+    */
+   default long insertOrder(Object key) throws SQLException {
+      throw new SQLException(table().name + " keeps no insertion order here");
+   }
+
+}//end Repository
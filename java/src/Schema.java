@@ -0,0 +1,179 @@
+/*
+ * Schema
+ * =============================
+ *
+ * The tables of sql/src/create_tables.sql as data: column names and
+ * types, the key, and the columns the in-memory engine indexes.
+ *
+ */
+
+import java.math.BigDecimal;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rows handled by the repositories are Object[] in column order, holding
+ * String, Integer, LocalDate, LocalTime, Boolean or BigDecimal values (or
+ * null), the same types AirlineManagement binds as parameters.
+ *
+ */
+public final class Schema {
+
+   /**
+    * Column types and how to read them from text (CSV files, getString).
+    */
+   public enum Type {
+      TEXT, INT, DATE, TIME, BOOL, DECIMAL;
+
+      private static final DateTimeFormatter CLOCK = DateTimeFormatter.ofPattern("H:mm[:ss]");
+
+      /**
+       * @return the value of a field, null for null or an empty non-text field
+       */
+      public Object parse(String text) {
+         if (text == null) return null;
+         if (this != TEXT && text.trim().isEmpty()) return null;
+         switch (this) {
+            case INT: return Integer.valueOf(text.trim());
+            case DATE: return Dates.parse(text);
+            case TIME: return LocalTime.parse(text.trim(), CLOCK);
+            case BOOL: {
+               String b = text.trim().toLowerCase();
+               return b.equals("1") || b.equals("t") || b.equals("true");
+            }
+            case DECIMAL: return new BigDecimal(text.trim());
+            default: return text;
+         }
+      }
+   }//end Type
+
+   /**
+    * One table.
+    */
+   public static final class Table {
+      public final String name;
+      public final List<String> columns;
+      public final List<Type> types;
+      // the primary key column
+      public final int key;
+      // whether the key is a SERIAL filled in on insert
+      public final boolean serial;
+      // columns with an equality (hash) index and with an ordered index
+      public final List<String> hashed;
+      public final List<String> ordered;
+
+      Table(String name, String[] columns, Type[] types, boolean serial, String[] hashed, String[] ordered) {
+         this.name = name;
+         this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+         this.types = Collections.unmodifiableList(Arrays.asList(types));
+         this.key = 0;
+         this.serial = serial;
+         this.hashed = Collections.unmodifiableList(Arrays.asList(hashed));
+         this.ordered = Collections.unmodifiableList(Arrays.asList(ordered));
+      }
+
+      /**
+       * @return the position of a column, case insensitive
+       * @throws IllegalArgumentException when the table has no such column
+       */
+      public int column(String column) {
+         for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(column)) return i;
+         }
+         throw new IllegalArgumentException(name + " has no column " + column);
+      }
+
+      /**
+       * @return the value of a column in a row of this table
+       */
+      public Object value(Object[] row, String column) {
+         return row[column(column)];
+      }
+
+      public String keyColumn() {
+         return columns.get(key);
+      }
+
+      /**
+       * @return a row of this table from text fields in column order
+       */
+      public Object[] parse(List<String> fields) {
+         Object[] row = new Object[columns.size()];
+         for (int i = 0; i < row.length && i < fields.size(); i++) {
+            row[i] = types.get(i).parse(fields.get(i));
+         }
+         return row;
+      }
+   }//end Table
+
+   private static final Type TEXT = Type.TEXT, INT = Type.INT, DATE = Type.DATE,
+                             TIME = Type.TIME, BOOL = Type.BOOL, DECIMAL = Type.DECIMAL;
+   private static final String[] NONE = {};
+
+   public static final Table PLANE = new Table("Plane",
+      new String[] { "PlaneID", "Make", "Model", "Year", "LastRepairDate" },
+      new Type[] { TEXT, TEXT, TEXT, INT, DATE }, false, NONE, NONE);
+
+   public static final Table FLIGHT = new Table("Flight",
+      new String[] { "FlightNumber", "PlaneID", "DepartureCity", "ArrivalCity" },
+      new Type[] { TEXT, TEXT, TEXT, TEXT }, false,
+      new String[] { "PlaneID", "DepartureCity", "ArrivalCity" }, NONE);
+
+   public static final Table SCHEDULE = new Table("Schedule",
+      new String[] { "ScheduleID", "FlightNumber", "DayOfWeek", "DepartureTime", "ArrivalTime" },
+      new Type[] { INT, TEXT, TEXT, TIME, TIME }, false,
+      new String[] { "FlightNumber" }, NONE);
+
+   public static final Table FLIGHT_INSTANCE = new Table("FlightInstance",
+      new String[] { "FlightInstanceID", "FlightNumber", "FlightDate", "DepartedOnTime", "ArrivedOnTime",
+                     "SeatsTotal", "SeatsSold", "NumOfStops", "TicketCost" },
+      new Type[] { INT, TEXT, DATE, BOOL, BOOL, INT, INT, INT, DECIMAL }, false,
+      new String[] { "FlightNumber" }, new String[] { "FlightDate" });
+
+   public static final Table CUSTOMER = new Table("Customer",
+      new String[] { "CustomerID", "FirstName", "LastName", "Gender", "DOB", "Address", "Phone", "Zip" },
+      new Type[] { INT, TEXT, TEXT, TEXT, DATE, TEXT, TEXT, TEXT }, false,
+      new String[] { "LastName", "Zip" }, NONE);
+
+   public static final Table RESERVATION = new Table("Reservation",
+      new String[] { "ReservationID", "CustomerID", "FlightInstanceID", "Status", "SeatNumber", "FlightDate" },
+      new Type[] { TEXT, INT, INT, TEXT, INT, DATE }, false,
+      new String[] { "CustomerID", "FlightInstanceID" }, NONE);
+
+   public static final Table TECHNICIAN = new Table("Technician",
+      new String[] { "TechnicianID", "Name" },
+      new Type[] { TEXT, TEXT }, false, NONE, NONE);
+
+   public static final Table REPAIR = new Table("Repair",
+      new String[] { "RepairID", "PlaneID", "RepairCode", "RepairDate", "TechnicianID" },
+      new Type[] { INT, TEXT, TEXT, DATE, TEXT }, true,
+      new String[] { "PlaneID", "TechnicianID" }, new String[] { "RepairDate" });
+
+   public static final Table PILOT = new Table("Pilot",
+      new String[] { "PilotID", "Name" },
+      new Type[] { TEXT, TEXT }, false, NONE, NONE);
+
+   public static final Table MAINTENANCE_REQUEST = new Table("MaintenanceRequest",
+      new String[] { "RequestID", "PlaneID", "RepairCode", "RequestDate", "PilotID" },
+      new Type[] { INT, TEXT, TEXT, DATE, TEXT }, true,
+      new String[] { "PlaneID", "PilotID" }, new String[] { "RequestDate" });
+
+   public static final Table USER = new Table("User_",
+      new String[] { "UserID", "Username", "Password", "UserType", "SpecificID" },
+      new Type[] { INT, TEXT, TEXT, TEXT, TEXT }, true,
+      new String[] { "Username" }, NONE);
+
+   /**
+    * Every table, parents before children (the order to load them in).
+    */
+   public static final List<Table> TABLES = Collections.unmodifiableList(Arrays.asList(
+      PLANE, FLIGHT, SCHEDULE, FLIGHT_INSTANCE, CUSTOMER, RESERVATION,
+      TECHNICIAN, REPAIR, PILOT, MAINTENANCE_REQUEST, USER));
+
+   private Schema() {
+   }
+
+}//end Schema
@@ -0,0 +1,313 @@
+/*
+ * Seat map
+ * =============================
+ *
+ * Seat level inventory for flight instances. Every FlightInstance gets a
+ * bitmap of SeatsTotal bits; Reservation.SeatNumber is the persisted form.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of per-instance seat bitmaps. Bitmaps are rebuilt from the
+ * Reservation rows of a flight instance the first time it is touched (two
+ * indexed reads), after which seat selection is lock-free: a seat is taken by
+ * a compare-and-set on its bit and released the same way.
+ *
+ * Seats are numbered from 0; seat n is row n / 6 + 1, letter "ABCDEF"[n % 6].
+ * Reservations without a SeatNumber (seed data, bookings made before seat
+ * maps) still occupy a seat: each takes the last free one at rebuild.
+ *
+ */
+public class SeatMap {
+
+   public static final int SEATS_PER_ROW = 6;
+   private static final String LETTERS = "ABCDEF";
+
+   // how long an unconfirmed seat stays held
+   public static final long DEFAULT_HOLD_MILLIS = 2 * 60 * 1000L;
+
+   private final ConcurrentHashMap<Integer, Bitmap> instances = new ConcurrentHashMap<Integer, Bitmap>();
+
+   /**
+    * Seat bitmap of one flight instance. A set bit means the seat is taken,
+    * either sold or held; holdUntil is non-zero only for held seats.
+    */
+   public static final class Bitmap {
+      private final int seatsTotal;
+      private final AtomicLongArray taken;
+      private final AtomicLongArray holdUntil;
+      // seats standing in for reservations without a SeatNumber
+      private final ConcurrentLinkedDeque<Integer> unnumbered = new ConcurrentLinkedDeque<Integer>();
+
+      Bitmap(int seatsTotal) {
+         this.seatsTotal = seatsTotal;
+         this.taken = new AtomicLongArray((seatsTotal + 63) / 64);
+         this.holdUntil = new AtomicLongArray(seatsTotal);
+      }
+
+      public int seatsTotal() {
+         return seatsTotal;
+      }
+
+      public boolean isTaken(int seat) {
+         return (taken.get(seat >>> 6) & (1L << (seat & 63))) != 0;
+      }
+
+      /**
+       * Holds a specific seat.
+       *
+       * @return true if the seat was free and is now held by the caller
+       */
+      public boolean hold(int seat, long ttlMillis) {
+         if (seat < 0 || seat >= seatsTotal) return false;
+         if (!setBit(seat)) {
+            // taken, but maybe by a hold that has run out
+            if (!expire(seat, System.currentTimeMillis()) || !setBit(seat)) return false;
+         }
+         holdUntil.set(seat, System.currentTimeMillis() + ttlMillis);
+         return true;
+      }
+
+      /**
+       * Holds the first free seat.
+       *
+       * @return the seat held, or -1 when the bitmap is full
+       */
+      public int holdAny(long ttlMillis) {
+         for (int pass = 0; pass < 2; pass++) {
+            for (int word = 0; word < taken.length(); word++) {
+               long bits;
+               while ((bits = ~taken.get(word)) != 0) {
+                  int seat = (word << 6) + Long.numberOfTrailingZeros(bits);
+                  if (seat >= seatsTotal) break;
+                  if (setBit(seat)) {
+                     holdUntil.set(seat, System.currentTimeMillis() + ttlMillis);
+                     return seat;
+                  }
+               }
+            }
+            // full: reclaim expired holds once and retry
+            if (expireHolds() == 0) break;
+         }
+         return -1;
+      }
+
+      /**
+       * Finds a block of adjacent free seats in one row without holding it,
+       * for showing what a group could book.
+       *
+       * @return the seats, or null when no row has a free block that big
+       */
+      public int[] peekAdjacent(int count) {
+         if (count <= 0 || count > SEATS_PER_ROW) return null;
+         long now = System.currentTimeMillis();
+         for (int rowStart = 0; rowStart < seatsTotal; rowStart += SEATS_PER_ROW) {
+            int rowEnd = Math.min(rowStart + SEATS_PER_ROW, seatsTotal);
+            int run = 0;
+            for (int seat = rowStart; seat < rowEnd; seat++) {
+               run = isFree(seat, now) ? run + 1 : 0;
+               if (run == count) {
+                  int[] seats = new int[count];
+                  for (int i = 0; i < count; i++) seats[i] = seat - count + 1 + i;
+                  return seats;
+               }
+            }
+         }
+         return null;
+      }
+
+      // free, or held by a hold that has run out
+      private boolean isFree(int seat, long now) {
+         if (!isTaken(seat)) return true;
+         long until = holdUntil.get(seat);
+         return until != 0 && until <= now;
+      }
+
+      /**
+       * Turns a hold into a sale.
+       */
+      public void confirm(int seat) {
+         holdUntil.set(seat, 0);
+      }
+
+      /**
+       * Marks a seat as sold (used when rebuilding from Reservation rows).
+       */
+      void markSold(int seat) {
+         if (seat < 0 || seat >= seatsTotal) return;
+         setBit(seat);
+         holdUntil.set(seat, 0);
+      }
+
+      /**
+       * Takes the last free seat for a reservation without a SeatNumber.
+       */
+      void markUnnumbered() {
+         for (int seat = seatsTotal - 1; seat >= 0; seat--) {
+            if (setBit(seat)) {
+               holdUntil.set(seat, 0);
+               unnumbered.push(seat);
+               return;
+            }
+         }
+      }
+
+      /**
+       * Frees the seat of a cancelled reservation that had no SeatNumber.
+       */
+      public void releaseUnnumbered() {
+         Integer seat = unnumbered.poll();
+         if (seat != null) release(seat);
+      }
+
+      /**
+       * Frees a held or sold seat.
+       */
+      public void release(int seat) {
+         if (seat < 0 || seat >= seatsTotal) return;
+         holdUntil.set(seat, 0);
+         clearBit(seat);
+      }
+
+      /**
+       * Releases every hold that has run out.
+       *
+       * @return the number of seats released
+       */
+      public int expireHolds() {
+         long now = System.currentTimeMillis();
+         int released = 0;
+         for (int seat = 0; seat < seatsTotal; seat++) {
+            if (expire(seat, now)) released++;
+         }
+         return released;
+      }
+
+      public int freeCount() {
+         int taken = 0;
+         for (int word = 0; word < this.taken.length(); word++) {
+            taken += Long.bitCount(this.taken.get(word));
+         }
+         return seatsTotal - taken;
+      }
+
+      private boolean expire(int seat, long now) {
+         long until = holdUntil.get(seat);
+         if (until == 0 || until > now || !holdUntil.compareAndSet(seat, until, 0)) return false;
+         clearBit(seat);
+         return true;
+      }
+
+      private boolean setBit(int seat) {
+         int word = seat >>> 6;
+         long mask = 1L << (seat & 63);
+         while (true) {
+            long bits = taken.get(word);
+            if ((bits & mask) != 0) return false;
+            if (taken.compareAndSet(word, bits, bits | mask)) return true;
+         }
+      }
+
+      private void clearBit(int seat) {
+         int word = seat >>> 6;
+         long mask = 1L << (seat & 63);
+         while (true) {
+            long bits = taken.get(word);
+            if ((bits & mask) == 0 || taken.compareAndSet(word, bits, bits & ~mask)) return;
+         }
+      }
+   }//end Bitmap
+
+   /**
+    * Returns the bitmap of a flight instance, rebuilding it from the database
+    * the first time. Called inside the booking transaction it sees the rows
+    * protected by the FlightInstance row lock.
+    *
+    * @param esql the database handle
+    * @param flightInstanceID the flight instance
+    * @return the bitmap, or null if the instance does not exist
+    * @throws java.sql.SQLException when the rebuild fails
+    */
+   public Bitmap forInstance(AirlineManagement esql, int flightInstanceID) throws SQLException {
+      Bitmap bitmap = instances.get(flightInstanceID);
+      if (bitmap != null) {
+         esql.metrics().hit("seat maps");
+         return bitmap;
+      }
+
+      esql.metrics().miss("seat maps");
+      List<List<String>> total = esql.executeQueryAndReturnResult(String.format(
+         "SELECT SeatsTotal FROM FlightInstance WHERE FlightInstanceID = %d", flightInstanceID));
+      if (total.isEmpty()) return null;
+      bitmap = new Bitmap(Integer.parseInt(total.get(0).get(0)));
+      int unnumbered = 0;
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+            "SELECT SeatNumber FROM Reservation " +
+            "WHERE FlightInstanceID = %d AND Status IN ('reserved', 'flown')",
+            flightInstanceID))) {
+         if (row.get(0) == null) unnumbered++;
+         else bitmap.markSold(Integer.parseInt(row.get(0)));
+      }
+      // after the numbered ones, so they take seats nobody has
+      for (int i = 0; i < unnumbered; i++) bitmap.markUnnumbered();
+      Bitmap raced = instances.putIfAbsent(flightInstanceID, bitmap);
+      return raced != null ? raced : bitmap;
+   }//end forInstance
+
+   /**
+    * @return the bitmap of a flight instance if it is already in memory
+    */
+   public Bitmap loaded(int flightInstanceID) {
+      return instances.get(flightInstanceID);
+   }
+
+   /**
+    * Drops a bitmap so the next access rebuilds it from the database.
+    */
+   public void invalidate(int flightInstanceID) {
+      instances.remove(flightInstanceID);
+   }
+
+   /**
+    * Drops every bitmap.
+    */
+   public void clear() {
+      instances.clear();
+   }
+
+   public int size() {
+      return instances.size();
+   }
+
+   /**
+    * @return seat label such as "12C"
+    */
+   public static String label(int seat) {
+      return (seat / SEATS_PER_ROW + 1) + "" + LETTERS.charAt(seat % SEATS_PER_ROW);
+   }
+
+   /**
+    * Parses a seat label such as "12C".
+    *
+    * @return the seat number, or -1 if the label is not valid
+    */
+   public static int parse(String label) {
+      String s = label.trim().toUpperCase();
+      if (s.length() < 2) return -1;
+      int letter = LETTERS.indexOf(s.charAt(s.length() - 1));
+      if (letter < 0) return -1;
+      try {
+         int row = Integer.parseInt(s.substring(0, s.length() - 1));
+         return row < 1 ? -1 : (row - 1) * SEATS_PER_ROW + letter;
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+}//end SeatMap
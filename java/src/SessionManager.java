@@ -0,0 +1,392 @@
+/*
+ * Session manager
+ * =============================
+ *
+ * Logins and sessions: salted PBKDF2 password hashes verified on a worker
+ * pool, a cache of User_ rows by username, and a table of open sessions
+ * that expire when idle.
+ *
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * User_.Password holds "pbkdf2$iterations$salt$hash" (Base64, SHA-256,
+ * 16 byte salt). A row still holding a plain password is accepted once and
+ * rewritten as a hash on that login.
+ *
+ * A username's row is read at most once per airline.auth.cacheSeconds
+ * (default 300), however many logins for it arrive at once: the first
+ * reads it and the rest wait for that read. Hashing runs on
+ * airline.auth.threads workers (default: one per processor), so it never
+ * holds a database connection and a burst of logins queues for CPU rather
+ * than connections. Other nodes' password changes reach the cache through
+ * ChangeListener, or when the entry ages out.
+ *
+ * Sessions idle for airline.session.idleMinutes (default 30) end.
+ *
+ */
+public class SessionManager {
+
+   public static final int DEFAULT_ITERATIONS = 120000;
+   public static final int DEFAULT_CACHE_SECONDS = 300;
+   public static final int DEFAULT_IDLE_MINUTES = 30;
+
+   private static final String SCHEME = "pbkdf2";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+   // verified against when the username does not exist, so both take as long
+   private static final String DUMMY = hash("not a password", new byte[SALT_BYTES], DEFAULT_ITERATIONS);
+
+   /**
+    * A logged in user.
+    */
+   public static final class Session {
+      public final String token;
+      public final int userID;
+      public final String username;
+      public final String userType;
+      public final String specificID;
+      volatile long lastSeen;
+
+      Session(String token, int userID, String username, String userType, String specificID) {
+         this.token = token;
+         this.userID = userID;
+         this.username = username;
+         this.userType = userType;
+         this.specificID = specificID == null ? "" : specificID;
+         this.lastSeen = System.currentTimeMillis();
+      }
+   }//end Session
+
+   // a User_ row as cached; userID < 0 for a username that does not exist
+   private static final class UserRecord {
+      final int userID;
+      final String password;
+      final String userType;
+      final String specificID;
+      final long loadedAt = System.currentTimeMillis();
+
+      UserRecord(int userID, String password, String userType, String specificID) {
+         this.userID = userID;
+         this.password = password;
+         this.userType = userType;
+         this.specificID = specificID;
+      }
+   }//end UserRecord
+
+   private final int iterations = Integer.getInteger("airline.auth.iterations", DEFAULT_ITERATIONS);
+   private final long cacheMillis = 1000L * Integer.getInteger("airline.auth.cacheSeconds", DEFAULT_CACHE_SECONDS);
+   private final long idleMillis = 60000L * Integer.getInteger("airline.session.idleMinutes", DEFAULT_IDLE_MINUTES);
+   private final ExecutorService hashers;
+   private final ScheduledExecutorService sweeper;
+   private final SecureRandom random = new SecureRandom();
+
+   private final ConcurrentHashMap<String, CompletableFuture<UserRecord>> users =
+      new ConcurrentHashMap<String, CompletableFuture<UserRecord>>();
+   private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+   // every username in User_, loaded on the first duplicate check
+   private volatile Set<String> usernames = null;
+
+   private final AtomicLong logins = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final AtomicLong reads = new AtomicLong();
+
+   public SessionManager() {
+      int threads = Integer.getInteger("airline.auth.threads", Runtime.getRuntime().availableProcessors());
+      this.hashers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+         Thread t = new Thread(r, "password-hash");
+         t.setDaemon(true);
+         return t;
+      });
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "session-sweeper");
+         t.setDaemon(true);
+         return t;
+      });
+      this.sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+   }
+
+   /**
+    * Checks a username and password.
+    *
+    * @return the new session, or null when the credentials are wrong
+    * @throws java.sql.SQLException when the user cannot be read or updated
+    */
+   public Session login(AirlineManagement esql, String username, String password) throws SQLException {
+      UserRecord user = user(esql, username);
+      String stored = user.userID < 0 ? DUMMY : user.password;
+      boolean ok;
+      try {
+         ok = hashers.submit(() -> verify(password, stored)).get() && user.userID >= 0;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted during login");
+      } catch (ExecutionException e) {
+         throw new SQLException("Password check failed: " + e.getCause());
+      }
+      if (!ok) {
+         failures.incrementAndGet();
+         return null;
+      }
+      if (!stored.startsWith(SCHEME + "$")) {
+         // a plain password from before hashing: store its hash from now on
+         String hashed = await(hashLater(password));
+         esql.executeUpdate("UPDATE User_ SET Password = ? WHERE UserID = ?", hashed, user.userID);
+         users.put(username, CompletableFuture.completedFuture(
+            new UserRecord(user.userID, hashed, user.userType, user.specificID)));
+      }
+      logins.incrementAndGet();
+      Session session = new Session(token(), user.userID, username, user.userType, user.specificID);
+      sessions.put(session.token, session);
+      return session;
+   }//end login
+
+   /**
+    * Marks a session as used.
+    *
+    * @return the session, or null when it ended or was idle too long
+    */
+   public Session touch(String token) {
+      Session session = sessions.get(token);
+      if (session == null) return null;
+      long now = System.currentTimeMillis();
+      if (now - session.lastSeen > idleMillis) {
+         sessions.remove(token, session);
+         return null;
+      }
+      session.lastSeen = now;
+      return session;
+   }
+
+   public void logout(Session session) {
+      sessions.remove(session.token);
+   }
+
+   public long idleMinutes() {
+      return idleMillis / 60000;
+   }
+
+   /**
+    * @return whether a username is taken, from memory once the names are loaded
+    * @throws java.sql.SQLException when the names cannot be read
+    */
+   public boolean usernameTaken(AirlineManagement esql, String username) throws SQLException {
+      Set<String> names = usernames;
+      if (names == null) {
+         synchronized (this) {
+            if (usernames == null) {
+               Set<String> loaded = ConcurrentHashMap.newKeySet();
+               for (List<String> row : esql.executeQueryAndReturnResult("SELECT Username FROM User_")) {
+                  loaded.add(row.get(0));
+               }
+               usernames = loaded;
+            }
+            names = usernames;
+         }
+      }
+      // another node may have added it since: the UNIQUE constraint has the last word
+      return names.contains(username);
+   }//end usernameTaken
+
+   /**
+    * Starts hashing a new password on the workers, so CreateUser can ask
+    * its remaining questions meanwhile.
+    */
+   public Future<String> hashLater(final String password) {
+      final byte[] salt = new byte[SALT_BYTES];
+      random.nextBytes(salt);
+      return hashers.submit(() -> hash(password, salt, iterations));
+   }
+
+   /**
+    * Records a user this node created.
+    */
+   public void created(String username) {
+      Set<String> names = usernames;
+      if (names != null) names.add(username);
+      users.remove(username);
+   }
+
+   /**
+    * Drops a cached user after another node changed or removed its row.
+    */
+   public void forget(String username) {
+      users.remove(username);
+      usernames = null;
+   }
+
+   /**
+    * Drops every cached user, for when changes may have been missed.
+    */
+   public void clear() {
+      users.clear();
+      usernames = null;
+   }
+
+   /**
+    * @return counters since start
+    */
+   public String report() {
+      return String.format("Sessions: %d open, %d logins, %d failed, %d user reads, %d users cached",
+                           sessions.size(), logins.get(), failures.get(), reads.get(), users.size());
+   }
+
+   /**
+    * @return the number of users held in memory
+    */
+   public int cachedUsers() {
+      return users.size();
+   }
+
+   public void shutdown() {
+      sweeper.shutdownNow();
+      hashers.shutdown();
+   }
+
+   // the cached row of a username, read once however many callers want it
+   private UserRecord user(AirlineManagement esql, String username) throws SQLException {
+      while (true) {
+         CompletableFuture<UserRecord> mine = new CompletableFuture<UserRecord>();
+         CompletableFuture<UserRecord> cached = users.putIfAbsent(username, mine);
+         if (cached == null) {
+            try {
+               reads.incrementAndGet();
+               esql.metrics().miss("users");
+               List<List<String>> rows = esql.executeQueryAndReturnResult(
+                  "SELECT UserID, Password, UserType, SpecificID FROM User_ WHERE Username = ?", username);
+               UserRecord user = rows.isEmpty() ? new UserRecord(-1, null, null, null)
+                  : new UserRecord(Integer.parseInt(rows.get(0).get(0)), rows.get(0).get(1),
+                                   rows.get(0).get(2), rows.get(0).get(3));
+               mine.complete(user);
+               return user;
+            } catch (SQLException | RuntimeException e) {
+               users.remove(username, mine);
+               mine.completeExceptionally(e);
+               throw e;
+            }
+         }
+         UserRecord user;
+         try {
+            user = cached.join();
+         } catch (RuntimeException e) {
+            // the reading caller failed and reports it; read again ourselves
+            continue;
+         }
+         if (System.currentTimeMillis() - user.loadedAt <= cacheMillis) {
+            esql.metrics().hit("users");
+            return user;
+         }
+         users.remove(username, cached);
+      }
+   }//end user
+
+   private String token() {
+      byte[] bytes = new byte[16];
+      random.nextBytes(bytes);
+      StringBuilder hex = new StringBuilder(32);
+      for (byte b : bytes) hex.append(String.format("%02x", b));
+      return hex.toString();
+   }
+
+   private void sweep() {
+      long now = System.currentTimeMillis();
+      sessions.values().removeIf(s -> now - s.lastSeen > idleMillis);
+      users.values().removeIf(f -> f.isDone() && !f.isCompletedExceptionally()
+                                   && now - f.join().loadedAt > cacheMillis);
+   }
+
+   private static String await(Future<String> hashed) throws SQLException {
+      try {
+         return hashed.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while hashing");
+      } catch (ExecutionException e) {
+         throw new SQLException("Hashing failed: " + e.getCause());
+      }
+   }
+
+   /**
+    * @return the stored form of a password
+    */
+   static String hash(String password, byte[] salt, int iterations) {
+      Base64.Encoder b64 = Base64.getEncoder();
+      return SCHEME + "$" + iterations + "$" + b64.encodeToString(salt) + "$"
+             + b64.encodeToString(derive(password, salt, iterations));
+   }
+
+   /**
+    * @return whether a password matches its stored form, hashed or plain
+    */
+   static boolean verify(String password, String stored) {
+      if (stored == null) return false;
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+         return MessageDigest.isEqual(password.getBytes(), stored.getBytes());
+      }
+      Base64.Decoder b64 = Base64.getDecoder();
+      byte[] expected = b64.decode(parts[3]);
+      return MessageDigest.isEqual(derive(password, b64.decode(parts[2]), Integer.parseInt(parts[1])), expected);
+   }
+
+   private static byte[] derive(String password, byte[] salt, int iterations) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      try {
+         return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+      } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+         throw new IllegalStateException("PBKDF2 unavailable: " + e.getMessage());
+      } finally {
+         spec.clearPassword();
+      }
+   }
+
+   /**
+    * Hashes every plain password left in User_, so none stays readable in
+    * the table or its backups.
+    *
+    *    java SessionManager dbname port user
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java SessionManager <dbname> <port> <user>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      SessionManager sessions = new SessionManager();
+      int rehashed = 0;
+      try {
+         for (List<String> row : esql.executeQueryAndReturnResult("SELECT UserID, Password FROM User_")) {
+            if (row.get(1).startsWith(SCHEME + "$")) continue;
+            esql.executeUpdate("UPDATE User_ SET Password = ? WHERE UserID = ?",
+                               await(sessions.hashLater(row.get(1))), Integer.parseInt(row.get(0)));
+            rehashed++;
+         }
+         System.out.println("Hashed " + rehashed + " plain password(s)");
+      } finally {
+         sessions.shutdown();
+         esql.cleanup();
+      }
+   }//end main
+
+}//end SessionManager
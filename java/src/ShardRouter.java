@@ -0,0 +1,454 @@
+/*
+ * Shard routing
+ * =============================
+ *
+ * Spreads FlightInstance, Reservation and Schedule over several Postgres
+ * instances by FlightNumber. Plane, Flight, Customer, Pilot and Technician
+ * are small and copied to every shard, so each shard can answer any
+ * per-flight query with local joins.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * A flight lives on shard crc32(FlightNumber) mod N, together with all of
+ * its instances, schedules and reservations. Queries for one flight, or for
+ * one flight instance, go to that shard alone. Queries across flights run
+ * on every shard in parallel and the rows are merged; since no flight
+ * spans shards, per-flight GROUP BYs need no re-aggregation.
+ *
+ * Shards are listed in the airline.shards system property as comma
+ * separated JDBC URLs (or host:port/dbname) and use the primary's user.
+ * Users, repairs and maintenance requests stay on the primary.
+ *
+ * Each shard has one shared connection for reads. Transactions (bookings,
+ * cancellations, promotions) borrow a connection of their own from the
+ * shard's pool of airline.shard.connections (default 4), opened on first use.
+ *
+ */
+public class ShardRouter {
+
+   public static final String[] SHARDED = { "FlightInstance", "Reservation", "Schedule" };
+   public static final String[] REPLICATED = { "Plane", "Flight", "Customer", "Pilot", "Technician" };
+
+   /**
+    * Column names and rows of a merged query.
+    */
+   public static final class Result {
+      public final List<String> columns;
+      public final List<List<String>> rows;
+
+      Result(List<String> columns, List<List<String>> rows) {
+         this.columns = columns;
+         this.rows = rows;
+      }
+
+      /**
+       * Prints the rows in the same layout as executeQueryAndPrintResult.
+       *
+       * @return the number of rows printed
+       */
+      public int print() {
+         if (rows.isEmpty()) return 0;
+         for (String column : columns) System.out.print(column + "\t");
+         System.out.println();
+         for (List<String> row : rows) {
+            for (String value : row) System.out.print(value + "\t");
+            System.out.println();
+         }
+         return rows.size();
+      }
+   }//end Result
+
+   // one shard; the shared connection is used by one thread at a time
+   static final class Shard {
+      final String url;
+      final Connection connection;
+      final AirlineManagement handle;
+      // connections for transactions, guarded by the router
+      ConnectionPool pool = null;
+
+      Shard(String url, Connection connection, AirlineManagement handle) {
+         this.url = url;
+         this.connection = connection;
+         this.handle = handle;
+      }
+   }//end Shard
+
+   private final AirlineManagement primary;
+   private final List<Shard> shards = new ArrayList<Shard>();
+   private final ExecutorService pool;
+   // FlightInstanceID -> shard, filled as instances are looked up
+   private final Map<Integer, Integer> instances = new ConcurrentHashMap<Integer, Integer>();
+   // borrowed transaction handles and the pool each goes back to
+   private final Map<AirlineManagement, ConnectionPool> borrowed = new ConcurrentHashMap<AirlineManagement, ConnectionPool>();
+
+   public ShardRouter(AirlineManagement primary, List<String> urls) throws SQLException {
+      this.primary = primary;
+      for (String url : urls) {
+         Connection connection = primary.openConnection(url);
+         this.shards.add(new Shard(url, connection, new AirlineManagement(connection, primary, url)));
+      }
+      this.pool = Executors.newFixedThreadPool(Math.max(1, urls.size()), r -> {
+         Thread t = new Thread(r, "shard-fanout");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Builds the router named by the airline.shards system property.
+    *
+    * @return the router, or null when the database is not sharded
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public static ShardRouter fromProperties(AirlineManagement primary) throws SQLException {
+      String list = System.getProperty("airline.shards");
+      if (list == null || list.trim().isEmpty()) return null;
+      List<String> urls = new ArrayList<String>();
+      for (String url : list.split(",")) {
+         url = url.trim();
+         if (url.isEmpty()) continue;
+         urls.add(url.startsWith("jdbc:") ? url : "jdbc:postgresql://" + url);
+      }
+      return new ShardRouter(primary, urls);
+   }
+
+   /**
+    * @return the shard index of a flight for n shards
+    */
+   public static int shardOf(String flightNumber, int n) {
+      CRC32 crc = new CRC32();
+      crc.update(flightNumber.trim().getBytes(StandardCharsets.UTF_8));
+      return (int) (crc.getValue() % n);
+   }
+
+   public int size() {
+      return shards.size();
+   }
+
+   /**
+    * @return the JDBC URLs of the shards, in shard order
+    */
+   public List<String> urls() {
+      List<String> urls = new ArrayList<String>();
+      for (Shard shard : shards) urls.add(shard.url);
+      return urls;
+   }
+
+   /**
+    * @return a handle per shard, in shard order
+    */
+   public List<AirlineManagement> handles() {
+      List<AirlineManagement> handles = new ArrayList<AirlineManagement>();
+      for (Shard shard : shards) handles.add(shard.handle);
+      return handles;
+   }
+
+   /**
+    * @return the JDBC URL of the shard holding a flight
+    */
+   public String urlOf(String flightNumber) {
+      return shards.get(shardOf(flightNumber, shards.size())).url;
+   }
+
+   /**
+    * @return the handle of the shard holding a flight
+    */
+   public AirlineManagement forFlight(String flightNumber) {
+      return shards.get(shardOf(flightNumber, shards.size())).handle;
+   }
+
+   /**
+    * Finds the shard holding a flight instance, asking every shard the first
+    * time an instance is seen.
+    *
+    * @return the shard's handle, or null when no shard has the instance
+    * @throws java.sql.SQLException when a shard cannot be queried
+    */
+   public AirlineManagement forInstance(int flightInstanceID) throws SQLException {
+      Integer shard = shardOfInstance(flightInstanceID);
+      return shard == null ? null : shards.get(shard).handle;
+   }//end forInstance
+
+   /**
+    * Borrows a connection to the shard holding a flight instance for one
+    * transaction. Hand it back with release.
+    *
+    * @return the borrowed handle, or null when no shard has the instance
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public AirlineManagement borrowForInstance(int flightInstanceID) throws SQLException {
+      Integer shard = shardOfInstance(flightInstanceID);
+      if (shard == null) return null;
+      ConnectionPool connections = pool(shards.get(shard));
+      AirlineManagement handle;
+      try {
+         handle = connections.borrow();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for a shard connection");
+      }
+      borrowed.put(handle, connections);
+      return handle;
+   }//end borrowForInstance
+
+   /**
+    * Gives back a handle from borrowForInstance; any other handle is left alone.
+    */
+   public void release(AirlineManagement handle) {
+      ConnectionPool connections = borrowed.remove(handle);
+      if (connections != null) connections.release(handle);
+   }
+
+   private synchronized ConnectionPool pool(Shard shard) throws SQLException {
+      if (shard.pool == null) {
+         shard.pool = new ConnectionPool(primary, shard.url, Math.max(1, Integer.getInteger("airline.shard.connections", 4)));
+      }
+      return shard.pool;
+   }
+
+   // the shard index of a flight instance, asking every shard the first time
+   private Integer shardOfInstance(int flightInstanceID) throws SQLException {
+      Integer shard = instances.get(flightInstanceID);
+      if (shard == null) {
+         List<List<String>> rows = fanOut(
+            "SELECT FlightNumber FROM FlightInstance WHERE FlightInstanceID = " + flightInstanceID, null).rows;
+         if (rows.isEmpty()) return null;
+         shard = shardOf(rows.get(0).get(0), shards.size());
+         instances.put(flightInstanceID, shard);
+      }
+      return shard;
+   }//end shardOfInstance
+
+   /**
+    * Runs a query on every shard in parallel and concatenates the rows.
+    *
+    * @param sql the query, which must not need rows from two shards at once
+    * @param order sorts the merged rows, or null to keep shard order
+    * @param params values of the ? placeholders
+    * @return the merged result
+    * @throws java.sql.SQLException when any shard fails
+    */
+   public Result fanOut(final String sql, Comparator<List<String>> order, final Object... params) throws SQLException {
+      List<Future<Result>> parts = new ArrayList<Future<Result>>();
+      for (final Shard shard : shards) {
+         parts.add(pool.submit(() -> query(shard, sql, params)));
+      }
+      List<Result> results = new ArrayList<Result>();
+      for (Future<Result> part : parts) {
+         try {
+            results.add(part.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted during shard query");
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Shard query failed: " + e.getCause());
+         }
+      }
+      return merge(results, order);
+   }//end fanOut
+
+   /**
+    * Concatenates the results of one query on several shards.
+    *
+    * @param order sorts the merged rows, or null to keep shard order
+    */
+   static Result merge(List<Result> results, Comparator<List<String>> order) {
+      List<String> columns = Collections.emptyList();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Result result : results) {
+         columns = result.columns;
+         rows.addAll(result.rows);
+      }
+      if (order != null) rows.sort(order);
+      return new Result(columns, rows);
+   }//end merge
+
+   private static Result query(Shard shard, String sql, Object... params) throws SQLException {
+      synchronized (shard) {
+         PreparedStatement stmt = AirlineManagement.prepare(shard.connection, sql, params);
+         try {
+            ResultSet rs = stmt.executeQuery();
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            List<String> columns = new ArrayList<String>();
+            for (int i = 1; i <= numCol; i++) columns.add(rsmd.getColumnName(i));
+            List<List<String>> rows = new ArrayList<List<String>>();
+            while (rs.next()) {
+               List<String> row = new ArrayList<String>(numCol);
+               for (int i = 1; i <= numCol; i++) row.add(rs.getString(i));
+               rows.add(row);
+            }
+            return new Result(columns, rows);
+         } finally {
+            stmt.close();
+         }
+      }
+   }//end query
+
+   /**
+    * Applies a change to a replicated table on every shard. Shards are
+    * updated one after another, not atomically; the statement should be
+    * idempotent so a failed run can be repeated.
+    *
+    * @return rows changed on the first shard
+    * @throws java.sql.SQLException when any shard fails
+    */
+   public int replicate(String sql) throws SQLException {
+      int rows = -1;
+      for (Shard shard : shards) {
+         synchronized (shard) {
+            int n = shard.handle.executeUpdate(sql);
+            if (rows < 0) rows = n;
+         }
+      }
+      return rows;
+   }//end replicate
+
+   /**
+    * Orders merged rows by the given columns, compared as text.
+    */
+   public static Comparator<List<String>> byColumns(final int... columns) {
+      return (a, b) -> {
+         for (int c : columns) {
+            String x = a.get(c), y = b.get(c);
+            int cmp = x == null ? (y == null ? 0 : -1) : y == null ? 1 : x.compareTo(y);
+            if (cmp != 0) return cmp;
+         }
+         return 0;
+      };
+   }
+
+   public void close() {
+      pool.shutdownNow();
+      for (Shard shard : shards) {
+         shard.handle.cleanup();
+         synchronized (this) {
+            if (shard.pool != null) shard.pool.close();
+         }
+      }
+   }
+
+   /**
+    * Splits the CSV files of data/ into one directory per shard, each
+    * loadable with sql/src/load_data.sql:
+    *    java ShardRouter split <dataDir> <outDir> <shards>
+    * or prints the row counts of every shard:
+    *    java ShardRouter check <dbname> <port> <user> <host:port/db,...>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length == 4 && args[0].equals("split")) {
+         split(new File(args[1]), new File(args[2]), Integer.parseInt(args[3]));
+      } else if (args.length == 5 && args[0].equals("check")) {
+         Class.forName("org.postgresql.Driver");
+         System.setProperty("airline.shards", args[4]);
+         AirlineManagement esql = new AirlineManagement(args[1], args[2], args[3], "");
+         ShardRouter router = fromProperties(esql);
+         try {
+            for (String table : SHARDED) {
+               System.out.println(table + ":");
+               for (int i = 0; i < router.shards.size(); i++) {
+                  System.out.println("  shard " + i + " " + router.shards.get(i).url + "\t" +
+                                     query(router.shards.get(i), "SELECT COUNT(*) FROM " + table).rows.get(0).get(0));
+               }
+            }
+         } finally {
+            router.close();
+            esql.cleanup();
+         }
+      } else {
+         System.err.println("Usage: java ShardRouter split <dataDir> <outDir> <shards>");
+         System.err.println("       java ShardRouter check <dbname> <port> <user> <host:port/db,...>");
+      }
+   }//end main
+
+   private static void split(File data, File out, int n) throws IOException {
+      // Reservation has no FlightNumber, it follows its flight instance
+      Map<String, Integer> instanceShard = new HashMap<String, Integer>();
+      splitFile(data, out, n, "FlightInstance", 1, null, instanceShard);
+      splitFile(data, out, n, "Schedule", 1, null, null);
+      splitFile(data, out, n, "Reservation", 2, instanceShard, null);
+      for (String table : REPLICATED) {
+         splitFile(data, out, n, table, -1, null, null);
+      }
+      System.out.println("Wrote " + n + " shard(s) to " + out);
+   }
+
+   // keyColumn < 0 copies every row to every shard
+   private static void splitFile(File data, File out, int n, String table, int keyColumn,
+                                 Map<String, Integer> keyToShard, Map<String, Integer> recordShard)
+         throws IOException {
+      Writer[] writers = new Writer[n];
+      for (int i = 0; i < n; i++) {
+         File dir = new File(out, "shard" + i);
+         dir.mkdirs();
+         writers[i] = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(new File(dir, table + ".csv")), StandardCharsets.UTF_8));
+      }
+      CsvReader in = CsvReader.open(new File(data, table + ".csv").getPath());
+      try {
+         List<String> header = in.next();
+         for (Writer w : writers) writeRow(w, header);
+         List<String> row;
+         while ((row = in.next()) != null) {
+            if (keyColumn < 0) {
+               for (Writer w : writers) writeRow(w, row);
+               continue;
+            }
+            String key = row.get(keyColumn);
+            Integer shard = keyToShard != null ? keyToShard.get(key) : Integer.valueOf(shardOf(key, n));
+            if (shard == null) {
+               throw new IOException(table + " line " + in.lineNumber() + ": unknown key " + key);
+            }
+            if (recordShard != null) recordShard.put(row.get(0), shard);
+            writeRow(writers[shard], row);
+         }
+      } finally {
+         in.close();
+         for (Writer w : writers) w.close();
+      }
+   }//end splitFile
+
+   private static void writeRow(Writer w, List<String> row) throws IOException {
+      for (int i = 0; i < row.size(); i++) {
+         if (i > 0) w.write(',');
+         String value = row.get(i);
+         if (value == null) continue;
+         if (value.isEmpty() || value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+            w.write('"');
+            w.write(value.replace("\"", "\"\""));
+            w.write('"');
+         } else {
+            w.write(value);
+         }
+      }
+      w.write('\n');
+   }
+
+}//end ShardRouter
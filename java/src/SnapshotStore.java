@@ -0,0 +1,429 @@
+/*
+ * Snapshot store
+ * =============================
+ *
+ * Saves the in-memory caches to a file so a restarted node maps it and is
+ * serving warm in seconds, instead of rebuilding every cache with full
+ * table scans against a cold database.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * File layout (big endian):
+ *
+ *    int MAGIC, int VERSION, long written at (epoch ms), long CRC32 of the body
+ *    body:
+ *       int databases, each: string url, long watermark, int holes, holes x long Seq
+ *       int sections, each: string name, int length, length bytes
+ *
+ * Strings are an int byte count (-1 for null) and UTF-8. The sections are
+ * "fares" (FareCalendar), "maintenance" (MaintenancePriority) and
+ * "customers" (CustomerSearchIndex); a cache not loaded when the snapshot
+ * is taken is left out and loads from the database on first use.
+ *
+ * The watermark of a database is the last ChangeLog Seq the change
+ * listener had applied when the caches were copied, with the Seqs it was
+ * still waiting for as holes. A restored node resumes its listener there,
+ * so only the changes made while it was down are replayed. This is why
+ * airline.snapshot needs airline.changes: without the change log there is
+ * no telling what a snapshot missed. A database whose change log no
+ * longer reaches back to the watermark drops every cache instead.
+ *
+ * airline.snapshot names the file. It is written at shutdown and every
+ * airline.snapshot.minutes (default 5, 0 for shutdown only), to a
+ * temporary file renamed over the old one, so a crash mid-write leaves the
+ * previous snapshot in place.
+ *
+ */
+public class SnapshotStore {
+
+   public static final int DEFAULT_MINUTES = 5;
+   public static final int DEFAULT_REPLAY_SECONDS = 30;
+
+   private static final int MAGIC = 0x534E4150; // "SNAP"
+   private static final int VERSION = 1;
+   private static final int HEADER = 4 + 4 + 8 + 8;
+
+   /**
+    * The caches a snapshot holds; null for one that is not loaded.
+    */
+   public static final class Caches {
+      public FareCalendar fares;
+      public MaintenancePriority maintenance;
+      public CustomerSearchIndex customers;
+   }//end Caches
+
+   /**
+    * Growable buffer the caches write themselves into.
+    */
+   public static final class Writer {
+      private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      private int sections = 0;
+
+      public void writeInt(int v) {
+         ensure(4).putInt(v);
+      }
+
+      public void writeLong(long v) {
+         ensure(8).putLong(v);
+      }
+
+      public void writeDouble(double v) {
+         ensure(8).putDouble(v);
+      }
+
+      public void writeString(String s) {
+         if (s == null) {
+            writeInt(-1);
+            return;
+         }
+         byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+         writeInt(bytes.length);
+         ensure(bytes.length).put(bytes);
+      }
+
+      public void writeDate(LocalDate d) {
+         writeLong(d == null ? Long.MIN_VALUE : d.toEpochDay());
+      }
+
+      int position() {
+         return buffer.position();
+      }
+
+      void putInt(int at, int v) {
+         buffer.putInt(at, v);
+      }
+
+      ByteBuffer written() {
+         ByteBuffer out = buffer.duplicate();
+         out.flip();
+         return out;
+      }
+
+      private ByteBuffer ensure(int n) {
+         if (buffer.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+         }
+         return buffer;
+      }
+   }//end Writer
+
+   /**
+    * Reads what a Writer wrote, straight from the mapped file.
+    */
+   public static final class Reader {
+      private final ByteBuffer buffer;
+
+      Reader(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      public int readInt() {
+         return buffer.getInt();
+      }
+
+      public long readLong() {
+         return buffer.getLong();
+      }
+
+      public double readDouble() {
+         return buffer.getDouble();
+      }
+
+      public String readString() {
+         int length = buffer.getInt();
+         if (length < 0) return null;
+         byte[] bytes = new byte[length];
+         buffer.get(bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      public LocalDate readDate() {
+         long day = buffer.getLong();
+         return day == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(day);
+      }
+   }//end Reader
+
+   /**
+    * A decoded snapshot.
+    */
+   static final class Image {
+      long writtenAt;
+      // url -> { watermark, holes... }
+      final Map<String, long[]> positions = new HashMap<String, long[]>();
+      final Caches caches = new Caches();
+      final Map<String, Integer> sectionBytes = new HashMap<String, Integer>();
+   }//end Image
+
+   private final AirlineManagement esql;
+   private final File file;
+   private final ScheduledExecutorService timer;
+
+   /**
+    * @param esql the handle owning the caches
+    * @param file the snapshot file
+    */
+   public SnapshotStore(AirlineManagement esql, File file) {
+      this.esql = esql;
+      this.file = file;
+      this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "snapshot-writer");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * @return the file airline.snapshot names, or null when snapshots are off
+    */
+   public static File configured() {
+      String path = System.getProperty("airline.snapshot");
+      return path == null ? null : new File(path);
+   }
+
+   /**
+    * Installs the caches of the snapshot file and points the listener at
+    * its watermarks. Call before the listener starts.
+    *
+    * @return whether a snapshot was restored
+    */
+   public boolean restore(ChangeListener listener) {
+      if (!file.exists()) {
+         System.out.println("No snapshot at " + file + ", caches load from the database");
+         return false;
+      }
+      long start = System.nanoTime();
+      Image image;
+      try {
+         image = read(file);
+      } catch (IOException | RuntimeException e) {
+         System.err.println("Snapshot " + file + " not used: " + e.getMessage());
+         return false;
+      }
+      if (!image.positions.keySet().equals(listener.urls())) {
+         System.out.println("Snapshot " + file + " was taken with other databases, caches load from the database");
+         return false;
+      }
+      listener.resumeFrom(image.positions);
+      esql.installCaches(image.caches);
+      System.out.println(String.format("Restored snapshot of %s in %.0f ms",
+                                       new Date(image.writtenAt), (System.nanoTime() - start) / 1e6));
+      return true;
+   }//end restore
+
+   /**
+    * Waits for the listener to replay what changed since the snapshot.
+    * Caches still behind after airline.snapshot.replaySeconds (default 30)
+    * are dropped.
+    */
+   public void awaitReplay(ChangeListener listener) {
+      long seconds = Integer.getInteger("airline.snapshot.replaySeconds", DEFAULT_REPLAY_SECONDS);
+      long start = System.nanoTime();
+      try {
+         if (listener.awaitCaughtUp(seconds * 1000)) {
+            System.out.println(String.format("Replayed changes since the snapshot in %.0f ms",
+                                             (System.nanoTime() - start) / 1e6));
+            return;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      System.out.println("Changes since the snapshot not replayed in time, caches load from the database");
+      listener.resync();
+   }//end awaitReplay
+
+   /**
+    * Starts writing snapshots every airline.snapshot.minutes.
+    */
+   public void start() {
+      int minutes = Integer.getInteger("airline.snapshot.minutes", DEFAULT_MINUTES);
+      if (minutes <= 0) return;
+      timer.scheduleWithFixedDelay(() -> {
+         try {
+            save();
+         } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to write snapshot " + file + ": " + e.getMessage());
+         }
+      }, minutes, minutes, TimeUnit.MINUTES);
+   }
+
+   /**
+    * Stops the periodic snapshots and writes a last one.
+    */
+   public void shutdown() {
+      timer.shutdownNow();
+      try {
+         save();
+      } catch (IOException | RuntimeException e) {
+         System.err.println("Unable to write snapshot " + file + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Writes the loaded caches with the listener's watermarks.
+    *
+    * @return whether a snapshot was written; not while a database is unreachable
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public synchronized boolean save() throws IOException {
+      ChangeListener listener = esql.changes();
+      if (listener == null) return false;
+      final Writer out = new Writer();
+      final Caches caches = esql.loadedCaches();
+      // the caches are copied with no change being applied, so they match the watermarks
+      Map<String, long[]> positions = listener.paused(() -> {
+         section(out, "fares", caches.fares == null ? null : w -> caches.fares.snapshot(w));
+         section(out, "maintenance", caches.maintenance == null ? null : w -> caches.maintenance.snapshot(w));
+         section(out, "customers", caches.customers == null ? null : w -> caches.customers.snapshot(w));
+      });
+      if (positions == null) {
+         System.err.println("Snapshot skipped: the change listener is not connected to every database");
+         return false;
+      }
+      write(file, positions, out);
+      return true;
+   }//end save
+
+   // one section's name, length and body, or nothing for a cache not loaded
+   private static void section(Writer out, String name, java.util.function.Consumer<Writer> body) {
+      if (body == null) return;
+      out.sections++;
+      out.writeString(name);
+      int lengthAt = out.position();
+      out.writeInt(0);
+      body.accept(out);
+      out.putInt(lengthAt, out.position() - lengthAt - 4);
+   }
+
+   static void write(File file, Map<String, long[]> positions, Writer sections) throws IOException {
+      Writer body = new Writer();
+      body.writeInt(positions.size());
+      for (Map.Entry<String, long[]> e : positions.entrySet()) {
+         long[] p = e.getValue();
+         body.writeString(e.getKey());
+         body.writeLong(p[0]);
+         body.writeInt(p.length - 1);
+         for (int i = 1; i < p.length; i++) body.writeLong(p[i]);
+      }
+      body.writeInt(sections.sections);
+      ByteBuffer rest = sections.written();
+      ByteBuffer head = body.written();
+
+      CRC32 crc = new CRC32();
+      crc.update(head.duplicate());
+      crc.update(rest.duplicate());
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(crc.getValue()).flip();
+
+      File tmp = new File(file.getPath() + ".tmp");
+      RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+      try {
+         FileChannel channel = raf.getChannel();
+         channel.truncate(0);
+         for (ByteBuffer b : Arrays.asList(header, head, rest)) {
+            while (b.hasRemaining()) channel.write(b);
+         }
+         channel.force(true);
+      } finally {
+         raf.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end write
+
+   /**
+    * Maps and decodes a snapshot file.
+    *
+    * @throws java.io.IOException when the file is not an intact snapshot of this version
+    */
+   static Image read(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      MappedByteBuffer map;
+      try {
+         if (raf.length() < HEADER) throw new IOException("truncated");
+         // the mapping stays valid after the channel is closed
+         map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      } finally {
+         raf.close();
+      }
+      if (map.getInt(0) != MAGIC) throw new IOException("not a snapshot");
+      if (map.getInt(4) != VERSION) throw new IOException("version " + map.getInt(4) + ", expected " + VERSION);
+      ByteBuffer body = map.duplicate();
+      body.position(HEADER);
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if (crc.getValue() != map.getLong(16)) throw new IOException("checksum mismatch");
+
+      Image image = new Image();
+      image.writtenAt = map.getLong(8);
+      Reader in = new Reader(body);
+      for (int n = in.readInt(); n > 0; n--) {
+         String url = in.readString();
+         long watermark = in.readLong();
+         long[] p = new long[1 + in.readInt()];
+         p[0] = watermark;
+         for (int i = 1; i < p.length; i++) p[i] = in.readLong();
+         image.positions.put(url, p);
+      }
+      for (int n = in.readInt(); n > 0; n--) {
+         String name = in.readString();
+         int length = in.readInt();
+         int end = body.position() + length;
+         image.sectionBytes.put(name, length);
+         switch (name) {
+            case "fares": image.caches.fares = FareCalendar.restore(in); break;
+            case "maintenance": image.caches.maintenance = MaintenancePriority.restore(in); break;
+            case "customers": image.caches.customers = CustomerSearchIndex.restore(in); break;
+            default: break; // written by a later version: skip
+         }
+         if (body.position() > end) throw new IOException("section " + name + " overruns its length");
+         body.position(end);
+      }
+      return image;
+   }//end read
+
+   /**
+    * Checks and describes a snapshot file without a database.
+    *
+    *    java SnapshotStore file
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java SnapshotStore <file>");
+         return;
+      }
+      long start = System.nanoTime();
+      Image image = read(new File(args[0]));
+      System.out.println(String.format("Snapshot of %s, decoded in %.1f ms",
+                                       new Date(image.writtenAt), (System.nanoTime() - start) / 1e6));
+      for (Map.Entry<String, long[]> e : image.positions.entrySet()) {
+         System.out.println(String.format("  %s at Seq %d, %d hole(s)", e.getKey(), e.getValue()[0], e.getValue().length - 1));
+      }
+      Caches c = image.caches;
+      if (c.fares != null) System.out.println(String.format("  fares: %d instances, %d bytes", c.fares.size(), image.sectionBytes.get("fares")));
+      if (c.maintenance != null) System.out.println(String.format("  maintenance: %d planes, %d bytes", c.maintenance.size(), image.sectionBytes.get("maintenance")));
+      if (c.customers != null) System.out.println(String.format("  customers: %d customers, %d bytes", c.customers.size(), image.sectionBytes.get("customers")));
+   }//end main
+
+}//end SnapshotStore
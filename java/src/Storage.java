@@ -0,0 +1,81 @@
+/*
+ * Storage
+ * =============================
+ *
+ * A storage engine: one Repository per table of Schema, and the typed
+ * per-entity repositories on top of them.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * The engine is chosen by the airline.storage system property: "pg" (the
+ * default) keeps everything in Postgres, "memory" loads the CSV files of
+ * airline.data (default data) into the in-memory engine.
+ *
+ */
+public interface Storage extends AutoCloseable {
+
+   /**
+    * @return "pg" or "memory"
+    */
+   String name();
+
+   /**
+    * @return the repository of a table of Schema
+    */
+   Repository repository(Schema.Table table);
+
+   /**
+    * Releases what the engine holds. Never throws.
+    */
+   void close();
+
+   /**
+    * @return the handle a Postgres engine works through, or null for an
+    *         engine without a database
+    */
+   default AirlineManagement database() {
+      return null;
+   }
+
+   default Repositories.Planes planes() { return Repositories.planes(repository(Schema.PLANE)); }
+   default Repositories.Flights flights() { return Repositories.flights(repository(Schema.FLIGHT)); }
+   default Repositories.Schedules schedules() { return Repositories.schedules(repository(Schema.SCHEDULE)); }
+   default Repositories.FlightInstances flightInstances() {
+      return Repositories.flightInstances(repository(Schema.FLIGHT_INSTANCE));
+   }
+   default Repositories.Customers customers() { return Repositories.customers(repository(Schema.CUSTOMER)); }
+   default Repositories.Reservations reservations() { return Repositories.reservations(repository(Schema.RESERVATION)); }
+   default Repositories.Technicians technicians() { return Repositories.technicians(repository(Schema.TECHNICIAN)); }
+   default Repositories.Repairs repairs() { return Repositories.repairs(repository(Schema.REPAIR)); }
+   default Repositories.Pilots pilots() { return Repositories.pilots(repository(Schema.PILOT)); }
+   default Repositories.MaintenanceRequests maintenanceRequests() {
+      return Repositories.maintenanceRequests(repository(Schema.MAINTENANCE_REQUEST));
+   }
+   default Repositories.Users users() { return Repositories.users(repository(Schema.USER)); }
+
+   /**
+    * @param esql the handle the Postgres engine works through
+    * @return the engine named by airline.storage
+    * @throws java.sql.SQLException when the name is unknown or the data cannot be loaded
+    */
+   static Storage fromProperties(AirlineManagement esql) throws SQLException {
+      String name = System.getProperty("airline.storage", "pg").trim();
+      if (name.equals("pg")) {
+         return new PgStorage(esql);
+      }
+      if (name.equals("memory")) {
+         try {
+            return MemoryStorage.load(new File(System.getProperty("airline.data", "data")));
+         } catch (IOException e) {
+            throw new SQLException("Cannot load the in-memory engine: " + e.getMessage());
+         }
+      }
+      throw new SQLException("Unknown airline.storage '" + name + "', expected pg or memory");
+   }//end fromProperties
+
+}//end Storage
@@ -0,0 +1,437 @@
+/*
+ * Waitlist promotion engine
+ * =============================
+ *
+ * Moves waitlisted reservations to 'reserved' as seats free up. Runs on its
+ * own thread and its own connection so promotions never block the menu.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps an ordered (FIFO by BookingSeq) waitlist per FlightInstance and a
+ * set of instances that have freed seats. The worker drains that set and
+ * promotes as many waitlisted reservations as there are free seats in one
+ * transaction per flight instance, under the FlightInstance row lock that
+ * feature14 and cancellations also take. Any number of cancellations on the
+ * same flight therefore collapse into one promotion transaction.
+ *
+ */
+public class WaitlistEngine implements Runnable {
+
+   // owner of the caches that must see SeatsSold changes
+   private final AirlineManagement owner;
+   // the engine's own connection
+   private final AirlineManagement db;
+
+   // loaded waitlists in BookingSeq order; an instance missing here is read from the database on demand
+   private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<String>> waitlists =
+      new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<String>>();
+   // flight instances with seats that may be promotable
+   private final Set<Integer> pending = ConcurrentHashMap.<Integer>newKeySet();
+
+   private final Object signal = new Object();
+   private volatile boolean running = false;
+   private volatile boolean busy = false;
+   private Thread worker = null;
+
+   private final AtomicLong promoted = new AtomicLong();
+   private final AtomicLong transactions = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final AtomicLong busyNanos = new AtomicLong();
+
+   /**
+    * Creates an engine with its own connection to the owner's database.
+    *
+    * @param esql the interactive database handle
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public WaitlistEngine(AirlineManagement esql) throws SQLException {
+      this.owner = esql;
+      this.db = new AirlineManagement(esql.openConnection(), esql);
+   }
+
+   public synchronized void start() {
+      if (running) return;
+      running = true;
+      worker = new Thread(this, "waitlist-promotion");
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   /**
+    * Finishes pending promotions and closes the engine's connection.
+    */
+   public void shutdown() {
+      running = false;
+      synchronized (signal) {
+         signal.notifyAll();
+      }
+      try {
+         if (worker != null) worker.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      db.cleanup();
+   }//end shutdown
+
+   /**
+    * Records a reservation that was just committed with status 'waitlist'.
+    * Its place in line is its BookingSeq, which bookings on other
+    * connections may have come before, so the waitlist is read again.
+    */
+   public void waitlisted(int flightInstanceID, String reservationID) {
+      waitlists.remove(flightInstanceID);
+   }
+
+   /**
+    * Records a waitlisted reservation that left the waitlist without a seat.
+    */
+   public void removed(int flightInstanceID, String reservationID) {
+      ConcurrentLinkedDeque<String> queue = waitlists.get(flightInstanceID);
+      if (queue != null) queue.remove(reservationID);
+   }
+
+   /**
+    * Signals that a seat on a flight instance was released.
+    */
+   public void seatFreed(int flightInstanceID) {
+      pending.add(flightInstanceID);
+      synchronized (signal) {
+         signal.notifyAll();
+      }
+   }
+
+   public void run() {
+      while (running || !pending.isEmpty()) {
+         synchronized (signal) {
+            while (running && pending.isEmpty()) {
+               try {
+                  signal.wait(1000);
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+         busy = true;
+         try {
+            Iterator<Integer> it = pending.iterator();
+            while (it.hasNext()) {
+               Integer id = it.next();
+               it.remove();
+               try {
+                  promote(id);
+               } catch (SQLException e) {
+                  failures.incrementAndGet();
+                  System.err.println("Waitlist promotion failed for flight instance " + id + ": " + e.getMessage());
+               }
+            }
+         } finally {
+            busy = false;
+         }
+      }
+   }//end run
+
+   /**
+    * Promotes waitlisted reservations into every free seat of a flight
+    * instance, in one transaction.
+    *
+    * @param flightInstanceID the flight instance to fill
+    * @return the number of reservations promoted
+    * @throws java.sql.SQLException when the transaction fails (it is rolled back)
+    */
+   public int promote(int flightInstanceID) throws SQLException {
+      if (owner.shards() == null) return promote(db, flightInstanceID);
+      // the instance and its reservations live on one shard
+      AirlineManagement shard = owner.borrowForInstance(flightInstanceID);
+      if (shard == null) {
+         waitlists.remove(flightInstanceID);
+         return 0;
+      }
+      try {
+         return promote(shard, flightInstanceID);
+      } finally {
+         owner.release(shard);
+      }
+   }//end promote
+
+   private int promote(AirlineManagement db, int flightInstanceID) throws SQLException {
+      long start = System.nanoTime();
+      List<Integer> heldSeats = new ArrayList<Integer>();
+      List<Integer> customers = new ArrayList<Integer>();
+      db.beginTransaction();
+      try {
+         List<List<String>> seats = db.executeQueryAndReturnResult(String.format(
+            "SELECT SeatsTotal, SeatsSold FROM FlightInstance WHERE FlightInstanceID = %d FOR UPDATE",
+            flightInstanceID));
+         if (seats.isEmpty()) {
+            db.commit();
+            waitlists.remove(flightInstanceID);
+            return 0;
+         }
+         int seatsSold = Integer.parseInt(seats.get(0).get(1));
+         // seats the booking journal has acknowledged are taken even before they reach SeatsSold
+         BookingJournal journal = owner.journal();
+         int free = Integer.parseInt(seats.get(0).get(0)) - seatsSold -
+                    (journal == null ? 0 : journal.pending(flightInstanceID));
+
+         List<String> promotedIDs = new ArrayList<String>();
+         ConcurrentLinkedDeque<String> queue = waitlist(db, flightInstanceID);
+         while (promotedIDs.size() < free && !queue.isEmpty()) {
+            // take the next candidates in FIFO order and keep those still waitlisted
+            List<String> candidates = new ArrayList<String>();
+            while (candidates.size() < free - promotedIDs.size()) {
+               String next = queue.pollFirst();
+               if (next == null) break;
+               candidates.add(next);
+            }
+            promotedIDs.addAll(lockWaitlisted(db, flightInstanceID, candidates, customers));
+         }
+
+         // give every promoted reservation a seat from the bitmap
+         SeatMap.Bitmap bitmap = owner.seatMap().forInstance(db, flightInstanceID);
+         for (String id : promotedIDs) {
+            int seat = bitmap == null ? -1 : bitmap.holdAny(SeatMap.DEFAULT_HOLD_MILLIS);
+            if (seat >= 0) heldSeats.add(seat);
+            db.executeUpdate(String.format(
+               "UPDATE Reservation SET Status = 'reserved', SeatNumber = %s WHERE ReservationID = '%s'",
+               seat < 0 ? "NULL" : String.valueOf(seat), id.replace("'", "''")));
+         }
+         if (!promotedIDs.isEmpty()) {
+            db.executeUpdate(String.format(
+               "UPDATE FlightInstance SET SeatsSold = SeatsSold + %d WHERE FlightInstanceID = %d",
+               promotedIDs.size(), flightInstanceID));
+         }
+         db.commit();
+         for (int seat : heldSeats) bitmap.confirm(seat);
+         for (int customerID : customers) owner.itineraries().invalidate(customerID);
+         transactions.incrementAndGet();
+         if (promotedIDs.size() < free) {
+            // seats left over: re-read the waitlist next time in case other nodes added to it
+            waitlists.remove(flightInstanceID);
+         }
+         if (!promotedIDs.isEmpty()) {
+            promoted.addAndGet(promotedIDs.size());
+            owner.seatsSoldChanged(flightInstanceID, seatsSold + promotedIDs.size());
+         }
+         return promotedIDs.size();
+      } catch (SQLException e) {
+         db.rollback();
+         SeatMap.Bitmap bitmap = owner.seatMap().loaded(flightInstanceID);
+         for (int seat : heldSeats) bitmap.release(seat);
+         // candidates were already taken off the queue, so reload it next time
+         waitlists.remove(flightInstanceID);
+         throw e;
+      } finally {
+         busyNanos.addAndGet(System.nanoTime() - start);
+      }
+   }//end promote
+
+   /**
+    * Blocks until no promotion is pending or running.
+    *
+    * @return true if the engine went idle within the timeout
+    */
+   public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!pending.isEmpty() || busy) {
+         if (System.currentTimeMillis() > deadline) return false;
+         Thread.sleep(5);
+      }
+      return true;
+   }
+
+   public long promotedCount() { return promoted.get(); }
+   public long transactionCount() { return transactions.get(); }
+   public long failureCount() { return failures.get(); }
+   public long busyMillis() { return TimeUnit.NANOSECONDS.toMillis(busyNanos.get()); }
+
+   // returns the waitlist of a flight instance, loading it inside the current transaction
+   private ConcurrentLinkedDeque<String> waitlist(AirlineManagement db, int flightInstanceID) throws SQLException {
+      ConcurrentLinkedDeque<String> queue = waitlists.get(flightInstanceID);
+      if (queue != null) return queue;
+      queue = new ConcurrentLinkedDeque<String>();
+      for (List<String> row : db.executeQueryAndReturnResult(String.format(
+            "SELECT ReservationID FROM Reservation " +
+            "WHERE FlightInstanceID = %d AND Status = 'waitlist' ORDER BY BookingSeq", flightInstanceID))) {
+         queue.add(row.get(0));
+      }
+      ConcurrentLinkedDeque<String> raced = waitlists.putIfAbsent(flightInstanceID, queue);
+      return raced != null ? raced : queue;
+   }
+
+   // locks the candidates that are still on this flight's waitlist and returns them in order
+   private List<String> lockWaitlisted(AirlineManagement db, int flightInstanceID, List<String> candidates,
+                                       List<Integer> customers) throws SQLException {
+      List<String> locked = new ArrayList<String>();
+      if (candidates.isEmpty()) return locked;
+      for (List<String> row : db.executeQueryAndReturnResult(String.format(
+            "SELECT ReservationID, CustomerID FROM Reservation " +
+            "WHERE ReservationID IN (%s) AND FlightInstanceID = %d AND Status = 'waitlist' " +
+            "ORDER BY BookingSeq FOR UPDATE",
+            inList(candidates), flightInstanceID))) {
+         locked.add(row.get(0));
+         customers.add(Integer.parseInt(row.get(1)));
+      }
+      return locked;
+   }
+
+   private static String inList(List<String> ids) {
+      StringBuilder sb = new StringBuilder();
+      for (String id : ids) {
+         if (sb.length() > 0) sb.append(", ");
+         sb.append('\'').append(id.replace("'", "''")).append('\'');
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Cancels an active reservation of a customer. A freed seat is handed to
+    * the promotion engine.
+    *
+    * @param esql the database handle to cancel on
+    * @param reservationID the reservation to cancel
+    * @param customerID the customer that owns it
+    * @return the status the reservation had, or null if there was nothing to cancel
+    * @throws java.sql.SQLException when the cancellation fails (it is rolled back)
+    */
+   public static String cancel(AirlineManagement esql, String reservationID, String customerID) throws SQLException {
+      String rid = reservationID.replace("'", "''");
+      int cid = Integer.parseInt(customerID.trim());
+
+      List<List<String>> found = esql.executeQueryAndReturnResult(String.format(
+         "SELECT FlightInstanceID FROM Reservation WHERE ReservationID = '%s' AND CustomerID = %d",
+         rid, cid));
+      if (found.isEmpty()) return null;
+      int flightInstanceID = Integer.parseInt(found.get(0).get(0));
+      // started before the transaction: failing after the commit would report a cancellation that happened as failed
+      WaitlistEngine engine = esql.waitlistEngine();
+
+      // same lock order as feature14 and promotion: flight instance first, then reservation
+      esql.beginTransaction();
+      String status;
+      int seatsSold;
+      int seat;
+      try {
+         List<List<String>> seats = esql.executeQueryAndReturnResult(String.format(
+            "SELECT SeatsSold FROM FlightInstance WHERE FlightInstanceID = %d FOR UPDATE",
+            flightInstanceID));
+         List<List<String>> current = esql.executeQueryAndReturnResult(String.format(
+            "SELECT Status, SeatNumber FROM Reservation WHERE ReservationID = '%s' AND CustomerID = %d FOR UPDATE",
+            rid, cid));
+         status = current.isEmpty() ? null : current.get(0).get(0);
+         seat = current.isEmpty() || current.get(0).get(1) == null ? -1 : Integer.parseInt(current.get(0).get(1));
+         if (seats.isEmpty() || !("reserved".equals(status) || "waitlist".equals(status))) {
+            esql.rollback();
+            return null;
+         }
+         seatsSold = Integer.parseInt(seats.get(0).get(0));
+
+         esql.executeUpdate(String.format(
+            "UPDATE Reservation SET Status = 'cancelled', SeatNumber = NULL WHERE ReservationID = '%s'", rid));
+         if (status.equals("reserved")) {
+            esql.executeUpdate(String.format(
+               "UPDATE FlightInstance SET SeatsSold = SeatsSold - 1 WHERE FlightInstanceID = %d",
+               flightInstanceID));
+         }
+         esql.commit();
+      } catch (SQLException e) {
+         esql.rollback();
+         throw e;
+      }
+
+      esql.itineraries().invalidate(cid);
+      SeatMap.Bitmap bitmap = esql.seatMap().loaded(flightInstanceID);
+      if (bitmap != null && seat >= 0) {
+         bitmap.release(seat);
+      } else if (bitmap != null && status.equals("reserved")) {
+         bitmap.releaseUnnumbered();
+      }
+      if (status.equals("reserved")) {
+         esql.seatsSoldChanged(flightInstanceID, seatsSold - 1);
+         engine.seatFreed(flightInstanceID);
+      } else {
+         engine.removed(flightInstanceID, reservationID);
+      }
+      return status;
+   }//end cancel
+
+   /**
+    * Mass cancellation benchmark. Cancels every 'reserved' reservation of a
+    * flight instance from several connections at once and reports cancellation
+    * and promotion throughput. It changes data, so run it on a scratch database.
+    *
+    * @param args <dbname> <port> <user> <flightInstanceID> [threads]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java WaitlistEngine <dbname> <port> <user> <flightInstanceID> [threads]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      final AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      final int flightInstanceID = Integer.parseInt(args[3]);
+      int threads = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+      try {
+         List<List<String>> victims = esql.executeQueryAndReturnResult(String.format(
+            "SELECT ReservationID, CustomerID FROM Reservation " +
+            "WHERE FlightInstanceID = %d AND Status = 'reserved'", flightInstanceID));
+         WaitlistEngine engine = esql.waitlistEngine();
+
+         final List<AirlineManagement> sessions = new ArrayList<AirlineManagement>();
+         for (int i = 0; i < threads; i++) {
+            sessions.add(new AirlineManagement(esql.openConnection(), esql));
+         }
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         final AtomicLong cancelled = new AtomicLong();
+         long start = System.nanoTime();
+         for (int i = 0; i < victims.size(); i++) {
+            final List<String> victim = victims.get(i);
+            final AirlineManagement session = sessions.get(i % threads);
+            pool.submit(new Runnable() {
+               public void run() {
+                  synchronized (session) {
+                     try {
+                        if (cancel(session, victim.get(0), victim.get(1)) != null) cancelled.incrementAndGet();
+                     } catch (SQLException e) {
+                        System.err.println("Cancel " + victim.get(0) + " failed: " + e.getMessage());
+                     }
+                  }
+               }
+            });
+         }
+         pool.shutdown();
+         pool.awaitTermination(10, TimeUnit.MINUTES);
+         long cancelNanos = System.nanoTime() - start;
+         engine.awaitIdle(60000);
+         long totalNanos = System.nanoTime() - start;
+
+         System.out.println("Cancellations:          " + cancelled.get() + " in " + cancelNanos / 1000000 + " ms (" +
+                            rate(cancelled.get(), cancelNanos) + "/s)");
+         System.out.println("Promotions:             " + engine.promotedCount() + " in " +
+                            engine.transactionCount() + " transactions");
+         System.out.println("Promotion engine busy:  " + engine.busyMillis() + " ms (" +
+                            rate(engine.promotedCount(), TimeUnit.MILLISECONDS.toNanos(Math.max(1, engine.busyMillis()))) + " promotions/s)");
+         System.out.println("End to end:             " + totalNanos / 1000000 + " ms");
+         for (AirlineManagement session : sessions) session.cleanup();
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   private static long rate(long count, long nanos) {
+      return nanos <= 0 ? 0 : count * 1000000000L / nanos;
+   }
+
+}//end WaitlistEngine
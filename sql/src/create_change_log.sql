@@ -0,0 +1,103 @@
+-- Change notification for nodes that cache tables in memory (ChangeListener).
+-- Install only where nodes run with -Dairline.changes=true: the listeners also prune
+-- ChangeLog. Run after load_data.sql (and create_partitions.sql), and again whenever the tables are
+-- recreated: dropping a table drops its trigger. On a sharded setup, run it on every shard.
+--
+-- Every change of a cached table adds one ChangeLog row; each transaction that changes any
+-- sends one NOTIFY airline_change. Listeners read the rows after the last Seq they saw, so
+-- the notification itself carries nothing and a lost or merged one costs nothing.
+
+DROP TABLE IF EXISTS ChangeLog;
+
+CREATE TABLE ChangeLog (
+    Seq BIGSERIAL PRIMARY KEY,
+    TableName TEXT NOT NULL,
+    Op CHAR(1) NOT NULL, -- I, U or D
+    RowKey TEXT NOT NULL,
+    Detail TEXT, -- new values the caches patch from, | separated, empty for NULL
+    -- application_name of the connection that made the change: each node names its own
+    Origin TEXT NOT NULL DEFAULT current_setting('application_name'),
+    ChangedAt TIMESTAMP NOT NULL DEFAULT now()
+);
+
+-- listeners delete rows older than airline.changes.retention minutes
+CREATE INDEX changelog_changedat ON ChangeLog (ChangedAt);
+
+-- TG_ARGV[0] is the table's name: with create_partitions.sql the row lives in a partition
+CREATE OR REPLACE FUNCTION airline_change() RETURNS TRIGGER AS $$
+DECLARE
+    r RECORD;
+    op CHAR(1) := substr(TG_OP, 1, 1);
+    moved BOOLEAN := FALSE;
+BEGIN
+    IF TG_OP = 'DELETE' THEN r := OLD; ELSE r := NEW; END IF;
+
+    IF TG_ARGV[0] = 'FlightInstance' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+        VALUES (TG_ARGV[0], op, r.FlightInstanceID,
+                concat_ws('|', coalesce(r.SeatsSold::TEXT, ''), coalesce(r.TicketCost::TEXT, ''),
+                          coalesce(r.SeatsTotal::TEXT, '')));
+    ELSIF TG_ARGV[0] = 'Reservation' THEN
+        -- a reservation moved to another customer or flight changes the old one's caches too;
+        -- logged first, so a seat map frees the old seat before it takes the new one
+        moved := TG_OP = 'UPDATE' AND (OLD.CustomerID IS DISTINCT FROM NEW.CustomerID
+                                       OR OLD.FlightInstanceID IS DISTINCT FROM NEW.FlightInstanceID);
+        IF moved THEN
+            INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+            VALUES (TG_ARGV[0], 'D', OLD.ReservationID,
+                    concat_ws('|', coalesce(OLD.CustomerID::TEXT, ''), coalesce(OLD.FlightInstanceID::TEXT, ''),
+                              coalesce(OLD.Status, ''), coalesce(OLD.SeatNumber::TEXT, '')));
+        END IF;
+        -- an update in place also carries the old Status and SeatNumber, which seat maps release
+        INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+        VALUES (TG_ARGV[0], op, r.ReservationID,
+                concat_ws('|', coalesce(r.CustomerID::TEXT, ''), coalesce(r.FlightInstanceID::TEXT, ''),
+                          coalesce(r.Status, ''), coalesce(r.SeatNumber::TEXT, ''),
+                          CASE WHEN TG_OP = 'UPDATE' AND NOT moved THEN coalesce(OLD.Status, '') ELSE '' END,
+                          CASE WHEN TG_OP = 'UPDATE' AND NOT moved THEN coalesce(OLD.SeatNumber::TEXT, '') ELSE '' END));
+    ELSIF TG_ARGV[0] = 'Plane' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+        VALUES (TG_ARGV[0], op, r.PlaneID, coalesce(r.LastRepairDate::TEXT, ''));
+    ELSIF TG_ARGV[0] = 'Repair' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+        VALUES (TG_ARGV[0], op, r.RepairID,
+                concat_ws('|', coalesce(r.PlaneID, ''), coalesce(r.RepairCode, ''),
+                          coalesce(r.RepairDate::TEXT, ''), coalesce(r.TechnicianID, '')));
+    ELSIF TG_ARGV[0] = 'MaintenanceRequest' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey, Detail)
+        VALUES (TG_ARGV[0], op, r.RequestID,
+                concat_ws('|', coalesce(r.PlaneID, ''), coalesce(r.RepairCode, ''),
+                          coalesce(r.RequestDate::TEXT, ''), coalesce(r.PilotID, '')));
+    ELSIF TG_ARGV[0] = 'Customer' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey) VALUES (TG_ARGV[0], op, r.CustomerID);
+    ELSIF TG_ARGV[0] = 'Flight' THEN
+        INSERT INTO ChangeLog (TableName, Op, RowKey) VALUES (TG_ARGV[0], op, r.FlightNumber);
+    ELSIF TG_ARGV[0] = 'User_' THEN
+        -- the username only: password hashes stay out of the log
+        INSERT INTO ChangeLog (TableName, Op, RowKey) VALUES (TG_ARGV[0], op, r.Username);
+        IF TG_OP = 'UPDATE' AND OLD.Username IS DISTINCT FROM NEW.Username THEN
+            INSERT INTO ChangeLog (TableName, Op, RowKey) VALUES (TG_ARGV[0], 'D', OLD.Username);
+        END IF;
+    END IF;
+
+    NOTIFY airline_change;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER flightinstance_change AFTER INSERT OR UPDATE OR DELETE ON FlightInstance
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('FlightInstance');
+CREATE TRIGGER reservation_change AFTER INSERT OR UPDATE OR DELETE ON Reservation
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('Reservation');
+CREATE TRIGGER plane_change AFTER INSERT OR UPDATE OR DELETE ON Plane
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('Plane');
+CREATE TRIGGER repair_change AFTER INSERT OR UPDATE OR DELETE ON Repair
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('Repair');
+CREATE TRIGGER maintenancerequest_change AFTER INSERT OR UPDATE OR DELETE ON MaintenanceRequest
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('MaintenanceRequest');
+CREATE TRIGGER customer_change AFTER INSERT OR UPDATE OR DELETE ON Customer
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('Customer');
+CREATE TRIGGER flight_change AFTER INSERT OR UPDATE OR DELETE ON Flight
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('Flight');
+CREATE TRIGGER user_change AFTER INSERT OR UPDATE OR DELETE ON User_
+    FOR EACH ROW EXECUTE PROCEDURE airline_change('User_');
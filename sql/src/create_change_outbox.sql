@@ -0,0 +1,52 @@
+-- Change data capture for downstream systems (ChangePublisher): every change of a Reservation or
+-- FlightInstance row adds one ChangeOutbox row holding the whole row, and the publisher moves
+-- them to local files in batches. Install only where a publisher runs (-Dairline.cdc=<dir> or
+-- java ChangePublisher): nothing else empties the table. Run after load_data.sql (and
+-- create_partitions.sql), and again whenever the tables are recreated. On a sharded setup,
+-- run it on every shard and give each shard a publisher of its own.
+
+DROP TABLE IF EXISTS ChangeOutbox;
+
+CREATE TABLE ChangeOutbox (
+    Seq BIGSERIAL PRIMARY KEY,
+    TableName TEXT NOT NULL,
+    Op CHAR(1) NOT NULL, -- I, U or D
+    RowKey TEXT NOT NULL,
+    Data TEXT NOT NULL, -- the row as JSON: the new one, the old one for D
+    TxID BIGINT NOT NULL DEFAULT txid_current(), -- changes of one transaction share it
+    ChangedAt TIMESTAMP NOT NULL DEFAULT now()
+);
+
+-- the offset after the last event each publisher directory holds, advanced in the transaction
+-- that deletes the batch; offsets go on from the highest, whichever node publishes. Kept when
+-- the script runs again, so consumers' offsets stay valid.
+CREATE TABLE IF NOT EXISTS ChangeOffset (
+    Publisher TEXT PRIMARY KEY, -- the id in the directory's publisher.id
+    NextOffset BIGINT NOT NULL
+);
+
+-- TG_ARGV[0] is the table's name, TG_ARGV[1] its key column as row_to_json names it
+CREATE OR REPLACE FUNCTION airline_outbox() RETURNS TRIGGER AS $$
+DECLARE
+    data JSON;
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        data := row_to_json(OLD);
+    ELSIF TG_OP = 'UPDATE' AND OLD IS NOT DISTINCT FROM NEW THEN
+        RETURN NULL;
+    ELSE
+        data := row_to_json(NEW);
+    END IF;
+
+    INSERT INTO ChangeOutbox (TableName, Op, RowKey, Data)
+    VALUES (TG_ARGV[0], substr(TG_OP, 1, 1), data ->> TG_ARGV[1], data::TEXT);
+
+    NOTIFY airline_outbox;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER reservation_outbox AFTER INSERT OR UPDATE OR DELETE ON Reservation
+    FOR EACH ROW EXECUTE PROCEDURE airline_outbox('Reservation', 'reservationid');
+CREATE TRIGGER flightinstance_outbox AFTER INSERT OR UPDATE OR DELETE ON FlightInstance
+    FOR EACH ROW EXECUTE PROCEDURE airline_outbox('FlightInstance', 'flightinstanceid');
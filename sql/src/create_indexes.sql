@@ -4,16 +4,24 @@ CREATE INDEX flightinstance_flightnumber_date ON FlightInstance (FlightNumber, F
 CREATE INDEX flightinstance_flightdate ON FlightInstance (FlightDate);
 
 -- Flight departures and landings
-CREATE INDEX flight_departure ON Flight (DepartureCity);
+-- route search (feature11) filters on both cities at once
+CREATE INDEX flight_departure_arrival ON Flight (DepartureCity, ArrivalCity);
 CREATE INDEX flight_arrival ON Flight (ArrivalCity);
  
  -- Schedules
 CREATE INDEX schedule_flightnumber ON Schedule (FlightNumber);
-CREATE INDEX reservation_flightinstance ON Reservation (FlightInstanceID);
+-- passenger lists by status (feature5)
+CREATE INDEX reservation_flightinstance_status ON Reservation (FlightInstanceID, Status);
+-- covers "my trips": every column a customer's reservation list needs, led by CustomerID
+CREATE INDEX reservation_customer ON Reservation (CustomerID, FlightInstanceID, Status, ReservationID, SeatNumber);
+-- a seat can only be held by one reservation per flight instance
+-- (FlightDate is fixed per instance; it is here because unique indexes on partitioned tables need the key)
+CREATE UNIQUE INDEX reservation_flightinstance_seat ON Reservation (FlightInstanceID, FlightDate, SeatNumber) WHERE SeatNumber IS NOT NULL;
 
 -- Maintenance
 CREATE INDEX repair_planeid ON Repair (PlaneID);
 CREATE INDEX repair_planeid_repairdate ON Repair (PlaneID, RepairDate);
-CREATE INDEX repair_technicianid ON Repair (TechnicianID);
+-- a technician's repairs, newest first (feature8), without a sort
+CREATE INDEX repair_technicianid_repairdate ON Repair (TechnicianID, RepairDate);
 CREATE INDEX maintenancerequest_planeid ON MaintenanceRequest (PlaneID);
 CREATE INDEX maintenancerequest_pilotid ON MaintenanceRequest (PilotID);
\ No newline at end of file
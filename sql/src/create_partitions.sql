@@ -0,0 +1,113 @@
+-- Partitioned mode: run after create_tables.sql and before create_indexes.sql / load_data.sql.
+-- Recreates FlightInstance, Reservation and Repair as tables range partitioned by month
+-- (FlightDate, FlightDate, RepairDate). Queries that compare those columns with DATE
+-- literals only touch the months they ask for.
+
+DROP TABLE IF EXISTS Repair;
+DROP TABLE IF EXISTS Reservation;
+DROP TABLE IF EXISTS FlightInstance;
+
+-- FlightInstance Table, the primary key must contain the partition key
+CREATE TABLE FlightInstance (
+    FlightInstanceID INTEGER,
+    FlightNumber TEXT,
+    FlightDate DATE NOT NULL,
+    DepartedOnTime BOOLEAN,
+    ArrivedOnTime BOOLEAN,
+    SeatsTotal INTEGER,
+    SeatsSold INTEGER,
+    NumOfStops INTEGER,
+    TicketCost DECIMAL(10,2),
+    PRIMARY KEY (FlightInstanceID, FlightDate),
+    FOREIGN KEY (FlightNumber) REFERENCES Flight(FlightNumber)
+) PARTITION BY RANGE (FlightDate);
+
+-- Reservation Table, partitioned by the date of its flight. There is no foreign key to
+-- FlightInstance: it would stop old FlightInstance months from being detached.
+CREATE TABLE Reservation (
+    ReservationID TEXT,
+    CustomerID INTEGER,
+    FlightInstanceID INTEGER,
+    Status TEXT CHECK(Status IN ('reserved', 'waitlist', 'flown', 'cancelled')),
+    SeatNumber INTEGER,
+    FlightDate DATE,
+    BookingSeq BIGSERIAL,
+    PRIMARY KEY (ReservationID, FlightDate),
+    FOREIGN KEY (CustomerID) REFERENCES Customer(CustomerID)
+) PARTITION BY RANGE (FlightDate);
+
+-- Repair Table
+CREATE TABLE Repair (
+    RepairID SERIAL,
+    PlaneID TEXT,
+    RepairCode TEXT,
+    RepairDate DATE,
+    TechnicianID TEXT,
+    PRIMARY KEY (RepairID, RepairDate),
+    FOREIGN KEY (PlaneID) REFERENCES Plane(PlaneID),
+    FOREIGN KEY (TechnicianID) REFERENCES Technician(TechnicianID)
+) PARTITION BY RANGE (RepairDate);
+
+-- rows without a date (Reservation rows between \copy and the FlightDate update in
+-- load_data.sql, undated repairs) wait here
+CREATE TABLE Reservation_undated PARTITION OF Reservation DEFAULT;
+CREATE TABLE Repair_undated PARTITION OF Repair DEFAULT;
+
+-- Detached months live in this schema under their partition names
+CREATE SCHEMA IF NOT EXISTS archive;
+
+-- Creates the monthly partitions <table>_yYYYYmMM of the three tables for every month
+-- from first_month to last_month (inclusive). Existing months are skipped.
+CREATE OR REPLACE FUNCTION airline_ensure_partitions(first_month DATE, last_month DATE) RETURNS INTEGER AS $$
+DECLARE
+    month DATE := date_trunc('month', first_month)::DATE;
+    tbl TEXT;
+    part TEXT;
+    created INTEGER := 0;
+BEGIN
+    WHILE month <= last_month LOOP
+        FOREACH tbl IN ARRAY ARRAY['FlightInstance', 'Reservation', 'Repair'] LOOP
+            part := lower(tbl) || '_y' || to_char(month, 'YYYY') || 'm' || to_char(month, 'MM');
+            IF to_regclass(part) IS NULL AND to_regclass('archive.' || part) IS NULL THEN
+                EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+                               part, tbl, month, (month + INTERVAL '1 month')::DATE);
+                created := created + 1;
+            END IF;
+        END LOOP;
+        month := (month + INTERVAL '1 month')::DATE;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches every monthly partition that ends on or before cutoff and moves it to the
+-- archive schema, Reservation first. Returns the number of partitions archived.
+CREATE OR REPLACE FUNCTION airline_archive_partitions(cutoff DATE) RETURNS INTEGER AS $$
+DECLARE
+    tbl TEXT;
+    part RECORD;
+    archived INTEGER := 0;
+BEGIN
+    FOREACH tbl IN ARRAY ARRAY['Reservation', 'Repair', 'FlightInstance'] LOOP
+        FOR part IN
+            SELECT c.relname
+            FROM pg_inherits i
+            JOIN pg_class c ON c.oid = i.inhrelid
+            JOIN pg_class p ON p.oid = i.inhparent
+            WHERE p.relname = lower(tbl)
+              AND c.relname ~ '_y[0-9]{4}m[0-9]{2}$'
+              AND (to_date(substring(c.relname from '_y([0-9]{4})m') || substring(c.relname from 'm([0-9]{2})$') || '01',
+                           'YYYYMMDD') + INTERVAL '1 month')::DATE <= cutoff
+            ORDER BY c.relname
+        LOOP
+            EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', tbl, part.relname);
+            EXECUTE format('ALTER TABLE %I SET SCHEMA archive', part.relname);
+            archived := archived + 1;
+        END LOOP;
+    END LOOP;
+    RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
+
+-- months of the sample data plus the coming year; PartitionManager keeps creating ahead
+SELECT airline_ensure_partitions(DATE '2024-01-01', (date_trunc('month', CURRENT_DATE) + INTERVAL '12 months')::DATE);
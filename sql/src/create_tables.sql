@@ -69,7 +69,10 @@ CREATE TABLE Reservation (
     ReservationID TEXT PRIMARY KEY,
     CustomerID INTEGER,
     FlightInstanceID INTEGER,
-    Status TEXT CHECK(Status IN ('reserved', 'waitlist', 'flown')),
+    Status TEXT CHECK(Status IN ('reserved', 'waitlist', 'flown', 'cancelled')),
+    SeatNumber INTEGER, -- assigned seat, NULL when waitlisted or booked before seat maps
+    FlightDate DATE, -- copy of the flight instance's date, the partition key in create_partitions.sql
+    BookingSeq BIGSERIAL, -- order the reservations were made in; the waitlist is served in it
     FOREIGN KEY (CustomerID) REFERENCES Customer(CustomerID),
     FOREIGN KEY (FlightInstanceID) REFERENCES FlightInstance(FlightInstanceID)
 );
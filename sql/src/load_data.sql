@@ -6,11 +6,24 @@
 
 \copy Schedule FROM '/home/csmajs/djuar047/cs166_project_phase3/data/Schedule.csv' WITH DELIMITER ',' CSV HEADER; 
 
-\copy FlightInstance FROM '/home/csmajs/djuar047/cs166_project_phase3/data/FlightInstance.csv' WITH DELIMITER ',' CSV HEADER; 
+-- FlightInstance.csv writes dates as M/D/YY: load them as text and convert with an explicit
+-- format, so the stored DATE does not depend on the server's DateStyle
+CREATE TEMP TABLE FlightInstance_csv (LIKE FlightInstance INCLUDING DEFAULTS);
+ALTER TABLE FlightInstance_csv ALTER COLUMN FlightDate TYPE TEXT;
+\copy FlightInstance_csv FROM '/home/csmajs/djuar047/cs166_project_phase3/data/FlightInstance.csv' WITH DELIMITER ',' CSV HEADER; 
+INSERT INTO FlightInstance
+SELECT FlightInstanceID, FlightNumber,
+       CASE WHEN FlightDate LIKE '%/%' THEN to_date(FlightDate, 'MM/DD/YY') ELSE FlightDate::DATE END,
+       DepartedOnTime, ArrivedOnTime, SeatsTotal, SeatsSold, NumOfStops, TicketCost
+FROM FlightInstance_csv;
+DROP TABLE FlightInstance_csv;
 
 \copy Customer FROM '/home/csmajs/djuar047/cs166_project_phase3/data/Customer.csv' WITH DELIMITER ',' CSV HEADER; 
 
-\copy Reservation FROM '/home/csmajs/djuar047/cs166_project_phase3/data/Reservation.csv' WITH DELIMITER ',' CSV HEADER; 
+\copy Reservation (ReservationID, CustomerID, FlightInstanceID, Status) FROM '/home/csmajs/djuar047/cs166_project_phase3/data/Reservation.csv' WITH DELIMITER ',' CSV HEADER; 
+
+-- Reservation carries its flight date (the partition key when partitioned)
+UPDATE Reservation R SET FlightDate = FI.FlightDate FROM FlightInstance FI WHERE FI.FlightInstanceID = R.FlightInstanceID;
 
 \copy Technician FROM '/home/csmajs/djuar047/cs166_project_phase3/data/Technician.csv' WITH DELIMITER ',' CSV HEADER; 
 